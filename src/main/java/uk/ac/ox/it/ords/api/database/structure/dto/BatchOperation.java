@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.dto;
+
+
+
+public class BatchOperation {
+    
+    public static final String CREATE = "create";
+    public static final String UPDATE = "update";
+    public static final String DELETE = "delete";
+    
+    public static final String TABLE = "table";
+    public static final String COLUMN = "column";
+    public static final String INDEX = "index";
+    public static final String CONSTRAINT = "constraint";
+    public static final String COMMENT = "comment";
+    
+    /**
+     * What to do: create, update or delete. Comments can only be updated.
+     */
+    private String action;
+    /**
+     * What the operation applies to: table, column, index, constraint or
+     * comment
+     */
+    private String type;
+    /**
+     * The name of the table
+     */
+    private String tablename;
+    /**
+     * The name of the column, index or constraint. For a comment, the
+     * column to comment on, or null to comment on the table.
+     */
+    private String name;
+    /**
+     * The new name of the table, if it's being renamed
+     */
+    private String newname;
+    /**
+     * The column to create or update
+     */
+    private ColumnRequest column;
+    /**
+     * The index to create or update
+     */
+    private IndexRequest index;
+    /**
+     * The constraint to create or update
+     */
+    private ConstraintRequest constraint;
+    /**
+     * The text of the comment to be set
+     */
+    private String comment;
+
+    public BatchOperation() {
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public void setAction(String action) {
+        this.action = action;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getTablename() {
+        return tablename;
+    }
+
+    public void setTablename(String tablename) {
+        this.tablename = tablename;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getNewname() {
+        return newname;
+    }
+
+    public void setNewname(String newname) {
+        this.newname = newname;
+    }
+
+    public ColumnRequest getColumn() {
+        return column;
+    }
+
+    public void setColumn(ColumnRequest column) {
+        this.column = column;
+    }
+
+    public IndexRequest getIndex() {
+        return index;
+    }
+
+    public void setIndex(IndexRequest index) {
+        this.index = index;
+    }
+
+    public ConstraintRequest getConstraint() {
+        return constraint;
+    }
+
+    public void setConstraint(ConstraintRequest constraint) {
+        this.constraint = constraint;
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    public void setComment(String comment) {
+        this.comment = comment;
+    }
+
+}
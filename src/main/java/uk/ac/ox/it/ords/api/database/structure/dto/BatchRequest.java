@@ -0,0 +1,40 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.dto;
+
+import java.util.ArrayList;
+
+
+public class BatchRequest {
+    /**
+     * The structure operations to perform, in the order they are to be
+     * applied
+     */
+    private ArrayList<BatchOperation> operations;
+
+    public BatchRequest() {
+    }
+
+    public ArrayList<BatchOperation> getOperations() {
+        return operations;
+    }
+
+    public void setOperations(ArrayList<BatchOperation> operations) {
+        this.operations = operations;
+    }
+
+}
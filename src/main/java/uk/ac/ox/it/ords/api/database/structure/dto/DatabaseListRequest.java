@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.dto;
+
+/**
+ * The page of the database list to return, and how to order it
+ */
+public class DatabaseListRequest {
+
+	/**
+	 * The properties of a database the list can be sorted by
+	 */
+	public static final String[] SORT_PROPERTIES = {
+		"physicalDatabaseId",
+		"logicalDatabaseId",
+		"dbConsumedName",
+		"databaseServer",
+		"fileSize",
+		"entityType"
+	};
+
+	/**
+	 * The properties of a database that can be asked for in a sparse
+	 * listing. The physical database id is always included.
+	 */
+	public static final String[] FIELDS = {
+		"physicalDatabaseId",
+		"logicalDatabaseId",
+		"fileSize",
+		"entityType",
+		"uploadedHost",
+		"fullPathToDirectory",
+		"fileName",
+		"databaseType",
+		"actorId",
+		"importProgress",
+		"representationExists",
+		"dbConsumed",
+		"dbConsumedName",
+		"databaseServer",
+		"uuid"
+	};
+
+	/**
+	 * If set, only databases after this physical database id, in the
+	 * order of the list, are returned. This can only be used when sorting
+	 * by physical database id.
+	 */
+	private Integer after = null;
+
+	/**
+	 * The properties to return, or null for all of them
+	 */
+	private String[] fields = null;
+
+	/**
+	 * The number of databases to skip
+	 */
+	private int offset = 0;
+
+	/**
+	 * The maximum number of databases to return, or 0 for all of them
+	 */
+	private int limit = 0;
+
+	private String sort = "physicalDatabaseId";
+
+	private boolean ascending = true;
+
+	public DatabaseListRequest() {
+	}
+
+	public DatabaseListRequest(int offset, int limit, String sort, boolean ascending) {
+		this.offset = offset;
+		this.limit = limit;
+		this.sort = sort;
+		this.ascending = ascending;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public void setOffset(int offset) {
+		this.offset = offset;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	public String getSort() {
+		return sort;
+	}
+
+	public void setSort(String sort) {
+		this.sort = sort;
+	}
+
+	public Integer getAfter() {
+		return after;
+	}
+
+	public void setAfter(Integer after) {
+		this.after = after;
+	}
+
+	public String[] getFields() {
+		return fields;
+	}
+
+	public void setFields(String[] fields) {
+		this.fields = fields;
+	}
+
+	public boolean isAscending() {
+		return ascending;
+	}
+
+	public void setAscending(boolean ascending) {
+		this.ascending = ascending;
+	}
+
+}
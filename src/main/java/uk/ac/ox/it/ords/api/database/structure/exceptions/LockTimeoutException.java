@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.exceptions;
+
+/**
+ * Thrown when an operation on a database can't go ahead because another
+ * operation on the same database is taking too long to finish
+ */
+public class LockTimeoutException extends Exception {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 4170936285518052377L;
+
+	public LockTimeoutException() {
+		super();
+	}
+	
+	public LockTimeoutException(String string) {
+		super(string);
+	}
+}
@@ -16,31 +16,39 @@
 
 package uk.ac.ox.it.ords.api.database.structure.resources;
 
+import java.net.URI;
+import java.util.concurrent.RejectedExecutionException;
+
 import javax.ws.rs.NotFoundException;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.UriInfo;
 
-import org.apache.shiro.SecurityUtils;
 
 import uk.ac.ox.it.ords.api.database.structure.exceptions.BadParameterException;
+import uk.ac.ox.it.ords.api.database.structure.exceptions.LockTimeoutException;
 import uk.ac.ox.it.ords.api.database.structure.exceptions.NamingConflictException;
-import uk.ac.ox.it.ords.api.database.structure.permissions.DatabaseStructurePermissions;
 import uk.ac.ox.it.ords.api.database.structure.services.ColumnStructureService;
 import uk.ac.ox.it.ords.api.database.structure.services.CommentService;
 import uk.ac.ox.it.ords.api.database.structure.services.ConstraintService;
 import uk.ac.ox.it.ords.api.database.structure.services.DatabaseStructureService;
 import uk.ac.ox.it.ords.api.database.structure.services.IndexService;
+import uk.ac.ox.it.ords.api.database.structure.services.Job;
+import uk.ac.ox.it.ords.api.database.structure.services.JobService;
 import uk.ac.ox.it.ords.api.database.structure.services.TableStructureService;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.SubjectPermissions;
 
 public class AbstractResource {
 
 	protected boolean canModifyDatabase(int dbId) {
-		return SecurityUtils.getSubject().isPermitted(
-				DatabaseStructurePermissions.DATABASE_MODIFY(dbId));
+		return SubjectPermissions.canModify(dbId);
 	}
 
 	protected boolean canViewDatabase(int dbId) {
-		return SecurityUtils.getSubject().isPermitted(
-				DatabaseStructurePermissions.DATABASE_VIEW(dbId));
+		return SubjectPermissions.canView(dbId);
 	}
 
 	protected Response forbidden() {
@@ -78,6 +86,53 @@ public class AbstractResource {
 		return DatabaseStructureService.Factory.getInstance();
 	}
 	
+	
+	protected JobService jobServiceInstance ( ) {
+		return JobService.Factory.getInstance();
+	}
+	
+	// Conditional GET support; metadata is tagged with the version of the
+	// schema it was built from, and clients are asked to revalidate it rather
+	// than reuse it, so that a 304 is only returned while the version matches
+	
+	protected EntityTag entityTag(String version) {
+		return new EntityTag(version, true);
+	}
+	
+	/**
+	 * @param request the request
+	 * @param tag the current entity tag
+	 * @return a 304 response if the client already has this version, or null
+	 */
+	protected Response notModified(Request request, EntityTag tag) {
+		ResponseBuilder builder = request.evaluatePreconditions(tag);
+		if (builder == null) {
+			return null;
+		}
+		return builder.cacheControl(revalidate()).build();
+	}
+	
+	protected Response ok(Object entity, EntityTag tag) {
+		return Response.ok(entity).tag(tag).cacheControl(revalidate()).build();
+	}
+	
+	private CacheControl revalidate() {
+		CacheControl cacheControl = new CacheControl();
+		cacheControl.setPrivate(true);
+		cacheControl.setNoCache(true);
+		return cacheControl;
+	}
+	
+	/**
+	 * @param job a job that has been submitted
+	 * @param uriInfo the request URI
+	 * @return a 202 response with the job, and its URI in the Location header
+	 */
+	protected Response accepted(Job job, UriInfo uriInfo) {
+		URI location = uriInfo.getBaseUriBuilder().path("job").path(job.getId()).build();
+		return Response.accepted(job).location(location).build();
+	}
+	
 	// A way of handing exceptions and returning a valid status code
 	
 	protected Response handleException ( Exception e ) {
@@ -87,9 +142,15 @@ public class AbstractResource {
 		else if ( e instanceof NamingConflictException ) {
 			return Response.status(Response.Status.CONFLICT).entity(e).build();
 		}
+		else if ( e instanceof LockTimeoutException ) {
+			return Response.status(Response.Status.CONFLICT).entity(e).build();
+		}
 		else if ( e instanceof NotFoundException ) {
 			return Response.status(Response.Status.NOT_FOUND).entity(e).build();
 		}
+		else if ( e instanceof RejectedExecutionException ) {
+			return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+		}
 		else {
 			return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e).build();
 		}
@@ -22,29 +22,44 @@ import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 import io.swagger.annotations.ResponseHeader;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.annotation.PostConstruct;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 
-import org.apache.shiro.SecurityUtils;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import uk.ac.ox.it.ords.api.database.structure.dto.BatchRequest;
 import uk.ac.ox.it.ords.api.database.structure.dto.ColumnRequest;
 import uk.ac.ox.it.ords.api.database.structure.dto.CommentRequest;
 import uk.ac.ox.it.ords.api.database.structure.dto.ConstraintRequest;
+import uk.ac.ox.it.ords.api.database.structure.dto.DatabaseListRequest;
 import uk.ac.ox.it.ords.api.database.structure.dto.DatabaseRequest;
 import uk.ac.ox.it.ords.api.database.structure.dto.IndexRequest;
 import uk.ac.ox.it.ords.api.database.structure.dto.PositionRequest;
@@ -53,9 +68,12 @@ import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
 import uk.ac.ox.it.ords.api.database.structure.permissions.DatabaseStructurePermissions;
 import uk.ac.ox.it.ords.api.database.structure.services.DatabaseStructureAuditService;
 import uk.ac.ox.it.ords.api.database.structure.services.DatabaseStructureService;
+import uk.ac.ox.it.ords.api.database.structure.services.Job;
 import uk.ac.ox.it.ords.api.database.structure.services.MessageEntity;
+import uk.ac.ox.it.ords.api.database.structure.services.SchemaBatchService;
 import uk.ac.ox.it.ords.api.database.structure.services.StructureODBCService;
 import uk.ac.ox.it.ords.api.database.structure.services.TableList;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.SubjectPermissions;
 
 /**
  * The REST API for database structure
@@ -65,6 +83,8 @@ import uk.ac.ox.it.ords.api.database.structure.services.TableList;
 @Path("/")
 public class Database extends AbstractResource{
 	
+	private static final ObjectMapper JSON = new ObjectMapper();
+	
 	/**
 	 * Once the resource is constructed, we call the init() method to set up any persistent objects
 	 * required by the service. This is used to build the generic permissions that apply
@@ -84,13 +104,28 @@ public class Database extends AbstractResource{
 
 	@ApiOperation(
 			value="Gets a list of databases", 
-			notes="Returns the databases for the current user, or the public databases if not logged in", 
+			notes="Returns the databases for the current user, or the public databases if not logged in. "
+					+ "Use limit, and the cursor given in the Link header, to page through the list; offset, sort and order are also supported. "
+					+ "Use fields to return only some properties of each database, for example fields=physicalDatabaseId,dbConsumedName", 
 			response = uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase.class, 
 			responseContainer = "List"
 			)
+	@ApiResponses(value = { 
+			@ApiResponse(code = 200, message = "List of databases returned",
+					responseHeaders = @ResponseHeader(name = "Link", description = "The URI of the next page, if there may be one", response = URI.class)
+			),
+			@ApiResponse(code = 400, message = "Invalid cursor, offset, limit, sort or fields")
+	})
 	@GET
 	@Produces( MediaType.APPLICATION_JSON )
-	public Response getDatabases ( ) {
+	public Response getDatabases ( 
+			@QueryParam("after") Integer after,
+			@QueryParam("offset") @DefaultValue("0") int offset,
+			@QueryParam("limit") @DefaultValue("0") int limit,
+			@QueryParam("sort") @DefaultValue("physicalDatabaseId") String sort,
+			@QueryParam("order") @DefaultValue("asc") String order,
+			@QueryParam("fields") String fields,
+			@Context UriInfo uriInfo) {
 		
 		//
 		// Note the actual security check is performed as part of the getDatabaseList() operation,
@@ -98,8 +133,46 @@ public class Database extends AbstractResource{
 		//
 		
 		try {
-			List<OrdsPhysicalDatabase> databaseList = databaseServiceInstance().getDatabaseList();
-			return Response.ok(databaseList).build();
+			if (!order.equalsIgnoreCase("asc") && !order.equalsIgnoreCase("desc")){
+				return Response.status(400).build();
+			}
+			DatabaseListRequest listRequest = new DatabaseListRequest(offset, limit, sort, order.equalsIgnoreCase("asc"));
+			listRequest.setAfter(after);
+			
+			List<?> databaseList;
+			Integer last = null;
+			if (fields == null || fields.trim().isEmpty()){
+				List<OrdsPhysicalDatabase> databases = databaseServiceInstance().getDatabaseList(listRequest);
+				if (!databases.isEmpty()){
+					last = databases.get(databases.size() - 1).getPhysicalDatabaseId();
+				}
+				databaseList = databases;
+			} else {
+				listRequest.setFields(fields.trim().split("\\s*,\\s*"));
+				List<Map<String, Object>> databases = databaseServiceInstance().getDatabaseFields(listRequest);
+				if (!databases.isEmpty()){
+					last = (Integer) databases.get(databases.size() - 1).get("physicalDatabaseId");
+				}
+				databaseList = databases;
+			}
+			
+			ResponseBuilder response = Response.ok(databaseList);
+			
+			//
+			// A full page means there may be more. The next page continues from
+			// the last database in this one; it can only be expressed as a cursor
+			// when the list is sorted by id, otherwise the offset is moved on.
+			//
+			if (limit > 0 && databaseList.size() == limit){
+				UriBuilder next = uriInfo.getRequestUriBuilder();
+				if (sort.equals("physicalDatabaseId")){
+					next.replaceQueryParam("after", last).replaceQueryParam("offset");
+				} else {
+					next.replaceQueryParam("offset", offset + limit);
+				}
+				response.link(next.build(), "next");
+			}
+			return response.build();
 		}
 		catch ( Exception e ) {
 			return this.handleException(e);
@@ -109,14 +182,18 @@ public class Database extends AbstractResource{
 	
 	@ApiOperation(
 			value="Gets the metadata for a specific database", 
-			notes="Specifically this lists the tables in the database.", 
+			notes="Specifically this lists the tables in the database. For very large databases, use stream=true to have the tables written as they are read.", 
 			response = uk.ac.ox.it.ords.api.database.structure.services.TableList.class
 			)
 	@GET
 	@Path("{id}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response getDatabaseMetadata ( 	@PathParam("id") int dbId) {
+	public Response getDatabaseMetadata ( 	
+			@PathParam("id") int dbId, 
+			@QueryParam("stream") @DefaultValue("false") boolean stream,
+			@Context Request request) {
 		TableList tableList;
+		EntityTag tag;
 		OrdsPhysicalDatabase physicalDatabase = null;
 		
 		//
@@ -131,7 +208,7 @@ public class Database extends AbstractResource{
 		//
 		// Check we are allowed to view it
 		//
-		if (!SecurityUtils.getSubject().isPermitted(
+		if (!SubjectPermissions.isPermitted(
 				DatabaseStructurePermissions.DATABASE_VIEW(physicalDatabase.getLogicalDatabaseId()))) {
 			
 			//
@@ -143,14 +220,27 @@ public class Database extends AbstractResource{
 		}
 		
 		try {
-			tableList =  databaseServiceInstance().getDatabaseTableList(dbId, false);
+			//
+			// If the client already has the current version, there is no
+			// need to read the catalog
+			//
+			String version = databaseServiceInstance().getSchemaVersion(physicalDatabase, false);
+			tag = entityTag(version);
+			Response notModified = notModified(request, tag);
+			if (notModified != null) {
+				return notModified;
+			}
+			if (stream) {
+				return ok(streamTableList(physicalDatabase, false), tag);
+			}
+			tableList =  databaseServiceInstance().getDatabaseTableList(physicalDatabase, false, version);
 		}
 		
 		catch ( Exception e ) {
 			return this.handleException(e);
 		}
 		
-		return Response.ok(tableList).build();
+		return ok(tableList, tag);
 	}
 
 
@@ -165,7 +255,7 @@ public class Database extends AbstractResource{
 	public Response createDatabase (DatabaseRequest databaseDTO){
 		
 		OrdsPhysicalDatabase newDatabase;
-		if ( !SecurityUtils.getSubject().isPermitted(
+		if ( !SubjectPermissions.isPermitted(
 				DatabaseStructurePermissions.DATABASE_CREATE)) {
 			
 			//
@@ -201,7 +291,9 @@ public class Database extends AbstractResource{
 	@Path("{id}")
 	@Produces(MediaType.APPLICATION_JSON)
 	public Response cloneDatabase ( @PathParam("id") int id,
-										DatabaseRequest databaseDTO){
+										@QueryParam("async") @DefaultValue("false") boolean async,
+										DatabaseRequest databaseDTO,
+										@Context UriInfo uriInfo){
 		
 		OrdsPhysicalDatabase newDatabase;
 		OrdsPhysicalDatabase templateDatabase;
@@ -215,7 +307,7 @@ public class Database extends AbstractResource{
 			return Response.status(404).build();
 		}
 
-		if ( !SecurityUtils.getSubject().isPermitted(
+		if ( !SubjectPermissions.isPermitted(
 				DatabaseStructurePermissions.DATABASE_CREATE)) {
 			
 			//
@@ -225,7 +317,7 @@ public class Database extends AbstractResource{
 
 			return forbidden();
 		}
-		if ( !SecurityUtils.getSubject().isPermitted(
+		if ( !SubjectPermissions.isPermitted(
 				DatabaseStructurePermissions.DATABASE_VIEW(templateDatabase.getLogicalDatabaseId()))) {
 			
 			//
@@ -236,6 +328,26 @@ public class Database extends AbstractResource{
 			return forbidden();
 		}
 		
+		if (async) {
+			final int templateId = id;
+			final DatabaseRequest request = databaseDTO;
+			final UriBuilder builder = uriInfo.getBaseUriBuilder();
+			try {
+				Job job = jobServiceInstance().submit(Job.CLONE, templateDatabase, null, new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						OrdsPhysicalDatabase newDatabase = databaseServiceInstance().createNewDatabaseFromExisting(templateId, request);
+						DatabaseStructureAuditService.Factory.getInstance().createDatabase(newDatabase.getLogicalDatabaseId());
+						return builder.path(Integer.toString(newDatabase.getPhysicalDatabaseId())).build().toString();
+					}
+				});
+				return accepted(job, uriInfo);
+			}
+			catch ( Exception e ) {
+				return this.handleException(e);
+			}
+		}
+		
 		try {
 			newDatabase =  databaseServiceInstance().createNewDatabaseFromExisting(id, databaseDTO);
 		    //UriBuilder builder = uriInfo.getAbsolutePathBuilder();
@@ -264,7 +376,9 @@ public class Database extends AbstractResource{
 	@Produces(MediaType.APPLICATION_JSON)
 	public Response mergeDatabaseToMain ( 
 			@PathParam("id") int id,
-			DatabaseRequest databaseDTO
+			@QueryParam("async") @DefaultValue("false") boolean async,
+			DatabaseRequest databaseDTO,
+			@Context UriInfo uriInfo
 			) {
 		
 		OrdsPhysicalDatabase target = null;
@@ -296,7 +410,7 @@ public class Database extends AbstractResource{
 		// subject has MODIFY permissions for both of them
 		//
 		
-		if ( !SecurityUtils.getSubject().isPermitted(
+		if ( !SubjectPermissions.isPermitted(
 				DatabaseStructurePermissions.DATABASE_MODIFY(target.getLogicalDatabaseId()))) {
 			
 			//
@@ -306,7 +420,7 @@ public class Database extends AbstractResource{
 
 			return forbidden();
 		}
-		if ( !SecurityUtils.getSubject().isPermitted(
+		if ( !SubjectPermissions.isPermitted(
 				DatabaseStructurePermissions.DATABASE_MODIFY(source.getLogicalDatabaseId()))) {
 			
 			//
@@ -320,6 +434,24 @@ public class Database extends AbstractResource{
 		//
 		// Perform the merge
 		//
+		if (async) {
+			final OrdsPhysicalDatabase mergeSource = source;
+			final OrdsPhysicalDatabase mergeTarget = target;
+			final String location = uriInfo.getAbsolutePath().toString();
+			try {
+				Job job = jobServiceInstance().submit(Job.MERGE, target, Integer.toString(source.getPhysicalDatabaseId()), new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						databaseServiceInstance().mergeInstanceToMain(mergeSource, mergeTarget);
+						return location;
+					}
+				});
+				return accepted(job, uriInfo);
+			}
+			catch ( Exception e ) {
+				return this.handleException(e);
+			}
+		}
 		try {
 			OrdsPhysicalDatabase merged = databaseServiceInstance().mergeInstanceToMain(source, target);
 
@@ -355,7 +487,7 @@ public class Database extends AbstractResource{
 		//
 		// Check whether the current subject has DELETE permission
 		//
-		if (!SecurityUtils.getSubject().isPermitted(
+		if (!SubjectPermissions.isPermitted(
 				DatabaseStructurePermissions.DATABASE_DELETE(physicalDatabase.getLogicalDatabaseId()))) {
 			
 			//
@@ -399,14 +531,16 @@ public class Database extends AbstractResource{
 
 	@ApiOperation(
 			value="Gets the metadata for a staging database", 
-			notes="Specifically this lists the tables in the database.", 
+			notes="Specifically this lists the tables in the database. For very large databases, use stream=true to have the tables written as they are read.", 
 			response = uk.ac.ox.it.ords.api.database.structure.services.TableList.class
 			)
 	@GET
 	@Path("{id}/staging")
 	@Produces(MediaType.APPLICATION_JSON)
 	public Response getStagingDatabaseMetadata ( 	
-			@PathParam("id") int dbId
+			@PathParam("id") int dbId,
+			@QueryParam("stream") @DefaultValue("false") boolean stream,
+			@Context Request request
 	) throws Exception {
 		
 		//
@@ -432,7 +566,7 @@ public class Database extends AbstractResource{
 		// TODO check that this works for databases flagged as public when using
 		// an unauthenticated session
 		//
-		if (!SecurityUtils.getSubject().isPermitted(
+		if (!SubjectPermissions.isPermitted(
 				DatabaseStructurePermissions.DATABASE_VIEW(physicalDatabase.getLogicalDatabaseId()))) {
 			
 			DatabaseStructureAuditService.Factory.getInstance().createNotAuthRecord(String.format("GET structure/%s/staging Not Permitted", dbId), physicalDatabase.getLogicalDatabaseId());
@@ -444,8 +578,17 @@ public class Database extends AbstractResource{
 		// Fetch the metadata
 		//
 		try {
-			TableList tableList =  databaseServiceInstance().getDatabaseTableList(dbId, true);
-			return Response.ok(tableList).build();
+			String version = databaseServiceInstance().getSchemaVersion(physicalDatabase, true);
+			EntityTag tag = entityTag(version);
+			Response notModified = notModified(request, tag);
+			if (notModified != null) {
+				return notModified;
+			}
+			if (stream) {
+				return ok(streamTableList(physicalDatabase, true), tag);
+			}
+			TableList tableList =  databaseServiceInstance().getDatabaseTableList(physicalDatabase, true, version);
+			return ok(tableList, tag);
 		}
 		catch ( Exception e ) {
 			return this.handleException(e);
@@ -453,6 +596,29 @@ public class Database extends AbstractResource{
 
 	}
 	
+	/**
+	 * Writes the table list for a database as it is read from the catalog,
+	 * rather than building it in memory first. As the response has already
+	 * started, any error part way through just ends the response early.
+	 */
+	private StreamingOutput streamTableList(final OrdsPhysicalDatabase database, final boolean staging) {
+		return new StreamingOutput() {
+			@Override
+			public void write(OutputStream output) throws IOException, WebApplicationException {
+				JsonGenerator generator = JSON.getFactory().createGenerator(output);
+				generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+				try {
+					databaseServiceInstance().writeDatabaseTableList(database, staging, generator);
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new WebApplicationException(e);
+				}
+				generator.close();
+			}
+		};
+	}
+	
 	@ApiOperation(
 			value="Creates a new staging database for the specified database", 
 			notes="" 
@@ -461,14 +627,17 @@ public class Database extends AbstractResource{
 			@ApiResponse(code = 201, message = "Staging database successfully created.",
 					responseHeaders = @ResponseHeader(name = "Location", description = "The URI of the staging database", response = URI.class)
 					),
+			@ApiResponse(code = 202, message = "Staging database is being created; the Location header is the URI of the job."),
 		    @ApiResponse(code = 404, message = "Original database does not exist."),
-		    @ApiResponse(code = 403, message = "Not authorized to create a staging database.")
+		    @ApiResponse(code = 403, message = "Not authorized to create a staging database."),
+		    @ApiResponse(code = 503, message = "Too many background jobs are queued.")
 	})
 	@POST
 	@Path("{id}/staging")
 	@Produces( MediaType.APPLICATION_JSON )
 	public Response createStagingDatabase (
 			@PathParam("id") int dbId,
+			@QueryParam("async") @DefaultValue("false") boolean async,
 			@Context UriInfo uriInfo) {
 		
 		//
@@ -494,6 +663,30 @@ public class Database extends AbstractResource{
 			return forbidden();		
 		}
 		
+		//
+		// For large databases this can take a long time, so the client can
+		// ask for it to be done in the background, and poll the job
+		//
+		if (async) {
+			final int id = dbId;
+			final int logicalDatabaseId = physicalDatabase.getLogicalDatabaseId();
+			final String location = uriInfo.getAbsolutePathBuilder().path("staging").build().toString();
+			try {
+				Job job = jobServiceInstance().submit(Job.STAGING, physicalDatabase, "staging", new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						databaseServiceInstance().createNewStagingDatabase(id);
+						DatabaseStructureAuditService.Factory.getInstance().createDatabase(logicalDatabaseId);
+						return location;
+					}
+				});
+				return accepted(job, uriInfo);
+			}
+			catch ( Exception e ) {
+				return this.handleException(e);
+			}
+		}
+		
 		//
 		// Create the staging database, and return its URL in the Location header
 		//
@@ -528,7 +721,9 @@ public class Database extends AbstractResource{
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces( MediaType.APPLICATION_JSON )
 	public Response mergeStagingToMain (
-			@PathParam("id") int dbId
+			@PathParam("id") int dbId,
+			@QueryParam("async") @DefaultValue("false") boolean async,
+			@Context UriInfo uriInfo
 			) {
 		
 		//
@@ -551,6 +746,24 @@ public class Database extends AbstractResource{
 			return forbidden();		
 		}
 		
+		if (async) {
+			final int id = dbId;
+			final String location = uriInfo.getBaseUriBuilder().path(Integer.toString(dbId)).build().toString();
+			try {
+				Job job = jobServiceInstance().submit(Job.MERGE, physicalDatabase, "staging", new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						databaseServiceInstance().mergeStagingToActual(id);
+						return location;
+					}
+				});
+				return accepted(job, uriInfo);
+			}
+			catch ( Exception e ) {
+				return this.handleException(e);
+			}
+		}
+		
 		try {
 			databaseServiceInstance().mergeStagingToActual(dbId);
 			
@@ -597,7 +810,7 @@ public class Database extends AbstractResource{
 			return Response.status(404).build();
 		}
 		
-		if (!SecurityUtils.getSubject().isPermitted(
+		if (!SubjectPermissions.isPermitted(
 				DatabaseStructurePermissions.DATABASE_DELETE(physicalDatabase.getLogicalDatabaseId()))) {
 			
 			//
@@ -624,6 +837,37 @@ public class Database extends AbstractResource{
 		
 	}
 	
+	// ********************************************************
+	// * Job Resources
+	// ********************************************************
+	
+	@ApiOperation(
+			value="Gets the status of a background job", 
+			notes="Jobs are started by creating a staging database, cloning or merging with async=true. Finished jobs are kept for a while, and include the location of the database, or the error if the job failed.", 
+			response = uk.ac.ox.it.ords.api.database.structure.services.Job.class
+			)
+	@ApiResponses(value = { 
+			@ApiResponse(code = 200, message = "Job status returned."),
+		    @ApiResponse(code = 404, message = "No such job."),
+		    @ApiResponse(code = 403, message = "Not authorized to view the job's database.")
+	})
+	@GET
+	@Path("job/{jobid}")
+	@Produces( MediaType.APPLICATION_JSON )
+	public Response getJob (
+			@PathParam("jobid") String jobId) {
+		
+		Job job = jobServiceInstance().getJob(jobId);
+		if (job == null) {
+			return Response.status(404).build();
+		}
+		if (!canViewDatabase(job.getLogicalDatabaseId())) {
+			DatabaseStructureAuditService.Factory.getInstance().createNotAuthRecord(String.format("GET /job/%s", jobId), job.getLogicalDatabaseId());
+			return forbidden();
+		}
+		return Response.ok(job).build();
+	}
+	
 	// *******************************************************
 	// * Schema Designer Table Position
 	// * TODO: This needs it's own microservice really
@@ -649,7 +893,7 @@ public class Database extends AbstractResource{
 			return Response.status(404).build();
 		}
 		
-		if ( !SecurityUtils.getSubject().isPermitted(
+		if ( !SubjectPermissions.isPermitted(
 				DatabaseStructurePermissions.DATABASE_MODIFY(physicalDatabase.getLogicalDatabaseId()))) {
 			
 			//
@@ -671,6 +915,63 @@ public class Database extends AbstractResource{
 	
 	
 
+	// ********************************************************
+	// * Schema Designer Batch
+	// ********************************************************
+	
+	@ApiOperation(
+			value="Applies a list of structure operations", 
+			notes="The operations are validated together and then applied in order in a single transaction; if any fail, none are applied"
+			)
+	@ApiResponses(value = { 
+			@ApiResponse(code = 200, message = "All operations applied."),
+			@ApiResponse(code = 400, message = "An operation is invalid."),
+		    @ApiResponse(code = 404, message = "Database, or a table, column or index used by an operation, does not exist."),
+		    @ApiResponse(code = 409, message = "An operation would create a table, column or index that already exists."),
+		    @ApiResponse(code = 403, message = "Not authorized to modify database.")
+	})
+	@POST
+	@Path("{id}/batch/{staging}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces( MediaType.APPLICATION_JSON )
+	public Response runBatch (
+			@PathParam("id") int dbId,
+			@PathParam("staging") BooleanCheck staging,
+			BatchRequest request) {
+
+		//
+		// Try and obtain the database
+		//
+		OrdsPhysicalDatabase physicalDatabase = null;
+		try {
+			physicalDatabase = DatabaseStructureService.Factory.getInstance().getDatabaseMetaData(dbId);
+		} catch (Exception e1) {
+			return Response.status(404).build();
+		}
+		
+		if(!canModifyDatabase(physicalDatabase.getLogicalDatabaseId())){
+			
+			//
+			// If not permitted, create an audit record and return 403
+			//
+			DatabaseStructureAuditService.Factory.getInstance().createNotAuthRecord(String.format("POST /%s/batch/%b", dbId, staging.getValue()), physicalDatabase.getLogicalDatabaseId());
+
+			return forbidden();
+		}
+		
+		if (request == null || request.getOperations() == null){
+			return Response.status(400).build();	
+		}
+		
+		try {
+			SchemaBatchService.Factory.getInstance().runBatch(physicalDatabase, request.getOperations(), staging.getValue());
+			return Response.ok().build();
+		}
+		catch ( Exception e ) {
+			return this.handleException(e);
+		}
+	}
+	
 	// ********************************************************
 	// * Table Resources
 	// ********************************************************
@@ -691,7 +992,8 @@ public class Database extends AbstractResource{
 	public Response getTableMetadata ( 
 			@PathParam("id") int dbId,
 			@PathParam("tablename") String tableName,
-			@PathParam("staging") BooleanCheck staging ) {
+			@PathParam("staging") BooleanCheck staging,
+			@Context Request request ) {
 		
 		//
 		// Try and obtain the database
@@ -713,9 +1015,16 @@ public class Database extends AbstractResource{
 			return forbidden();
 		}
 		try {
-			TableList tableList = tableServiceInstance().getTableMetadata(
+			String version = tableServiceInstance().getTableVersion(
 					physicalDatabase, tableName, staging.getValue());
-			return Response.ok(tableList).build();
+			EntityTag tag = entityTag(version);
+			Response notModified = notModified(request, tag);
+			if (notModified != null) {
+				return notModified;
+			}
+			TableList tableList = tableServiceInstance().getTableMetadata(
+					physicalDatabase, tableName, staging.getValue(), version);
+			return ok(tableList, tag);
 		}
 		catch ( Exception e ) {
 			return this.handleException(e);
@@ -878,7 +1187,7 @@ public class Database extends AbstractResource{
 		//
 		// Check permissions
 		// 
-		if (!SecurityUtils.getSubject().isPermitted(DatabaseStructurePermissions.DATABASE_VIEW(physicalDatabase.getLogicalDatabaseId()))) {
+		if (!SubjectPermissions.isPermitted(DatabaseStructurePermissions.DATABASE_VIEW(physicalDatabase.getLogicalDatabaseId()))) {
 			
 			//
 			// If not permitted, create an audit record and return 403
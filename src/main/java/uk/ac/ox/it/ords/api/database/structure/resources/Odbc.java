@@ -38,6 +38,7 @@ import uk.ac.ox.it.ords.api.database.structure.permissions.DatabaseStructurePerm
 import uk.ac.ox.it.ords.api.database.structure.services.DatabaseStructureAuditService;
 import uk.ac.ox.it.ords.api.database.structure.services.DatabaseStructureService;
 import uk.ac.ox.it.ords.api.database.structure.services.StructureODBCService;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.SubjectPermissions;
 import uk.ac.ox.it.ords.security.services.ServerConfigurationService;
 
 /**
@@ -108,7 +109,7 @@ public class Odbc {
 		//
 		// Check ODBC is enabled for this database for this user
 		//
-		if (!SecurityUtils.getSubject().isPermitted(DatabaseStructurePermissions.DATABASE_REQUEST_ODBC_ACCESS(database.getLogicalDatabaseId()))){
+		if (!SubjectPermissions.isPermitted(DatabaseStructurePermissions.DATABASE_REQUEST_ODBC_ACCESS(database.getLogicalDatabaseId()))){
 
 			//
 			// If not, audit the attempt and return 403
@@ -125,14 +126,14 @@ public class Odbc {
 		//
 		// Check permissions and create the appropriate role
 		//
-		if (SecurityUtils.getSubject().isPermitted(DatabaseStructurePermissions.DATABASE_MODIFY(database.getLogicalDatabaseId()))){
+		if (SubjectPermissions.isPermitted(DatabaseStructurePermissions.DATABASE_MODIFY(database.getLogicalDatabaseId()))){
 			
 			//
 			// User has Modify rights, so create a read-write ODBC role
 			//
 			StructureODBCService.Factory.getInstance().addOdbcUserToDatabase(StructureODBCService.Factory.getInstance().getODBCUserName(databaseName), password, database, databaseName);	
 
-		} else if (SecurityUtils.getSubject().isPermitted(DatabaseStructurePermissions.DATABASE_VIEW(database.getLogicalDatabaseId()))){
+		} else if (SubjectPermissions.isPermitted(DatabaseStructurePermissions.DATABASE_VIEW(database.getLogicalDatabaseId()))){
 			
 			//
 			// User has View rights, so create a read-only ODBC role
@@ -215,7 +216,7 @@ public class Odbc {
 		// Check permission - we want more than just "modify" permission for this. We may want to
 		// define a specific permission in future, but DATABASE_DELETE seems sufficient.
 		//
-		if (!SecurityUtils.getSubject().isPermitted(DatabaseStructurePermissions.DATABASE_DELETE(database.getLogicalDatabaseId()))){
+		if (!SubjectPermissions.isPermitted(DatabaseStructurePermissions.DATABASE_DELETE(database.getLogicalDatabaseId()))){
 			
 			//
 			// If not permitted, create an audit record and return 403
@@ -292,7 +293,7 @@ public class Odbc {
 		//
 		// Check permission
 		//
-		if (!SecurityUtils.getSubject().isPermitted(DatabaseStructurePermissions.DATABASE_MODIFY(database.getLogicalDatabaseId()))){
+		if (!SubjectPermissions.isPermitted(DatabaseStructurePermissions.DATABASE_MODIFY(database.getLogicalDatabaseId()))){
 			
 			//
 			// If not, create an audit record for the attempt, and return 403
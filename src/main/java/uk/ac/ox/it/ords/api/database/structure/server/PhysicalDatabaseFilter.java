@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.server;
+
+import java.io.IOException;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ox.it.ords.api.database.structure.services.DatabaseStructureService;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.RequestDatabases;
+
+/**
+ * Looks up the physical database named by the {id} of the request path
+ * once, before the request is handled. The resource and the services it
+ * calls then get the same database for the rest of the request, without
+ * looking it up again. Whether the subject can use the database, and what
+ * to do if it doesn't exist, are still for the resource to decide.
+ */
+public class PhysicalDatabaseFilter implements ContainerRequestFilter, ContainerResponseFilter {
+	
+	private static Logger log = LoggerFactory.getLogger(PhysicalDatabaseFilter.class);
+	
+	public static final String ID_PARAMETER = "id";
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) throws IOException {
+		RequestDatabases.begin();
+		String id = requestContext.getUriInfo().getPathParameters().getFirst(ID_PARAMETER);
+		if (id == null){
+			return;
+		}
+		try {
+			DatabaseStructureService.Factory.getInstance().getDatabaseMetaData(Integer.parseInt(id));
+		} catch (Exception e) {
+			//
+			// Not a valid id, or no such database; the resource reports it
+			//
+			log.debug("Could not look up database " + id, e);
+		}
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext,
+			ContainerResponseContext responseContext) throws IOException {
+		RequestDatabases.end();
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ox.it.ords.api.database.structure.services.JobService;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.AuditWriter;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.PhysicalDatabaseCacheStatistics;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.DatabaseLockStatistics;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.JdbcConnectionPool;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.WarmStagingPool;
+
+/**
+ * Publishes the statistics the API keeps as MXBeans when the application
+ * starts, so they can be read with JConsole or any other JMX client. When
+ * the application is stopped, lets background jobs finish, stops the staging
+ * pool, writes any audit records still queued, and closes pooled connections.
+ */
+public class StructureContextListener implements ServletContextListener {
+	
+	private static Logger log = LoggerFactory.getLogger(StructureContextListener.class);
+	
+	public static final String JMX_DOMAIN = "uk.ac.ox.it.ords.api.database.structure";
+	
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		register("DatabaseLock", new DatabaseLockStatistics());
+		register("PhysicalDatabaseCache", new PhysicalDatabaseCacheStatistics());
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		unregisterAll();
+		JobService.Factory.shutdownInstance();
+		WarmStagingPool.shutdownInstance();
+		AuditWriter.shutdownInstance();
+		JdbcConnectionPool.shutdownInstance();
+	}
+	
+	/**
+	 * Registers an MXBean on the platform MBean server. The statistics are
+	 * only for information, so the application still starts if this fails,
+	 * for example because another copy of it has already registered the name.
+	 * @param type the type of statistics, which names the bean
+	 * @param bean the bean
+	 */
+	private void register(String type, Object bean) {
+		try {
+			ObjectName name = new ObjectName(JMX_DOMAIN + ":type=" + type);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(bean, name);
+			registered.add(name);
+		} catch (Exception e) {
+			log.warn("Unable to register " + type + " statistics over JMX", e);
+		}
+	}
+	
+	private void unregisterAll() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : registered) {
+			try {
+				server.unregisterMBean(name);
+			} catch (Exception e) {
+				log.warn("Unable to unregister " + name, e);
+			}
+		}
+		registered.clear();
+	}
+
+}
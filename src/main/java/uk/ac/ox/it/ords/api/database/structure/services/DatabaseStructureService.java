@@ -17,8 +17,12 @@
 package uk.ac.ox.it.ords.api.database.structure.services;
 
 import java.util.List;
+import java.util.Map;
 import java.util.ServiceLoader;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import uk.ac.ox.it.ords.api.database.structure.dto.DatabaseListRequest;
 import uk.ac.ox.it.ords.api.database.structure.dto.DatabaseRequest;
 import uk.ac.ox.it.ords.api.database.structure.model.*;
 import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.DatabaseStructureServiceImpl;
@@ -35,6 +39,23 @@ public interface DatabaseStructureService {
 	 */
 	public List<OrdsPhysicalDatabase> getDatabaseList ( ) throws Exception;
 	
+	/**
+	 * Gets a page of the databases visible to the current user principal
+	 * @param request the page to return, and how to sort it
+	 * @return List of OrdsPhysicalDatabase instances for the current user
+	 * @throws Exception if there is a problem obtaining the databases
+	 */
+	public List<OrdsPhysicalDatabase> getDatabaseList ( DatabaseListRequest request ) throws Exception;
+	
+	/**
+	 * Gets a page of the databases visible to the current user principal, with
+	 * only the fields given in the request
+	 * @param request the page to return, how to sort it, and the fields to include
+	 * @return a map of field name to value for each database
+	 * @throws Exception if there is a problem obtaining the databases
+	 */
+	public List<Map<String, Object>> getDatabaseFields ( DatabaseListRequest request ) throws Exception;
+	
 	/**
 	 * Creates a new database for the current user principal. Passing null for newDatabase
 	 * uses default values and names for the database.
@@ -82,6 +103,70 @@ public interface DatabaseStructureService {
 	 */
 	public TableList getDatabaseTableList ( int idbId, boolean staging ) throws Exception;
 	
+	/**
+	 * As getDatabaseTableList(int, boolean), for a database that has already
+	 * been looked up
+	 * @param database the database
+	 * @param staging whether this relates to a staging database
+	 * @return the Table List
+	 * @throws Exception if there is a problem obtaining the metadata
+	 */
+	public TableList getDatabaseTableList ( OrdsPhysicalDatabase database, boolean staging ) throws Exception;
+	
+	/**
+	 * As getDatabaseTableList(OrdsPhysicalDatabase, boolean), when the caller
+	 * has just obtained the schema version, for example for an entity tag,
+	 * so it needn't be worked out again
+	 * @param database the database
+	 * @param staging whether this relates to a staging database
+	 * @param schemaVersion the version returned by getSchemaVersion, or null
+	 * @return the Table List
+	 * @throws Exception if there is a problem obtaining the metadata
+	 */
+	public TableList getDatabaseTableList ( OrdsPhysicalDatabase database, boolean staging, String schemaVersion ) throws Exception;
+	
+	/**
+	 * Writes the same structure as getDatabaseTableList as JSON, reading and
+	 * writing one table at a time so that memory use is bounded by the largest
+	 * table rather than the whole database. Use this for very large databases.
+	 * @param dbId the database id
+	 * @param staging whether this relates to a staging database
+	 * @param generator the generator to write to
+	 * @throws Exception if there is a problem obtaining or writing the metadata
+	 */
+	public void writeDatabaseTableList ( int dbId, boolean staging, JsonGenerator generator ) throws Exception;
+	
+	/**
+	 * As writeDatabaseTableList(int, boolean, JsonGenerator), for a database
+	 * that has already been looked up
+	 * @param database the database
+	 * @param staging whether this relates to a staging database
+	 * @param generator the generator to write to
+	 * @throws Exception if there is a problem obtaining or writing the metadata
+	 */
+	public void writeDatabaseTableList ( OrdsPhysicalDatabase database, boolean staging, JsonGenerator generator ) throws Exception;
+	
+	/**
+	 * Gets a version identifier for the structure of a database, including the
+	 * positions of its tables. This changes whenever the TableList returned
+	 * by getDatabaseTableList would change, and is much cheaper to obtain.
+	 * @param dbId the database id
+	 * @param staging whether this relates to a staging database
+	 * @return the version
+	 * @throws Exception if there is a problem obtaining the version
+	 */
+	public String getSchemaVersion ( int dbId, boolean staging ) throws Exception;
+	
+	/**
+	 * As getSchemaVersion(int, boolean), for a database that has already been
+	 * looked up
+	 * @param database the database
+	 * @param staging whether this relates to a staging database
+	 * @return the version
+	 * @throws Exception if there is a problem obtaining the version
+	 */
+	public String getSchemaVersion ( OrdsPhysicalDatabase database, boolean staging ) throws Exception;
+	
 	/**
 	 * Creates a staging database for editing
 	 * @param dbId the database to create a staging instance for
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services;
+
+import java.util.UUID;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * A long-running operation on a database, such as creating a staging
+ * version, that runs in the background while the client polls for its status.
+ * The default job service saves jobs in the ORDS database as they change, so
+ * that any node can report on a job whichever node is running it.
+ */
+@Entity
+@Table(name = "ordsJob")
+public class Job {
+	
+	public static final String STAGING = "staging";
+	public static final String CLONE = "clone";
+	public static final String MERGE = "merge";
+	
+	public enum Status { QUEUED, RUNNING, SUCCEEDED, FAILED }
+	
+	@Id
+	private String id = UUID.randomUUID().toString();
+	private String type;
+	private int databaseId;
+	private int logicalDatabaseId;
+	private long submitted = System.currentTimeMillis();
+	@Enumerated(EnumType.STRING)
+	private volatile Status status = Status.QUEUED;
+	private volatile long started;
+	private volatile long finished;
+	@Column(columnDefinition = "text")
+	private volatile String location;
+	@Column(columnDefinition = "text")
+	private volatile String error;
+	
+	/**
+	 * For loading saved jobs
+	 */
+	protected Job() {
+	}
+	
+	/**
+	 * @param type the kind of job
+	 * @param databaseId the physical database the job applies to
+	 * @param logicalDatabaseId the logical database, which determines who can
+	 * see the job
+	 */
+	public Job(String type, int databaseId, int logicalDatabaseId) {
+		this.type = type;
+		this.databaseId = databaseId;
+		this.logicalDatabaseId = logicalDatabaseId;
+	}
+	
+	public void start() {
+		started = System.currentTimeMillis();
+		status = Status.RUNNING;
+	}
+	
+	/**
+	 * @param location the URI of the database the job created or changed
+	 */
+	public void succeed(String location) {
+		this.location = location;
+		finished = System.currentTimeMillis();
+		status = Status.SUCCEEDED;
+	}
+	
+	public void fail(Throwable cause) {
+		error = cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+		finished = System.currentTimeMillis();
+		status = Status.FAILED;
+	}
+	
+	public boolean isFinished() {
+		return status == Status.SUCCEEDED || status == Status.FAILED;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public int getDatabaseId() {
+		return databaseId;
+	}
+
+	public int getLogicalDatabaseId() {
+		return logicalDatabaseId;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public long getSubmitted() {
+		return submitted;
+	}
+
+	public long getFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return how long the job has been running, or ran for, in ms
+	 */
+	public long getElapsed() {
+		if (started == 0) {
+			return 0;
+		}
+		long end = finished == 0 ? System.currentTimeMillis() : finished;
+		return end - started;
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public String getError() {
+		return error;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+
+import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.PersistentJobServiceImpl;
+
+public interface JobService {
+	
+	/**
+	 * Runs a task in the background as the current subject. If a job of the
+	 * same type and key is already queued or running for the database, that
+	 * job is returned instead.
+	 * 
+	 * @param type the type of job
+	 * @param database the database the job applies to
+	 * @param key identifies what else the job depends on, such as the
+	 * instance being merged, or null if every request should start a new job
+	 * @param task the task, which returns the URI of the database it created
+	 * or changed
+	 * @return the job
+	 * @throws RejectedExecutionException if too many jobs are already queued
+	 */
+	public Job submit ( String type, OrdsPhysicalDatabase database, String key, Callable<String> task );
+	
+	/**
+	 * Gets a job that is queued, running, or recently finished
+	 * 
+	 * @param id the job id
+	 * @return the job, or null if there is no such job
+	 */
+	public Job getJob ( String id );
+	
+	/**
+	 * Stops accepting jobs, and waits a while for those already queued or
+	 * running to finish
+	 */
+	public void shutdown ();
+	
+	/**
+	 * Factory for obtaining implementations
+	 */
+    public static class Factory {
+		private static JobService provider;
+	    public static JobService getInstance() {
+	    	//
+	    	// Use the service loader to load an implementation if one is available
+	    	// Place a file called uk.ac.ox.it.ords.api.structure.service.JobService in src/main/resources/META-INF/services
+	    	// containing the classname to load as the JobService implementation. 
+	    	// By default we load the implementation that also saves jobs in the
+	    	// ORDS database, so that any node can report on them.
+	    	//
+	    	if (provider == null){
+	    		ServiceLoader<JobService> ldr = ServiceLoader.load(JobService.class);
+	    		for (JobService service : ldr) {
+	    			// We are only expecting one
+	    			provider = service;
+	    		}
+	    	}
+	    	//
+	    	// If no service provider is found, use the default
+	    	//
+	    	if (provider == null){
+	    		provider = new PersistentJobServiceImpl();
+	    	}
+	    	
+	    	return provider;
+	    }
+	    
+	    /**
+	     * Shuts down the implementation, if one has been loaded
+	     */
+	    public static synchronized void shutdownInstance() {
+	    	if (provider != null){
+	    		provider.shutdown();
+	    		provider = null;
+	    	}
+	    }
+	}
+}
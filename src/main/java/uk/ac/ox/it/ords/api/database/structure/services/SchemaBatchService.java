@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services;
+
+import java.util.List;
+import java.util.ServiceLoader;
+
+import uk.ac.ox.it.ords.api.database.structure.dto.BatchOperation;
+import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.SchemaBatchServiceImpl;
+
+public interface SchemaBatchService {
+	
+	/**
+	 * Applies a list of structure operations to a database. The operations are
+	 * all validated before any of them are run, and are then run in order in
+	 * a single transaction; if any operation fails, none of them are applied.
+	 * 
+	 * @param database the database
+	 * @param operations the operations
+	 * @param staging whether this is a staging version
+	 * @throws Exception if any of the operations are invalid, or if there is
+	 * a problem applying them
+	 */
+	public void runBatch ( OrdsPhysicalDatabase database, List<BatchOperation> operations, boolean staging ) throws Exception;
+	
+	/**
+	 * Factory for obtaining implementations
+	 */
+    public static class Factory {
+		private static SchemaBatchService provider;
+	    public static SchemaBatchService getInstance() {
+	    	//
+	    	// Use the service loader to load an implementation if one is available
+	    	// Place a file called uk.ac.ox.it.ords.api.structure.service.SchemaBatchService in src/main/resources/META-INF/services
+	    	// containing the classname to load as the SchemaBatchService implementation. 
+	    	// By default we load the Hibernate/Postgresql implementation.
+	    	//
+	    	if (provider == null){
+	    		ServiceLoader<SchemaBatchService> ldr = ServiceLoader.load(SchemaBatchService.class);
+	    		for (SchemaBatchService service : ldr) {
+	    			// We are only expecting one
+	    			provider = service;
+	    		}
+	    	}
+	    	//
+	    	// If no service provider is found, use the default
+	    	//
+	    	if (provider == null){
+	    		provider = new SchemaBatchServiceImpl();
+	    	}
+	    	
+	    	return provider;
+	    }
+	}
+}
@@ -14,71 +14,410 @@
  * limitations under the License.
  */
 
+
 package uk.ac.ox.it.ords.api.database.structure.services;
 
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
+/**
+ * The structure of the tables in a database.
+ * 
+ * Each table, column, relation and index is held in a small typed class
+ * rather than a HashMap of its properties, and the columns, relations and
+ * indexes of a table are held in arrays. To keep the JSON (and any code that
+ * reads the structure as nested maps) the same, each class is also a
+ * read-only Map of its JSON properties, and writes itself directly to Jackson.
+ * When a TableList is read back from JSON, the tables are plain maps.
+ */
 public class TableList {
 
-	private HashMap<String, HashMap<?, ?>> tables;
+	private final HashMap<String, Map<String, Object>> tables;
 
 	public TableList() {
-		this.tables = new HashMap();
+		this.tables = new HashMap<String, Map<String, Object>>();
 	}
 
+	@SuppressWarnings("rawtypes")
 	public HashMap getTables() {
 		return tables;
 	}
 
 	public void addTable(String tableName, String comment) {
-		HashMap<String, Object> table = new HashMap();
-		table.put("columns", new HashMap<String, HashMap>());
-		table.put("relations", new HashMap<String, HashMap>());
-		table.put("indexes", new HashMap<String, HashMap>());
-		table.put("comment", comment);
-		tables.put(tableName, table);
+		tables.put(tableName, new Table(comment));
 	}
 
 	public void addColumn(String tableName, String name, int position,
 			String defaultValue, boolean nullable, String datatype,
 			boolean autoincrement, String comment) {
-		HashMap columns = (HashMap) tables.get(tableName).get("columns");
-		HashMap column = new HashMap();
-		column.put("position", position);
-		column.put("default", defaultValue);
-		column.put("nullable", nullable);
-		column.put("datatype", datatype);
-		column.put("autoincrement", autoincrement);
-		column.put("comment", comment);
-		columns.put(name, column);
+		table(tableName).columns.put(name, new Column(position, defaultValue,
+				nullable, datatype, autoincrement, comment));
 	}
 
 	public void addIndex(String tableName, String indexName, String type,
 			List<String> columns) {
-		HashMap indexes = (HashMap) tables.get(tableName).get("indexes");
-		HashMap<String, Object> index = new HashMap();
-		index.put("type", type);
-		index.put("columns", columns);
-		indexes.put(indexName, index);
+		table(tableName).indexes.put(indexName, new Index(type, columns));
 	}
 
+	/**
+	 * Adds a relation to a table
+	 * @param tableName the table
+	 * @param constraintName the foreign key constraint
+	 * @param columnName the column in the table
+	 * @param referenceTable the referenced table
+	 * @param referenceColumn the referenced column
+	 * @param foreignTableColumns the columns of the referenced table, each a map
+	 * containing its "datatype". This can be shared by relations to the same table.
+	 */
 	public void addRelation(String tableName, String constraintName,
 			String columnName, String referenceTable, String referenceColumn,
-			HashMap<String, HashMap<String, String>> foreignTableColumns) {
-		HashMap relations = (HashMap) tables.get(tableName).get("relations");
-		HashMap<String, Object> relation = new HashMap();
-		relation.put("column", columnName);
-		relation.put("referenceTable", referenceTable);
-		relation.put("referenceColumn", referenceColumn);
-		relation.put("columns", foreignTableColumns);
-		relations.put(constraintName, relation);
+			Map<String, ? extends Map<String, String>> foreignTableColumns) {
+		table(tableName).relations.put(constraintName, new Relation(columnName,
+				referenceTable, referenceColumn, foreignTableColumns));
 	}
 
 	public void setXY(String tableName, int x, int y) {
-		HashMap table = tables.get(tableName);
-		table.put("x", x);
-		table.put("y", y);
+		Table table = table(tableName);
+		table.x = x;
+		table.y = y;
+	}
+
+	private Table table(String tableName) {
+		return (Table) tables.get(tableName);
+	}
+
+	/**
+	 * Something that writes its own JSON
+	 */
+	interface Writable {
+		void writeTo(JsonGenerator generator) throws IOException;
+	}
+
+	/**
+	 * Writes a value without going back through the ObjectMapper
+	 */
+	static void write(JsonGenerator generator, Object value) throws IOException {
+		if (value instanceof Writable) {
+			((Writable) value).writeTo(generator);
+		} else if (value instanceof Map) {
+			generator.writeStartObject();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				generator.writeFieldName(String.valueOf(entry.getKey()));
+				write(generator, entry.getValue());
+			}
+			generator.writeEndObject();
+		} else if (value == null) {
+			generator.writeNull();
+		} else if (value instanceof String) {
+			generator.writeString((String) value);
+		} else {
+			generator.writeObject(value);
+		}
+	}
+
+	static final class Serializer extends JsonSerializer<Writable> {
+		@Override
+		public void serialize(Writable value, JsonGenerator generator,
+				SerializerProvider serializers) throws IOException {
+			value.writeTo(generator);
+		}
 	}
 
+	/**
+	 * Base class for the read-only map view of each typed class; this is
+	 * only used by code reading the structure as maps, not when writing JSON
+	 */
+	abstract static class Properties extends AbstractMap<String, Object> implements Writable {
+
+		abstract void addTo(Map<String, Object> properties);
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			Map<String, Object> properties = new LinkedHashMap<String, Object>();
+			addTo(properties);
+			return Collections.unmodifiableMap(properties).entrySet();
+		}
+	}
+
+	@JsonSerialize(using = Serializer.class)
+	public static final class Table extends Properties {
+		private final String comment;
+		private final NamedList<Column> columns = new NamedList<Column>();
+		private final NamedList<Relation> relations = new NamedList<Relation>();
+		private final NamedList<Index> indexes = new NamedList<Index>();
+		private Integer x;
+		private Integer y;
+
+		Table(String comment) {
+			this.comment = comment;
+		}
+
+		@Override
+		void addTo(Map<String, Object> properties) {
+			properties.put("columns", columns);
+			properties.put("relations", relations);
+			properties.put("indexes", indexes);
+			properties.put("comment", comment);
+			if (x != null) {
+				properties.put("x", x);
+				properties.put("y", y);
+			}
+		}
+
+		@Override
+		public void writeTo(JsonGenerator generator) throws IOException {
+			generator.writeStartObject();
+			generator.writeFieldName("columns");
+			columns.writeTo(generator);
+			generator.writeFieldName("relations");
+			relations.writeTo(generator);
+			generator.writeFieldName("indexes");
+			indexes.writeTo(generator);
+			generator.writeStringField("comment", comment);
+			if (x != null) {
+				generator.writeNumberField("x", x);
+				generator.writeNumberField("y", y);
+			}
+			generator.writeEndObject();
+		}
+	}
+
+	@JsonSerialize(using = Serializer.class)
+	public static final class Column extends Properties {
+		private final int position;
+		private final String defaultValue;
+		private final boolean nullable;
+		private final String datatype;
+		private final boolean autoincrement;
+		private final String comment;
+
+		Column(int position, String defaultValue, boolean nullable,
+				String datatype, boolean autoincrement, String comment) {
+			this.position = position;
+			this.defaultValue = defaultValue;
+			this.nullable = nullable;
+			//
+			// There are only a handful of distinct datatypes, so we don't
+			// want to hold a copy of each one for every column
+			//
+			this.datatype = datatype == null ? null : datatype.intern();
+			this.autoincrement = autoincrement;
+			this.comment = comment;
+		}
+
+		@Override
+		void addTo(Map<String, Object> properties) {
+			properties.put("position", position);
+			properties.put("default", defaultValue);
+			properties.put("nullable", nullable);
+			properties.put("datatype", datatype);
+			properties.put("autoincrement", autoincrement);
+			properties.put("comment", comment);
+		}
+
+		@Override
+		public void writeTo(JsonGenerator generator) throws IOException {
+			generator.writeStartObject();
+			generator.writeNumberField("position", position);
+			generator.writeStringField("default", defaultValue);
+			generator.writeBooleanField("nullable", nullable);
+			generator.writeStringField("datatype", datatype);
+			generator.writeBooleanField("autoincrement", autoincrement);
+			generator.writeStringField("comment", comment);
+			generator.writeEndObject();
+		}
+	}
+
+	@JsonSerialize(using = Serializer.class)
+	public static final class Relation extends Properties {
+		private final String column;
+		private final String referenceTable;
+		private final String referenceColumn;
+		private final Map<String, ? extends Map<String, String>> columns;
+
+		Relation(String column, String referenceTable, String referenceColumn,
+				Map<String, ? extends Map<String, String>> columns) {
+			this.column = column;
+			this.referenceTable = referenceTable;
+			this.referenceColumn = referenceColumn;
+			this.columns = columns;
+		}
+
+		@Override
+		void addTo(Map<String, Object> properties) {
+			properties.put("column", column);
+			properties.put("referenceTable", referenceTable);
+			properties.put("referenceColumn", referenceColumn);
+			properties.put("columns", columns);
+		}
+
+		@Override
+		public void writeTo(JsonGenerator generator) throws IOException {
+			generator.writeStartObject();
+			generator.writeStringField("column", column);
+			generator.writeStringField("referenceTable", referenceTable);
+			generator.writeStringField("referenceColumn", referenceColumn);
+			generator.writeFieldName("columns");
+			write(generator, columns);
+			generator.writeEndObject();
+		}
+	}
+
+	@JsonSerialize(using = Serializer.class)
+	public static final class Index extends Properties {
+		private final String type;
+		private final List<String> columns;
+
+		Index(String type, List<String> columns) {
+			this.type = type;
+			this.columns = columns;
+		}
+
+		@Override
+		void addTo(Map<String, Object> properties) {
+			properties.put("type", type);
+			properties.put("columns", columns);
+		}
+
+		@Override
+		public void writeTo(JsonGenerator generator) throws IOException {
+			generator.writeStartObject();
+			generator.writeStringField("type", type);
+			generator.writeArrayFieldStart("columns");
+			if (columns != null) {
+				for (String column : columns) {
+					generator.writeString(column);
+				}
+			}
+			generator.writeEndArray();
+			generator.writeEndObject();
+		}
+	}
+
+	/**
+	 * A map backed by arrays, in the order entries were added. Lookups are a
+	 * linear scan, which for the handful of columns, relations or indexes in
+	 * a table is as fast as hashing and allocates nothing per entry.
+	 */
+	@JsonSerialize(using = Serializer.class)
+	public static final class NamedList<V> extends AbstractMap<String, V> implements Writable {
+		private String[] names = new String[4];
+		private Object[] values = new Object[4];
+		private int size;
+
+		/**
+		 * Adds a value, replacing any existing value with the same name
+		 * @param name the name
+		 * @param value the value
+		 * @return the previous value, or null
+		 */
+		@Override
+		@SuppressWarnings("unchecked")
+		public V put(String name, V value) {
+			for (int i = 0; i < size; i++) {
+				if (names[i].equals(name)) {
+					V previous = (V) values[i];
+					values[i] = value;
+					return previous;
+				}
+			}
+			if (size == names.length) {
+				names = Arrays.copyOf(names, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			names[size] = name;
+			values[size] = value;
+			size++;
+			return null;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V get(Object name) {
+			for (int i = 0; i < size; i++) {
+				if (names[i].equals(name)) {
+					return (V) values[i];
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public boolean containsKey(Object name) {
+			for (int i = 0; i < size; i++) {
+				if (names[i].equals(name)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Set<Map.Entry<String, V>> entrySet() {
+			return new AbstractSet<Map.Entry<String, V>>() {
+				@Override
+				public Iterator<Map.Entry<String, V>> iterator() {
+					return new Iterator<Map.Entry<String, V>>() {
+						private int next = 0;
+
+						@Override
+						public boolean hasNext() {
+							return next < size;
+						}
+
+						@Override
+						@SuppressWarnings("unchecked")
+						public Map.Entry<String, V> next() {
+							if (next >= size) {
+								throw new NoSuchElementException();
+							}
+							Map.Entry<String, V> entry = new SimpleImmutableEntry<String, V>(names[next], (V) values[next]);
+							next++;
+							return entry;
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+
+		@Override
+		public void writeTo(JsonGenerator generator) throws IOException {
+			generator.writeStartObject();
+			for (int i = 0; i < size; i++) {
+				generator.writeFieldName(names[i]);
+				write(generator, values[i]);
+			}
+			generator.writeEndObject();
+		}
+	}
 }
@@ -34,6 +34,29 @@ public interface TableStructureService {
 	 */
 	public TableList getTableMetadata ( OrdsPhysicalDatabase database, String tableName, boolean staging ) throws Exception;
 	
+	/**
+	 * Get table metadata, when the caller has just obtained the table
+	 * version, so it needn't be worked out again
+	 * @param database the database
+	 * @param tableName the table
+	 * @param staging if this applies to a staging database
+	 * @param tableVersion the version returned by getTableVersion, or null
+	 * @return the result
+	 * @throws Exception if there is a problem
+	 */
+	public TableList getTableMetadata ( OrdsPhysicalDatabase database, String tableName, boolean staging, String tableVersion ) throws Exception;
+	
+	/**
+	 * Get a version identifier for the metadata of a table; this changes
+	 * whenever the result of getTableMetadata would change
+	 * @param database the database
+	 * @param tableName the table
+	 * @param staging if this applies to a staging database
+	 * @return the version
+	 * @throws Exception if there is a problem
+	 */
+	public String getTableVersion ( OrdsPhysicalDatabase database, String tableName, boolean staging ) throws Exception;
+	
 	/**
 	 * Creates a table
 	 * @param database the database
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ox.it.ords.security.model.Audit;
+import uk.ac.ox.it.ords.security.services.AuditService;
+
+/**
+ * Writes audit records from a background thread, so that auditing - and in
+ * particular a flood of forbidden requests - doesn't hold up request
+ * threads while each record is inserted.
+ * 
+ * Records wait in a bounded queue, and are taken off it in batches at
+ * least once every flush interval; the records in a batch are still written
+ * one at a time. If the queue is full the caller waits for space, unless
+ * the overflow policy is to drop records, when each dropped record is
+ * logged and counted. On shutdown the queue is drained before the writer
+ * stops; anything audited after that is written straight away.
+ */
+public class AuditWriter {
+	
+	private static Logger log = LoggerFactory.getLogger(AuditWriter.class);
+	
+	public static final String ASYNC_PROPERTY = "ords.database.structure.audit.async";
+	public static final String QUEUE_SIZE_PROPERTY = "ords.database.structure.audit.queueSize";
+	public static final String BATCH_SIZE_PROPERTY = "ords.database.structure.audit.batchSize";
+	public static final String FLUSH_INTERVAL_PROPERTY = "ords.database.structure.audit.flushInterval";
+	public static final String OVERFLOW_PROPERTY = "ords.database.structure.audit.overflow";
+	public static final String SHUTDOWN_TIMEOUT_PROPERTY = "ords.database.structure.audit.shutdownTimeout";
+	
+	/**
+	 * When the queue is full, drop the record
+	 */
+	public static final String OVERFLOW_DROP = "drop";
+	
+	/**
+	 * When the queue is full, wait for space
+	 */
+	public static final String OVERFLOW_BLOCK = "block";
+	
+	private static AuditWriter instance;
+	
+	/**
+	 * Queued to wake the writer when it is stopped, rather than interrupting
+	 * it in the middle of writing a record
+	 */
+	private static final Audit STOP = new Audit();
+	
+	private final AuditService target;
+	private final BlockingQueue<Audit> queue;
+	private final int batchSize;
+	private final long flushInterval;
+	private final boolean block;
+	private final Thread thread;
+	
+	private volatile boolean running = true;
+	
+	//
+	// Held to queue a record, and to stop queueing them on shutdown, so that
+	// nothing is queued once the queue has been drained for the last time
+	//
+	private final ReadWriteLock runningLock = new ReentrantReadWriteLock();
+	
+	//
+	// Metrics
+	//
+	private final AtomicLong writtenCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	
+	/**
+	 * @return the writer, or null if audit records are to be written
+	 * synchronously
+	 */
+	public static synchronized AuditWriter getInstance(){
+		if (instance == null && StructureConfiguration.getBoolean(ASYNC_PROPERTY, true)){
+			instance = new AuditWriter(
+					null,
+					StructureConfiguration.getInt(QUEUE_SIZE_PROPERTY, 10000),
+					StructureConfiguration.getInt(BATCH_SIZE_PROPERTY, 100),
+					StructureConfiguration.getLong(FLUSH_INTERVAL_PROPERTY, 1000),
+					!OVERFLOW_DROP.equals(StructureConfiguration.getString(OVERFLOW_PROPERTY, OVERFLOW_BLOCK))
+					);
+		}
+		return instance;
+	}
+	
+	/**
+	 * Stops the writer, if it was started, once it has written everything
+	 * in the queue or the shutdown timeout has passed
+	 */
+	public static synchronized void shutdownInstance(){
+		if (instance != null){
+			instance.shutdown(StructureConfiguration.getLong(SHUTDOWN_TIMEOUT_PROPERTY, 10000));
+		}
+	}
+	
+	/**
+	 * @param target the audit service to write to, or null to use the
+	 * default audit service
+	 * @param queueSize the most records that can be waiting
+	 * @param batchSize the most records taken off the queue at a time
+	 * @param flushInterval the longest a record waits, in ms
+	 * @param block true to wait for space when the queue is full, rather
+	 * than drop the record
+	 */
+	protected AuditWriter(AuditService target, int queueSize, int batchSize, long flushInterval, boolean block){
+		this.target = target;
+		this.queue = new ArrayBlockingQueue<Audit>(queueSize);
+		this.batchSize = batchSize;
+		this.flushInterval = flushInterval;
+		this.block = block;
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeUntilStopped();
+			}
+		}, "ords-structure-audit");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+	
+	/**
+	 * Queues a record to be written
+	 * @param audit the record
+	 */
+	public void write(Audit audit){
+		runningLock.readLock().lock();
+		try {
+			if (running){
+				queue(audit);
+				return;
+			}
+		} finally {
+			runningLock.readLock().unlock();
+		}
+		writeBatch(Collections.singletonList(audit));
+	}
+	
+	private void queue(Audit audit){
+		if (block){
+			try {
+				queue.put(audit);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped();
+			}
+		} else if (!queue.offer(audit)){
+			dropped();
+		}
+	}
+	
+	private void dropped(){
+		log.warn("Audit queue is full; " + droppedCount.incrementAndGet() + " audit records have been dropped");
+	}
+	
+	private void writeUntilStopped(){
+		List<Audit> batch = new ArrayList<Audit>(batchSize);
+		while (running){
+			try {
+				Audit first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+				if (first == null){
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				writeBatch(batch);
+				batch.clear();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	private void writeBatch(List<Audit> batch){
+		AuditService service = target != null ? target : AuditService.Factory.getInstance();
+		for (Audit audit : batch){
+			if (audit == STOP){
+				continue;
+			}
+			try {
+				service.createNewAudit(audit);
+				writtenCount.incrementAndGet();
+			} catch (Exception e) {
+				failedCount.incrementAndGet();
+				log.error("Error writing audit record", e);
+			}
+		}
+	}
+	
+	/**
+	 * Stops the background thread, and writes anything left in the queue.
+	 * Records audited from now on are written straight away.
+	 * @param timeout the longest to wait for the queue to be written, in ms
+	 */
+	public void shutdown(long timeout){
+		runningLock.writeLock().lock();
+		try {
+			running = false;
+		} finally {
+			runningLock.writeLock().unlock();
+		}
+		//
+		// If the queue is full the writer isn't waiting for records, and
+		// will stop once it has written the batch it has
+		//
+		queue.offer(STOP);
+		try {
+			thread.join(timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long deadline = System.currentTimeMillis() + timeout;
+		List<Audit> batch = new ArrayList<Audit>(batchSize);
+		while (queue.drainTo(batch, batchSize) > 0){
+			writeBatch(batch);
+			batch.clear();
+			if (System.currentTimeMillis() > deadline){
+				log.warn(queue.size() + " audit records were not written before shutdown");
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of records waiting to be written
+	 */
+	public int getQueueSize(){
+		return queue.size();
+	}
+
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+}
@@ -39,13 +39,27 @@ public class DatabaseStructureAuditServiceImpl implements
 		}
 	}
 
+	/**
+	 * Hands the record to the background writer, or writes it now if
+	 * records aren't written in the background
+	 * @param audit the record
+	 */
+	private void save(Audit audit){
+		AuditWriter writer = AuditWriter.getInstance();
+		if (writer != null){
+			writer.write(audit);
+		} else {
+			AuditService.Factory.getInstance().createNewAudit(audit);
+		}
+	}
+
 	@Override
 	public void createDatabase(int databaseId) {
 		Audit audit = new Audit();
 		audit.setAuditType(Audit.AuditType.CREATE_PHYSICAL_DATABASE.name());
 		audit.setUserId(getPrincipalName());
 		audit.setLogicalDatabaseId(databaseId);
-		AuditService.Factory.getInstance().createNewAudit(audit);
+		save(audit);
 	}
 	
 	@Override
@@ -54,7 +68,7 @@ public class DatabaseStructureAuditServiceImpl implements
 		audit.setAuditType(Audit.AuditType.DELETE_PHYSICAL_DATABASE.name());
 		audit.setUserId(getPrincipalName());
 		audit.setLogicalDatabaseId(databaseId);
-		AuditService.Factory.getInstance().createNewAudit(audit);
+		save(audit);
 	}
 	
 	@Override
@@ -64,7 +78,7 @@ public class DatabaseStructureAuditServiceImpl implements
 		audit.setUserId(getPrincipalName());
 		audit.setLogicalDatabaseId(databaseId);
 		audit.setMessage("Created role:" + role);
-		AuditService.Factory.getInstance().createNewAudit(audit);
+		save(audit);
 	}
 	
 	@Override
@@ -74,7 +88,7 @@ public class DatabaseStructureAuditServiceImpl implements
 		audit.setUserId(getPrincipalName());
 		audit.setMessage("Dropped role:" + role);
 		audit.setLogicalDatabaseId(databaseId);
-		AuditService.Factory.getInstance().createNewAudit(audit);
+		save(audit);
 	}
 	
 	@Override
@@ -84,7 +98,7 @@ public class DatabaseStructureAuditServiceImpl implements
 		audit.setUserId(getPrincipalName());
 		audit.setMessage("Dropped all roles");
 		audit.setLogicalDatabaseId(databaseId);
-		AuditService.Factory.getInstance().createNewAudit(audit);
+		save(audit);
 	}
 
 	@Override
@@ -93,7 +107,7 @@ public class DatabaseStructureAuditServiceImpl implements
 		audit.setAuditType(Audit.AuditType.GENERIC_NOTAUTH.name());
 		audit.setUserId(getPrincipalName());
 		audit.setMessage(request);
-		AuditService.Factory.getInstance().createNewAudit(audit);
+		save(audit);
 	}
 	
 	@Override
@@ -103,7 +117,7 @@ public class DatabaseStructureAuditServiceImpl implements
 		audit.setUserId(getPrincipalName());
 		audit.setMessage(request);
 		audit.setLogicalDatabaseId(logicalDatabaseId);
-		AuditService.Factory.getInstance().createNewAudit(audit);
+		save(audit);
 	}
 
 }
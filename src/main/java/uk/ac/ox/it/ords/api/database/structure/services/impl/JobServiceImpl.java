@@ -0,0 +1,223 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.UnavailableSecurityManagerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
+import uk.ac.ox.it.ords.api.database.structure.services.Job;
+import uk.ac.ox.it.ords.api.database.structure.services.JobService;
+
+/**
+ * Runs jobs on a small fixed pool of threads with a bounded queue, so that
+ * long-running operations such as cloning large databases don't tie up
+ * request threads, and can't overload the database server either. Jobs are
+ * held in memory, and are forgotten a while after they finish.
+ * 
+ * Only the node that accepted a job knows about it. Subclasses can save jobs
+ * elsewhere, so that other nodes can find them, by overriding saveJob() and
+ * findJob().
+ */
+public class JobServiceImpl implements JobService {
+	
+	private static Logger log = LoggerFactory.getLogger(JobServiceImpl.class);
+	
+	public static final String THREADS_PROPERTY = "ords.database.structure.jobs.threads";
+	public static final String QUEUE_SIZE_PROPERTY = "ords.database.structure.jobs.queueSize";
+	public static final String RETENTION_PROPERTY = "ords.database.structure.jobs.retention";
+	public static final String SHUTDOWN_TIMEOUT_PROPERTY = "ords.database.structure.jobs.shutdownTimeout";
+	
+	private final ThreadPoolExecutor executor;
+	private final long retention;
+	
+	private final LinkedHashMap<String, Job> jobs = new LinkedHashMap<String, Job>();
+	
+	//
+	// Unfinished jobs that a repeated request should share, by type, database
+	// and key
+	//
+	private final Map<String, Job> unfinished = new HashMap<String, Job>();
+	
+	public JobServiceImpl() {
+		this(
+				StructureConfiguration.getInt(THREADS_PROPERTY, 2),
+				StructureConfiguration.getInt(QUEUE_SIZE_PROPERTY, 20),
+				StructureConfiguration.getLong(RETENTION_PROPERTY, 3600000)
+				);
+	}
+	
+	protected JobServiceImpl(int threads, int queueSize, long retention) {
+		this.retention = retention;
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(queueSize), 
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "ords-structure-job-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	@Override
+	public Job submit(String type, OrdsPhysicalDatabase database, String key, final Callable<String> task) {
+		final Job job = new Job(type, database.getPhysicalDatabaseId(), database.getLogicalDatabaseId());
+		Runnable runnable = new Runnable() {
+			@Override
+			public void run() {
+				job.start();
+				save(job);
+				try {
+					job.succeed(task.call());
+				} catch (Exception e) {
+					log.error(String.format("%s job %s for database %d failed", job.getType(), job.getId(), job.getDatabaseId()), e);
+					job.fail(e);
+				}
+				save(job);
+			}
+		};
+		//
+		// The job runs as the subject that submitted it, so it is audited
+		// correctly
+		//
+		try {
+			runnable = SecurityUtils.getSubject().associateWith(runnable);
+		} catch (UnavailableSecurityManagerException e) {
+			log.warn("Job submitted with no valid security context");
+		}
+		synchronized (this) {
+			removeExpiredJobs();
+			String unfinishedKey = null;
+			if (key != null) {
+				unfinishedKey = type + "/" + database.getPhysicalDatabaseId() + "/" + key;
+				Job existing = unfinished.get(unfinishedKey);
+				if (existing != null && !existing.isFinished()) {
+					return existing;
+				}
+				unfinished.remove(unfinishedKey);
+			}
+			executor.execute(runnable);
+			jobs.put(job.getId(), job);
+			if (unfinishedKey != null) {
+				unfinished.put(unfinishedKey, job);
+			}
+		}
+		save(job);
+		return job;
+	}
+
+	@Override
+	public Job getJob(String id) {
+		synchronized (this) {
+			removeExpiredJobs();
+			Job job = jobs.get(id);
+			if (job != null) {
+				return job;
+			}
+		}
+		return findJob(id);
+	}
+	
+	/**
+	 * Saves the job as it is now. The job is locked while it is saved, so
+	 * that if it changes while an earlier save is in progress, the later
+	 * state is saved last. A job that can't be saved still runs.
+	 */
+	private void save(Job job) {
+		synchronized (job) {
+			try {
+				saveJob(job);
+			} catch (Exception e) {
+				log.warn(String.format("Unable to save %s job %s", job.getType(), job.getId()), e);
+			}
+		}
+	}
+	
+	/**
+	 * Saves a job when it is submitted, starts and finishes. This does
+	 * nothing, as jobs are only held in memory.
+	 * @param job the job
+	 * @throws Exception if the job can't be saved
+	 */
+	protected void saveJob(Job job) throws Exception {
+	}
+	
+	/**
+	 * Finds a job this node isn't holding, such as one submitted to another
+	 * node. There are none, as jobs are only held in memory.
+	 * @param id the job id
+	 * @return the job, or null if there is no such job
+	 */
+	protected Job findJob(String id) {
+		return null;
+	}
+	
+	/**
+	 * @return how long finished jobs are kept, in ms
+	 */
+	protected long getRetention() {
+		return retention;
+	}
+	
+	@Override
+	public void shutdown() {
+		long timeout = StructureConfiguration.getLong(SHUTDOWN_TIMEOUT_PROPERTY, 30000);
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+				log.warn("Jobs still running after " + timeout + "ms; interrupting them");
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void removeExpiredJobs() {
+		long now = System.currentTimeMillis();
+		Iterator<Job> iterator = jobs.values().iterator();
+		while (iterator.hasNext()) {
+			Job job = iterator.next();
+			if (job.isFinished() && now - job.getFinished() > retention) {
+				iterator.remove();
+			}
+		}
+		Iterator<Job> running = unfinished.values().iterator();
+		while (running.hasNext()) {
+			if (running.next().isFinished()) {
+				running.remove();
+			}
+		}
+	}
+}
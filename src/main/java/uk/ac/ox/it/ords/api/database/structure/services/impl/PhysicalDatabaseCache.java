@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
+
+/**
+ * Caches OrdsPhysicalDatabase records, keyed by physical database id.
+ *
+ * Services must call invalidate() whenever they save, update or remove a
+ * record. As with TableListCache, callers take a version before reading a
+ * record and pass it to put(); the put is ignored if the record has been
+ * invalidated since.
+ *
+ * Records may also be changed by other nodes and other ORDS services, which
+ * we can't see, so entries expire after a short maximum age. The cache holds
+ * a bounded number of records, evicting the least recently used.
+ *
+ * Records are mutable, so the cache holds and hands out copies.
+ */
+public class PhysicalDatabaseCache {
+
+	private static Logger log = LoggerFactory.getLogger(PhysicalDatabaseCache.class);
+
+	public static final String MAX_ENTRIES_PROPERTY = "ords.database.structure.metadataCache.maxEntries";
+	public static final String MAX_AGE_PROPERTY = "ords.database.structure.metadataCache.maxAge";
+
+	private static PhysicalDatabaseCache instance;
+
+	private final int maxEntries;
+	private final long maxAge;
+
+	private final LinkedHashMap<Integer, Entry> entries;
+
+	/**
+	 * The sequence number of the most recent invalidation of each record;
+	 * see TableListCache
+	 */
+	private final LinkedHashMap<Integer, Long> invalidations;
+	private long invalidationFloor = 0;
+	private long sequence = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Returns the shared cache, creating it on first use
+	 * @return the cache
+	 */
+	public static synchronized PhysicalDatabaseCache getInstance(){
+		if (instance == null){
+			instance = new PhysicalDatabaseCache(
+					StructureConfiguration.getInt(MAX_ENTRIES_PROPERTY, 1000),
+					StructureConfiguration.getLong(MAX_AGE_PROPERTY, 10000)
+					);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param maxEntries the maximum number of records to hold; 0 disables
+	 * the cache
+	 * @param maxAge the time in ms after which an entry is no longer used
+	 */
+	public PhysicalDatabaseCache(final int maxEntries, long maxAge){
+		this.maxEntries = maxEntries;
+		this.maxAge = maxAge;
+		this.entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+				if (size() > PhysicalDatabaseCache.this.maxEntries){
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+		this.invalidations = new LinkedHashMap<Integer, Long>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+				if (size() > Math.max(PhysicalDatabaseCache.this.maxEntries, 1) * 4){
+					invalidationFloor = Math.max(invalidationFloor, eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Take a version to pass to put() once the record has been read
+	 * @return the current version
+	 */
+	public synchronized long getVersion(){
+		return sequence;
+	}
+
+	/**
+	 * Get a cached record
+	 * @param databaseId the physical database id
+	 * @return a copy of the record, or null if it isn't cached
+	 */
+	public synchronized OrdsPhysicalDatabase get(int databaseId){
+		Entry entry = entries.get(databaseId);
+		OrdsPhysicalDatabase database = null;
+		if (entry != null){
+			if (System.currentTimeMillis() - entry.created > maxAge){
+				entries.remove(databaseId);
+			} else {
+				database = copy(entry.database);
+			}
+		}
+		if (database == null){
+			misses++;
+		} else {
+			hits++;
+		}
+		return database;
+	}
+
+	/**
+	 * Cache a record, unless it has been invalidated since the given version
+	 * was taken
+	 * @param database the record
+	 * @param version the version taken before the record was read
+	 */
+	public synchronized void put(OrdsPhysicalDatabase database, long version){
+		Long invalidated = invalidations.get(database.getPhysicalDatabaseId());
+		if ((invalidated == null ? invalidationFloor : invalidated) > version){
+			return;
+		}
+		OrdsPhysicalDatabase copy = copy(database);
+		if (copy != null){
+			entries.put(database.getPhysicalDatabaseId(), new Entry(copy));
+		}
+	}
+
+	/**
+	 * Remove a cached record
+	 * @param databaseId the physical database id
+	 */
+	public synchronized void invalidate(int databaseId){
+		entries.remove(databaseId);
+		invalidations.put(databaseId, ++sequence);
+	}
+
+	public synchronized void clear(){
+		entries.clear();
+		invalidationFloor = ++sequence;
+		invalidations.clear();
+	}
+
+	public synchronized long getHitCount(){
+		return hits;
+	}
+
+	public synchronized long getMissCount(){
+		return misses;
+	}
+
+	public synchronized long getEvictionCount(){
+		return evictions;
+	}
+
+	/**
+	 * @return the proportion of lookups answered from the cache
+	 */
+	public synchronized double getHitRate(){
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	private static OrdsPhysicalDatabase copy(OrdsPhysicalDatabase database){
+		try {
+			return database.clone();
+		} catch (CloneNotSupportedException e) {
+			log.warn("Unable to copy physical database record", e);
+			return null;
+		}
+	}
+
+	private static class Entry {
+		final long created = System.currentTimeMillis();
+		final OrdsPhysicalDatabase database;
+
+		Entry(OrdsPhysicalDatabase database){
+			this.database = database;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+/**
+ * Reads the statistics kept by the current PhysicalDatabaseCache, which are
+ * counted from when the cache was created
+ */
+public class PhysicalDatabaseCacheStatistics implements PhysicalDatabaseCacheStatisticsMXBean {
+
+	@Override
+	public long getHitCount() {
+		return PhysicalDatabaseCache.getInstance().getHitCount();
+	}
+
+	@Override
+	public long getMissCount() {
+		return PhysicalDatabaseCache.getInstance().getMissCount();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return PhysicalDatabaseCache.getInstance().getEvictionCount();
+	}
+
+	@Override
+	public double getHitRate() {
+		return PhysicalDatabaseCache.getInstance().getHitRate();
+	}
+
+	@Override
+	public int getSize() {
+		return PhysicalDatabaseCache.getInstance().size();
+	}
+
+}
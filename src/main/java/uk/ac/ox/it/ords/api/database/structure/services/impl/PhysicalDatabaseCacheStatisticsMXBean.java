@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+/**
+ * The physical database cache statistics, as read over JMX
+ */
+public interface PhysicalDatabaseCacheStatisticsMXBean {
+	
+	public long getHitCount();
+	
+	public long getMissCount();
+	
+	public long getEvictionCount();
+	
+	public double getHitRate();
+	
+	public int getSize();
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
+
+/**
+ * The physical databases already looked up during the current request, so
+ * that a handler and the services it calls don't each look up the same
+ * database.
+ * 
+ * Databases are only remembered between begin() and end(), which the
+ * PhysicalDatabaseFilter calls around each request. A database is
+ * forgotten when this service changes its record.
+ */
+public class RequestDatabases {
+	
+	private static final ThreadLocal<Map<Integer, OrdsPhysicalDatabase>> CURRENT = new ThreadLocal<Map<Integer, OrdsPhysicalDatabase>>();
+	
+	/**
+	 * Starts remembering databases on this thread
+	 */
+	public static void begin(){
+		CURRENT.set(new HashMap<Integer, OrdsPhysicalDatabase>());
+	}
+	
+	/**
+	 * Stops remembering databases on this thread
+	 */
+	public static void end(){
+		CURRENT.remove();
+	}
+	
+	/**
+	 * @param physicalDatabaseId the database
+	 * @return the database, if it has been looked up during this request,
+	 * otherwise null
+	 */
+	public static OrdsPhysicalDatabase get(int physicalDatabaseId){
+		Map<Integer, OrdsPhysicalDatabase> databases = CURRENT.get();
+		return databases == null ? null : databases.get(physicalDatabaseId);
+	}
+	
+	/**
+	 * Remembers a database for the rest of the request
+	 * @param database the database
+	 */
+	public static void put(OrdsPhysicalDatabase database){
+		Map<Integer, OrdsPhysicalDatabase> databases = CURRENT.get();
+		if (databases != null){
+			databases.put(database.getPhysicalDatabaseId(), database);
+		}
+	}
+	
+	/**
+	 * Forgets a database, after its record has been changed
+	 * @param physicalDatabaseId the database
+	 */
+	public static void invalidate(int physicalDatabaseId){
+		Map<Integer, OrdsPhysicalDatabase> databases = CURRENT.get();
+		if (databases != null){
+			databases.remove(physicalDatabaseId);
+		}
+	}
+
+}
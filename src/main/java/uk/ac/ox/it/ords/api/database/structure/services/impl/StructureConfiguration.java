@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+import uk.ac.ox.it.ords.security.configuration.MetaConfiguration;
+
+/**
+ * Reads optional tuning settings from the ORDS configuration, falling back to
+ * defaults where a setting is missing or the configuration can't be loaded.
+ */
+public class StructureConfiguration {
+
+	public static int getInt(String key, int defaultValue){
+		try {
+			return MetaConfiguration.getConfiguration().getInt(key, defaultValue);
+		} catch (Exception e) {
+			return defaultValue;
+		}
+	}
+
+	public static long getLong(String key, long defaultValue){
+		try {
+			return MetaConfiguration.getConfiguration().getLong(key, defaultValue);
+		} catch (Exception e) {
+			return defaultValue;
+		}
+	}
+
+	public static boolean getBoolean(String key, boolean defaultValue){
+		try {
+			return MetaConfiguration.getConfiguration().getBoolean(key, defaultValue);
+		} catch (Exception e) {
+			return defaultValue;
+		}
+	}
+
+	public static String getString(String key, String defaultValue){
+		try {
+			return MetaConfiguration.getConfiguration().getString(key, defaultValue);
+		} catch (Exception e) {
+			return defaultValue;
+		}
+	}
+}
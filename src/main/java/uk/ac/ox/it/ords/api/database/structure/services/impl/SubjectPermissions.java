@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.subject.Subject;
+
+import uk.ac.ox.it.ords.api.database.structure.permissions.DatabaseStructurePermissions;
+
+/**
+ * Remembers the answers to permission checks for the rest of a request, so
+ * checking the same permission again, or listing databases more than once,
+ * doesn't go back to the security manager.
+ * 
+ * Checks are answered as they are asked for, rather than working out every
+ * database the subject can view or modify up front. Permissions can be
+ * granted by wildcards such as those of administrators, which no list of ids
+ * covers, and most requests only concern one database. Listing databases
+ * does work out the whole set of databases the subject can view, once per
+ * request, and each of those then counts as an answered view check.
+ * 
+ * Answers are only remembered between begin() and end(), which the
+ * PermissionCacheFilter calls around each request; anywhere else, such as
+ * in background jobs, checks go straight to the subject. They are also
+ * forgotten if the subject's principal changes, and when clear() is
+ * called after the subject's roles change.
+ */
+public class SubjectPermissions {
+	
+	private static final ThreadLocal<SubjectPermissions> CURRENT = new ThreadLocal<SubjectPermissions>();
+	
+	private Object principal;
+	private final Map<String, Boolean> permitted = new HashMap<String, Boolean>();
+	private Set<Integer> viewableDatabases;
+	
+	/**
+	 * Starts remembering permission checks on this thread
+	 */
+	public static void begin(){
+		CURRENT.set(new SubjectPermissions());
+	}
+	
+	/**
+	 * Stops remembering permission checks on this thread, and forgets those
+	 * already made
+	 */
+	public static void end(){
+		CURRENT.remove();
+	}
+	
+	/**
+	 * Forgets the permission checks made so far, for example after giving the
+	 * subject a new role
+	 */
+	public static void clear(){
+		if (CURRENT.get() != null){
+			begin();
+		}
+	}
+	
+	/**
+	 * @return the checks remembered for the current subject, or null if
+	 * checks aren't being remembered
+	 */
+	private static SubjectPermissions current(){
+		SubjectPermissions permissions = CURRENT.get();
+		if (permissions == null){
+			return null;
+		}
+		Object principal = SecurityUtils.getSubject().getPrincipal();
+		if (principal == null ? permissions.principal != null : !principal.equals(permissions.principal)){
+			permissions = new SubjectPermissions();
+			permissions.principal = principal;
+			CURRENT.set(permissions);
+		}
+		return permissions;
+	}
+	
+	/**
+	 * @param permission the permission
+	 * @return true if the current subject has the permission
+	 */
+	public static boolean isPermitted(String permission){
+		Subject subject = SecurityUtils.getSubject();
+		SubjectPermissions permissions = current();
+		if (permissions == null){
+			return subject.isPermitted(permission);
+		}
+		Boolean result = permissions.permitted.get(permission);
+		if (result == null){
+			result = subject.isPermitted(permission);
+			permissions.permitted.put(permission, result);
+		}
+		return result;
+	}
+	
+	/**
+	 * @param logicalDatabaseId the logical database
+	 * @return true if the current subject can view the database
+	 */
+	public static boolean canView(int logicalDatabaseId){
+		return isPermitted(DatabaseStructurePermissions.DATABASE_VIEW(logicalDatabaseId));
+	}
+	
+	/**
+	 * @param logicalDatabaseId the logical database
+	 * @return true if the current subject can modify the database
+	 */
+	public static boolean canModify(int logicalDatabaseId){
+		return isPermitted(DatabaseStructurePermissions.DATABASE_MODIFY(logicalDatabaseId));
+	}
+	
+	/**
+	 * @return the logical databases the current subject can view, if they've
+	 * already been worked out during this request, otherwise null
+	 */
+	public static Set<Integer> getViewableDatabases(){
+		SubjectPermissions permissions = current();
+		return permissions == null ? null : permissions.viewableDatabases;
+	}
+	
+	/**
+	 * Remembers the logical databases the current subject can view. Each is
+	 * also remembered as a granted view permission.
+	 * @param logicalDatabaseIds the databases
+	 */
+	public static void setViewableDatabases(Set<Integer> logicalDatabaseIds){
+		SubjectPermissions permissions = current();
+		if (permissions != null){
+			permissions.viewableDatabases = logicalDatabaseIds;
+			for (int id : logicalDatabaseIds){
+				permissions.permitted.put(DatabaseStructurePermissions.DATABASE_VIEW(id), true);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import uk.ac.ox.it.ords.api.database.structure.services.TableList;
+
+/**
+ * Caches the TableList for a database, and for individual tables, keyed by
+ * physical database id and staging flag.
+ *
+ * Services must call invalidate() whenever they change the structure of a
+ * database. To stop a TableList that was being built while a change was made
+ * from being cached, callers take a version before reading the catalog and
+ * pass it to put(); the put is ignored if the key has been invalidated since.
+ *
+ * Each TableList is cached along with the schema fingerprint it was built
+ * from, and is only returned to a caller presenting the same fingerprint, so
+ * changes made outside this service (for example over ODBC, or by another
+ * node) are picked up as soon as the fingerprint changes.
+ *
+ * The cache holds a bounded number of databases, evicting the least recently
+ * used, and entries also expire after a maximum age.
+ */
+public class TableListCache {
+
+	public static final String MAX_ENTRIES_PROPERTY = "ords.database.structure.cache.maxEntries";
+	public static final String MAX_AGE_PROPERTY = "ords.database.structure.cache.maxAge";
+
+	private static TableListCache instance;
+
+	private final int maxEntries;
+	private final long maxAge;
+
+	private final LinkedHashMap<Key, Entry> entries;
+
+	/**
+	 * The sequence number of the most recent invalidation of each key. This is
+	 * bounded too; once a key drops out we assume it was invalidated as
+	 * recently as anything that has dropped out, which is always safe.
+	 */
+	private final LinkedHashMap<Key, Long> invalidations;
+	private long invalidationFloor = 0;
+	private long sequence = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Returns the shared cache, creating it on first use
+	 * @return the cache
+	 */
+	public static synchronized TableListCache getInstance(){
+		if (instance == null){
+			instance = new TableListCache(
+					StructureConfiguration.getInt(MAX_ENTRIES_PROPERTY, 200),
+					StructureConfiguration.getLong(MAX_AGE_PROPERTY, 60000)
+					);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param maxEntries the maximum number of databases to hold
+	 * @param maxAge the time in ms after which an entry is no longer used
+	 */
+	public TableListCache(final int maxEntries, long maxAge){
+		this.maxEntries = maxEntries;
+		this.maxAge = maxAge;
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				if (size() > TableListCache.this.maxEntries){
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+		this.invalidations = new LinkedHashMap<Key, Long>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+				if (size() > TableListCache.this.maxEntries * 4){
+					invalidationFloor = Math.max(invalidationFloor, eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Take a version to pass to put() once the TableList has been built
+	 * @return the current version
+	 */
+	public synchronized long getVersion(){
+		return sequence;
+	}
+
+	/**
+	 * Get a cached TableList
+	 * @param databaseId the physical database id
+	 * @param staging whether this is the staging version of the database
+	 * @param tableName the table, or null for the whole database
+	 * @param fingerprint the current fingerprint of the schema
+	 * @return the TableList, or null if it isn't cached
+	 */
+	public synchronized TableList get(int databaseId, boolean staging, String tableName, String fingerprint){
+		Entry entry = entries.get(new Key(databaseId, staging));
+		TableList tableList = null;
+		if (entry != null){
+			if (System.currentTimeMillis() - entry.created > maxAge){
+				entries.remove(new Key(databaseId, staging));
+			} else {
+				Fingerprinted cached = tableName == null ? entry.database : entry.tables.get(tableName);
+				if (cached != null && cached.fingerprint.equals(fingerprint)){
+					tableList = cached.tableList;
+				}
+			}
+		}
+		if (tableList == null){
+			misses++;
+		} else {
+			hits++;
+		}
+		return tableList;
+	}
+
+	/**
+	 * Cache a TableList, unless the database has been invalidated since the
+	 * given version was taken
+	 * @param databaseId the physical database id
+	 * @param staging whether this is the staging version of the database
+	 * @param tableName the table, or null for the whole database
+	 * @param tableList the TableList
+	 * @param fingerprint the fingerprint of the schema the TableList was built from
+	 * @param version the version taken before the TableList was built
+	 */
+	public synchronized void put(int databaseId, boolean staging, String tableName, TableList tableList, String fingerprint, long version){
+		Key key = new Key(databaseId, staging);
+		Long invalidated = invalidations.get(key);
+		if ((invalidated == null ? invalidationFloor : invalidated) > version){
+			return;
+		}
+		Entry entry = entries.get(key);
+		if (entry == null){
+			entry = new Entry();
+			entries.put(key, entry);
+		}
+		Fingerprinted cached = new Fingerprinted(tableList, fingerprint);
+		if (tableName == null){
+			entry.database = cached;
+		} else {
+			entry.tables.put(tableName, cached);
+		}
+	}
+
+	/**
+	 * Remove the cached structure of a database
+	 * @param databaseId the physical database id
+	 * @param staging whether this is the staging version of the database
+	 */
+	public synchronized void invalidate(int databaseId, boolean staging){
+		Key key = new Key(databaseId, staging);
+		entries.remove(key);
+		invalidations.put(key, ++sequence);
+	}
+
+	/**
+	 * Remove the cached structure of both the main and staging versions of
+	 * a database
+	 * @param databaseId the physical database id
+	 */
+	public void invalidate(int databaseId){
+		invalidate(databaseId, false);
+		invalidate(databaseId, true);
+	}
+
+	public synchronized void clear(){
+		entries.clear();
+		invalidationFloor = ++sequence;
+		invalidations.clear();
+	}
+
+	public synchronized long getHitCount(){
+		return hits;
+	}
+
+	public synchronized long getMissCount(){
+		return misses;
+	}
+
+	public synchronized long getEvictionCount(){
+		return evictions;
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	private static class Entry {
+		final long created = System.currentTimeMillis();
+		Fingerprinted database;
+		final Map<String, Fingerprinted> tables = new HashMap<String, Fingerprinted>();
+	}
+
+	private static class Fingerprinted {
+		final TableList tableList;
+		final String fingerprint;
+
+		Fingerprinted(TableList tableList, String fingerprint){
+			this.tableList = tableList;
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	private static class Key {
+		final int databaseId;
+		final boolean staging;
+
+		Key(int databaseId, boolean staging){
+			this.databaseId = databaseId;
+			this.staging = staging;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)){
+				return false;
+			}
+			Key other = (Key) obj;
+			return databaseId == other.databaseId && staging == other.staging;
+		}
+
+		@Override
+		public int hashCode() {
+			return databaseId * 2 + (staging ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the public schema of a database one table at a time, so that very
+ * large schemas can be written out without holding the whole structure in
+ * memory.
+ * 
+ * Each catalog is read through its own forward-only cursor, ordered by table
+ * name, in a single read-only transaction; next() advances all of the cursors
+ * to the next table. The only thing read up front is the columns of tables
+ * referenced by foreign keys, as each relation includes the columns of the
+ * table it references.
+ */
+public class CatalogCursor {
+
+	public static final String FETCH_SIZE_PROPERTY = "ords.database.structure.stream.fetchSize";
+
+	private final Connection connection;
+	private final List<Statement> statements = new ArrayList<Statement>();
+	private final int fetchSize;
+	private final int tableCount;
+	private final Map<String, List<CatalogSnapshot.ColumnInfo>> referencedColumns = new HashMap<String, List<CatalogSnapshot.ColumnInfo>>();
+
+	private final Rows tables;
+	private final Rows columns;
+	private final Rows foreignKeys;
+	private final Rows indexes;
+
+	/**
+	 * @param connection the connection to read from, which is closed when the cursor is
+	 * @param fetchSize the number of rows to fetch from each cursor at a time
+	 * @throws SQLException if there is a problem reading the catalog
+	 */
+	CatalogCursor(Connection connection, int fetchSize) throws SQLException {
+		this.connection = connection;
+		this.fetchSize = fetchSize;
+
+		//
+		// Cursors only work within a transaction, and using a snapshot for the
+		// whole transaction means the cursors all see the same schema
+		//
+		connection.setAutoCommit(false);
+		Statement statement = connection.createStatement();
+		statements.add(statement);
+		statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+
+		ResultSet results = query("SELECT count(*) FROM information_schema.tables t WHERE t.table_schema = 'public'");
+		results.next();
+		tableCount = results.getInt(1);
+		results.close();
+
+		results = query(CatalogSnapshot.COLUMNS_QUERY
+				+ "AND c.table_name IN (SELECT ccu.table_name "
+				+ "FROM information_schema.table_constraints tc "
+				+ "JOIN information_schema.constraint_column_usage ccu "
+				+ "ON ccu.constraint_name = tc.constraint_name AND ccu.constraint_schema = tc.constraint_schema "
+				+ "WHERE constraint_type = 'FOREIGN KEY' AND tc.table_schema = 'public') "
+				+ CatalogSnapshot.COLUMNS_ORDER);
+		while (results.next()) {
+			String tableName = results.getString("table_name");
+			List<CatalogSnapshot.ColumnInfo> tableColumns = referencedColumns.get(tableName);
+			if (tableColumns == null) {
+				tableColumns = new ArrayList<CatalogSnapshot.ColumnInfo>();
+				referencedColumns.put(tableName, tableColumns);
+			}
+			tableColumns.add(CatalogSnapshot.readColumn(results));
+		}
+		results.close();
+
+		tables = new Rows(query(CatalogSnapshot.TABLES_QUERY + CatalogSnapshot.TABLES_ORDER));
+		columns = new Rows(query(CatalogSnapshot.COLUMNS_QUERY + CatalogSnapshot.COLUMNS_ORDER));
+		foreignKeys = new Rows(query(CatalogSnapshot.FOREIGN_KEYS_QUERY + CatalogSnapshot.FOREIGN_KEYS_ORDER));
+		indexes = new Rows(query(CatalogSnapshot.INDEXES_QUERY + CatalogSnapshot.INDEXES_ORDER));
+	}
+
+	/**
+	 * @return the number of tables in the schema
+	 */
+	public int getTableCount() {
+		return tableCount;
+	}
+
+	/**
+	 * Reads the next table
+	 * @return a snapshot containing the next table, and the columns of any
+	 * tables it references, or null if there are no more tables
+	 * @throws SQLException if there is a problem reading the catalog
+	 */
+	public CatalogSnapshot next() throws SQLException {
+		if (!tables.hasRow) {
+			return null;
+		}
+		String tableName = tables.tableName;
+		CatalogSnapshot snapshot = new CatalogSnapshot();
+		snapshot.addTable(tableName, tables.results.getString("comment"));
+		tables.advance();
+
+		for (columns.skipTo(tableName); columns.at(tableName); columns.advance()) {
+			snapshot.addColumn(tableName, CatalogSnapshot.readColumn(columns.results));
+		}
+		for (foreignKeys.skipTo(tableName); foreignKeys.at(tableName); foreignKeys.advance()) {
+			CatalogSnapshot.ForeignKeyInfo foreignKey = CatalogSnapshot.readForeignKey(foreignKeys.results);
+			snapshot.addForeignKey(tableName, foreignKey);
+			String foreignTableName = foreignKey.foreignTableName;
+			if (snapshot.getColumns(foreignTableName).isEmpty() && referencedColumns.containsKey(foreignTableName)) {
+				for (CatalogSnapshot.ColumnInfo column : referencedColumns.get(foreignTableName)) {
+					snapshot.addColumn(foreignTableName, column);
+				}
+			}
+		}
+		for (indexes.skipTo(tableName); indexes.at(tableName); indexes.advance()) {
+			snapshot.addIndex(tableName, CatalogSnapshot.readIndex(indexes.results));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Closes the cursors and ends the transaction, and closes the connection
+	 * @throws SQLException if there is a problem closing the connection
+	 */
+	public void close() throws SQLException {
+		try {
+			for (Statement statement : statements) {
+				statement.close();
+			}
+			connection.rollback();
+		} finally {
+			connection.close();
+		}
+	}
+
+	private ResultSet query(String query) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(query, 
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		statements.add(statement);
+		statement.setFetchSize(fetchSize);
+		return statement.executeQuery();
+	}
+
+	/**
+	 * Compares names in the same way as the "C" collation, that is by code point
+	 * @param a a name
+	 * @param b another name
+	 * @return a negative number, zero, or a positive number
+	 */
+	static int compare(String a, String b) {
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()) {
+			int x = a.codePointAt(i);
+			int y = b.codePointAt(j);
+			if (x != y) {
+				return x < y ? -1 : 1;
+			}
+			i += Character.charCount(x);
+			j += Character.charCount(y);
+		}
+		return (a.length() - i) - (b.length() - j);
+	}
+
+	/**
+	 * A result set, positioned on its current row
+	 */
+	private static class Rows {
+		final ResultSet results;
+		boolean hasRow;
+		String tableName;
+
+		Rows(ResultSet results) throws SQLException {
+			this.results = results;
+			advance();
+		}
+
+		void advance() throws SQLException {
+			hasRow = results.next();
+			tableName = hasRow ? results.getString("table_name") : null;
+		}
+
+		/**
+		 * Skips any rows for tables that come before the given table; these
+		 * are relations, such as materialized views, that aren't listed as tables
+		 */
+		void skipTo(String table) throws SQLException {
+			while (hasRow && compare(tableName, table) < 0) {
+				advance();
+			}
+		}
+
+		boolean at(String table) {
+			return hasRow && tableName.equals(table);
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+import uk.ac.ox.it.ords.api.database.structure.services.TableList;
+
+/**
+ * The tables, columns, comments, foreign keys and indexes of the public schema
+ * of a database, read in a fixed number of catalog queries rather than a set of
+ * queries for each table. See StructureServiceImpl.getCatalogSnapshot().
+ */
+public class CatalogSnapshot {
+
+	//
+	// The catalog queries, shared with CatalogCursor. Each selects the
+	// table name as table_name, and can be restricted by appending further
+	// conditions. Tables are ordered by the bytes of their names, as this
+	// is the only ordering that we can reproduce in Java.
+	//
+	static final String TABLES_QUERY = "SELECT t.table_name, "
+			+ "obj_description((quote_ident(t.table_schema) || '.' || quote_ident(t.table_name))::regclass::oid, 'pg_class') AS comment "
+			+ "FROM information_schema.tables t "
+			+ "WHERE t.table_schema = 'public' ";
+	static final String TABLES_ORDER = "ORDER BY t.table_name::text COLLATE \"C\"";
+
+	static final String FOREIGN_KEYS_QUERY = "SELECT "
+			+ "tc.constraint_name, tc.table_name, kcu.column_name, "
+			+ "ccu.table_name AS foreign_table_name, "
+			+ "ccu.column_name AS foreign_column_name "
+			+ "FROM information_schema.table_constraints tc "
+			+ "JOIN information_schema.key_column_usage kcu "
+			+ "ON tc.constraint_name = kcu.constraint_name AND tc.constraint_schema = kcu.constraint_schema "
+			+ "JOIN information_schema.constraint_column_usage ccu "
+			+ "ON ccu.constraint_name = tc.constraint_name AND ccu.constraint_schema = tc.constraint_schema "
+			+ "WHERE constraint_type = 'FOREIGN KEY' AND tc.table_schema = 'public' ";
+	static final String FOREIGN_KEYS_ORDER = "ORDER BY tc.table_name::text COLLATE \"C\"";
+
+	//
+	// The ordinal position of a column is its attribute number, which is
+	// what col_description needs
+	//
+	static final String COLUMNS_QUERY = "SELECT c.table_name, c.column_name, c.data_type, c.character_maximum_length, "
+			+ "c.numeric_precision, c.numeric_scale, c.column_default, c.is_nullable, c.ordinal_position, "
+			+ "col_description((quote_ident(c.table_schema) || '.' || quote_ident(c.table_name))::regclass::oid, c.ordinal_position) AS comment "
+			+ "FROM information_schema.columns c "
+			+ "WHERE c.table_schema = 'public' ";
+	static final String COLUMNS_ORDER = "ORDER BY c.table_name::text COLLATE \"C\", c.ordinal_position";
+
+	static final String INDEXES_QUERY = "SELECT t.relname AS table_name, i.relname AS indexname, "
+			+ "ARRAY( "
+			+ "SELECT pg_get_indexdef(idx.indexrelid, k + 1, true) "
+			+ "FROM generate_subscripts(idx.indkey, 1) as k "
+			+ "ORDER BY k ) as colnames, "
+			+ "idx.indisunique as isunique, idx.indisprimary as isprimary "
+			+ "FROM pg_index as idx "
+			+ "JOIN pg_class as i ON i.oid = idx.indexrelid "
+			+ "JOIN pg_class as t ON t.oid = idx.indrelid "
+			+ "JOIN pg_namespace as n ON n.oid = t.relnamespace "
+			+ "WHERE n.nspname = 'public' ";
+	static final String INDEXES_ORDER = "ORDER BY t.relname::text COLLATE \"C\"";
+
+	/**
+	 * Table names, in catalog order, mapped to their comments
+	 */
+	private final Map<String, String> tables = new LinkedHashMap<String, String>();
+	private final Map<String, List<ColumnInfo>> columns = new HashMap<String, List<ColumnInfo>>();
+	private final Map<String, List<ForeignKeyInfo>> foreignKeys = new HashMap<String, List<ForeignKeyInfo>>();
+	private final Map<String, List<IndexInfo>> indexes = new HashMap<String, List<IndexInfo>>();
+	private final Map<String, TableList.NamedList<Map<String, String>>> referencedColumnTypes = new HashMap<String, TableList.NamedList<Map<String, String>>>();
+
+	public static class ColumnInfo {
+		String name;
+		String dataType;
+		String characterMaximumLength;
+		String numericPrecision;
+		String numericScale;
+		String defaultValue;
+		boolean nullable;
+		int position;
+		String comment;
+
+		public String getName() {
+			return name;
+		}
+		public String getDataType() {
+			return dataType;
+		}
+		public String getDefaultValue() {
+			return defaultValue;
+		}
+		public boolean isNullable() {
+			return nullable;
+		}
+		public int getPosition() {
+			return position;
+		}
+		public String getComment() {
+			return comment;
+		}
+
+		/**
+		 * @return the field size formatted appropriately for the data type
+		 */
+		public String getFieldSize() {
+			if (dataType.compareToIgnoreCase("numeric") == 0) {
+				return String.format("%s,%s", numericPrecision, numericScale);
+			}
+			return characterMaximumLength;
+		}
+
+		/**
+		 * @return the data type in Schema Designer-speak
+		 */
+		public String getDesignerDataType() {
+			return SqlDesignerTranslations.translateDatatype(dataType.toUpperCase(), getFieldSize());
+		}
+	}
+
+	public static class ForeignKeyInfo {
+		String constraintName;
+		String columnName;
+		String foreignTableName;
+		String foreignColumnName;
+
+		public String getConstraintName() {
+			return constraintName;
+		}
+		public String getColumnName() {
+			return columnName;
+		}
+		public String getForeignTableName() {
+			return foreignTableName;
+		}
+		public String getForeignColumnName() {
+			return foreignColumnName;
+		}
+	}
+
+	public static class IndexInfo {
+		String name;
+		String type;
+		List<String> columns;
+
+		public String getName() {
+			return name;
+		}
+		public String getType() {
+			return type;
+		}
+		public List<String> getColumns() {
+			return columns;
+		}
+	}
+
+	static ColumnInfo readColumn(ResultSet results) throws SQLException {
+		ColumnInfo column = new ColumnInfo();
+		column.name = results.getString("column_name");
+		column.dataType = results.getString("data_type");
+		column.characterMaximumLength = results.getString("character_maximum_length");
+		column.numericPrecision = results.getString("numeric_precision");
+		column.numericScale = results.getString("numeric_scale");
+		column.defaultValue = results.getString("column_default");
+		column.nullable = "YES".equalsIgnoreCase(results.getString("is_nullable"));
+		column.position = results.getInt("ordinal_position");
+		column.comment = results.getString("comment");
+		return column;
+	}
+
+	static ForeignKeyInfo readForeignKey(ResultSet results) throws SQLException {
+		ForeignKeyInfo foreignKey = new ForeignKeyInfo();
+		foreignKey.constraintName = results.getString("constraint_name");
+		foreignKey.columnName = results.getString("column_name");
+		foreignKey.foreignTableName = results.getString("foreign_table_name");
+		foreignKey.foreignColumnName = results.getString("foreign_column_name");
+		return foreignKey;
+	}
+
+	static IndexInfo readIndex(ResultSet results) throws SQLException {
+		IndexInfo index = new IndexInfo();
+		index.name = results.getString("indexname");
+		index.columns = new ArrayList<String>();
+		Array sqlArray = results.getArray("colnames");
+		Object[] cols = (Object[]) sqlArray.getArray();
+		for (Object column : cols) {
+			//
+			// PG may store the index columns as quoted identifiers, in which case we need
+			// to unquote them to return via the API
+			//
+			index.columns.add(StringUtils.removeEnd(StringUtils.removeStart(column.toString(), "\""), "\""));
+		}
+		if (results.getBoolean("isprimary")) {
+			index.type = "PRIMARY";
+		} else if (results.getBoolean("isunique")) {
+			index.type = "UNIQUE";
+		} else {
+			index.type = "INDEX";
+		}
+		return index;
+	}
+
+	void addTable(String tableName, String comment){
+		tables.put(tableName, comment);
+	}
+
+	void addColumn(String tableName, ColumnInfo column){
+		getList(columns, tableName).add(column);
+	}
+
+	void addForeignKey(String tableName, ForeignKeyInfo foreignKey){
+		getList(foreignKeys, tableName).add(foreignKey);
+	}
+
+	void addIndex(String tableName, IndexInfo index){
+		getList(indexes, tableName).add(index);
+	}
+
+	/**
+	 * @return the names of the tables in the snapshot, in catalog order
+	 */
+	public List<String> getTableNames(){
+		return new ArrayList<String>(tables.keySet());
+	}
+
+	public boolean hasTable(String tableName){
+		return tables.containsKey(tableName);
+	}
+
+	public String getTableComment(String tableName){
+		return tables.get(tableName);
+	}
+
+	public List<ColumnInfo> getColumns(String tableName){
+		return readOnly(columns.get(tableName));
+	}
+
+	public List<ForeignKeyInfo> getForeignKeys(String tableName){
+		return readOnly(foreignKeys.get(tableName));
+	}
+
+	public List<IndexInfo> getIndexes(String tableName){
+		return readOnly(indexes.get(tableName));
+	}
+
+	/**
+	 * Adds a table, its columns, relations and indexes to a TableList
+	 * @param tableName the table
+	 * @param response the TableList to add to
+	 * @return the TableList
+	 */
+	public TableList addTableMetadata(String tableName, TableList response){
+		response.addTable(tableName, getTableComment(tableName));
+
+		for (ColumnInfo column : getColumns(tableName)) {
+			String defaultValue = column.defaultValue;
+			boolean autoIncrement = false;
+			// Parse the default value to an interface-friendly
+			// format, and identify if the field is auto-incremented
+			if (defaultValue != null) {
+				if (defaultValue.equals("''::text")) { // CSV
+					defaultValue = "";
+				} else if (defaultValue
+						.matches("nextval\\('[A-Za-z0-9_\"]+'::regclass\\)")) {
+					defaultValue = "";
+					autoIncrement = true;
+				} else if (defaultValue.startsWith("NULL::")) {
+					defaultValue = null;
+				}
+			}
+			response.addColumn(tableName, column.name, column.position, defaultValue,
+					column.nullable, column.getDesignerDataType(), autoIncrement, column.comment);
+		}
+
+		// Use each foreign key to add table relationships to the
+		// response, including a subset of column information for the
+		// related table
+		for (ForeignKeyInfo foreignKey : getForeignKeys(tableName)) {
+			response.addRelation(tableName,
+					foreignKey.constraintName,
+					foreignKey.columnName,
+					foreignKey.foreignTableName,
+					foreignKey.foreignColumnName,
+					getColumnTypes(foreignKey.foreignTableName));
+		}
+
+		for (IndexInfo index : getIndexes(tableName)) {
+			response.addIndex(tableName, index.name, index.type, index.columns);
+		}
+		return response;
+	}
+
+	/**
+	 * Gets the datatypes of the columns of a table, as included in each
+	 * relation that references it. Every relation to the same table shares
+	 * the same map, as they are read-only.
+	 */
+	private Map<String, Map<String, String>> getColumnTypes(String tableName){
+		TableList.NamedList<Map<String, String>> columnTypes = referencedColumnTypes.get(tableName);
+		if (columnTypes == null){
+			columnTypes = new TableList.NamedList<Map<String, String>>();
+			for (ColumnInfo column : getColumns(tableName)) {
+				columnTypes.put(column.name, Collections.singletonMap("datatype", column.getDesignerDataType().intern()));
+			}
+			referencedColumnTypes.put(tableName, columnTypes);
+		}
+		return columnTypes;
+	}
+
+	private static <T> List<T> getList(Map<String, List<T>> map, String tableName){
+		List<T> list = map.get(tableName);
+		if (list == null){
+			list = new ArrayList<T>();
+			map.put(tableName, list);
+		}
+		return list;
+	}
+
+	private static <T> List<T> readOnly(List<T> list){
+		if (list == null){
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(list);
+	}
+}
@@ -16,11 +16,12 @@
 
 package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
 
-import javax.sql.rowset.CachedRowSet;
 import javax.ws.rs.NotFoundException;
 
 import org.apache.commons.lang.StringUtils;
@@ -71,18 +72,22 @@ public class ColumnStructureServiceImpl extends StructureServiceImpl
 							StringUtils.join(fields.iterator(), ",")
 							);
 			
-			CachedRowSet results = this.runJDBCQuery(command, createParameterList(tableName, columnName), server, databaseName);
+			ColumnRequest column = this.queryForObject(command, createParameterList(tableName, columnName), server, databaseName, 
+					new RowMapper<ColumnRequest>() {
+				@Override
+				public ColumnRequest mapRow(ResultSet results) throws SQLException {
+					ColumnRequest column = new ColumnRequest();
+					column.setNewname(results.getString("column_name"));
+					column.setDatatype(results.getString("data_type"));
+					column.setDefaultvalue(results.getString("column_default"));
+					column.setNullable(results.getString("is_nullable").equals("YES"));
+					return column;
+				}
+			});
 			
-			if (!results.next()){
+			if (column == null){
 				return null;
 			}
-
-			ColumnRequest column = new ColumnRequest();
-
-			column.setNewname(results.getString("column_name"));
-			column.setDatatype(results.getString("data_type"));
-			column.setDefaultvalue(results.getString("column_default"));
-			column.setNullable(results.getString("is_nullable").equals("YES"));
 						
 			boolean autoIncrement = false;
 			// Parse the default value to an interface-friendly
@@ -197,7 +202,11 @@ public class ColumnStructureServiceImpl extends StructureServiceImpl
                     quote_ident(tableName),
                     quote_ident(columnName)));
 		}
-		this.runSQLStatements(statements, server, databaseName);
+		try {
+			this.runStructureStatements(statements, server, databaseName, staging);
+		} finally {
+			this.invalidateTableList(database, staging);
+		}
 	}
 
 	public void updateColumn(OrdsPhysicalDatabase database, String tableName,
@@ -220,7 +229,6 @@ public class ColumnStructureServiceImpl extends StructureServiceImpl
 		String defaultValue = request.getDefaultvalue();
 		Boolean autoinc = request.isAutoincrement();
 		String sequenceName = "";
-		String query;
 		String message = "";
 
 		// Check that some new metadata has been specified
@@ -247,11 +255,16 @@ public class ColumnStructureServiceImpl extends StructureServiceImpl
 								+ " FROM INFORMATION_SCHEMA.COLUMNS WHERE table_name = ?"
 								+ " AND column_name = ?";
 				List<Object> parameters = this.createParameterList(tableName, columnName, tableName, columnName);
-				CachedRowSet results = this.runJDBCQuery(command, parameters, server, databaseName);
+				String[] current = this.queryForObject(command, parameters, server, databaseName, new RowMapper<String[]>() {
+					@Override
+					public String[] mapRow(ResultSet results) throws SQLException {
+						return new String[]{results.getString("data_type"), results.getString("sequence")};
+					}
+				});
 				String currentDatatype = "";
-				while (results.next()) {
-					currentDatatype = results.getString("data_type");
-					sequenceName = results.getString("sequence");
+				if (current != null) {
+					currentDatatype = current[0];
+					sequenceName = current[1];
 				}
 				if (sequenceName != null && !sequenceName.isEmpty()) {
 					message = String
@@ -280,13 +293,13 @@ public class ColumnStructureServiceImpl extends StructureServiceImpl
 				// an existing sequence to remove.
 				String command = "SELECT pg_get_serial_sequence(?, ?) AS sequence";
 				List<Object> parameters = this.createParameterList(tableName, columnName);
-				CachedRowSet results = this.runJDBCQuery(command, parameters, server, databaseName);
-				if ( !results.first() ) {
+				List<String> results = this.queryForList(command, parameters, server, databaseName, RowMapper.STRING);
+				if ( results.isEmpty() ) {
 					log.error("Attempt to remove autoincrement where non is set");
 					throw new BadParameterException(
 							"Auto-increment is not set so cannot be removed");
 				} else {
-					sequenceName = results.getString("sequence");
+					sequenceName = results.get(0);
 				}
 				
 			}
@@ -305,8 +318,10 @@ public class ColumnStructureServiceImpl extends StructureServiceImpl
 							newName, tableName);
 			throw new BadParameterException(message);
 		}
-		// Validation all done, now perform the specified operations
-		// If we're changing the nullability, create an execute the
+		// Validation all done, now build the statements for the specified
+		// operations; these are all run together in one transaction
+		ArrayList<String> statements = new ArrayList<String>();
+		// If we're changing the nullability, create the
 		// approprate ALTER TABLE query
 		if (nullable != null) {
 			String operation;
@@ -319,13 +334,11 @@ public class ColumnStructureServiceImpl extends StructureServiceImpl
 				message += String.format("Field %s now nullable", columnName)
 						+ "\n";
 			}
-			query = String.format("ALTER TABLE %s ALTER %s %s NOT NULL;", 
+			statements.add(String.format("ALTER TABLE %s ALTER %s %s NOT NULL", 
                     quote_ident(tableName), 
                     quote_ident(columnName), 
-                    operation);
-			this.runJDBCQuery(query, null, server, databaseName);
+                    operation));
 		}
-		ArrayList<String> statements = new ArrayList<String>();
 		if (datatype != null && !datatype.isEmpty()) {
 			// If the data type is being altered get the existing data type
 			String convertedCol = quote_ident(columnName);
@@ -333,10 +346,9 @@ public class ColumnStructureServiceImpl extends StructureServiceImpl
 					+ " FROM INFORMATION_SCHEMA.COLUMNS WHERE table_name = ?"
 					+ " AND column_name = ?";
 			List<Object> parameters = this.createParameterList(tableName, columnName);
-			CachedRowSet results = this.runJDBCQuery(command, parameters, server, databaseName);
-			String fromDataType = "";
-			while ( results.next()) {
-				fromDataType = results.getString("data_type");
+			String fromDataType = this.queryForObject(command, parameters, server, databaseName, RowMapper.STRING);
+			if (fromDataType == null) {
+				fromDataType = "";
 			}
 			if (fromDataType.equals("integer") || fromDataType.equals("bigint")) {
 				if (datatype.toLowerCase().contains("date")
@@ -428,7 +440,11 @@ public class ColumnStructureServiceImpl extends StructureServiceImpl
 		}
 
 		// run em in 1 go
-		this.runSQLStatements(statements, server, databaseName);
+		try {
+			this.runStructureStatements(statements, server, databaseName, staging);
+		} finally {
+			this.invalidateTableList(database, staging);
+		}
 	}
 
 	public void deleteColumn(OrdsPhysicalDatabase database, String tableName,
@@ -445,7 +461,8 @@ public class ColumnStructureServiceImpl extends StructureServiceImpl
 					columnName));
 		}
 		String query = String.format("ALTER TABLE %s DROP %s;", quote_ident(tableName), quote_ident(columnName));
-		this.runJDBCQuery(query, null, server, databaseName);
+		this.runStructureStatement(query, server, databaseName, staging);
+		this.invalidateTableList(database, staging);
 	}
 
 	private String generateSequenceName(String tableName, String columnName) {
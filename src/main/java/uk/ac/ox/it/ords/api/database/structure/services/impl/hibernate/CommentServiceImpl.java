@@ -52,7 +52,8 @@ public class CommentServiceImpl extends StructureServiceImpl
 		}
 		String statement = "COMMENT ON TABLE %s IS %s";
 		statement = String.format(statement, quote_ident(tableName), quote_literal(comment));
-		this.runJDBCQuery(statement, null, server, databaseName);
+		this.runStructureStatement(statement, server, databaseName, staging);
+		this.invalidateTableList(database, staging);
 	}
 
 	@Override
@@ -83,11 +84,8 @@ public class CommentServiceImpl extends StructureServiceImpl
 		String statement = "COMMENT ON COLUMN %s IS %s";
 		String identifier = quote_ident(tableName)+"."+quote_ident(columnName);
 		statement = String.format(statement, identifier, quote_literal(comment));
-		this.runJDBCQuery(statement,
-				null,
-				server,
-				databaseName);
-	
+		this.runStructureStatement(statement, server, databaseName, staging);
+		this.invalidateTableList(database, staging);
 	}
 
 }
@@ -19,7 +19,6 @@ package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.sql.rowset.CachedRowSet;
 import javax.ws.rs.NotFoundException;
 
 import org.apache.commons.lang.StringUtils;
@@ -115,15 +114,13 @@ public class ConstraintServiceImpl extends StructureServiceImpl
 		// create a unique name for the constraint
 		String conIdQuery = "SELECT nextval('ords_constraint_seq'::regclass) AS id";
 		String uniqueConstraintName = "";
-		CachedRowSet result = this.runJDBCQuery(conIdQuery, null, server,
-				databaseName);
+		Integer conId = this.queryForObject(conIdQuery, null, server,
+				databaseName, RowMapper.INTEGER);
 
 		// Object result = this.singleResultQuery(conIdQuery, databaseName,
 		// userName, password);
-		if (result != null && result.size() > 0) {
+		if (conId != null) {
 			// Actually generate a name for the constraint
-			result.first();
-			int conId = result.getInt("id");
 			uniqueConstraintName = String.format(constraintName + "_%d", conId);
 		} else {
 			uniqueConstraintName = constraintName;
@@ -203,7 +200,8 @@ public class ConstraintServiceImpl extends StructureServiceImpl
 		}
 
 		// Create the constraint
-		this.runJDBCQuery(query, null, server, databaseName);
+		this.runStructureStatement(query, server, databaseName, staging);
+		this.invalidateTableList(database, staging);
 	}
 
 	
@@ -223,7 +221,8 @@ public class ConstraintServiceImpl extends StructureServiceImpl
 				quote_ident(constraintName),
 				quote_ident(newName)
 				);
-		this.runJDBCQuery(query, null, server, databaseName);
+		this.runStructureStatement(query, server, databaseName, staging);
+		this.invalidateTableList(database, staging);
 	}
 
 	
@@ -244,7 +243,8 @@ public class ConstraintServiceImpl extends StructureServiceImpl
 				quote_ident(tableName),
 				quote_ident(constraintName)
 		);
-		this.runJDBCQuery(query, null, server, databaseName);
+		this.runStructureStatement(query, server, databaseName, staging);
+		this.invalidateTableList(database, staging);
 	}
 	
 	
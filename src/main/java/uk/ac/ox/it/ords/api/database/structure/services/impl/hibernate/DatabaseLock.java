@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ox.it.ords.api.database.structure.exceptions.LockTimeoutException;
+
+/**
+ * A lock on a physical database, held while it is cloned, merged or dropped
+ * so that only one of these can happen to a database at a time, whichever
+ * node of the API it is requested on.
+ * 
+ * This is a PostgreSQL transaction-level advisory lock, taken in the master
+ * database of the ORDS server that all nodes share. The lock is held by a
+ * transaction on a connection of its own, so it is released if the
+ * connection is lost. The connection doesn't come from the pool, as it is
+ * held for as long as the lock is held or waited for, and every database
+ * shares the same master database connections.
+ * 
+ * Locks are re-entrant within a thread, as for example creating a staging
+ * database drops the old one.
+ */
+public class DatabaseLock {
+	
+	private static Logger log = LoggerFactory.getLogger(DatabaseLock.class);
+	
+	/**
+	 * The first part of the key, so that our locks don't clash with anyone
+	 * else's advisory locks on the same database; it's "ORDS" in ASCII
+	 */
+	static final int NAMESPACE = 0x4F524453;
+	
+	/**
+	 * The SQL state of a statement cancelled by statement_timeout
+	 */
+	private static final String QUERY_CANCELED = "57014";
+	
+	private static final ThreadLocal<Map<Integer, DatabaseLock>> HELD = new ThreadLocal<Map<Integer, DatabaseLock>>(){
+		@Override
+		protected Map<Integer, DatabaseLock> initialValue() {
+			return new HashMap<Integer, DatabaseLock>();
+		}
+	};
+	
+	//
+	// Metrics
+	//
+	private static long acquiredCount;
+	private static long contendedCount;
+	private static long timeoutCount;
+	private static long totalWaitTime;
+	private static long maxWaitTime;
+	
+	private final int databaseId;
+	private final Connection connection;
+	private int holds = 1;
+	
+	private DatabaseLock(int databaseId, Connection connection){
+		this.databaseId = databaseId;
+		this.connection = connection;
+	}
+	
+	/**
+	 * Gets the lock on a database, waiting for it if it is held elsewhere
+	 * 
+	 * @param databaseId the physical database id
+	 * @param connection a connection to the shared database, which is
+	 * closed when the lock is released, or straight away if this thread
+	 * already holds the lock or we can't get it
+	 * @param timeout how long to wait for the lock in ms; 0 waits
+	 * indefinitely, and a negative value doesn't wait at all
+	 * @return the lock
+	 * @throws LockTimeoutException if the lock wasn't released in time
+	 * @throws SQLException if the lock couldn't be taken
+	 */
+	static DatabaseLock acquire(int databaseId, Connection connection, long timeout) throws LockTimeoutException, SQLException {
+		DatabaseLock held = HELD.get().get(databaseId);
+		if (held != null){
+			connection.close();
+			held.holds++;
+			return held;
+		}
+		boolean locked = false;
+		try {
+			connection.setAutoCommit(false);
+			if (!tryLock(connection, databaseId)){
+				if (timeout < 0){
+					recordTimeout(databaseId, 0);
+					throw new LockTimeoutException("Database " + databaseId + " is in use");
+				}
+				wait(connection, databaseId, timeout);
+			} else {
+				recordAcquired(0, false);
+			}
+			locked = true;
+		} finally {
+			if (!locked){
+				connection.close();
+			}
+		}
+		DatabaseLock lock = new DatabaseLock(databaseId, connection);
+		HELD.get().put(databaseId, lock);
+		return lock;
+	}
+	
+	/**
+	 * Releases the lock, unless it has been acquired again by this thread
+	 * and not yet released
+	 */
+	public void release(){
+		if (--holds > 0){
+			return;
+		}
+		HELD.get().remove(databaseId);
+		try {
+			//
+			// Ending the transaction releases the lock
+			//
+			connection.rollback();
+		} catch (SQLException e) {
+			log.warn("Error releasing lock on database " + databaseId, e);
+		} finally {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				log.warn("Error closing connection for lock on database " + databaseId, e);
+			}
+		}
+	}
+	
+	private static boolean tryLock(Connection connection, int databaseId) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet results = statement.executeQuery(
+					String.format("SELECT pg_try_advisory_xact_lock(%d, %d)", NAMESPACE, databaseId));
+			return results.next() && results.getBoolean(1);
+		} finally {
+			statement.close();
+		}
+	}
+	
+	private static void wait(Connection connection, int databaseId, long timeout) throws LockTimeoutException, SQLException {
+		log.info("Waiting for lock on database " + databaseId);
+		long start = System.currentTimeMillis();
+		Statement statement = connection.createStatement();
+		try {
+			//
+			// lock_timeout would be more precise, but needs 9.3; the lock
+			// is all this statement does, so this amounts to the same thing
+			//
+			statement.execute("SET LOCAL statement_timeout = " + timeout);
+			statement.executeQuery(String.format("SELECT pg_advisory_xact_lock(%d, %d)", NAMESPACE, databaseId)).close();
+			statement.execute("SET LOCAL statement_timeout = DEFAULT");
+		} catch (SQLException e) {
+			if (QUERY_CANCELED.equals(e.getSQLState())){
+				recordTimeout(databaseId, System.currentTimeMillis() - start);
+				throw new LockTimeoutException("Timed out waiting for database " + databaseId + "; another change to it is in progress");
+			}
+			throw e;
+		} finally {
+			statement.close();
+		}
+		recordAcquired(System.currentTimeMillis() - start, true);
+	}
+	
+	private static synchronized void recordAcquired(long waitTime, boolean contended){
+		acquiredCount++;
+		if (contended){
+			contendedCount++;
+			totalWaitTime += waitTime;
+			maxWaitTime = Math.max(maxWaitTime, waitTime);
+		}
+	}
+	
+	private static synchronized void recordTimeout(int databaseId, long waitTime){
+		log.warn("Timed out after " + waitTime + "ms waiting for lock on database " + databaseId);
+		contendedCount++;
+		timeoutCount++;
+		totalWaitTime += waitTime;
+		maxWaitTime = Math.max(maxWaitTime, waitTime);
+	}
+	
+	/**
+	 * @return the number of locks acquired
+	 */
+	public static synchronized long getAcquiredCount(){
+		return acquiredCount;
+	}
+	
+	/**
+	 * @return the number of times a lock was already held elsewhere, whether
+	 * or not we then got it
+	 */
+	public static synchronized long getContendedCount(){
+		return contendedCount;
+	}
+	
+	/**
+	 * @return the number of times we gave up waiting for a lock
+	 */
+	public static synchronized long getTimeoutCount(){
+		return timeoutCount;
+	}
+	
+	/**
+	 * @return the total time spent waiting for locks, in ms
+	 */
+	public static synchronized long getTotalWaitTime(){
+		return totalWaitTime;
+	}
+	
+	/**
+	 * @return the longest time spent waiting for a lock, in ms
+	 */
+	public static synchronized long getMaxWaitTime(){
+		return maxWaitTime;
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+/**
+ * Reads the statistics kept by DatabaseLock, which are counted from when the
+ * application started
+ */
+public class DatabaseLockStatistics implements DatabaseLockStatisticsMXBean {
+
+	@Override
+	public long getAcquiredCount() {
+		return DatabaseLock.getAcquiredCount();
+	}
+
+	@Override
+	public long getContendedCount() {
+		return DatabaseLock.getContendedCount();
+	}
+
+	@Override
+	public long getTimeoutCount() {
+		return DatabaseLock.getTimeoutCount();
+	}
+
+	@Override
+	public long getTotalWaitTime() {
+		return DatabaseLock.getTotalWaitTime();
+	}
+
+	@Override
+	public long getMaxWaitTime() {
+		return DatabaseLock.getMaxWaitTime();
+	}
+
+}
@@ -25,6 +25,7 @@ import org.slf4j.LoggerFactory;
 
 import uk.ac.ox.it.ords.api.database.structure.permissions.DatabaseStructurePermissionSets;
 import uk.ac.ox.it.ords.api.database.structure.services.DatabaseStructureRoleService;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.SubjectPermissions;
 import uk.ac.ox.it.ords.security.model.Permission;
 import uk.ac.ox.it.ords.security.model.UserRole;
 
@@ -47,6 +48,10 @@ public class DatabaseStructureRoleServiceImpl
 	public void createInitialPermissions(int logicalDatabaseId) throws Exception {
 		Session session = this.sessionFactory.openSession();
 		
+		//
+		// The owner role and the permissions for all the roles of the
+		// database are written in one transaction, and sent in batches
+		//
 		try {
 			session.beginTransaction();
 			
@@ -57,12 +62,19 @@ public class DatabaseStructureRoleServiceImpl
 			owner.setPrincipalName(SecurityUtils.getSubject().getPrincipal().toString());
 			owner.setRole(getPrivateUserRole("databaseowner", logicalDatabaseId));
 			session.save(owner);
-			session.getTransaction().commit();
 			
 			//
 			// Create the permissions for roles associated with the project
 			//
-			createPermissionsForDatabase(logicalDatabaseId);
+			createPermissionsForDatabase(session, logicalDatabaseId);
+			
+			session.getTransaction().commit();
+			
+			//
+			// The principal has a new role, so checks made earlier in this
+			// request may no longer hold
+			//
+			SubjectPermissions.clear();
 
 		} catch (HibernateException e) {
 			log.error("Error creating Project", e);
@@ -90,16 +102,16 @@ public class DatabaseStructureRoleServiceImpl
 	 *   contributor_{projectId}
 	 *   viewer_{projectId}
 	 *   
-	 * @param projectId
-	 * @throws Exception 
+	 * @param session the session to create the permissions in
+	 * @param logicalDatabaseId the database
 	 */
-	private void createPermissionsForDatabase(int logicalDatabaseId) throws Exception{
+	private void createPermissionsForDatabase(Session session, int logicalDatabaseId) {
 		//
 		// Owner
 		//
 		String ownerRole = "databaseowner_"+logicalDatabaseId;
 		for (String permission : DatabaseStructurePermissionSets.getPermissionsForOwner(logicalDatabaseId)){
-			createPermission(ownerRole, permission);			
+			createPermission(session, ownerRole, permission);			
 		}
 
 		//
@@ -107,7 +119,7 @@ public class DatabaseStructureRoleServiceImpl
 		//
 		String contributorRole = "databasecontributor_"+logicalDatabaseId;
 		for (String permission : DatabaseStructurePermissionSets.getPermissionsForContributor(logicalDatabaseId)){
-			createPermission(contributorRole, permission);			
+			createPermission(session, contributorRole, permission);			
 		}
 
 		//
@@ -115,34 +127,21 @@ public class DatabaseStructureRoleServiceImpl
 		//
 		String viewerRole = "databaseviewer_"+logicalDatabaseId;
 		for (String permission : DatabaseStructurePermissionSets.getPermissionsForViewer(logicalDatabaseId)){
-			createPermission(viewerRole, permission);			
+			createPermission(session, viewerRole, permission);			
 		}
 	}
 
 	/**
-	 * Creates a permission
+	 * Creates a permission as part of the session's transaction
+	 * @param session the session
 	 * @param role the role 
 	 * @param permissionString the permission
-	 * @throws Exception if there is a problem creating the permission
 	 */
-	protected void createPermission(String role, String permissionString) throws Exception{
-		Session session = this.sessionFactory.openSession();
-		try {
-			session.beginTransaction();
-			Permission permission = new Permission();
-			permission.setRole(role);
-			permission.setPermission(permissionString);
-			session.save(permission);
-			session.getTransaction().commit();
-		} catch (Exception e) {
-			log.error("Error creating permission", e);
-			session.getTransaction().rollback();
-			throw new Exception("Cannot create permission",e);
-		}
-		finally {
-			session.close();
-		}
-
+	protected void createPermission(Session session, String role, String permissionString) {
+		Permission permission = new Permission();
+		permission.setRole(role);
+		permission.setPermission(permissionString);
+		session.save(permission);
 	}
 
 }
@@ -17,92 +17,250 @@
 package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
-import javax.sql.rowset.CachedRowSet;
 import javax.ws.rs.NotFoundException;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.apache.commons.lang.StringUtils;
 import org.apache.shiro.SecurityUtils;
+import org.hibernate.Criteria;
 import org.hibernate.HibernateException;
-import org.hibernate.SQLQuery;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.ProjectionList;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.type.StringType;
 
+import uk.ac.ox.it.ords.api.database.structure.dto.DatabaseListRequest;
 import uk.ac.ox.it.ords.api.database.structure.dto.DatabaseRequest;
+import uk.ac.ox.it.ords.api.database.structure.exceptions.BadParameterException;
 import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
 import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase.EntityType;
 import uk.ac.ox.it.ords.api.database.structure.services.DatabaseStructureRoleService;
 import uk.ac.ox.it.ords.api.database.structure.services.DatabaseStructureService;
 import uk.ac.ox.it.ords.api.database.structure.services.TableList;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.PhysicalDatabaseCache;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.RequestDatabases;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.StructureConfiguration;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.TableListCache;
 import uk.ac.ox.it.ords.api.database.structure.model.SchemaDesignerTable;
-import uk.ac.ox.it.ords.api.database.structure.permissions.DatabaseStructurePermissionSets;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.SubjectPermissions;
 import uk.ac.ox.it.ords.security.model.Permission;
+import uk.ac.ox.it.ords.security.model.UserRole;
 import uk.ac.ox.it.ords.security.permissions.Permissions;
-import uk.ac.ox.it.ords.security.services.PermissionsService;
 
 public class DatabaseStructureServiceImpl extends StructureServiceImpl
 		implements
 			DatabaseStructureService {
 	
+	public static final String MERGE_MODE_PROPERTY = "ords.database.structure.merge.mode";
+	
+	/**
+	 * Merging a staging database replaces the original with it
+	 */
+	public static final String MERGE_MODE_SWAP = "swap";
+	
+	/**
+	 * Merging a staging database applies the differences in structure to
+	 * the original
+	 */
+	public static final String MERGE_MODE_DIFF = "diff";
+	
+	public static final String STAGING_MODE_PROPERTY = "ords.database.structure.staging.mode";
+	
+	/**
+	 * Staging databases are full copies of the original
+	 */
+	public static final String STAGING_MODE_COPY = "copy";
+	
+	/**
+	 * Staging databases have the structure of the original, but no data;
+	 * merging applies the changes to the original
+	 */
+	public static final String STAGING_MODE_SCHEMA = "schema";
+	
+	/**
+	 * As STAGING_MODE_SCHEMA, but the changes made to staging databases are
+	 * also recorded, so merging can replay them
+	 */
+	public static final String STAGING_MODE_JOURNAL = "journal";
+	
 	public void init() throws Exception {
-		PermissionsService service = PermissionsService.Factory.getInstance();
 		//
-		// Anyone with the "User" role can contribute to projects
+		// Only the first call in this JVM does anything
 		//
-		for (String permission : DatabaseStructurePermissionSets.getPermissionsForUser()){
-			Permission permissionObject = new Permission();
-			permissionObject.setRole("user");
-			permissionObject.setPermission(permission);
-			service.createPermission(permissionObject);
+		PermissionsBootstrap.run(this.getOrdsDBSessionFactory());
+	}
+	
+
+	@Override
+	public List<OrdsPhysicalDatabase> getDatabaseList() throws Exception {
+		return getDatabaseList(new DatabaseListRequest());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<OrdsPhysicalDatabase> getDatabaseList(DatabaseListRequest request) throws Exception {
+		return (List<OrdsPhysicalDatabase>) listDatabases(request, false);
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<Map<String, Object>> getDatabaseFields(DatabaseListRequest request) throws Exception {
+		if (request.getFields() == null){
+			throw new BadParameterException("No fields specified");
 		}
+		for (String field : request.getFields()){
+			if (!Arrays.asList(DatabaseListRequest.FIELDS).contains(field)){
+				throw new BadParameterException("Unknown field "+field);
+			}
+		}
+		return (List<Map<String, Object>>) listDatabases(request, true);
+	}
+	
+	/**
+	 * Runs the query for a page of the database list
+	 * @param request the page to return
+	 * @param project if true, only select the fields given in the request, and
+	 * return a map for each database rather than the entity
+	 * @return the databases
+	 * @throws Exception if there is a problem obtaining the databases
+	 */
+	private List<?> listDatabases(DatabaseListRequest request, boolean project) throws Exception {
 		
-		//
-		// Anyone with the "LocalUser" role can create new trial projects
-		//
-		for (String permission : DatabaseStructurePermissionSets.getPermissionsForLocalUser()){
-			Permission permissionObject = new Permission();
-			permissionObject.setRole("localuser");
-			permissionObject.setPermission(permission);
-			service.createPermission(permissionObject);
+		if (!Arrays.asList(DatabaseListRequest.SORT_PROPERTIES).contains(request.getSort())){
+			throw new BadParameterException("Databases can't be sorted by "+request.getSort());
+		}
+		if (request.getOffset() < 0 || request.getLimit() < 0){
+			throw new BadParameterException("Offset and limit can't be negative");
+		}
+		if (request.getAfter() != null && !request.getSort().equals("physicalDatabaseId")){
+			throw new BadParameterException("A cursor can only be used when sorting by physicalDatabaseId");
 		}
 		
 		//
-		// Anyone with the "Administrator" role can create new full
-		// projects and upgrade projects to full, and update any
-		// user projects
+		// Rather than loading every database and checking each in turn, work
+		// out which logical databases the subject can see from their roles, and
+		// only fetch those. Anyone who can view all databases gets them all.
 		//
-		for (String permission : DatabaseStructurePermissionSets.getPermissionsForSysadmin()){
-			Permission permissionObject = new Permission();
-			permissionObject.setRole("administrator");
-			permissionObject.setPermission(permission);
-			service.createPermission(permissionObject);
+		Set<Integer> visibleIds = null;
+		if (!SubjectPermissions.isPermitted(Permissions.DATABASE_VIEW_ALL)){
+			visibleIds = getVisibleLogicalDatabaseIds();
+			if (visibleIds.isEmpty()){
+				return new ArrayList<Object>();
+			}
 		}
-
-		//
-		// "Anonymous" can View public projects
-		//
-		for (String permission : DatabaseStructurePermissionSets.getPermissionsForAnonymous()){
-			Permission permissionObject = new Permission();
-			permissionObject.setRole("anonymous");
-			permissionObject.setPermission(permission);
-			service.createPermission(permissionObject);
+		
+		Session session = this.getOrdsDBSessionFactory().openSession();
+		try {
+			Transaction transaction = session.beginTransaction();
+			Criteria criteria = session.createCriteria(OrdsPhysicalDatabase.class);
+			if (visibleIds != null){
+				//
+				// The ids go in a single array parameter, as someone with a lot
+				// of databases would otherwise go over the limit of 32767
+				// parameters to a statement
+				//
+				criteria.add(Restrictions.sqlRestriction(
+						"{alias}.logicalDatabaseId = ANY(CAST(? AS integer[]))", 
+						"{" + StringUtils.join(visibleIds, ",") + "}", 
+						StringType.INSTANCE));
+			}
+			//
+			// Continuing from a cursor seeks on the primary key, so later pages
+			// cost no more than the first
+			//
+			if (request.getAfter() != null){
+				if (request.isAscending()){
+					criteria.add(Restrictions.gt("physicalDatabaseId", request.getAfter()));
+				} else {
+					criteria.add(Restrictions.lt("physicalDatabaseId", request.getAfter()));
+				}
+			}
+			criteria.addOrder(request.isAscending() ? Order.asc(request.getSort()) : Order.desc(request.getSort()));
+			//
+			// Keep the order stable between pages when sorting by something
+			// that isn't unique
+			//
+			if (!request.getSort().equals("physicalDatabaseId")){
+				criteria.addOrder(Order.asc("physicalDatabaseId"));
+			}
+			criteria.setFirstResult(request.getOffset());
+			if (request.getLimit() > 0){
+				criteria.setMaxResults(request.getLimit());
+			}
+			if (project){
+				ProjectionList projection = Projections.projectionList();
+				projection.add(Projections.property("physicalDatabaseId"), "physicalDatabaseId");
+				for (String field : new LinkedHashSet<String>(Arrays.asList(request.getFields()))){
+					if (!field.equals("physicalDatabaseId")){
+						projection.add(Projections.property(field), field);
+					}
+				}
+				criteria.setProjection(projection);
+				criteria.setResultTransformer(Criteria.ALIAS_TO_ENTITY_MAP);
+			}
+			List<?> databases = criteria.list();
+			transaction.commit();
+			return databases;
+		} catch (Exception e) {
+			log.debug(e.getMessage());
+			session.getTransaction().rollback();
+			throw e;
+		}
+		finally {
+			session.close();
 		}
 	}
 	
-
+	/**
+	 * Databases are visible through the viewer, contributor and owner roles
+	 * created for them, which are named after the logical database. Public
+	 * databases are instead visible through view permissions granted to the
+	 * roles every subject has without being given them - anonymous, and
+	 * user once logged in. Both give the candidate databases, and each is
+	 * confirmed with the security manager so that this agrees with a
+	 * permission check on the individual database.
+	 * @return the ids of the logical databases the subject can view
+	 */
 	@SuppressWarnings("unchecked")
-	@Override
-	public List<OrdsPhysicalDatabase> getDatabaseList() throws Exception {
-		
-		List<OrdsPhysicalDatabase> databases = null;
-		ArrayList<OrdsPhysicalDatabase> visibleDatabases = new ArrayList<OrdsPhysicalDatabase>();
+	private Set<Integer> getVisibleLogicalDatabaseIds(){
+		Set<Integer> ids = SubjectPermissions.getViewableDatabases();
+		if (ids != null){
+			return ids;
+		}
+		ids = new HashSet<Integer>();
+		Object principal = SecurityUtils.getSubject().getPrincipal();
+		List<String> implicitRoles = principal == null ? Arrays.asList("anonymous") : Arrays.asList("anonymous", "user");
 		
+		List<String> roles = new ArrayList<String>();
+		List<String> permissions;
 		Session session = this.getOrdsDBSessionFactory().openSession();
 		try {
 			Transaction transaction = session.beginTransaction();
-			databases = session
-					.createCriteria(OrdsPhysicalDatabase.class)
+			if (principal != null){
+				roles = session.createCriteria(UserRole.class)
+						.add(Restrictions.eq("principalName", principal.toString()))
+						.setProjection(Projections.property("role"))
+						.list();
+			}
+			permissions = session.createCriteria(Permission.class)
+					.add(Restrictions.in("role", implicitRoles))
+					.add(Restrictions.or(
+							Restrictions.like("permission", "database:view:%"),
+							Restrictions.like("permission", "database:*:%")))
+					.setProjection(Projections.property("permission"))
 					.list();
 			transaction.commit();
 		} catch (Exception e) {
@@ -113,19 +271,53 @@ public class DatabaseStructureServiceImpl extends StructureServiceImpl
 		finally {
 			session.close();
 		}
-
-		for (OrdsPhysicalDatabase database : databases){
-			if (SecurityUtils.getSubject().isPermitted(Permissions.DATABASE_VIEW(database.getLogicalDatabaseId()))){
-				visibleDatabases.add(database);
+		
+		List<String> candidates = new ArrayList<String>();
+		for (String role : roles){
+			int separator = role.lastIndexOf('_');
+			if (separator >= 0){
+				candidates.add(role.substring(separator + 1));
 			}
 		}
-		
-		return visibleDatabases;
-	}	
+		for (String permission : permissions){
+			String[] parts = permission.split(":");
+			if (parts.length == 3){
+				candidates.add(parts[2]);
+			}
+		}
+		for (String candidate : candidates){
+			int id;
+			try {
+				id = Integer.parseInt(candidate);
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if (!ids.contains(id) && SubjectPermissions.canView(id)){
+				ids.add(id);
+			}
+		}
+		SubjectPermissions.setViewableDatabases(ids);
+		return ids;
+	}
 
 	@Override
 	public OrdsPhysicalDatabase getDatabaseMetaData(int dbId)
 			throws Exception {
+		//
+		// This is looked up at least once by almost every request, and often
+		// more than once during the same request
+		//
+		OrdsPhysicalDatabase resolved = RequestDatabases.get(dbId);
+		if (resolved != null) {
+			return resolved;
+		}
+		PhysicalDatabaseCache cache = PhysicalDatabaseCache.getInstance();
+		long version = cache.getVersion();
+		OrdsPhysicalDatabase cached = cache.get(dbId);
+		if (cached != null) {
+			RequestDatabases.put(cached);
+			return cached;
+		}
 		Session session = this.getOrdsDBSessionFactory().openSession();
 		try {
 			Transaction transaction = session.beginTransaction();
@@ -139,6 +331,8 @@ public class DatabaseStructureServiceImpl extends StructureServiceImpl
 				throw new NotFoundException("Cannot find physical database id "
 						+ dbId);
 			}
+			cache.put(dbs.get(0), version);
+			RequestDatabases.put(dbs.get(0));
 			return dbs.get(0);
 		} catch (Exception e) {
 			log.debug(e.getMessage());
@@ -153,107 +347,285 @@ public class DatabaseStructureServiceImpl extends StructureServiceImpl
 
 	@Override
 	public TableList getDatabaseTableList(int dbId, boolean staging) throws Exception {
+		return getDatabaseTableList(this.getDatabaseMetaData(dbId), staging);
+	}
+
+	@Override
+	public TableList getDatabaseTableList(OrdsPhysicalDatabase database, boolean staging) throws Exception {
+		return getDatabaseTableList(database, staging, null);
+	}
+
+	@Override
+	public TableList getDatabaseTableList(OrdsPhysicalDatabase database, boolean staging, String schemaVersion) throws Exception {
 
-		OrdsPhysicalDatabase database = this.getDatabaseMetaData(dbId);
 		if ( database == null ) {
 			throw new NotFoundException();
 		}
+		int dbId = database.getPhysicalDatabaseId();
 		String databaseName =  database.getDbConsumedName();
 		if ( staging ) {
 			databaseName = this.calculateStagingName(database.getDbConsumedName());
 		}
 		String server = database.getDatabaseServer();
 
-		String query = "SELECT table_name FROM information_schema.tables WHERE table_schema = 'public' ORDER BY table_name";
-		// getting a single scalar value so hibernate returns a list of strings
-		CachedRowSet results = this.runJDBCQuery(query, null, server, databaseName);
-		//List results = this
-		//		.runSQLQuery(query, databaseName, userName, password);
+		TableListCache cache = TableListCache.getInstance();
+		long version = cache.getVersion();
+		//
+		// The positions are only needed to work out the version, unless the
+		// caller already has it, and to build the list if it isn't cached
+		//
+		Map<String, SchemaDesignerTable> positions = null;
+		if ( schemaVersion == null ) {
+			positions = this.getSchemaDesignerTables(database.getPhysicalDatabaseId());
+			schemaVersion = this.getSchemaVersion(databaseName, server, positions);
+		}
+		TableList cached = cache.get(dbId, staging, null, schemaVersion);
+		if ( cached != null ) {
+			return cached;
+		}
+		if ( positions == null ) {
+			positions = this.getSchemaDesignerTables(database.getPhysicalDatabaseId());
+		}
+
+		CatalogSnapshot snapshot = this.getCatalogSnapshot(databaseName, server, null);
+		List<String> tableNames = snapshot.getTableNames();
 		TableList tables = new TableList();
 
 		int counter = 0;
-		int multiplier; // Convenience variables for displaying the tables
-		// in slightly less cramped positions on the grid
-		if (results.size() > 50) {
-			multiplier = 1;
-		} else if (results.size() > 25) {
-			multiplier = 50;
-		} else {
-			multiplier = 120;
-		}
-
-		while( results.next() ) {
-			String tableName = results.getString("table_name");
-			// get the schema designer table for this table
-			SchemaDesignerTable sdt = this.getSchemaDesignerTable(
-					database.getPhysicalDatabaseId(), tableName.toString());
-			String comment = this.tableComment(databaseName, server, tableName);
-			tables.addTable(tableName, comment);
-			addTableMetadata(databaseName, server, tableName, tables);
-			if (sdt == null) {
-				tables.setXY(tableName, counter * multiplier, counter
-						* multiplier);
-			} else {
-				tables.setXY(tableName, sdt.getX(), sdt.getY());
-			}
+		int multiplier = getPositionMultiplier(tableNames.size());
+		for (String tableName : tableNames) {
+			snapshot.addTableMetadata(tableName, tables);
+			setPosition(tables, tableName, positions.get(tableName), counter, multiplier);
 			counter++;
 		}
+		cache.put(dbId, staging, null, tables, schemaVersion, version);
 		return tables;
 	}
 
+	@Override
+	public void writeDatabaseTableList(int dbId, boolean staging, JsonGenerator generator) throws Exception {
+		writeDatabaseTableList(this.getDatabaseMetaData(dbId), staging, generator);
+	}
+
+	@Override
+	public void writeDatabaseTableList(OrdsPhysicalDatabase database, boolean staging, JsonGenerator generator) throws Exception {
+
+		if ( database == null ) {
+			throw new NotFoundException();
+		}
+		String databaseName =  database.getDbConsumedName();
+		if ( staging ) {
+			databaseName = this.calculateStagingName(database.getDbConsumedName());
+		}
+		Map<String, SchemaDesignerTable> positions = this.getSchemaDesignerTables(database.getPhysicalDatabaseId());
+
+		//
+		// Write each table as we read it, in the same form as the TableList
+		// that getDatabaseTableList returns
+		//
+		CatalogCursor cursor = this.openCatalogCursor(databaseName, database.getDatabaseServer());
+		try {
+			generator.writeStartObject();
+			generator.writeObjectFieldStart("tables");
+			int counter = 0;
+			int multiplier = getPositionMultiplier(cursor.getTableCount());
+			CatalogSnapshot snapshot;
+			while ((snapshot = cursor.next()) != null) {
+				String tableName = snapshot.getTableNames().get(0);
+				TableList table = snapshot.addTableMetadata(tableName, new TableList());
+				setPosition(table, tableName, positions.get(tableName), counter, multiplier);
+				generator.writeObjectField(tableName, table.getTables().get(tableName));
+				counter++;
+			}
+			generator.writeEndObject();
+			generator.writeEndObject();
+			generator.flush();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Convenience for displaying tables without a saved position in
+	 * slightly less cramped positions on the grid
+	 */
+	private int getPositionMultiplier(int tableCount) {
+		if (tableCount > 50) {
+			return 1;
+		} else if (tableCount > 25) {
+			return 50;
+		} else {
+			return 120;
+		}
+	}
+
+	private void setPosition(TableList tables, String tableName, SchemaDesignerTable sdt, int counter, int multiplier) {
+		if (sdt == null) {
+			tables.setXY(tableName, counter * multiplier, counter
+					* multiplier);
+		} else {
+			tables.setXY(tableName, sdt.getX(), sdt.getY());
+		}
+	}
+
+	@Override
+	public String getSchemaVersion(int dbId, boolean staging) throws Exception {
+		return getSchemaVersion(this.getDatabaseMetaData(dbId), staging);
+	}
+
+	@Override
+	public String getSchemaVersion(OrdsPhysicalDatabase database, boolean staging) throws Exception {
+		if ( database == null ) {
+			throw new NotFoundException();
+		}
+		String databaseName =  database.getDbConsumedName();
+		if ( staging ) {
+			databaseName = this.calculateStagingName(database.getDbConsumedName());
+		}
+		Map<String, SchemaDesignerTable> positions = this.getSchemaDesignerTables(database.getPhysicalDatabaseId());
+		return this.getSchemaVersion(databaseName, database.getDatabaseServer(), positions);
+	}
+
+	/**
+	 * Combines the catalog fingerprint with the table positions, which are
+	 * held in the ORDS database rather than the database itself
+	 */
+	private String getSchemaVersion(String databaseName, String server, Map<String, SchemaDesignerTable> positions) throws Exception {
+		StringBuilder version = new StringBuilder(this.getCatalogFingerprint(databaseName, server));
+		for (SchemaDesignerTable table : new TreeMap<String, SchemaDesignerTable>(positions).values()) {
+			version.append(String.format(";%s:%d:%d", table.getTableName(), table.getX(), table.getY()));
+		}
+		return md5(version.toString());
+	}
+
 	@Override
 	public String createNewStagingDatabase(int dbId)
 			throws Exception {
-		OrdsPhysicalDatabase database = this.getDatabaseMetaData(dbId);
-		String stagingName = this.calculateStagingName(database
-				.getDbConsumedName());
+		DatabaseLock lock = this.lockDatabase(dbId);
+		try {
+			OrdsPhysicalDatabase database = this.getDatabaseMetaData(dbId);
+			String stagingName = this.calculateStagingName(database
+					.getDbConsumedName());
 		
-		//
-		// Try to delete staging database if it already exists
-		//
-		// If this fails, its most likely as someone else is accessing it, for
-		// example using the schema editor. This is probably going to cause an issue with
-		// concurrent editing of the schema.
-		//
-		if (this.checkDatabaseExists(stagingName, database.getDatabaseServer())) {
-			try {
-				this.deleteDatabase(dbId, true);
-			} catch (Exception e) {
-				log.warn("Failed to delete staging database; this is most likely due to concurrent editing");
-				log.debug(e.getMessage());
+			//
+			// Try to delete staging database if it already exists
+			//
+			// If this fails, its most likely as someone else is accessing it, for
+			// example using the schema editor. This is probably going to cause an issue with
+			// concurrent editing of the schema.
+			//
+			if (this.checkDatabaseExists(stagingName, database.getDatabaseServer())) {
+				try {
+					this.deleteDatabase(dbId, true);
+				} catch (Exception e) {
+					log.warn("Failed to delete staging database; this is most likely due to concurrent editing");
+					log.debug(e.getMessage());
+					return stagingName;
+				}
+			}
+			//
+			// Staging databases are only used to edit the structure, so we may
+			// not need the data
+			//
+			String mode = StructureConfiguration.getString(STAGING_MODE_PROPERTY, STAGING_MODE_COPY);
+			if (STAGING_MODE_SCHEMA.equals(mode) || STAGING_MODE_JOURNAL.equals(mode)) {
+				this.createSchemaOnlyCopy(stagingName, database.getDbConsumedName(), database.getDatabaseServer(), 
+						STAGING_MODE_JOURNAL.equals(mode));
+				this.invalidateTableList(database, true);
 				return stagingName;
 			}
-		}
-		String clonedb = String.format(
-				"ROLLBACK TRANSACTION; CREATE DATABASE %s WITH TEMPLATE %s OWNER = %s",
-				quote_ident(stagingName),
-				quote_ident(database.getDbConsumedName()),
-				quote_ident(this.getORDSDatabaseUser()));
+			StagingJournal.setJournaled(database.getDatabaseServer(), stagingName, false);
+			//
+			// If we have an up to date copy ready, just rename it
+			//
+			if (WarmStagingPool.isEnabled()) {
+				WarmStagingPool pool = WarmStagingPool.getInstance();
+				pool.recordUse(database);
+				if (pool.claim(database, stagingName)) {
+					this.invalidateTableList(database, true);
+					return stagingName;
+				}
+			}
+			//
+			// The template database can't have any open connections, ours or
+			// those of other nodes
+			//
+			this.terminateConnections(database.getDbConsumedName(), database.getDatabaseServer());
+			String clonedb = this.getCloneStatement(stagingName, database.getDbConsumedName(), database.getDatabaseServer());
 		
-		this.runJDBCQuery(clonedb, null, database.getDatabaseServer(), null);
+			this.runJDBCQuery(clonedb, null, database.getDatabaseServer(), null);
+			this.invalidateTableList(database, true);
 
-		return stagingName;
+			return stagingName;
+		} finally {
+			lock.release();
+		}
 	}
 
 	@Override
 	public void mergeStagingToActual(int dbId)
 			throws Exception {
-		OrdsPhysicalDatabase database = this.getDatabaseMetaData(dbId);
-		String databaseName = database.getDbConsumedName();
-		String stagingName = this.calculateStagingName(databaseName);
+		DatabaseLock lock = this.lockDatabase(dbId);
+		try {
+			OrdsPhysicalDatabase database = this.getDatabaseMetaData(dbId);
+			String databaseName = database.getDbConsumedName();
+			String stagingName = this.calculateStagingName(databaseName);
 
-		if (!this.checkDatabaseExists(database.getDbConsumedName(), database.getDatabaseServer())) {
-			throw new NotFoundException("Original database does not exist");
+			if (!this.checkDatabaseExists(database.getDbConsumedName(), database.getDatabaseServer())) {
+				throw new NotFoundException("Original database does not exist");
+			}
+			//
+			// A schema-only staging database has no data, so rather than replace
+			// the original with it we always apply its changes to the original.
+			// We can do the same with a full copy, which leaves the original's
+			// data and connections alone; copies keep the oids of the original,
+			// so we can match up renamed tables and columns using those.
+			//
+			boolean schemaOnly = this.checkDatabaseExists(stagingName, database.getDatabaseServer())
+					&& this.isSchemaOnlyCopy(stagingName, database.getDatabaseServer());
+			if (schemaOnly || MERGE_MODE_DIFF.equals(StructureConfiguration.getString(MERGE_MODE_PROPERTY, MERGE_MODE_SWAP))) {
+				if (!schemaOnly && !this.checkDatabaseExists(stagingName, database.getDatabaseServer())) {
+					throw new NotFoundException("Staging database does not exist");
+				}
+				Map<String, String> originalNames;
+				List<String> journal = null;
+				if (schemaOnly) {
+					originalNames = this.getOriginalNames(stagingName, database.getDatabaseServer());
+					journal = this.getJournal(stagingName, databaseName, database.getDatabaseServer());
+				} else {
+					originalNames = this.getSchemaDefinition(databaseName, database.getDatabaseServer()).getNames();
+				}
+				try {
+					this.mergeStructure(stagingName, databaseName, database.getDatabaseServer(), originalNames, journal);
+				} finally {
+					this.invalidateTableList(database, false);
+					if (WarmStagingPool.isEnabled()) {
+						WarmStagingPool.getInstance().invalidate(database);
+					}
+				}
+				this.deleteDatabase(dbId, true);
+				return;
+			}
+			this.terminateConnections(databaseName, database.getDatabaseServer());
+			this.terminateConnections(stagingName, database.getDatabaseServer());
+			String sql = "rollback transaction; drop database " + databaseName
+					+ ";";
+			this.runJDBCQuery(sql, null, database.getDatabaseServer(), null);
+
+			sql = String.format("ALTER DATABASE %s RENAME TO %s", stagingName,
+					databaseName);
+			try {
+				this.runJDBCQuery(sql, null, database.getDatabaseServer(), null);
+			} finally {
+				this.invalidateTableList(database, false);
+				this.invalidateTableList(database, true);
+				if (WarmStagingPool.isEnabled()) {
+					WarmStagingPool.getInstance().invalidate(database);
+				}
+			}
+		} finally {
+			lock.release();
 		}
-		String sql = "rollback transaction; drop database " + databaseName
-				+ ";";
-		this.runJDBCQuery(sql, null, database.getDatabaseServer(), null);
-
-		sql = String.format("ALTER DATABASE %s RENAME TO %s", stagingName,
-				databaseName);
-		this.runJDBCQuery(sql, null, database.getDatabaseServer(), null);
-
-
 	}
 	
 	
@@ -261,106 +633,145 @@ public class DatabaseStructureServiceImpl extends StructureServiceImpl
 	@Override
 	public OrdsPhysicalDatabase mergeInstanceToMain(OrdsPhysicalDatabase source, OrdsPhysicalDatabase target)
 			throws Exception {
-		
-		// check for source database
-		String sourceDatabaseName = source.getDbConsumedName();
-		if ( !this.checkDatabaseExists(sourceDatabaseName, source.getDatabaseServer())) {
-			throw new NotFoundException("Source database does not exist");
-		}
-		// check for target database
-		String targetDatabaseName = target.getDbConsumedName();
-		if ( !this.checkDatabaseExists(targetDatabaseName, target.getDatabaseServer())) {
-			throw new NotFoundException("Target database does not exist");
+		//
+		// Always lock in the same order, so two merges can't each hold one
+		// lock and wait for the other
+		//
+		int first = Math.min(source.getPhysicalDatabaseId(), target.getPhysicalDatabaseId());
+		int second = Math.max(source.getPhysicalDatabaseId(), target.getPhysicalDatabaseId());
+		DatabaseLock firstLock = this.lockDatabase(first);
+		DatabaseLock secondLock;
+		try {
+			secondLock = this.lockDatabase(second);
+		} catch (Exception e) {
+			firstLock.release();
+			throw e;
 		}
+		try {
+			// check for source database
+			String sourceDatabaseName = source.getDbConsumedName();
+			if ( !this.checkDatabaseExists(sourceDatabaseName, source.getDatabaseServer())) {
+				throw new NotFoundException("Source database does not exist");
+			}
+			// check for target database
+			String targetDatabaseName = target.getDbConsumedName();
+			if ( !this.checkDatabaseExists(targetDatabaseName, target.getDatabaseServer())) {
+				throw new NotFoundException("Target database does not exist");
+			}
 		
-		String sql = "rollback transaction; drop database " + targetDatabaseName
-				+ ";";
-		this.runJDBCQuery(sql, null, source.getDatabaseServer(), null);
-
-		sql = String.format("ALTER DATABASE %s RENAME TO %s", 
-				quote_ident(sourceDatabaseName),
-				quote_ident(targetDatabaseName));
-		this.runJDBCQuery(sql, null, source.getDatabaseServer(), null);
+			this.terminateConnections(targetDatabaseName, target.getDatabaseServer());
+			this.terminateConnections(sourceDatabaseName, source.getDatabaseServer());
+			String sql = "rollback transaction; drop database " + targetDatabaseName
+					+ ";";
+			this.runJDBCQuery(sql, null, source.getDatabaseServer(), null);
+
+			sql = String.format("ALTER DATABASE %s RENAME TO %s", 
+					quote_ident(sourceDatabaseName),
+					quote_ident(targetDatabaseName));
+			try {
+				this.runJDBCQuery(sql, null, source.getDatabaseServer(), null);
+			} finally {
+				this.invalidateTableList(target, false);
+				this.invalidateTableList(source, false);
+				if (WarmStagingPool.isEnabled()) {
+					WarmStagingPool.getInstance().invalidate(target);
+					WarmStagingPool.getInstance().remove(source);
+				}
+			}
 
 		
-		// now we need to find and remove the row from physical database
-		this.removeModelObject(source);
+			// now we need to find and remove the row from physical database
+			this.removeModelObject(source);
 
-		return target;
+			return target;
+		} finally {
+			secondLock.release();
+			firstLock.release();
+		}
 	}
 
 
 	@Override
 	public void deleteDatabase(int dbId, boolean staging)
 			throws Exception {
-		OrdsPhysicalDatabase database = this.getDatabaseMetaData(dbId);
-		String databaseName;
-		if (!staging) {
-			databaseName = database.getDbConsumedName();
-			this.removeModelObject(database);
-		} else {
-			databaseName = this.calculateStagingName(database.getDbConsumedName());
+		DatabaseLock lock = this.lockDatabase(dbId);
+		try {
+			OrdsPhysicalDatabase database = this.getDatabaseMetaData(dbId);
+			String databaseName;
+			if (!staging) {
+				databaseName = database.getDbConsumedName();
+				this.removeModelObject(database);
+			} else {
+				databaseName = this.calculateStagingName(database.getDbConsumedName());
+			}
+			this.terminateConnections(databaseName, database.getDatabaseServer());
+			String statement = "rollback transaction; drop database " + quote_ident(databaseName) + ";";
+			try {
+				this.runJDBCQuery(statement, null, database.getDatabaseServer(), null);
+			} finally {
+				StagingJournal.forget(database.getDatabaseServer(), databaseName);
+				this.invalidateTableList(database, staging);
+				if (!staging && WarmStagingPool.isEnabled()) {
+					WarmStagingPool.getInstance().remove(database);
+				}
+			}
+		} finally {
+			lock.release();
 		}
-		String statement = this.getTerminateStatement(databaseName, database.getDatabaseServer());
-		this.runJDBCQuery(statement, null, database.getDatabaseServer(), databaseName);
-		statement = "rollback transaction; drop database " + databaseName + ";";
-		this.runJDBCQuery(statement, null, database.getDatabaseServer(), null);
-
 	}
 	
 	@Override
 	public OrdsPhysicalDatabase createNewDatabaseFromExisting (int origDbId, DatabaseRequest dto ) throws Exception {
-
-		OrdsPhysicalDatabase templateDb = this.getDatabaseMetaData(origDbId);
+		DatabaseLock lock = this.lockDatabase(origDbId);
+		try {
+			OrdsPhysicalDatabase templateDb = this.getDatabaseMetaData(origDbId);
 				
-		// consumed name is on original
-		String templateName = templateDb.getDbConsumedName();
+			// consumed name is on original
+			String templateName = templateDb.getDbConsumedName();
 		
-		// create the new record
-		OrdsPhysicalDatabase newDb = new OrdsPhysicalDatabase();
-		newDb.setLogicalDatabaseId(templateDb.getLogicalDatabaseId());
-		newDb.setDatabaseServer(templateDb.getDatabaseServer());
-		newDb.setImportProgress(OrdsPhysicalDatabase.ImportType.FINISHED);
-		EntityType type;
-		if ( dto.getInstance().equalsIgnoreCase("MILESTONE")) {
-			type = EntityType.MILESTONE;
-		}
-		else {
-			type = EntityType.TEST;
-		}
-		newDb.setEntityType(type);
-		newDb.setFileName("none");
-		newDb.setFullPathToDirectory(System.getProperty("java.io.tmpdir")
-				+ "/databases");
-		newDb.setDatabaseType("RAW");
-		this.saveModelObject(newDb);
+			// create the new record
+			OrdsPhysicalDatabase newDb = new OrdsPhysicalDatabase();
+			newDb.setLogicalDatabaseId(templateDb.getLogicalDatabaseId());
+			newDb.setDatabaseServer(templateDb.getDatabaseServer());
+			newDb.setImportProgress(OrdsPhysicalDatabase.ImportType.FINISHED);
+			EntityType type;
+			if ( dto.getInstance().equalsIgnoreCase("MILESTONE")) {
+				type = EntityType.MILESTONE;
+			}
+			else {
+				type = EntityType.TEST;
+			}
+			newDb.setEntityType(type);
+			newDb.setFileName("none");
+			newDb.setFullPathToDirectory(System.getProperty("java.io.tmpdir")
+					+ "/databases");
+			newDb.setDatabaseType("RAW");
+			this.saveModelObject(newDb);
 		
-		String newDatabaseName = newDb.getDbConsumedName();
+			String newDatabaseName = newDb.getDbConsumedName();
 				
-		//
-		// If this clone already exists, drop it.
-		//
-		if (this.checkDatabaseExists(newDatabaseName, newDb.getDatabaseServer())) {
-			String statement = this.getTerminateStatement(newDatabaseName, newDb.getDatabaseServer());
-			this.runJDBCQuery(statement, null, newDb.getDatabaseServer(), newDatabaseName);
-			statement = "rollback transaction; drop database " + newDatabaseName + ";";
-			this.runJDBCQuery(statement, null, newDb.getDatabaseServer(), null);
-
-		}
+			//
+			// If this clone already exists, drop it.
+			//
+			ServerCapabilities capabilities = this.getServerCapabilities(newDb.getDatabaseServer());
+			if (capabilities.supportsDropDatabaseIfExists() || this.checkDatabaseExists(newDatabaseName, newDb.getDatabaseServer())) {
+				this.terminateConnections(newDatabaseName, newDb.getDatabaseServer());
+				String statement = this.getDropIfExistsStatement(newDatabaseName, newDb.getDatabaseServer());
+				this.runJDBCQuery(statement, null, newDb.getDatabaseServer(), null);
+			}
 		
-		//
-		// Create clone
-		//
-		String clonedb = String.format(
-				"ROLLBACK TRANSACTION; CREATE DATABASE %s WITH TEMPLATE %s OWNER %s",
-				quote_ident(newDatabaseName),
-				quote_ident(templateName),
-				quote_ident(this.getORDSDatabaseUser()));
-		this.runJDBCQuery(clonedb, null, newDb.getDatabaseServer(), null);
-
-		DatabaseStructureRoleService.Factory.getInstance().createInitialPermissions(newDb.getLogicalDatabaseId());
-		return newDb;
-	
+			//
+			// Create clone
+			//
+			this.terminateConnections(templateName, templateDb.getDatabaseServer());
+			String clonedb = this.getCloneStatement(newDatabaseName, templateName, newDb.getDatabaseServer());
+			this.runJDBCQuery(clonedb, null, newDb.getDatabaseServer(), null);
+
+			DatabaseStructureRoleService.Factory.getInstance().createInitialPermissions(newDb.getLogicalDatabaseId());
+			return newDb;
+		} finally {
+			lock.release();
+		}
 	}
 
 	@Override
@@ -402,27 +813,28 @@ public class DatabaseStructureServiceImpl extends StructureServiceImpl
 		
 	}
 
-	private SchemaDesignerTable getSchemaDesignerTable(int databaseId,
-			String tableName) {
-		log.debug("getTable:" + databaseId + "," + tableName);
+	/**
+	 * Gets the stored schema designer positions for all the tables in a database
+	 * @param databaseId the physical database id
+	 * @return the positions, keyed by table name
+	 */
+	private Map<String, SchemaDesignerTable> getSchemaDesignerTables(int databaseId) {
+		log.debug("getSchemaDesignerTables:" + databaseId);
+		Map<String, SchemaDesignerTable> tables = new HashMap<String, SchemaDesignerTable>();
 		Transaction tx = null;
 		Session session = this.getOrdsDBSessionFactory().openSession();
 		try {
 			tx = session.beginTransaction();
-			SQLQuery q = session
-					.createSQLQuery(
-							"SELECT * FROM schemadesignertable WHERE databaseid=:databaseid AND tablename=:tablename")
-					.addEntity(SchemaDesignerTable.class);
-			q.setParameter("databaseid", databaseId);
-			q.setParameter("tablename", tableName);
-			log.debug(q.toString());
 			@SuppressWarnings("unchecked")
-			List<SchemaDesignerTable> result = q.list();
+			List<SchemaDesignerTable> result = session
+					.createCriteria(SchemaDesignerTable.class)
+					.add(Restrictions.eq("databaseId", databaseId))
+					.list();
 			tx.commit();
-			if (result.size() > 0) {
-				return result.get(0);
+			for (SchemaDesignerTable table : result) {
+				tables.put(table.getTableName(), table);
 			}
-			return null;
+			return tables;
 		} catch (HibernateException e) {
 			log.error("Run time exception", e);
 			if (tx != null && tx.isActive()) {
@@ -433,7 +845,7 @@ public class DatabaseStructureServiceImpl extends StructureServiceImpl
 				throw e;
 			}
 
-			return null;
+			return tables;
 		} finally {
 			session.close();
 		}
@@ -27,6 +27,7 @@ import org.slf4j.LoggerFactory;
 import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
 import uk.ac.ox.it.ords.api.database.structure.model.SchemaDesignerTable;
 import uk.ac.ox.it.ords.api.database.structure.model.User;
+import uk.ac.ox.it.ords.api.database.structure.services.Job;
 import uk.ac.ox.it.ords.security.SimplePersistentSession;
 import uk.ac.ox.it.ords.security.configuration.MetaConfiguration;
 import uk.ac.ox.it.ords.security.model.DatabaseServer;
@@ -42,9 +43,17 @@ public class HibernateUtils {
 	
 	protected static String HIBERNATE_CONFIGURATION_PROPERTY = "ords.hibernate.configuration";
 
+	/**
+	 * The number of statements sent to the database at once when saving
+	 * many objects, unless the Hibernate configuration says otherwise. Code
+	 * that saves a lot of objects in one session should flush this often.
+	 */
+	public static final int BATCH_SIZE = 50;
+
 	protected static void addMappings(Configuration configuration){
 		configuration.addAnnotatedClass(OrdsPhysicalDatabase.class);
 		configuration.addAnnotatedClass(SchemaDesignerTable.class);
+		configuration.addAnnotatedClass(Job.class);
 		configuration.addAnnotatedClass(User.class);
 		configuration.addAnnotatedClass(Permission.class);
 		//configuration.addAnnotatedClass(Audit.class);
@@ -78,6 +87,15 @@ public class HibernateUtils {
 			configuration.setProperty("hibernate.connection.username", databaseServer.getUsername());
 			configuration.setProperty("hibernate.connection.password", databaseServer.getPassword());
 			
+			//
+			// Batch inserts and updates
+			//
+			if (configuration.getProperty("hibernate.jdbc.batch_size") == null){
+				configuration.setProperty("hibernate.jdbc.batch_size", String.valueOf(BATCH_SIZE));
+				configuration.setProperty("hibernate.order_inserts", "true");
+				configuration.setProperty("hibernate.order_updates", "true");
+			}
+			
 			addMappings(configuration);
 
 			serviceRegistry = new ServiceRegistryBuilder().applySettings(
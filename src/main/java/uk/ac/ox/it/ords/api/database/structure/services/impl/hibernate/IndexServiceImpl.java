@@ -80,7 +80,8 @@ public class IndexServiceImpl extends StructureServiceImpl
                 quote_ident(tableName),
                 columns);
         //List<Object> parameters = this.createParameterList(unique, indexName, tableName, columns);
-        this.runJDBCQuery(query, null, server, databaseName);
+        this.runStructureStatement(query, server, databaseName, staging);
+        this.invalidateTableList(database, staging);
 	}
 	
 
@@ -104,7 +105,8 @@ public class IndexServiceImpl extends StructureServiceImpl
 		String query = String.format("ALTER INDEX %s RENAME TO %s",
                 quote_ident(indexName),
                 quote_ident(newName));
-        this.runJDBCQuery(query, null, server, databaseName);
+        this.runStructureStatement(query, server, databaseName, staging);
+        this.invalidateTableList(database, staging);
 
 
 	}
@@ -119,7 +121,8 @@ public class IndexServiceImpl extends StructureServiceImpl
 		String server = database.getDatabaseServer();
 		String statement = String.format("DROP INDEX %s", quote_ident(indexName));
 		
-		this.runJDBCQuery(statement, null, server, databaseName);
+		this.runStructureStatement(statement, server, databaseName, staging);
+		this.invalidateTableList(database, staging);
 	}
 
 }
@@ -0,0 +1,596 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ox.it.ords.api.database.structure.services.impl.StructureConfiguration;
+
+/**
+ * A pool of JDBC connections to the physical project databases, keyed by
+ * server, database and user.
+ *
+ * Connections handed out by the pool are proxies; closing them returns the
+ * underlying connection to the pool rather than closing it. Each key has its
+ * own size limit, and there is a global limit across all keys. Idle
+ * connections are closed after a timeout, and connections that have been idle
+ * for a while are checked before being reused.
+ *
+ * PostgreSQL will not drop, rename or use as a template a database that has
+ * open connections, so callers must use evict() before doing so.
+ */
+public class JdbcConnectionPool {
+
+	private static Logger log = LoggerFactory.getLogger(JdbcConnectionPool.class);
+
+	public static final String MAX_PER_DATABASE_PROPERTY = "ords.database.structure.pool.maxPerDatabase";
+	public static final String MAX_TOTAL_PROPERTY = "ords.database.structure.pool.maxTotal";
+	public static final String MAX_WAIT_PROPERTY = "ords.database.structure.pool.maxWait";
+	public static final String IDLE_TIMEOUT_PROPERTY = "ords.database.structure.pool.idleTimeout";
+	public static final String VALIDATION_INTERVAL_PROPERTY = "ords.database.structure.pool.validationInterval";
+
+	private static JdbcConnectionPool instance;
+
+	private final int maxPerDatabase;
+	private final int maxTotal;
+	private final long maxWait;
+	private final long idleTimeout;
+	private final long validationInterval;
+
+	private final Map<PoolKey, Partition> partitions = new HashMap<PoolKey, Partition>();
+	private int total = 0;
+	private boolean closed = false;
+
+	private final ScheduledExecutorService reaper;
+
+	/**
+	 * Returns the shared pool, creating it on first use
+	 * @return the connection pool
+	 */
+	public static synchronized JdbcConnectionPool getInstance(){
+		if (instance == null){
+			instance = new JdbcConnectionPool();
+		}
+		return instance;
+	}
+
+	/**
+	 * Shuts down the shared pool, if it was created; the next use creates a
+	 * new one
+	 */
+	public static synchronized void shutdownInstance(){
+		if (instance != null){
+			instance.shutdown();
+			instance = null;
+		}
+	}
+
+	protected JdbcConnectionPool(){
+		this(
+				StructureConfiguration.getInt(MAX_PER_DATABASE_PROPERTY, 5),
+				StructureConfiguration.getInt(MAX_TOTAL_PROPERTY, 50),
+				StructureConfiguration.getInt(MAX_WAIT_PROPERTY, 10000),
+				StructureConfiguration.getInt(IDLE_TIMEOUT_PROPERTY, 60000),
+				StructureConfiguration.getInt(VALIDATION_INTERVAL_PROPERTY, 5000)
+				);
+	}
+
+	protected JdbcConnectionPool(int maxPerDatabase, int maxTotal, long maxWait, long idleTimeout, long validationInterval){
+		this.maxPerDatabase = maxPerDatabase;
+		this.maxTotal = maxTotal;
+		this.maxWait = maxWait;
+		this.idleTimeout = idleTimeout;
+		this.validationInterval = validationInterval;
+
+		this.reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ords-structure-jdbc-pool-reaper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = Math.max(1000, idleTimeout / 2);
+		this.reaper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				closeIdleConnections();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrow a connection to the given database. The connection must be closed
+	 * by the caller to return it to the pool.
+	 *
+	 * @param host the database server host
+	 * @param port the database server port
+	 * @param databaseName the database to connect to
+	 * @param userName the user to connect as
+	 * @param password the user's password
+	 * @return a pooled connection
+	 * @throws SQLException if a connection cannot be obtained within the configured wait time
+	 */
+	public Connection getConnection(String host, int port, String databaseName, String userName, String password) throws SQLException {
+		PoolKey key = new PoolKey(host, port, databaseName, userName);
+		long deadline = System.currentTimeMillis() + maxWait;
+
+		while (true){
+			PooledConnection pooled = null;
+			boolean create = false;
+			int generation = 0;
+			List<PooledConnection> stolen = new ArrayList<PooledConnection>();
+
+			synchronized (this) {
+				if (closed){
+					throw new SQLException("Connection pool has been shut down");
+				}
+				Partition partition = getPartition(key);
+
+				while (true){
+					pooled = partition.idle.pollFirst();
+					if (pooled != null){
+						partition.borrowed++;
+						break;
+					}
+					if (partition.size() < maxPerDatabase){
+						if (total < maxTotal){
+							partition.borrowed++;
+							total++;
+							create = true;
+							generation = partition.generation;
+							break;
+						}
+						//
+						// We've hit the global limit, but may be able to free
+						// a slot by closing an idle connection to another database
+						//
+						PooledConnection victim = takeOldestIdleConnection();
+						if (victim != null){
+							stolen.add(victim);
+							continue;
+						}
+					}
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0){
+						throw new SQLException("Timed out waiting for a connection to " + databaseName, "08001");
+					}
+					try {
+						this.wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted waiting for a connection to " + databaseName, "08001");
+					}
+				}
+			}
+
+			closeQuietly(stolen);
+
+			if (create){
+				try {
+					Connection connection = open(host, port, databaseName, userName, password);
+					ServerCapabilities.register(host, port, connection);
+					pooled = new PooledConnection(key, connection, generation);
+					return pooled.newProxy();
+				} catch (SQLException e) {
+					discard(key, null);
+					throw e;
+				}
+			}
+
+			//
+			// Check connections that have been sitting idle for a while; if
+			// the server has gone away or the backend has been terminated
+			// we throw the connection away and try again
+			//
+			if (System.currentTimeMillis() - pooled.lastUsed < validationInterval || isValid(pooled.connection)){
+				return pooled.newProxy();
+			}
+			log.debug("Discarding stale pooled connection to " + databaseName);
+			discard(key, pooled);
+		}
+	}
+
+	/**
+	 * Opens a connection that doesn't belong to the pool, for something that
+	 * may hold it for a long time; closing it closes the connection
+	 * 
+	 * @param host the database host
+	 * @param port the database port
+	 * @param databaseName the database
+	 * @param userName the user
+	 * @param password the password
+	 * @return the connection
+	 * @throws SQLException if the connection can't be made
+	 */
+	public static Connection open(String host, int port, String databaseName, String userName, String password) throws SQLException {
+		Properties connectionProperties = new Properties();
+		connectionProperties.put("user", userName);
+		connectionProperties.put("password", password);
+		String connectionURL = "jdbc:postgresql://" + host + ":" + port + "/" + databaseName;
+		return DriverManager.getConnection(connectionURL, connectionProperties);
+	}
+
+	/**
+	 * Close all idle connections to the given database, for any user, and
+	 * make sure that connections currently in use are closed rather than
+	 * returned to the pool. This must be called before dropping, renaming or
+	 * cloning a database.
+	 *
+	 * @param host the database server host
+	 * @param port the database server port
+	 * @param databaseName the database
+	 */
+	public void evict(String host, int port, String databaseName){
+		List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+		synchronized (this) {
+			for (Partition partition : partitions.values()){
+				if (partition.key.matches(host, port, databaseName)){
+					partition.generation++;
+					evicted.addAll(partition.idle);
+					total -= partition.idle.size();
+					partition.idle.clear();
+				}
+			}
+			this.notifyAll();
+		}
+		closeQuietly(evicted);
+	}
+
+	/**
+	 * Close all connections and stop the idle connection reaper
+	 */
+	public void shutdown(){
+		List<PooledConnection> idle = new ArrayList<PooledConnection>();
+		synchronized (this) {
+			closed = true;
+			for (Partition partition : partitions.values()){
+				partition.generation++;
+				idle.addAll(partition.idle);
+				total -= partition.idle.size();
+				partition.idle.clear();
+			}
+			this.notifyAll();
+		}
+		reaper.shutdownNow();
+		closeQuietly(idle);
+	}
+
+	/**
+	 * @return the number of physical connections currently open
+	 */
+	public synchronized int getTotalConnections(){
+		return total;
+	}
+
+	/**
+	 * @return the number of physical connections currently idle in the pool
+	 */
+	public synchronized int getIdleConnections(){
+		int idle = 0;
+		for (Partition partition : partitions.values()){
+			idle += partition.idle.size();
+		}
+		return idle;
+	}
+
+	protected void closeIdleConnections(){
+		List<PooledConnection> expired = new ArrayList<PooledConnection>();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Iterator<Partition> partitionIterator = partitions.values().iterator();
+			while (partitionIterator.hasNext()){
+				Partition partition = partitionIterator.next();
+				Iterator<PooledConnection> iterator = partition.idle.iterator();
+				while (iterator.hasNext()){
+					PooledConnection pooled = iterator.next();
+					if (now - pooled.lastUsed > idleTimeout){
+						iterator.remove();
+						expired.add(pooled);
+						total--;
+					}
+				}
+				if (partition.size() == 0){
+					partitionIterator.remove();
+				}
+			}
+			if (!expired.isEmpty()){
+				this.notifyAll();
+			}
+		}
+		closeQuietly(expired);
+	}
+
+	/**
+	 * Return a connection to the pool once the borrower has closed it
+	 * @param pooled the connection
+	 */
+	private void release(PooledConnection pooled){
+		boolean reusable = !pooled.broken;
+
+		//
+		// Make sure the next borrower gets a connection in the default state
+		//
+		if (reusable){
+			try {
+				if (!pooled.connection.getAutoCommit()){
+					pooled.connection.rollback();
+					pooled.connection.setAutoCommit(true);
+				}
+				pooled.connection.clearWarnings();
+			} catch (SQLException e) {
+				reusable = false;
+			}
+		}
+
+		synchronized (this) {
+			Partition partition = getPartition(pooled.key);
+			partition.borrowed--;
+			if (reusable && !closed && pooled.generation == partition.generation){
+				pooled.lastUsed = System.currentTimeMillis();
+				partition.idle.addFirst(pooled);
+				reusable = true;
+			} else {
+				total--;
+				reusable = false;
+			}
+			this.notifyAll();
+		}
+
+		if (!reusable){
+			closeQuietly(pooled.connection);
+		}
+	}
+
+	/**
+	 * Release the slot held by a connection we aren't going to hand out
+	 * @param key the pool key
+	 * @param pooled the connection, or null if it was never opened
+	 */
+	private void discard(PoolKey key, PooledConnection pooled){
+		synchronized (this) {
+			Partition partition = getPartition(key);
+			partition.borrowed--;
+			total--;
+			this.notifyAll();
+		}
+		if (pooled != null){
+			closeQuietly(pooled.connection);
+		}
+	}
+
+	private Partition getPartition(PoolKey key){
+		Partition partition = partitions.get(key);
+		if (partition == null){
+			partition = new Partition(key);
+			partitions.put(key, partition);
+		}
+		return partition;
+	}
+
+	/**
+	 * Remove the least recently used idle connection across all partitions.
+	 * Must be called holding the pool lock.
+	 * @return the connection, or null if nothing is idle
+	 */
+	private PooledConnection takeOldestIdleConnection(){
+		Partition oldestPartition = null;
+		long oldest = Long.MAX_VALUE;
+		for (Partition partition : partitions.values()){
+			PooledConnection candidate = partition.idle.peekLast();
+			if (candidate != null && candidate.lastUsed < oldest){
+				oldest = candidate.lastUsed;
+				oldestPartition = partition;
+			}
+		}
+		if (oldestPartition == null){
+			return null;
+		}
+		total--;
+		return oldestPartition.idle.pollLast();
+	}
+
+	private boolean isValid(Connection connection){
+		Statement statement = null;
+		try {
+			statement = connection.createStatement();
+			statement.setQueryTimeout(5);
+			statement.execute("SELECT 1");
+			return true;
+		} catch (SQLException e) {
+			return false;
+		} finally {
+			if (statement != null){
+				try {
+					statement.close();
+				} catch (SQLException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	private static void closeQuietly(List<PooledConnection> connections){
+		for (PooledConnection pooled : connections){
+			closeQuietly(pooled.connection);
+		}
+	}
+
+	private static void closeQuietly(Connection connection){
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			log.debug("Error closing pooled connection", e);
+		}
+	}
+
+	/**
+	 * The connections for one server, database and user
+	 */
+	private static class Partition {
+		final PoolKey key;
+		final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+		int borrowed = 0;
+		int generation = 0;
+
+		Partition(PoolKey key){
+			this.key = key;
+		}
+
+		int size(){
+			return idle.size() + borrowed;
+		}
+	}
+
+	private static class PoolKey {
+		final String host;
+		final int port;
+		final String databaseName;
+		final String userName;
+
+		PoolKey(String host, int port, String databaseName, String userName){
+			this.host = host;
+			this.port = port;
+			this.databaseName = databaseName;
+			this.userName = userName;
+		}
+
+		boolean matches(String host, int port, String databaseName){
+			return this.port == port && equal(this.host, host) && equal(this.databaseName, databaseName);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof PoolKey)){
+				return false;
+			}
+			PoolKey other = (PoolKey) obj;
+			return matches(other.host, other.port, other.databaseName) && equal(userName, other.userName);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = port;
+			result = 31 * result + (host == null ? 0 : host.hashCode());
+			result = 31 * result + (databaseName == null ? 0 : databaseName.hashCode());
+			result = 31 * result + (userName == null ? 0 : userName.hashCode());
+			return result;
+		}
+
+		private static boolean equal(String a, String b){
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	/**
+	 * A physical connection owned by the pool
+	 */
+	private class PooledConnection {
+		final PoolKey key;
+		final Connection connection;
+		final int generation;
+		long lastUsed = System.currentTimeMillis();
+		boolean broken = false;
+
+		PooledConnection(PoolKey key, Connection connection, int generation){
+			this.key = key;
+			this.connection = connection;
+			this.generation = generation;
+		}
+
+		Connection newProxy(){
+			return (Connection) Proxy.newProxyInstance(
+					JdbcConnectionPool.class.getClassLoader(),
+					new Class<?>[]{Connection.class},
+					new ConnectionHandler(this));
+		}
+	}
+
+	/**
+	 * Intercepts close() on borrowed connections, and notes when the
+	 * underlying connection has failed so it isn't returned to the pool
+	 */
+	private class ConnectionHandler implements InvocationHandler {
+		private PooledConnection pooled;
+
+		ConnectionHandler(PooledConnection pooled){
+			this.pooled = pooled;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")){
+				if (pooled != null){
+					PooledConnection returned = pooled;
+					pooled = null;
+					release(returned);
+				}
+				return null;
+			}
+			if (name.equals("isClosed")){
+				return pooled == null || pooled.connection.isClosed();
+			}
+			if (name.equals("equals")){
+				return proxy == args[0];
+			}
+			if (name.equals("hashCode")){
+				return System.identityHashCode(proxy);
+			}
+			if (pooled == null){
+				throw new SQLException("Connection has been returned to the pool");
+			}
+			try {
+				return method.invoke(pooled.connection, args);
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof SQLException){
+					String state = ((SQLException) cause).getSQLState();
+					//
+					// Connection exceptions (08xxx) and terminated backends (57P0x)
+					//
+					if (state != null && (state.startsWith("08") || state.startsWith("57P0"))){
+						pooled.broken = true;
+					}
+				}
+				throw cause;
+			}
+		}
+	}
+}
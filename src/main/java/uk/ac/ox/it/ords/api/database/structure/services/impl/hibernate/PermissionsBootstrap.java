@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ox.it.ords.api.database.structure.permissions.DatabaseStructurePermissionSets;
+import uk.ac.ox.it.ords.security.model.Permission;
+
+/**
+ * Creates the permissions of the global roles - user, localuser,
+ * administrator and anonymous - that this API relies on.
+ * 
+ * This happens once per JVM. The permissions already there are read with a
+ * single query, and only the missing ones are added, so restarting doesn't
+ * add duplicates. Nodes starting at the same time are serialised with an
+ * advisory lock on the ORDS database, so they can't both add the same
+ * permission.
+ */
+public class PermissionsBootstrap {
+	
+	private static Logger log = LoggerFactory.getLogger(PermissionsBootstrap.class);
+	
+	/**
+	 * The second part of the advisory lock key; database locks use
+	 * physical database ids, which are never negative
+	 */
+	private static final int LOCK_KEY = -1;
+	
+	private static boolean done = false;
+	
+	/**
+	 * @return the permissions for each global role
+	 */
+	static Map<String, List<String>> getGlobalPermissions(){
+		Map<String, List<String>> permissions = new LinkedHashMap<String, List<String>>();
+		//
+		// Anyone with the "User" role can contribute to projects
+		//
+		permissions.put("user", DatabaseStructurePermissionSets.getPermissionsForUser());
+		//
+		// Anyone with the "LocalUser" role can create new trial projects
+		//
+		permissions.put("localuser", DatabaseStructurePermissionSets.getPermissionsForLocalUser());
+		//
+		// Anyone with the "Administrator" role can create new full
+		// projects and upgrade projects to full, and update any
+		// user projects
+		//
+		permissions.put("administrator", DatabaseStructurePermissionSets.getPermissionsForSysadmin());
+		//
+		// "Anonymous" can View public projects
+		//
+		permissions.put("anonymous", DatabaseStructurePermissionSets.getPermissionsForAnonymous());
+		return permissions;
+	}
+	
+	/**
+	 * Creates any missing global permissions, unless this has already been
+	 * done by this JVM
+	 * @param sessionFactory the ORDS database session factory
+	 * @throws Exception if the permissions can't be created
+	 */
+	public static synchronized void run(SessionFactory sessionFactory) throws Exception {
+		if (done){
+			return;
+		}
+		Map<String, List<String>> permissions = getGlobalPermissions();
+		int added = 0;
+		
+		Session session = sessionFactory.openSession();
+		try {
+			session.beginTransaction();
+			session.createSQLQuery("SELECT pg_advisory_xact_lock(:namespace, :key)")
+				.setInteger("namespace", DatabaseLock.NAMESPACE)
+				.setInteger("key", LOCK_KEY)
+				.list();
+			
+			@SuppressWarnings("unchecked")
+			List<Object[]> rows = session.createCriteria(Permission.class)
+				.add(Restrictions.in("role", permissions.keySet()))
+				.setProjection(Projections.projectionList()
+						.add(Projections.property("role"))
+						.add(Projections.property("permission")))
+				.list();
+			Set<String> existing = new HashSet<String>();
+			for (Object[] row : rows){
+				existing.add(row[0] + " " + row[1]);
+			}
+			
+			for (Map.Entry<String, List<String>> role : permissions.entrySet()){
+				for (String permissionString : role.getValue()){
+					if (existing.add(role.getKey() + " " + permissionString)){
+						Permission permission = new Permission();
+						permission.setRole(role.getKey());
+						permission.setPermission(permissionString);
+						session.save(permission);
+						added++;
+					}
+				}
+			}
+			session.getTransaction().commit();
+		} catch (Exception e) {
+			log.error("Error creating global permissions", e);
+			session.getTransaction().rollback();
+			throw new Exception("Cannot create global permissions", e);
+		}
+		finally {
+			session.close();
+		}
+		if (added > 0){
+			log.info("Added " + added + " global permissions");
+		}
+		done = true;
+	}
+	
+	/**
+	 * Makes the next run check the permissions again, for example after
+	 * they have been removed from the database
+	 */
+	public static synchronized void reset(){
+		done = false;
+	}
+
+}
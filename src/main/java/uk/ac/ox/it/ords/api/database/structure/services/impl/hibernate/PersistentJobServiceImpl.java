@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ox.it.ords.api.database.structure.services.Job;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.JobServiceImpl;
+
+/**
+ * Runs jobs as JobServiceImpl does, and also saves them in the ORDS database,
+ * so that a client polling for a job gets its status whichever node answers.
+ * Each node only runs the jobs it accepted, and only shares a repeated
+ * request's job with requests that come to the same node.
+ */
+public class PersistentJobServiceImpl extends JobServiceImpl {
+	
+	private static Logger log = LoggerFactory.getLogger(PersistentJobServiceImpl.class);
+	
+	@Override
+	protected void saveJob(Job job) throws Exception {
+		Session session = HibernateUtils.getSessionFactory().openSession();
+		try {
+			Transaction transaction = session.beginTransaction();
+			session.merge(job);
+			//
+			// Forget old jobs as others finish, rather than on a timer
+			//
+			if (job.isFinished()) {
+				session.createQuery("delete from Job where finished > 0 and finished < :before")
+					.setLong("before", System.currentTimeMillis() - getRetention())
+					.executeUpdate();
+			}
+			transaction.commit();
+		} catch (Exception e) {
+			session.getTransaction().rollback();
+			throw e;
+		}
+		finally {
+			session.close();
+		}
+	}
+	
+	@Override
+	protected Job findJob(String id) {
+		Job job;
+		Session session = HibernateUtils.getSessionFactory().openSession();
+		try {
+			Transaction transaction = session.beginTransaction();
+			job = (Job) session.get(Job.class, id);
+			transaction.commit();
+		} catch (Exception e) {
+			log.error("Unable to find job " + id, e);
+			session.getTransaction().rollback();
+			return null;
+		}
+		finally {
+			session.close();
+		}
+		if (job != null && job.isFinished() && System.currentTimeMillis() - job.getFinished() > getRetention()) {
+			return null;
+		}
+		return job;
+	}
+}
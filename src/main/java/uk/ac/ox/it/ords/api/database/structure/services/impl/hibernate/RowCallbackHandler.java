@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Processes each row of a result set in turn, for callers that add rows to
+ * a structure of their own rather than collecting a list of objects. See
+ * StructureServiceImpl.query().
+ */
+public interface RowCallbackHandler {
+
+	/**
+	 * @param results the result set, positioned on the row to process; this
+	 * must not move the cursor
+	 * @throws SQLException if a column can't be read
+	 */
+	public void processRow(ResultSet results) throws SQLException;
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a result set to an object. See
+ * StructureServiceImpl.queryForList() and queryForObject().
+ *
+ * @param <T> the type of object each row is mapped to
+ */
+public interface RowMapper<T> {
+
+	/**
+	 * @param results the result set, positioned on the row to map; this must
+	 * not move the cursor
+	 * @return the object for the row
+	 * @throws SQLException if a column can't be read
+	 */
+	public T mapRow(ResultSet results) throws SQLException;
+
+	/**
+	 * Maps the first column as a String
+	 */
+	public static final RowMapper<String> STRING = new RowMapper<String>() {
+		@Override
+		public String mapRow(ResultSet results) throws SQLException {
+			return results.getString(1);
+		}
+	};
+
+	/**
+	 * Maps the first column as an int
+	 */
+	public static final RowMapper<Integer> INTEGER = new RowMapper<Integer>() {
+		@Override
+		public Integer mapRow(ResultSet results) throws SQLException {
+			return results.getInt(1);
+		}
+	};
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.NotFoundException;
+
+import uk.ac.ox.it.ords.api.database.structure.dto.BatchOperation;
+import uk.ac.ox.it.ords.api.database.structure.exceptions.BadParameterException;
+import uk.ac.ox.it.ords.api.database.structure.exceptions.NamingConflictException;
+import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
+import uk.ac.ox.it.ords.api.database.structure.services.ColumnStructureService;
+import uk.ac.ox.it.ords.api.database.structure.services.CommentService;
+import uk.ac.ox.it.ords.api.database.structure.services.ConstraintService;
+import uk.ac.ox.it.ords.api.database.structure.services.IndexService;
+import uk.ac.ox.it.ords.api.database.structure.services.SchemaBatchService;
+import uk.ac.ox.it.ords.api.database.structure.services.TableStructureService;
+
+public class SchemaBatchServiceImpl extends StructureServiceImpl implements SchemaBatchService {
+
+	@Override
+	public void runBatch(OrdsPhysicalDatabase database,
+			List<BatchOperation> operations, boolean staging) throws Exception {
+		String databaseName = database.getDbConsumedName();
+		if ( staging ) {
+			databaseName = this.calculateStagingName(databaseName);
+		}
+		String server = database.getDatabaseServer();
+		
+		//
+		// Check the whole batch against the current schema before we change
+		// anything, so that a mistake late in the batch is reported without
+		// having to run and roll back everything before it
+		//
+		validate(new Schema(this.getCatalogSnapshot(databaseName, server, null)), operations);
+		
+		//
+		// Each operation is run by the usual service, but as the transaction
+		// is bound to this thread they all share its connection
+		//
+		StructureTransaction transaction = this.beginTransaction(server, databaseName);
+		try {
+			for (BatchOperation operation : operations) {
+				run(database, operation, staging);
+			}
+			transaction.commit();
+		} catch (Exception e) {
+			transaction.rollback();
+			throw e;
+		} finally {
+			transaction.close();
+			this.invalidateTableList(database, staging);
+		}
+	}
+	
+	private void run(OrdsPhysicalDatabase database, BatchOperation operation, boolean staging) throws Exception {
+		String action = operation.getAction();
+		String tableName = operation.getTablename();
+		String name = operation.getName();
+		switch (operation.getType()) {
+			case BatchOperation.TABLE : {
+				TableStructureService tables = TableStructureService.Factory.getInstance();
+				if (action.equals(BatchOperation.CREATE)) {
+					tables.createNewTable(database, tableName, staging);
+				} else if (action.equals(BatchOperation.UPDATE)) {
+					tables.renameTable(database, tableName, operation.getNewname(), staging);
+				} else {
+					tables.deleteTable(database, tableName, staging);
+				}
+				break;
+			}
+			case BatchOperation.COLUMN : {
+				ColumnStructureService columns = ColumnStructureService.Factory.getInstance();
+				if (action.equals(BatchOperation.CREATE)) {
+					columns.createColumn(database, tableName, name, operation.getColumn(), staging);
+				} else if (action.equals(BatchOperation.UPDATE)) {
+					columns.updateColumn(database, tableName, name, operation.getColumn(), staging);
+				} else {
+					columns.deleteColumn(database, tableName, name, staging);
+				}
+				break;
+			}
+			case BatchOperation.INDEX : {
+				IndexService indexes = IndexService.Factory.getInstance();
+				if (action.equals(BatchOperation.CREATE)) {
+					indexes.createIndex(database, tableName, name, operation.getIndex(), staging);
+				} else if (action.equals(BatchOperation.UPDATE)) {
+					indexes.updateIndex(database, tableName, name, operation.getIndex(), staging);
+				} else {
+					indexes.deleteIndex(database, tableName, name, staging);
+				}
+				break;
+			}
+			case BatchOperation.CONSTRAINT : {
+				ConstraintService constraints = ConstraintService.Factory.getInstance();
+				if (action.equals(BatchOperation.CREATE)) {
+					constraints.createConstraint(database, tableName, name, operation.getConstraint(), staging);
+				} else if (action.equals(BatchOperation.UPDATE)) {
+					constraints.updateConstraint(database, tableName, name, operation.getConstraint(), staging);
+				} else {
+					constraints.deleteConstraint(database, tableName, name, staging);
+				}
+				break;
+			}
+			case BatchOperation.COMMENT : {
+				CommentService comments = CommentService.Factory.getInstance();
+				if (name == null) {
+					comments.setTableComment(database, tableName, operation.getComment(), staging);
+				} else {
+					comments.setColumnComment(database, tableName, name, operation.getComment(), staging);
+				}
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Checks that each operation is well formed, and that the tables, columns
+	 * and indexes it refers to will exist (or not) at the point it is run
+	 * 
+	 * @param schema the schema before the batch is run, which is updated as
+	 * each operation is checked
+	 * @param operations the operations
+	 * @throws Exception if an operation is invalid
+	 */
+	static void validate(Schema schema, List<BatchOperation> operations) throws Exception {
+		for (int i = 0; i < operations.size(); i++) {
+			BatchOperation operation = operations.get(i);
+			String prefix = String.format("Operation %d: ", i);
+			
+			if (operation == null) {
+				throw new BadParameterException(prefix + "missing operation");
+			}
+			String type = operation.getType();
+			String action = operation.getAction();
+			String tableName = operation.getTablename();
+			String name = operation.getName();
+			
+			if (type == null) {
+				throw new BadParameterException(prefix + "no type specified");
+			}
+			if (type.equals(BatchOperation.COMMENT)) {
+				if (action != null && !action.equals(BatchOperation.UPDATE)) {
+					throw new BadParameterException(prefix + "comments can only be updated");
+				}
+				operation.setAction(BatchOperation.UPDATE);
+				action = BatchOperation.UPDATE;
+			}
+			if (action == null || !(action.equals(BatchOperation.CREATE)
+					|| action.equals(BatchOperation.UPDATE)
+					|| action.equals(BatchOperation.DELETE))) {
+				throw new BadParameterException(prefix + "unknown action " + action);
+			}
+			if (tableName == null || tableName.isEmpty()) {
+				throw new BadParameterException(prefix + "no table specified");
+			}
+			boolean create = action.equals(BatchOperation.CREATE);
+			boolean update = action.equals(BatchOperation.UPDATE);
+			
+			if (type.equals(BatchOperation.TABLE)) {
+				if (create) {
+					if (schema.hasTable(tableName)) {
+						throw new NamingConflictException(prefix + "table " + tableName + " already exists");
+					}
+					schema.addTable(tableName);
+				} else {
+					schema.checkTable(prefix, tableName);
+					if (update) {
+						String newName = operation.getNewname();
+						if (newName == null || newName.isEmpty()) {
+							throw new BadParameterException(prefix + "no new name specified for table " + tableName);
+						}
+						if (schema.hasTable(newName)) {
+							throw new NamingConflictException(prefix + "table " + newName + " already exists");
+						}
+						schema.renameTable(tableName, newName);
+					} else {
+						schema.removeTable(tableName);
+					}
+				}
+				continue;
+			}
+			
+			schema.checkTable(prefix, tableName);
+			
+			if (type.equals(BatchOperation.COMMENT)) {
+				if (name != null) {
+					schema.checkColumn(prefix, tableName, name);
+				}
+				continue;
+			}
+			
+			if (name == null || name.isEmpty()) {
+				throw new BadParameterException(prefix + "no " + type + " name specified");
+			}
+			
+			if (type.equals(BatchOperation.COLUMN)) {
+				if (create) {
+					if (operation.getColumn() == null) {
+						throw new BadParameterException(prefix + "no column specified");
+					}
+					if (schema.hasColumn(tableName, name)) {
+						throw new NamingConflictException(prefix + "column " + name + " already exists in table " + tableName);
+					}
+					schema.getColumns(tableName).add(name);
+				} else {
+					schema.checkColumn(prefix, tableName, name);
+					if (update) {
+						if (operation.getColumn() == null) {
+							throw new BadParameterException(prefix + "no column specified");
+						}
+						String newName = operation.getColumn().getNewname();
+						if (newName != null && !newName.isEmpty()) {
+							if (schema.hasColumn(tableName, newName)) {
+								throw new NamingConflictException(prefix + "column " + newName + " already exists in table " + tableName);
+							}
+							schema.getColumns(tableName).remove(name);
+							schema.getColumns(tableName).add(newName);
+						}
+					} else {
+						schema.getColumns(tableName).remove(name);
+					}
+				}
+			} else if (type.equals(BatchOperation.INDEX)) {
+				if (create) {
+					if (operation.getIndex() == null) {
+						throw new BadParameterException(prefix + "no index specified");
+					}
+					if (schema.hasIndex(tableName, name)) {
+						throw new NamingConflictException(prefix + "index " + name + " already exists on table " + tableName);
+					}
+					schema.getIndexes(tableName).add(name);
+				} else {
+					if (!schema.hasIndex(tableName, name)) {
+						throw new NotFoundException(prefix + "no index " + name + " on table " + tableName);
+					}
+					if (update) {
+						if (operation.getIndex() == null) {
+							throw new BadParameterException(prefix + "no index specified");
+						}
+						String newName = operation.getIndex().getNewname();
+						if (newName != null && !newName.isEmpty()) {
+							schema.getIndexes(tableName).remove(name);
+							schema.getIndexes(tableName).add(newName);
+						}
+					} else {
+						schema.getIndexes(tableName).remove(name);
+					}
+				}
+			} else if (type.equals(BatchOperation.CONSTRAINT)) {
+				//
+				// The snapshot doesn't include every kind of constraint, so
+				// the constraint service checks whether they exist
+				//
+				if (!action.equals(BatchOperation.DELETE) && operation.getConstraint() == null) {
+					throw new BadParameterException(prefix + "no constraint specified");
+				}
+				if (update) {
+					String newName = operation.getConstraint().getNewname();
+					if (newName == null || newName.isEmpty()) {
+						throw new BadParameterException(prefix + "no new name specified for constraint " + name);
+					}
+				}
+			} else {
+				throw new BadParameterException(prefix + "unknown type " + type);
+			}
+		}
+	}
+	
+	/**
+	 * The tables, columns and indexes of a database, as they will be after
+	 * the operations validated so far
+	 */
+	static class Schema {
+		private final Map<String, Set<String>> columns = new HashMap<String, Set<String>>();
+		private final Map<String, Set<String>> indexes = new HashMap<String, Set<String>>();
+		
+		Schema() {
+		}
+		
+		Schema(CatalogSnapshot snapshot) {
+			for (String tableName : snapshot.getTableNames()) {
+				addTable(tableName);
+				for (CatalogSnapshot.ColumnInfo column : snapshot.getColumns(tableName)) {
+					getColumns(tableName).add(column.getName());
+				}
+				for (CatalogSnapshot.IndexInfo index : snapshot.getIndexes(tableName)) {
+					getIndexes(tableName).add(index.getName());
+				}
+			}
+		}
+		
+		void addTable(String tableName) {
+			columns.put(tableName, new HashSet<String>());
+			indexes.put(tableName, new HashSet<String>());
+		}
+		
+		void renameTable(String tableName, String newName) {
+			columns.put(newName, columns.remove(tableName));
+			indexes.put(newName, indexes.remove(tableName));
+		}
+		
+		void removeTable(String tableName) {
+			columns.remove(tableName);
+			indexes.remove(tableName);
+		}
+		
+		boolean hasTable(String tableName) {
+			return columns.containsKey(tableName);
+		}
+		
+		boolean hasColumn(String tableName, String columnName) {
+			return columns.get(tableName).contains(columnName);
+		}
+		
+		boolean hasIndex(String tableName, String indexName) {
+			return indexes.get(tableName).contains(indexName);
+		}
+		
+		Set<String> getColumns(String tableName) {
+			return columns.get(tableName);
+		}
+		
+		Set<String> getIndexes(String tableName) {
+			return indexes.get(tableName);
+		}
+		
+		void checkTable(String prefix, String tableName) {
+			if (!hasTable(tableName)) {
+				throw new NotFoundException(prefix + "no table called " + tableName);
+			}
+		}
+		
+		void checkColumn(String prefix, String tableName, String columnName) {
+			if (!hasColumn(tableName, columnName)) {
+				throw new NotFoundException(prefix + "no column " + columnName + " in table " + tableName);
+			}
+		}
+	}
+}
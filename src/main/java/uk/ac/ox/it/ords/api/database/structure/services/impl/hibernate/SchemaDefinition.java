@@ -0,0 +1,525 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The definition of the public schema of a database in enough detail to
+ * recreate it: its tables and columns with their types, defaults and
+ * comments, its sequences, constraints and indexes. Definitions are read
+ * from the catalog using PostgreSQL's own pg_get_*def functions, so they can
+ * be run as-is against another database. See
+ * StructureServiceImpl.getSchemaDefinition().
+ * 
+ * Each table, sequence and column also has an identity, which is its oid
+ * (and attribute number) in the database it was read from; this is what
+ * lets us tell a renamed object from one that was dropped and replaced.
+ */
+public class SchemaDefinition {
+
+	static final String RELATIONS_QUERY = "SELECT c.oid, c.relname, c.relkind, "
+			+ "obj_description(c.oid, 'pg_class') AS comment "
+			+ "FROM pg_class c "
+			+ "JOIN pg_namespace n ON n.oid = c.relnamespace "
+			+ "WHERE n.nspname = 'public' AND c.relkind IN ('r', 'S') "
+			+ "ORDER BY c.relname::text COLLATE \"C\"";
+
+	static final String COLUMNS_QUERY = "SELECT a.attrelid, a.attnum, a.attname, "
+			+ "format_type(a.atttypid, a.atttypmod) AS type, "
+			+ "pg_get_expr(d.adbin, d.adrelid) AS default_value, "
+			+ "a.attnotnull, col_description(a.attrelid, a.attnum) AS comment "
+			+ "FROM pg_attribute a "
+			+ "JOIN pg_class c ON c.oid = a.attrelid "
+			+ "JOIN pg_namespace n ON n.oid = c.relnamespace "
+			+ "LEFT JOIN pg_attrdef d ON d.adrelid = a.attrelid AND d.adnum = a.attnum "
+			+ "WHERE n.nspname = 'public' AND c.relkind = 'r' AND a.attnum > 0 AND NOT a.attisdropped "
+			+ "ORDER BY a.attrelid, a.attnum";
+
+	static final String CONSTRAINTS_QUERY = "SELECT k.conrelid, k.conname, k.contype, "
+			+ "pg_get_constraintdef(k.oid) AS definition, rc.relname AS referenced_table "
+			+ "FROM pg_constraint k "
+			+ "JOIN pg_class c ON c.oid = k.conrelid "
+			+ "JOIN pg_namespace n ON n.oid = c.relnamespace "
+			+ "LEFT JOIN pg_class rc ON rc.oid = k.confrelid "
+			+ "WHERE n.nspname = 'public' AND k.contype IN ('p', 'u', 'c', 'f') "
+			+ "ORDER BY k.conname::text COLLATE \"C\"";
+
+	//
+	// Indexes that back a constraint are created with the constraint
+	//
+	static final String INDEXES_QUERY = "SELECT i.indrelid, ic.relname, "
+			+ "pg_get_indexdef(i.indexrelid) AS definition "
+			+ "FROM pg_index i "
+			+ "JOIN pg_class ic ON ic.oid = i.indexrelid "
+			+ "JOIN pg_class c ON c.oid = i.indrelid "
+			+ "JOIN pg_namespace n ON n.oid = c.relnamespace "
+			+ "WHERE n.nspname = 'public' AND c.relkind = 'r' "
+			+ "AND NOT EXISTS (SELECT 1 FROM pg_constraint k WHERE k.conindid = i.indexrelid) "
+			+ "ORDER BY ic.relname::text COLLATE \"C\"";
+
+	//
+	// Sequences that belong to a column, such as those of serial columns
+	//
+	static final String SEQUENCE_OWNERS_QUERY = "SELECT s.oid, t.relname, a.attname "
+			+ "FROM pg_depend d "
+			+ "JOIN pg_class s ON s.oid = d.objid AND s.relkind = 'S' "
+			+ "JOIN pg_namespace n ON n.oid = s.relnamespace "
+			+ "JOIN pg_class t ON t.oid = d.refobjid "
+			+ "JOIN pg_attribute a ON a.attrelid = t.oid AND a.attnum = d.refobjsubid "
+			+ "WHERE n.nspname = 'public' AND d.classid = 'pg_class'::regclass AND d.deptype = 'a'";
+
+	private final Map<String, Table> tables = new LinkedHashMap<String, Table>();
+	private final Map<String, Sequence> sequences = new LinkedHashMap<String, Sequence>();
+	private final Map<Long, Table> tablesById = new HashMap<Long, Table>();
+	private final Map<Long, Sequence> sequencesById = new HashMap<Long, Sequence>();
+
+	public static class Table {
+		long oid;
+		String name;
+		String comment;
+		final List<Column> columns = new ArrayList<Column>();
+		final List<Constraint> constraints = new ArrayList<Constraint>();
+		final List<Index> indexes = new ArrayList<Index>();
+
+		public String getName() {
+			return name;
+		}
+		public String getComment() {
+			return comment;
+		}
+		public List<Column> getColumns() {
+			return columns;
+		}
+		public List<Constraint> getConstraints() {
+			return constraints;
+		}
+		public List<Index> getIndexes() {
+			return indexes;
+		}
+		public Column getColumn(String columnName) {
+			for (Column column : columns) {
+				if (column.name.equals(columnName)) {
+					return column;
+				}
+			}
+			return null;
+		}
+		public Constraint getConstraint(String constraintName) {
+			for (Constraint constraint : constraints) {
+				if (constraint.name.equals(constraintName)) {
+					return constraint;
+				}
+			}
+			return null;
+		}
+		public Index getIndex(String indexName) {
+			for (Index index : indexes) {
+				if (index.name.equals(indexName)) {
+					return index;
+				}
+			}
+			return null;
+		}
+	}
+
+	public static class Column {
+		int number;
+		String name;
+		String type;
+		String defaultValue;
+		boolean notNull;
+		String comment;
+
+		public String getName() {
+			return name;
+		}
+		public String getType() {
+			return type;
+		}
+		public String getDefaultValue() {
+			return defaultValue;
+		}
+		public boolean isNotNull() {
+			return notNull;
+		}
+		public String getComment() {
+			return comment;
+		}
+
+		/**
+		 * @return the column as it appears in CREATE TABLE or ADD COLUMN
+		 */
+		String getDefinition() {
+			StringBuilder definition = new StringBuilder(quoteIdent(name)).append(' ').append(type);
+			if (defaultValue != null) {
+				definition.append(" DEFAULT ").append(defaultValue);
+			}
+			if (notNull) {
+				definition.append(" NOT NULL");
+			}
+			return definition.toString();
+		}
+	}
+
+	public static class Constraint {
+		String name;
+		char type;
+		String definition;
+		
+		/**
+		 * For a foreign key, the table it references
+		 */
+		String referencedTable;
+
+		public String getName() {
+			return name;
+		}
+		public boolean isForeignKey() {
+			return type == 'f';
+		}
+		/**
+		 * @return true for a primary key or unique constraint, which foreign
+		 * keys can reference
+		 */
+		public boolean isKey() {
+			return type == 'p' || type == 'u';
+		}
+		public String getDefinition() {
+			return definition;
+		}
+	}
+
+	public static class Index {
+		String name;
+		String definition;
+
+		public String getName() {
+			return name;
+		}
+		public String getDefinition() {
+			return definition;
+		}
+		public boolean isUnique() {
+			return definition.startsWith("CREATE UNIQUE INDEX");
+		}
+	}
+
+	public static class Sequence {
+		long oid;
+		String name;
+		long lastValue = 1;
+		boolean called;
+		String ownerTable;
+		String ownerColumn;
+
+		public String getName() {
+			return name;
+		}
+		public String getOwnerTable() {
+			return ownerTable;
+		}
+		public String getOwnerColumn() {
+			return ownerColumn;
+		}
+	}
+
+	void readRelation(ResultSet results) throws SQLException {
+		long oid = results.getLong("oid");
+		String name = results.getString("relname");
+		if ("S".equals(results.getString("relkind"))) {
+			Sequence sequence = new Sequence();
+			sequence.oid = oid;
+			sequence.name = name;
+			addSequence(sequence);
+		} else {
+			Table table = new Table();
+			table.oid = oid;
+			table.name = name;
+			table.comment = results.getString("comment");
+			addTable(table);
+		}
+	}
+
+	void addTable(Table table) {
+		tables.put(table.name, table);
+		tablesById.put(table.oid, table);
+	}
+
+	void addSequence(Sequence sequence) {
+		sequences.put(sequence.name, sequence);
+		sequencesById.put(sequence.oid, sequence);
+	}
+
+	void readColumn(ResultSet results) throws SQLException {
+		Table table = tablesById.get(results.getLong("attrelid"));
+		if (table != null) {
+			Column column = new Column();
+			column.number = results.getInt("attnum");
+			column.name = results.getString("attname");
+			column.type = results.getString("type");
+			column.defaultValue = results.getString("default_value");
+			column.notNull = results.getBoolean("attnotnull");
+			column.comment = results.getString("comment");
+			table.columns.add(column);
+		}
+	}
+
+	void readConstraint(ResultSet results) throws SQLException {
+		Table table = tablesById.get(results.getLong("conrelid"));
+		if (table != null) {
+			Constraint constraint = new Constraint();
+			constraint.name = results.getString("conname");
+			constraint.type = results.getString("contype").charAt(0);
+			constraint.definition = results.getString("definition");
+			constraint.referencedTable = results.getString("referenced_table");
+			table.constraints.add(constraint);
+		}
+	}
+
+	void readIndex(ResultSet results) throws SQLException {
+		Table table = tablesById.get(results.getLong("indrelid"));
+		if (table != null) {
+			Index index = new Index();
+			index.name = results.getString("relname");
+			index.definition = results.getString("definition");
+			table.indexes.add(index);
+		}
+	}
+
+	void readSequenceOwner(ResultSet results) throws SQLException {
+		Sequence sequence = sequencesById.get(results.getLong("oid"));
+		if (sequence != null) {
+			sequence.ownerTable = results.getString("relname");
+			sequence.ownerColumn = results.getString("attname");
+		}
+	}
+
+	/**
+	 * @return a query reading the current value of every sequence, or null
+	 * if there are none. Each sequence is its own relation, so this can't
+	 * be done with a parameter.
+	 */
+	String getSequenceValuesQuery() {
+		if (sequences.isEmpty()) {
+			return null;
+		}
+		StringBuilder query = new StringBuilder();
+		for (Sequence sequence : sequences.values()) {
+			if (query.length() > 0) {
+				query.append(" UNION ALL ");
+			}
+			query.append("SELECT ").append(sequence.oid).append("::bigint AS oid, last_value, is_called FROM ")
+					.append(quoteIdent(sequence.name));
+		}
+		return query.toString();
+	}
+
+	void readSequenceValue(ResultSet results) throws SQLException {
+		Sequence sequence = sequencesById.get(results.getLong("oid"));
+		if (sequence != null) {
+			sequence.lastValue = results.getLong("last_value");
+			sequence.called = results.getBoolean("is_called");
+		}
+	}
+
+	public List<Table> getTables() {
+		return new ArrayList<Table>(tables.values());
+	}
+
+	public Table getTable(String tableName) {
+		return tables.get(tableName);
+	}
+
+	public List<Sequence> getSequences() {
+		return new ArrayList<Sequence>(sequences.values());
+	}
+
+	public Sequence getSequence(String sequenceName) {
+		return sequences.get(sequenceName);
+	}
+
+	/**
+	 * Gets the names of the tables, sequences and columns keyed by their
+	 * identity. A copy of a database made with CREATE DATABASE ... TEMPLATE
+	 * keeps the oids of the original, and oids are allocated across the
+	 * whole server, so this can be used to match the objects of such a copy
+	 * back to the original.
+	 * 
+	 * @return the names
+	 */
+	public Map<String, String> getNames() {
+		Map<String, String> names = new HashMap<String, String>();
+		for (Table table : tables.values()) {
+			names.put(getIdentity(table.oid), table.name);
+			for (Column column : table.columns) {
+				names.put(getIdentity(table.oid, column.number), column.name);
+			}
+		}
+		for (Sequence sequence : sequences.values()) {
+			names.put(getIdentity(sequence.oid), sequence.name);
+		}
+		return names;
+	}
+
+	/**
+	 * @return the identity of a table or sequence
+	 */
+	static String getIdentity(long oid) {
+		return getIdentity(oid, 0);
+	}
+
+	/**
+	 * @return the identity of a column
+	 */
+	static String getIdentity(long oid, int number) {
+		return oid + "." + number;
+	}
+
+	/**
+	 * Gets the statements that recreate this schema in an empty database,
+	 * in the order they have to be run
+	 * 
+	 * @return the statements
+	 */
+	public List<String> getCreateStatements() {
+		List<String> statements = new ArrayList<String>();
+		//
+		// Sequences first, as column defaults refer to them
+		//
+		for (Sequence sequence : sequences.values()) {
+			statements.add(getCreateStatement(sequence));
+			statements.add(getRestartStatement(sequence));
+		}
+		for (Table table : tables.values()) {
+			statements.add(getCreateStatement(table));
+		}
+		for (Sequence sequence : sequences.values()) {
+			if (sequence.ownerTable != null) {
+				statements.add(getOwnedByStatement(sequence));
+			}
+		}
+		//
+		// Foreign keys need the primary keys, unique constraints and unique
+		// indexes they refer to
+		//
+		for (Table table : tables.values()) {
+			for (Constraint constraint : table.constraints) {
+				if (!constraint.isForeignKey()) {
+					statements.add(getAddStatement(table, constraint));
+				}
+			}
+		}
+		for (Table table : tables.values()) {
+			for (Index index : table.indexes) {
+				statements.add(index.definition);
+			}
+		}
+		for (Table table : tables.values()) {
+			for (Constraint constraint : table.constraints) {
+				if (constraint.isForeignKey()) {
+					statements.add(getAddStatement(table, constraint));
+				}
+			}
+		}
+		for (Table table : tables.values()) {
+			if (table.comment != null) {
+				statements.add(getCommentStatement(table, table.comment));
+			}
+			for (Column column : table.columns) {
+				if (column.comment != null) {
+					statements.add(getCommentStatement(table, column, column.comment));
+				}
+			}
+		}
+		return statements;
+	}
+
+	static String getCreateStatement(Table table) {
+		List<String> columns = new ArrayList<String>();
+		for (Column column : table.columns) {
+			columns.add(column.getDefinition());
+		}
+		return String.format("CREATE TABLE %s (%s)", quoteIdent(table.name), StringUtils.join(columns, ", "));
+	}
+
+	static String getCreateStatement(Sequence sequence) {
+		return String.format("CREATE SEQUENCE %s", quoteIdent(sequence.name));
+	}
+
+	/**
+	 * Gets the statement that makes a sequence carry on from the value it
+	 * had got to. This is used rather than setval(), as statements are run
+	 * as a JDBC batch, in which none may return rows. Sequences we create
+	 * increment by 1; for any others this still only moves them forward.
+	 */
+	static String getRestartStatement(Sequence sequence) {
+		return String.format("ALTER SEQUENCE %s RESTART WITH %d", 
+				quoteIdent(sequence.name), sequence.called ? sequence.lastValue + 1 : sequence.lastValue);
+	}
+
+	static String getOwnedByStatement(Sequence sequence) {
+		if (sequence.ownerTable == null) {
+			return String.format("ALTER SEQUENCE %s OWNED BY NONE", quoteIdent(sequence.name));
+		}
+		return String.format("ALTER SEQUENCE %s OWNED BY %s.%s", 
+				quoteIdent(sequence.name), 
+				quoteIdent(sequence.ownerTable), 
+				quoteIdent(sequence.ownerColumn));
+	}
+
+	static String getAddStatement(Table table, Constraint constraint) {
+		return String.format("ALTER TABLE %s ADD CONSTRAINT %s %s", 
+				quoteIdent(table.name), 
+				quoteIdent(constraint.name), 
+				constraint.definition);
+	}
+
+	static String getCommentStatement(Table table, String comment) {
+		return String.format("COMMENT ON TABLE %s IS %s", 
+				quoteIdent(table.name), 
+				comment == null ? "NULL" : quoteLiteral(comment));
+	}
+
+	static String getCommentStatement(Table table, Column column, String comment) {
+		return String.format("COMMENT ON COLUMN %s.%s IS %s", 
+				quoteIdent(table.name), 
+				quoteIdent(column.name), 
+				comment == null ? "NULL" : quoteLiteral(comment));
+	}
+
+	//
+	// Everything quoted here has been read from the catalog rather than
+	// a request, and this is also used by background jobs, so we don't use
+	// the checked versions in AbstractStructureService
+	//
+	static String quoteIdent(String ident) {
+		return "\"" + ident.replace("\"", "\"\"") + "\"";
+	}
+
+	static String quoteLiteral(String literal) {
+		return "'" + literal.replace("'", "''") + "'";
+	}
+}
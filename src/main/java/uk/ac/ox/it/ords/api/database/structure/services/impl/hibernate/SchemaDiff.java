@@ -0,0 +1,460 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import static uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.SchemaDefinition.quoteIdent;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.ObjectUtils;
+
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.SchemaDefinition.Column;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.SchemaDefinition.Constraint;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.SchemaDefinition.Index;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.SchemaDefinition.Sequence;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.SchemaDefinition.Table;
+
+/**
+ * Works out the DDL that changes the structure of one database (the source)
+ * into that of another (the target), leaving the source's data in place.
+ * 
+ * This is done in two steps, run in the same transaction. The first drops
+ * and renames tables, sequences and columns, using an identity map to match
+ * the objects of the target to those of the source. Once that has been run,
+ * the source is read again, and the second step works out the remaining
+ * changes by name.
+ */
+public class SchemaDiff {
+	
+	private static final String TEMPORARY_NAME = "ords_merge_%d";
+
+	/**
+	 * Gets the drops and renames that match the tables, sequences and
+	 * columns of the source to those of the target.
+	 * 
+	 * Target objects are matched to the source object named in the identity
+	 * map, if it still exists; those with no entry are matched to a source
+	 * object with the same name, if there is one that isn't otherwise
+	 * matched. This errs on the side of keeping data. Source objects left
+	 * unmatched are dropped.
+	 * 
+	 * @param source the definition of the source
+	 * @param target the definition of the target
+	 * @param identity the names of source objects, keyed by the identity of
+	 * the target objects they became
+	 * @return the statements to run against the source
+	 */
+	public static List<String> getRenamesAndDrops(SchemaDefinition source, SchemaDefinition target, Map<String, String> identity) {
+		List<String> drops = new ArrayList<String>();
+		Map<String, String> tableRenames = new LinkedHashMap<String, String>();
+		Map<String, String> sequenceRenames = new LinkedHashMap<String, String>();
+		
+		Map<Table, Table> tables = matchTables(source, target, identity);
+		for (Table table : source.getTables()) {
+			if (!tables.containsKey(table)) {
+				drops.add(String.format("DROP TABLE %s CASCADE", quoteIdent(table.name)));
+			}
+		}
+		for (Map.Entry<Table, Table> match : tables.entrySet()) {
+			if (!match.getKey().name.equals(match.getValue().name)) {
+				tableRenames.put(match.getKey().name, match.getValue().name);
+			}
+		}
+		
+		Map<Sequence, Sequence> sequences = matchSequences(source, target, identity);
+		for (Sequence sequence : source.getSequences()) {
+			if (!sequences.containsKey(sequence)) {
+				drops.add(String.format("DROP SEQUENCE IF EXISTS %s CASCADE", quoteIdent(sequence.name)));
+			}
+		}
+		for (Map.Entry<Sequence, Sequence> match : sequences.entrySet()) {
+			if (!match.getKey().name.equals(match.getValue().name)) {
+				sequenceRenames.put(match.getKey().name, match.getValue().name);
+			}
+		}
+		
+		List<String> columnRenames = new ArrayList<String>();
+		for (Map.Entry<Table, Table> match : tables.entrySet()) {
+			Table sourceTable = match.getKey();
+			Table targetTable = match.getValue();
+			Map<Column, Column> columns = matchColumns(sourceTable, targetTable, identity);
+			for (Column column : sourceTable.columns) {
+				if (!columns.containsKey(column)) {
+					drops.add(String.format("ALTER TABLE %s DROP COLUMN %s CASCADE", 
+							quoteIdent(sourceTable.name), 
+							quoteIdent(column.name)));
+				}
+			}
+			Map<String, String> renamed = new LinkedHashMap<String, String>();
+			for (Map.Entry<Column, Column> column : columns.entrySet()) {
+				if (!column.getKey().name.equals(column.getValue().name)) {
+					renamed.put(column.getKey().name, column.getValue().name);
+				}
+			}
+			//
+			// Columns are renamed after their table, so use its new name
+			//
+			addColumnRenames(targetTable.name, renamed, columnRenames);
+		}
+		
+		List<String> statements = new ArrayList<String>(drops);
+		addRelationRenames(tableRenames, sequenceRenames, statements);
+		statements.addAll(columnRenames);
+		return statements;
+	}
+	
+	/**
+	 * Gets the remaining changes, matching objects by name; this should be
+	 * run after getRenamesAndDrops(), against a fresh definition of the
+	 * source.
+	 * 
+	 * @param source the definition of the source
+	 * @param target the definition of the target
+	 * @return the statements to run against the source
+	 */
+	public static List<String> getChanges(SchemaDefinition source, SchemaDefinition target) {
+		List<String> statements = new ArrayList<String>();
+		
+		//
+		// Drop changed and removed constraints and indexes, foreign keys
+		// first as they depend on the others. A foreign key also has to be
+		// dropped, and added again afterwards, if the key or unique index it
+		// references is changed, even if the foreign key itself isn't.
+		//
+		Set<String> changedKeys = new HashSet<String>();
+		for (Table sourceTable : source.getTables()) {
+			Table targetTable = target.getTable(sourceTable.name);
+			if (targetTable != null) {
+				for (Constraint constraint : sourceTable.constraints) {
+					if (constraint.isKey() && !constraint.definition.equals(getDefinition(targetTable.getConstraint(constraint.name)))) {
+						changedKeys.add(sourceTable.name);
+					}
+				}
+				for (Index index : sourceTable.indexes) {
+					if (index.isUnique() && !index.definition.equals(getDefinition(targetTable.getIndex(index.name)))) {
+						changedKeys.add(sourceTable.name);
+					}
+				}
+			}
+		}
+		Set<String> droppedForeignKeys = new HashSet<String>();
+		for (Table sourceTable : source.getTables()) {
+			Table targetTable = target.getTable(sourceTable.name);
+			if (targetTable != null) {
+				for (Constraint constraint : sourceTable.constraints) {
+					if (constraint.isForeignKey() && (changedKeys.contains(constraint.referencedTable) 
+							|| !constraint.definition.equals(getDefinition(targetTable.getConstraint(constraint.name))))) {
+						statements.add(getDropStatement(sourceTable, constraint));
+						droppedForeignKeys.add(getKey(sourceTable, constraint));
+					}
+				}
+			}
+		}
+		for (Table sourceTable : source.getTables()) {
+			Table targetTable = target.getTable(sourceTable.name);
+			if (targetTable != null) {
+				for (Constraint constraint : sourceTable.constraints) {
+					if (!constraint.isForeignKey() && !constraint.definition.equals(getDefinition(targetTable.getConstraint(constraint.name)))) {
+						statements.add(getDropStatement(sourceTable, constraint));
+					}
+				}
+				for (Index index : sourceTable.indexes) {
+					if (!index.definition.equals(getDefinition(targetTable.getIndex(index.name)))) {
+						statements.add(String.format("DROP INDEX %s", quoteIdent(index.name)));
+					}
+				}
+			}
+		}
+		
+		//
+		// New sequences and tables
+		//
+		for (Sequence sequence : target.getSequences()) {
+			if (source.getSequence(sequence.name) == null) {
+				statements.add(SchemaDefinition.getCreateStatement(sequence));
+				statements.add(SchemaDefinition.getRestartStatement(sequence));
+			}
+		}
+		for (Table table : target.getTables()) {
+			if (source.getTable(table.name) == null) {
+				statements.add(SchemaDefinition.getCreateStatement(table));
+			}
+		}
+		
+		//
+		// Columns of existing tables
+		//
+		for (Table sourceTable : source.getTables()) {
+			Table targetTable = target.getTable(sourceTable.name);
+			if (targetTable == null) {
+				continue;
+			}
+			String tableName = quoteIdent(sourceTable.name);
+			for (Column column : sourceTable.columns) {
+				if (targetTable.getColumn(column.name) == null) {
+					statements.add(String.format("ALTER TABLE %s DROP COLUMN %s CASCADE", tableName, quoteIdent(column.name)));
+				}
+			}
+			for (Column targetColumn : targetTable.columns) {
+				Column sourceColumn = sourceTable.getColumn(targetColumn.name);
+				String columnName = quoteIdent(targetColumn.name);
+				if (sourceColumn == null) {
+					statements.add(String.format("ALTER TABLE %s ADD COLUMN %s", tableName, targetColumn.getDefinition()));
+					continue;
+				}
+				boolean typeChanged = !sourceColumn.type.equals(targetColumn.type);
+				boolean defaultChanged = !ObjectUtils.equals(sourceColumn.defaultValue, targetColumn.defaultValue);
+				//
+				// The old default may not be valid for the new type
+				//
+				if (sourceColumn.defaultValue != null && (typeChanged || defaultChanged)) {
+					statements.add(String.format("ALTER TABLE %s ALTER %s DROP DEFAULT", tableName, columnName));
+				}
+				if (typeChanged) {
+					statements.add(String.format("ALTER TABLE %1$s ALTER %2$s TYPE %3$s USING CAST(%2$s AS %3$s)", 
+							tableName, columnName, targetColumn.type));
+				}
+				if (targetColumn.defaultValue != null && (typeChanged || defaultChanged)) {
+					statements.add(String.format("ALTER TABLE %s ALTER %s SET DEFAULT %s", tableName, columnName, targetColumn.defaultValue));
+				}
+				if (sourceColumn.notNull != targetColumn.notNull) {
+					statements.add(String.format("ALTER TABLE %s ALTER %s %s NOT NULL", 
+							tableName, columnName, targetColumn.notNull ? "SET" : "DROP"));
+				}
+			}
+		}
+		
+		for (Table table : source.getTables()) {
+			if (target.getTable(table.name) == null) {
+				statements.add(String.format("DROP TABLE %s CASCADE", quoteIdent(table.name)));
+			}
+		}
+		
+		//
+		// Sequences; values are only ever moved forward, so that names and
+		// keys generated in either database stay unique
+		//
+		for (Sequence targetSequence : target.getSequences()) {
+			Sequence sourceSequence = source.getSequence(targetSequence.name);
+			if (sourceSequence == null) {
+				if (targetSequence.ownerTable != null) {
+					statements.add(SchemaDefinition.getOwnedByStatement(targetSequence));
+				}
+				continue;
+			}
+			if (targetSequence.lastValue > sourceSequence.lastValue) {
+				statements.add(SchemaDefinition.getRestartStatement(targetSequence));
+			}
+			if (!ObjectUtils.equals(sourceSequence.ownerTable, targetSequence.ownerTable)
+					|| !ObjectUtils.equals(sourceSequence.ownerColumn, targetSequence.ownerColumn)) {
+				statements.add(SchemaDefinition.getOwnedByStatement(targetSequence));
+			}
+		}
+		for (Sequence sequence : source.getSequences()) {
+			if (target.getSequence(sequence.name) == null) {
+				statements.add(String.format("DROP SEQUENCE IF EXISTS %s CASCADE", quoteIdent(sequence.name)));
+			}
+		}
+		
+		//
+		// New and changed constraints and indexes
+		//
+		for (Table targetTable : target.getTables()) {
+			for (Constraint constraint : targetTable.constraints) {
+				if (!constraint.isForeignKey() && !hasConstraint(source, targetTable, constraint)) {
+					statements.add(SchemaDefinition.getAddStatement(targetTable, constraint));
+				}
+			}
+		}
+		//
+		// Indexes before foreign keys, which may reference a unique index
+		//
+		for (Table targetTable : target.getTables()) {
+			Table sourceTable = source.getTable(targetTable.name);
+			for (Index index : targetTable.indexes) {
+				if (sourceTable == null || !index.definition.equals(getDefinition(sourceTable.getIndex(index.name)))) {
+					statements.add(index.definition);
+				}
+			}
+		}
+		for (Table targetTable : target.getTables()) {
+			for (Constraint constraint : targetTable.constraints) {
+				if (constraint.isForeignKey() && (droppedForeignKeys.contains(getKey(targetTable, constraint)) 
+						|| !hasConstraint(source, targetTable, constraint))) {
+					statements.add(SchemaDefinition.getAddStatement(targetTable, constraint));
+				}
+			}
+		}
+		
+		//
+		// Comments
+		//
+		for (Table targetTable : target.getTables()) {
+			Table sourceTable = source.getTable(targetTable.name);
+			String comment = sourceTable == null ? null : sourceTable.comment;
+			if (!ObjectUtils.equals(comment, targetTable.comment)) {
+				statements.add(SchemaDefinition.getCommentStatement(targetTable, targetTable.comment));
+			}
+			for (Column targetColumn : targetTable.columns) {
+				Column sourceColumn = sourceTable == null ? null : sourceTable.getColumn(targetColumn.name);
+				comment = sourceColumn == null ? null : sourceColumn.comment;
+				if (!ObjectUtils.equals(comment, targetColumn.comment)) {
+					statements.add(SchemaDefinition.getCommentStatement(targetTable, targetColumn, targetColumn.comment));
+				}
+			}
+		}
+		return statements;
+	}
+	
+	private static Map<Table, Table> matchTables(SchemaDefinition source, SchemaDefinition target, Map<String, String> identity) {
+		Map<Table, Table> matches = new LinkedHashMap<Table, Table>();
+		List<Table> unmatched = new ArrayList<Table>();
+		for (Table table : target.getTables()) {
+			Table original = lookup(source.getTable(nameOf(identity, SchemaDefinition.getIdentity(table.oid))), matches);
+			if (original != null) {
+				matches.put(original, table);
+			} else {
+				unmatched.add(table);
+			}
+		}
+		for (Table table : unmatched) {
+			Table original = lookup(source.getTable(table.name), matches);
+			if (original != null) {
+				matches.put(original, table);
+			}
+		}
+		return matches;
+	}
+	
+	private static Map<Sequence, Sequence> matchSequences(SchemaDefinition source, SchemaDefinition target, Map<String, String> identity) {
+		Map<Sequence, Sequence> matches = new LinkedHashMap<Sequence, Sequence>();
+		List<Sequence> unmatched = new ArrayList<Sequence>();
+		for (Sequence sequence : target.getSequences()) {
+			Sequence original = lookup(source.getSequence(nameOf(identity, SchemaDefinition.getIdentity(sequence.oid))), matches);
+			if (original != null) {
+				matches.put(original, sequence);
+			} else {
+				unmatched.add(sequence);
+			}
+		}
+		for (Sequence sequence : unmatched) {
+			Sequence original = lookup(source.getSequence(sequence.name), matches);
+			if (original != null) {
+				matches.put(original, sequence);
+			}
+		}
+		return matches;
+	}
+	
+	private static Map<Column, Column> matchColumns(Table source, Table target, Map<String, String> identity) {
+		Map<Column, Column> matches = new LinkedHashMap<Column, Column>();
+		List<Column> unmatched = new ArrayList<Column>();
+		for (Column column : target.columns) {
+			String name = nameOf(identity, SchemaDefinition.getIdentity(target.oid, column.number));
+			Column original = name == null ? null : lookup(source.getColumn(name), matches);
+			if (original != null) {
+				matches.put(original, column);
+			} else {
+				unmatched.add(column);
+			}
+		}
+		for (Column column : unmatched) {
+			Column original = lookup(source.getColumn(column.name), matches);
+			if (original != null) {
+				matches.put(original, column);
+			}
+		}
+		return matches;
+	}
+	
+	/**
+	 * @return the object, unless it is null or already matched
+	 */
+	private static <T> T lookup(T object, Map<T, T> matches) {
+		if (object == null || matches.containsKey(object)) {
+			return null;
+		}
+		return object;
+	}
+	
+	private static String nameOf(Map<String, String> identity, String key) {
+		return identity == null ? null : identity.get(key);
+	}
+	
+	/**
+	 * Renames tables and sequences, which share a namespace. Everything is
+	 * first moved out of the way to a temporary name, so that names can be
+	 * swapped.
+	 */
+	private static void addRelationRenames(Map<String, String> tables, Map<String, String> sequences, List<String> statements) {
+		int count = 0;
+		List<String> second = new ArrayList<String>();
+		for (Map.Entry<String, String> rename : tables.entrySet()) {
+			String temporary = String.format(TEMPORARY_NAME, count++);
+			statements.add(String.format("ALTER TABLE %s RENAME TO %s", quoteIdent(rename.getKey()), quoteIdent(temporary)));
+			second.add(String.format("ALTER TABLE %s RENAME TO %s", quoteIdent(temporary), quoteIdent(rename.getValue())));
+		}
+		for (Map.Entry<String, String> rename : sequences.entrySet()) {
+			String temporary = String.format(TEMPORARY_NAME, count++);
+			statements.add(String.format("ALTER SEQUENCE %s RENAME TO %s", quoteIdent(rename.getKey()), quoteIdent(temporary)));
+			second.add(String.format("ALTER SEQUENCE %s RENAME TO %s", quoteIdent(temporary), quoteIdent(rename.getValue())));
+		}
+		statements.addAll(second);
+	}
+	
+	/**
+	 * Renames the columns of a table, again by way of temporary names
+	 */
+	private static void addColumnRenames(String tableName, Map<String, String> renames, List<String> statements) {
+		int count = 0;
+		List<String> second = new ArrayList<String>();
+		for (Map.Entry<String, String> rename : renames.entrySet()) {
+			String temporary = String.format(TEMPORARY_NAME, count++);
+			statements.add(String.format("ALTER TABLE %s RENAME COLUMN %s TO %s", 
+					quoteIdent(tableName), quoteIdent(rename.getKey()), quoteIdent(temporary)));
+			second.add(String.format("ALTER TABLE %s RENAME COLUMN %s TO %s", 
+					quoteIdent(tableName), quoteIdent(temporary), quoteIdent(rename.getValue())));
+		}
+		statements.addAll(second);
+	}
+	
+	private static boolean hasConstraint(SchemaDefinition source, Table targetTable, Constraint constraint) {
+		Table sourceTable = source.getTable(targetTable.name);
+		return sourceTable != null && constraint.definition.equals(getDefinition(sourceTable.getConstraint(constraint.name)));
+	}
+	
+	private static String getKey(Table table, Constraint constraint) {
+		return table.name + "." + constraint.name;
+	}
+	
+	private static String getDropStatement(Table table, Constraint constraint) {
+		return String.format("ALTER TABLE %s DROP CONSTRAINT %s", quoteIdent(table.name), quoteIdent(constraint.name));
+	}
+	
+	private static String getDefinition(Constraint constraint) {
+		return constraint == null ? null : constraint.definition;
+	}
+	
+	private static String getDefinition(Index index) {
+		return index == null ? null : index.definition;
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The version of a PostgreSQL server, and the features that depend on it.
+ * 
+ * The capabilities of each server are recorded by the connection pool
+ * whenever it opens a new connection, using the version the server reports
+ * when the connection is made, so looking them up doesn't cost a query and
+ * they are refreshed if the server is upgraded and we reconnect.
+ */
+public class ServerCapabilities {
+	
+	private static Logger log = LoggerFactory.getLogger(ServerCapabilities.class);
+	
+	private static final Map<String, ServerCapabilities> servers = new ConcurrentHashMap<String, ServerCapabilities>();
+	
+	private final int majorVersion;
+	private final int minorVersion;
+	
+	ServerCapabilities(int majorVersion, int minorVersion){
+		this.majorVersion = majorVersion;
+		this.minorVersion = minorVersion;
+	}
+	
+	/**
+	 * Records the capabilities of the server a new connection is made to
+	 * 
+	 * @param host the server host
+	 * @param port the server port
+	 * @param connection the connection
+	 */
+	static void register(String host, int port, Connection connection){
+		try {
+			DatabaseMetaData metaData = connection.getMetaData();
+			ServerCapabilities capabilities = new ServerCapabilities(
+					metaData.getDatabaseMajorVersion(), 
+					metaData.getDatabaseMinorVersion());
+			ServerCapabilities previous = servers.put(key(host, port), capabilities);
+			if (previous == null || previous.majorVersion != capabilities.majorVersion || previous.minorVersion != capabilities.minorVersion){
+				log.info(String.format("Postgres version of %s:%d is %d.%d", host, port, capabilities.majorVersion, capabilities.minorVersion));
+			}
+		} catch (SQLException e) {
+			log.warn("Unable to get Postgres version", e);
+		}
+	}
+	
+	/**
+	 * @param host the server host
+	 * @param port the server port
+	 * @return the capabilities of the server, or null if we haven't
+	 * connected to it yet
+	 */
+	static ServerCapabilities get(String host, int port){
+		return servers.get(key(host, port));
+	}
+	
+	private static String key(String host, int port){
+		return host + ":" + port;
+	}
+	
+	public int getMajorVersion() {
+		return majorVersion;
+	}
+
+	public int getMinorVersion() {
+		return minorVersion;
+	}
+	
+	/**
+	 * @param major the major version
+	 * @param minor the minor version
+	 * @return true if the server is the given version or later
+	 */
+	public boolean isAtLeast(int major, int minor){
+		return majorVersion > major || (majorVersion == major && minorVersion >= minor);
+	}
+	
+	/**
+	 * @return the column of pg_stat_activity holding the backend process id,
+	 * which was renamed from procpid to pid in 9.2
+	 */
+	public String getBackendPidColumn(){
+		return isAtLeast(9, 2) ? "pid" : "procpid";
+	}
+	
+	/**
+	 * @return true if DROP DATABASE supports IF EXISTS (8.2 and later)
+	 */
+	public boolean supportsDropDatabaseIfExists(){
+		return isAtLeast(8, 2);
+	}
+	
+	/**
+	 * @return true if CREATE DATABASE supports the STRATEGY option (15 and
+	 * later)
+	 */
+	public boolean supportsCreateDatabaseStrategy(){
+		return isAtLeast(15, 0);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The journal of a staging database: the statements run against it by the
+ * structure services, in order, and the fingerprint the original had when
+ * the staging database was created. If the original hasn't changed since,
+ * merging can just run the same statements against it.
+ * 
+ * The journal is kept in the staging database, and each entry is written in
+ * the same transaction as the statements it records, so it can't get out
+ * of step with the staging database or outlive it.
+ */
+class StagingJournal {
+	
+	static final String SCHEMA = "ords_staging";
+	static final String TABLE = SCHEMA + ".journal";
+	static final String BASE_TABLE = SCHEMA + ".base";
+	
+	static final String EXISTS_QUERY = "SELECT COUNT(*) FROM pg_class c "
+			+ "JOIN pg_namespace n ON n.oid = c.relnamespace "
+			+ "WHERE n.nspname = '" + SCHEMA + "' AND c.relname = 'journal'";
+	static final String ENTRIES_QUERY = "SELECT statement FROM " + TABLE + " ORDER BY id";
+	static final String BASE_QUERY = "SELECT fingerprint FROM " + BASE_TABLE;
+	
+	/**
+	 * Whether each database we've looked at has a journal, keyed by server
+	 * and database name; this is checked on every change to a staging
+	 * database, so we only want to look once
+	 */
+	private static final ConcurrentHashMap<String, Boolean> journaled = new ConcurrentHashMap<String, Boolean>();
+	
+	/**
+	 * @param fingerprint the catalog fingerprint of the original
+	 * @return the statements that add a journal to a new staging database
+	 */
+	static List<String> getCreateStatements(String fingerprint) {
+		List<String> statements = new ArrayList<String>();
+		statements.add("CREATE TABLE " + TABLE + " (id serial PRIMARY KEY, statement text NOT NULL, recorded timestamp NOT NULL DEFAULT now())");
+		statements.add("CREATE TABLE " + BASE_TABLE + " (fingerprint text)");
+		statements.add("INSERT INTO " + BASE_TABLE + " VALUES (" + SchemaDefinition.quoteLiteral(fingerprint) + ")");
+		return statements;
+	}
+	
+	/**
+	 * @param statements statements being run against a staging database
+	 * @return the statements, followed by the statements that record them
+	 */
+	static List<String> withEntries(List<String> statements) {
+		List<String> journaled = new ArrayList<String>(statements);
+		for (String statement : statements) {
+			journaled.add("INSERT INTO " + TABLE + " (statement) VALUES (" + SchemaDefinition.quoteLiteral(statement) + ")");
+		}
+		return journaled;
+	}
+	
+	static Boolean isJournaled(String server, String databaseName) {
+		return journaled.get(server + "/" + databaseName);
+	}
+	
+	static void setJournaled(String server, String databaseName, boolean value) {
+		journaled.put(server + "/" + databaseName, value);
+	}
+	
+	static void forget(String server, String databaseName) {
+		journaled.remove(server + "/" + databaseName);
+	}
+}
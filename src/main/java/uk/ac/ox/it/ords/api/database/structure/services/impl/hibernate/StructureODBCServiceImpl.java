@@ -20,7 +20,6 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.sql.rowset.CachedRowSet;
 
 import org.apache.log4j.Logger;
 import org.apache.shiro.SecurityUtils;
@@ -35,6 +34,12 @@ public class StructureODBCServiceImpl extends ODBCServiceImpl implements Structu
 	private static Logger log = Logger.getLogger(StructureODBCServiceImpl.class);
 	
     public static final String SCHEMA_NAME = "public";
+    
+    //
+    // Statements we issue ourselves go through the structure service so that
+    // they use its pooled connections
+    //
+    private final StructureServiceImpl structureService = new StructureServiceImpl();
 
 	@Override
 	public void addReadOnlyOdbcUserToDatabase(String role, String odbcPassword, OrdsPhysicalDatabase database, String databaseName) throws Exception{
@@ -72,7 +77,7 @@ public class StructureODBCServiceImpl extends ODBCServiceImpl implements Structu
 	public String getODBCUserName() throws Exception {
 		String principalName = SecurityUtils.getSubject().getPrincipal()
 				.toString();
-		User u = new StructureServiceImpl().getUserByPrincipal(principalName);
+		User u = structureService.getUserByPrincipal(principalName);
 		return u.calculateOdbcUserForOrds();
 	}
 	
@@ -112,7 +117,7 @@ public class StructureODBCServiceImpl extends ODBCServiceImpl implements Structu
         		try {
         			List<String> commandList = new ArrayList<String>();
         			commandList.add(command);
-        			runSQLStatements(commandList, database.getDatabaseServer(), databaseName);
+        			structureService.runSQLStatements(commandList, database.getDatabaseServer(), databaseName);
         		} catch (Exception e) {
         			throw(e);
         		}
@@ -130,7 +135,7 @@ public class StructureODBCServiceImpl extends ODBCServiceImpl implements Structu
         		try {
         			List<String> commandList = new ArrayList<String>();
         			commandList.add(command);
-        			runSQLStatements(commandList, database.getDatabaseServer(), databaseName);
+        			structureService.runSQLStatements(commandList, database.getDatabaseServer(), databaseName);
         		} catch (Exception e) {
         			throw(e);
         		}
@@ -146,9 +151,9 @@ public class StructureODBCServiceImpl extends ODBCServiceImpl implements Structu
      * @return true if that role exists
      */
     private boolean doesRoleExist(String roleName, OrdsPhysicalDatabase database, String databaseName) throws Exception { 
-        String query = String.format("SELECT 1 FROM pg_roles WHERE rolname='%s'", roleName);
-        CachedRowSet result = runJDBCQuery(query, null, database.getDatabaseServer(), databaseName);
-        return result.first();
+        String query = "SELECT 1 FROM pg_roles WHERE rolname = ?";
+        Integer result = structureService.queryForObject(query, structureService.createParameterList(roleName), database.getDatabaseServer(), databaseName, RowMapper.INTEGER);
+        return result != null;
     }
     
 	private boolean provideWriteAccessToDB(String odbcName, String odbcPassword, OrdsPhysicalDatabase database, String databaseName) throws Exception {
@@ -187,13 +192,13 @@ public class StructureODBCServiceImpl extends ODBCServiceImpl implements Structu
     	
     	
     	List<String> commandList = getAccessStatements(odbcName, database, databaseName, write);
-    	this.runSQLStatements(commandList, database.getDatabaseServer(), databaseName);
+    	structureService.runSQLStatements(commandList, database.getDatabaseServer(), databaseName);
 
     	// Some commands can only be run as a Postgres admin - there is one command in this work package like that, so run that here
     	String command = getSpecialAccessStatements(odbcName, write);
 		commandList.clear();
 		commandList.add(command);
-		runSQLStatements(commandList, database.getDatabaseServer(), databaseName);
+		structureService.runSQLStatements(commandList, database.getDatabaseServer(), databaseName);
     	return true;
     }
     
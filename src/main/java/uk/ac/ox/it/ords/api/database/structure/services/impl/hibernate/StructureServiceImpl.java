@@ -16,19 +16,18 @@
 
 package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
 
-import java.sql.Array;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Properties;
-
-import javax.sql.rowset.CachedRowSet;
-import javax.sql.rowset.RowSetProvider;
+import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 import org.hibernate.Session;
@@ -38,16 +37,62 @@ import org.hibernate.criterion.Restrictions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.ox.it.ords.api.database.structure.services.impl.PhysicalDatabaseCache;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.RequestDatabases;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.StructureConfiguration;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.TableListCache;
+import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
 import uk.ac.ox.it.ords.api.database.structure.services.impl.AbstractStructureService;
 import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.HibernateUtils;
 import uk.ac.ox.it.ords.api.database.structure.model.User;
-import uk.ac.ox.it.ords.api.database.structure.services.TableList;
 import uk.ac.ox.it.ords.security.model.DatabaseServer;
 import uk.ac.ox.it.ords.security.services.ServerConfigurationService;
 
 public class StructureServiceImpl extends AbstractStructureService {
 	Logger log = LoggerFactory.getLogger(StructureServiceImpl.class);
 
+	public static final String FETCH_SIZE_PROPERTY = "ords.database.structure.jdbc.fetchSize";
+
+	/**
+	 * The number of rows to fetch at a time for queries; this only applies
+	 * to queries run within a transaction, otherwise the driver reads every
+	 * row at once
+	 */
+	private static final int FETCH_SIZE = StructureConfiguration.getInt(FETCH_SIZE_PROPERTY, 100);
+
+	public static final String CLONE_STRATEGY_PROPERTY = "ords.database.structure.clone.strategy";
+	
+	/**
+	 * How PostgreSQL 15 and later copy a database when cloning it; FILE_COPY
+	 * is usually quicker for large databases, WAL_LOG avoids a checkpoint.
+	 * If not set, the server default is used.
+	 */
+	private static final String CLONE_STRATEGY = StringUtils.trimToNull(StructureConfiguration.getString(CLONE_STRATEGY_PROPERTY, null));
+
+	public static final String MERGE_LOCK_TIMEOUT_PROPERTY = "ords.database.structure.merge.lockTimeout";
+	
+	/**
+	 * How long (in ms) a structural merge waits for each lock before giving
+	 * up; 0 waits indefinitely. Only supported by PostgreSQL 9.3 and later.
+	 */
+	private static final long MERGE_LOCK_TIMEOUT = StructureConfiguration.getLong(MERGE_LOCK_TIMEOUT_PROPERTY, 0);
+
+	public static final String LOCK_TIMEOUT_PROPERTY = "ords.database.structure.lock.timeout";
+	
+	/**
+	 * How long (in ms) to wait for another clone, merge or drop of the same
+	 * database to finish; 0 waits indefinitely
+	 */
+	private static final long LOCK_TIMEOUT = StructureConfiguration.getLong(LOCK_TIMEOUT_PROPERTY, 30000);
+
+	//
+	// Where a schema-only copy of a database records the original names of
+	// its tables, sequences and columns; it is outside the public schema so
+	// doesn't appear in the structure of the database
+	//
+	private static final String ORIGIN_SCHEMA = "ords_staging";
+	private static final String ORIGIN_TABLE = ORIGIN_SCHEMA + ".origin";
+
 	private SessionFactory sessionFactory;
 
 	private void setSessionFactory(SessionFactory sessionFactory) {
@@ -148,18 +193,9 @@ public class StructureServiceImpl extends AbstractStructureService {
 	}
 
 	private int runCountSql(String sql, List<Object> parameters, String dbName, String databaseServer) throws Exception {
-		CachedRowSet result = this
-				.runJDBCQuery(sql, parameters, databaseServer, dbName);
-		try {
-			// If count is 1, then a table with the given name was found
-			while (result.next()) {
-				return result.getInt("count");
-			}
-		} finally {
-			if ( result != null ) result.close();
-		}
-		return 0;
-
+		// If count is 1, then a table with the given name was found
+		Integer count = this.queryForObject(sql, parameters, databaseServer, dbName, RowMapper.INTEGER);
+		return count == null ? 0 : count;
 	}
 
 	protected void saveModelObject(Object objectToSave) throws Exception {
@@ -174,6 +210,7 @@ public class StructureServiceImpl extends AbstractStructureService {
 			throw e;
 		} finally {
 			session.close();
+			invalidateModelObject(objectToSave);
 		}
 	}
 	
@@ -190,6 +227,7 @@ public class StructureServiceImpl extends AbstractStructureService {
 			throw e;
 		} finally {
 			session.close();
+			invalidateModelObject(objectToUpdate);
 		}
 	}
 
@@ -205,12 +243,36 @@ public class StructureServiceImpl extends AbstractStructureService {
 			throw e;
 		} finally {
 			session.close();
+			invalidateModelObject(objectToRemove);
+		}
+	}
+
+	/**
+	 * Removes any cached copy of a model object that has been saved, updated
+	 * or removed; this also covers a failed attempt, as we can't be sure
+	 * what state it left the record in
+	 * @param object the object
+	 */
+	private void invalidateModelObject(Object object) {
+		if (object instanceof OrdsPhysicalDatabase) {
+			PhysicalDatabaseCache.getInstance().invalidate(((OrdsPhysicalDatabase) object).getPhysicalDatabaseId());
+			RequestDatabases.invalidate(((OrdsPhysicalDatabase) object).getPhysicalDatabaseId());
 		}
 	}
 
 	protected String calculateStagingName(String dbName) {
 		return dbName + "_staging";
 	}
+	
+	/**
+	 * Removes any cached structure for the database; this must be called
+	 * after any change to its tables, columns, constraints, indexes or comments
+	 * @param database the database
+	 * @param staging whether the staging version of the database was changed
+	 */
+	protected void invalidateTableList(OrdsPhysicalDatabase database, boolean staging) {
+		TableListCache.getInstance().invalidate(database.getPhysicalDatabaseId(), staging);
+	}
 
 	protected String columnComment(String databaseName, String databaseServer, String tableName,
 			String columnName) throws Exception {
@@ -229,20 +291,7 @@ public class StructureServiceImpl extends AbstractStructureService {
 		parameters.add(tableName);
 		parameters.add(tableName);
 		parameters.add(columnName);
-		String comment = "";
-		CachedRowSet result = this.runJDBCQuery(query, parameters, databaseServer,
-				databaseName);
-		if (result == null) {
-			return comment;
-		}
-		try {
-			while (result.next()) {
-				comment = result.getString("comment");
-			}
-		} finally {
-			result.close();
-		}
-		return comment;
+		return this.queryForObject(query, parameters, databaseServer, databaseName, RowMapper.STRING);
 	}
 
 	protected String tableComment(String databaseName, String databaseServer, String tableName)
@@ -256,263 +305,469 @@ public class StructureServiceImpl extends AbstractStructureService {
 		String query = String.format("SELECT obj_description(%s::regclass::oid, 'pg_class') as comment",
 				identifier);
 
-		String comment = "";
-		CachedRowSet result = this.runJDBCQuery(query, null, databaseServer,
-				databaseName);
-		if (result == null) {
-			return comment;
+		return this.queryForObject(query, null, databaseServer, databaseName, RowMapper.STRING);
+	}
+
+	/**
+	 * Reads the tables, columns, comments, foreign keys and indexes of the
+	 * public schema in one query per catalog, rather than a set of queries
+	 * for each table and column.
+	 * 
+	 * @param databaseName the database
+	 * @param databaseServer the database server
+	 * @param tableName if not null, only read this table (and the columns of
+	 * any tables it references)
+	 * @return the snapshot
+	 * @throws Exception if there is a problem reading the catalog
+	 */
+	protected CatalogSnapshot getCatalogSnapshot(String databaseName, String databaseServer, String tableName) throws Exception {
+		log.debug("getCatalogSnapshot");
+		final CatalogSnapshot snapshot = new CatalogSnapshot();
+		
+		//
+		// Tables and their comments
+		//
+		String query = CatalogSnapshot.TABLES_QUERY;
+		List<Object> parameters = null;
+		if (tableName != null){
+			query += "AND t.table_name = ? ";
+			parameters = this.createParameterList(tableName);
 		}
-		try {
-			while (result.next()) {
-				comment = result.getString("comment");
-			}
-		} finally {
-			result.close();
-		}
-		return comment;
-	}
-
-	@SuppressWarnings({"unchecked", "rawtypes"})
-	protected TableList addTableMetadata(String databaseName, String databaseServer, String tableName,
-			TableList response) throws Exception {
-		log.debug("addTableMetadata");
-		// Get the foriegn keys, indexes, stored position and comment
-		// For each table.
-		List<HashMap<String, String>> foreignKeys = this
-				.getForeignKeysFromPostgres(databaseName, databaseServer, tableName);
-		List<HashMap<String, Object>> indexes = this.getIndexesFromPostgres(
-				databaseName, databaseServer, tableName);
-
-		log.debug(tableName);
-
-		// Get a complete description of the table columns
-		List<HashMap<String, String>> columns = this.getTableDescription(
-				databaseName, tableName, databaseServer);
-
-		if (log.isDebugEnabled()) {
-			log.debug(String.format("We have %d rows", columns.size()));
-		}
-
-		for (HashMap<String, String> column : columns) {
-			String columnName = column.get("column_name");
-			String defaultValue = column.get("column_default");
-			int position = Integer.parseInt(column.get("ordinal_position"));
-			boolean nullable = column.get("is_nullable").compareToIgnoreCase(
-					"YES") == 0;
-			String columnComment = columnComment(databaseName, databaseServer, tableName,
-					columnName);
-
-			Integer autoIncrement = 0;
-			// Parse the default value to an interface-friendly
-			// format, and identify if the field is auto-incremented
-			if (defaultValue != null) {
-				if (defaultValue.equals("''::text")) { // CSV
-					defaultValue = "";
-				} else if (defaultValue
-						.matches("nextval\\('[A-Za-z0-9_\"]+'::regclass\\)")) {
-					defaultValue = "";
-					autoIncrement = 1;
-				} else if (defaultValue.startsWith("NULL::")) {
-					defaultValue = null;
-				}
+		query += CatalogSnapshot.TABLES_ORDER;
+		this.query(query, parameters, databaseServer, databaseName, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet results) throws SQLException {
+				snapshot.addTable(results.getString("table_name"), results.getString("comment"));
 			}
-
-			// Format the field size appropriately for the data type
-			String fieldSize = getFieldSize(column);
-
-			// Translate the data type from PostgreSQL-speak to
-			// Schema Designer-speak
-			String dataType = SqlDesignerTranslations.translateDatatype(column
-					.get("data_type").toUpperCase(), fieldSize);
-
-			// Add the column to the response
-			response.addColumn(tableName, columnName, position, defaultValue,
-					nullable, dataType, autoIncrement == 1, columnComment);
+		});
+		
+		//
+		// Foreign keys
+		//
+		query = CatalogSnapshot.FOREIGN_KEYS_QUERY;
+		if (tableName != null){
+			query += "AND tc.table_name = ? ";
 		}
-
-		// Use each foreign key to add table relationships to the
-		// response
-		for (HashMap<String, String> foreignKey : foreignKeys) {
-			ArrayList parts = new ArrayList();
-			parts.add(foreignKey.get("columnName"));
-
-			//
-			// Get a subset of column information for the related table
-			//
-			HashMap<String, HashMap<String, String>> foreignTableColumnMap = new HashMap<String, HashMap<String, String>>();
-			List<HashMap<String, String>> foreignTableColumns = this
-					.getTableDescription(databaseName,
-							(String) foreignKey.get("foreignTableName"), databaseServer);
-			if (foreignTableColumns != null) {
-				for (HashMap entry : foreignTableColumns) {
-					HashMap<String, String> column = new HashMap<String, String>();
-					column.put(
-							"datatype",
-							SqlDesignerTranslations.translateDatatype(
-									((String) entry.get("data_type"))
-											.toUpperCase(), getFieldSize(entry)));
-					foreignTableColumnMap.put(
-							(String) entry.get("column_name"), column);
+		final List<String> referencedTables = new ArrayList<String>();
+		this.query(query, parameters, databaseServer, databaseName, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet results) throws SQLException {
+				CatalogSnapshot.ForeignKeyInfo foreignKey = CatalogSnapshot.readForeignKey(results);
+				snapshot.addForeignKey(results.getString("table_name"), foreignKey);
+				if (!referencedTables.contains(foreignKey.foreignTableName)){
+					referencedTables.add(foreignKey.foreignTableName);
 				}
 			}
-
-			response.addRelation(tableName,
-					(String) foreignKey.get("constraintName"),
-					(String) foreignKey.get("columnName"),
-					(String) foreignKey.get("foreignTableName"),
-					(String) foreignKey.get("foreignColumnName"),
-					foreignTableColumnMap);
+		});
+		
+		//
+		// Columns and their comments. When reading a single table we also
+		// need the columns of the tables it references, to describe its
+		// relations.
+		//
+		query = CatalogSnapshot.COLUMNS_QUERY;
+		List<Object> columnParameters = null;
+		if (tableName != null){
+			columnParameters = this.createParameterList(tableName);
+			columnParameters.addAll(referencedTables);
+			query += "AND c.table_name IN (" + StringUtils.repeat("?", ",", columnParameters.size()) + ") ";
 		}
-
-		// Add each index to the response
-		if (indexes.size() > 0) {
-			for (HashMap<String, Object> index : indexes) {
-				response.addIndex(tableName, (String) index.get("name"),
-						(String) index.get("type"), (List) index.get("columns"));
+		query += CatalogSnapshot.COLUMNS_ORDER;
+		this.query(query, columnParameters, databaseServer, databaseName, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet results) throws SQLException {
+				snapshot.addColumn(results.getString("table_name"), CatalogSnapshot.readColumn(results));
 			}
+		});
+		
+		//
+		// Indexes
+		//
+		query = CatalogSnapshot.INDEXES_QUERY;
+		if (tableName != null){
+			query += "AND t.relname = ? ";
 		}
-		return response;
+		this.query(query, parameters, databaseServer, databaseName, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet results) throws SQLException {
+				snapshot.addIndex(results.getString("table_name"), CatalogSnapshot.readIndex(results));
+			}
+		});
+		
+		return snapshot;
 	}
-
-	@SuppressWarnings({"rawtypes", "unchecked"})
-	public List<HashMap<String, String>> getForeignKeysFromPostgres(
-			String databaseName,String databaseServer, String table) throws Exception {
-		log.debug("getForeignKeysFromPostgres");
-
-		String query = "SELECT "
-				+ "tc.constraint_name, tc.table_name, kcu.column_name, "
-				+ "ccu.table_name AS foreign_table_name, "
-				+ "ccu.column_name AS foreign_column_name "
-				+ "FROM information_schema.table_constraints tc "
-				+ "JOIN information_schema.key_column_usage kcu "
-				+ "ON tc.constraint_name = kcu.constraint_name "
-				+ "JOIN information_schema.constraint_column_usage ccu "
-				+ "ON ccu.constraint_name = tc.constraint_name " + "WHERE "
-				+ "constraint_type = 'FOREIGN KEY' " + "AND tc.table_name = ?";
-
-		List foreignKeys = new ArrayList();
-		HashMap<String, String> foreignKey;
-		ArrayList<Object> parameters = new ArrayList<Object>();
-		parameters.add(table);
-		CachedRowSet rs = this.runJDBCQuery(query, parameters, databaseServer,
-				databaseName);
-		// List<Object[]> results = this.runSQLQuery(query, null, null, null);
-		while (rs.next()) {
-			foreignKey = new HashMap();
-			foreignKey.put("constraintName", rs.getString("constraint_name"));
-			foreignKey.put("tableName", rs.getString("table_name"));
-			foreignKey.put("columnName", rs.getString("column_name"));
-			foreignKey.put("foreignTableName",
-					rs.getString("foreign_table_name"));
-			foreignKey.put("foreignColumnName",
-					rs.getString("foreign_column_name"));
-
-			foreignKeys.add(foreignKey);
-		}
-
-		return foreignKeys;
-	}
-
-	protected List<HashMap<String, Object>> getIndexesFromPostgres(
-			String databaseName, String databaseServer, String table) throws Exception {
-		String query = "SELECT " + "i.relname as indexname, "
-				+ "idx.indrelid::regclass as tablename, " + "ARRAY( "
-				+ "SELECT pg_get_indexdef(idx.indexrelid, k + 1, true) "
-				+ "FROM generate_subscripts(idx.indkey, 1) as k "
-				+ "ORDER BY k " + ") as colnames, "
-				+ "indisunique as isunique, " + "indisprimary as isprimary "
-				+ "FROM " + "pg_index as idx " + "JOIN pg_class as i "
-				+ "ON i.oid = idx.indexrelid "
-				+ "WHERE CAST(idx.indrelid::regclass as text) = quote_ident(?)";
-		List<HashMap<String, Object>> indexes = new ArrayList<HashMap<String, Object>>();
-		HashMap<String, Object> index;
-		String type;
-		ArrayList<Object> parameters = new ArrayList<Object>();
-		parameters.add(table);
-		CachedRowSet rs = this.runJDBCQuery(query, parameters, databaseServer,
-				databaseName);
-		// List<Object[]> results = this.runSQLQuery(command, null, null, null);
-		while (rs.next()) {
-			index = new HashMap<String, Object>();
-			index.put("name", rs.getString("indexname"));
-			ArrayList<String> columns = new ArrayList<String>();
-			Array sqlArray = rs.getArray("colnames");
-			Object[] cols = (Object[]) sqlArray.getArray();
-			// ResultSet columnSet = sqlArray.getResultSet();
-			for (Object column : cols) {
-				//
-				// PG may store the index columns as quoted identifiers, in which case we need
-				// to unquote them to return via the API
-				//
-				columns.add(unquote(column.toString()));
+	
+	/**
+	 * Reads the definition of the public schema of a database, in enough
+	 * detail to recreate it or to work out the changes between it and
+	 * another database.
+	 * 
+	 * @param databaseName the database
+	 * @param databaseServer the database server
+	 * @return the definition
+	 * @throws Exception if there is a problem reading the catalog
+	 */
+	protected SchemaDefinition getSchemaDefinition(String databaseName, String databaseServer) throws Exception {
+		log.debug("getSchemaDefinition");
+		final SchemaDefinition definition = new SchemaDefinition();
+		this.query(SchemaDefinition.RELATIONS_QUERY, null, databaseServer, databaseName, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet results) throws SQLException {
+				definition.readRelation(results);
 			}
-			index.put("columns", columns);
-			if (rs.getBoolean("isprimary")) {
-				type = "PRIMARY";
-			} else if (rs.getBoolean("isunique")) {
-				type = "UNIQUE";
-			} else {
-				type = "INDEX";
+		});
+		this.query(SchemaDefinition.COLUMNS_QUERY, null, databaseServer, databaseName, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet results) throws SQLException {
+				definition.readColumn(results);
 			}
-			index.put("type", type);
-
-			indexes.add(index);
+		});
+		this.query(SchemaDefinition.CONSTRAINTS_QUERY, null, databaseServer, databaseName, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet results) throws SQLException {
+				definition.readConstraint(results);
+			}
+		});
+		this.query(SchemaDefinition.INDEXES_QUERY, null, databaseServer, databaseName, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet results) throws SQLException {
+				definition.readIndex(results);
+			}
+		});
+		this.query(SchemaDefinition.SEQUENCE_OWNERS_QUERY, null, databaseServer, databaseName, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet results) throws SQLException {
+				definition.readSequenceOwner(results);
+			}
+		});
+		String sequenceValues = definition.getSequenceValuesQuery();
+		if (sequenceValues != null) {
+			this.query(sequenceValues, null, databaseServer, databaseName, new RowCallbackHandler() {
+				@Override
+				public void processRow(ResultSet results) throws SQLException {
+					definition.readSequenceValue(results);
+				}
+			});
 		}
-
-		return indexes;
+		return definition;
 	}
-
-	public List<HashMap<String, String>> getTableDescription(
-			String databaseName, String tableName, String server) throws Exception {
-		log.debug("getTableDescription");
-
-		ArrayList<String> fields = new ArrayList<String>();
-		fields.add("column_name");
-		fields.add("data_type");
-		fields.add("character_maximum_length");
-		fields.add("numeric_precision");
-		fields.add("numeric_scale");
-		fields.add("column_default");
-		fields.add("is_nullable");
-		fields.add("ordinal_position");
-
-		String query = String
-				.format("select %s from INFORMATION_SCHEMA.COLUMNS where table_name = %s ORDER BY ordinal_position ASC",
-						StringUtils.join(fields.iterator(), ","),
-						quote_literal(tableName));
-
-		HashMap<String, String> columnDescription;
-		List<HashMap<String, String>> columnDescriptions = new ArrayList<HashMap<String, String>>();
-		CachedRowSet results = this.runJDBCQuery(query, null, server, databaseName);
-
-		// First get all column names
-		while (results.next()) {
-			columnDescription = new HashMap<String, String>();
-			for (String field : fields) {
-				Object c = results.getObject(field);
-				if (c != null) {
-					columnDescription.put(field, c.toString());
-				} else {
-					columnDescription.put(field, null);
-				}
+	
+	/**
+	 * Creates a database with the same public schema as another, but none
+	 * of its data. The new database also records the names each of its
+	 * tables, sequences and columns had in the original, so that changes
+	 * made to it can later be applied to the original with mergeStructure().
+	 * 
+	 * @param databaseName the database to create
+	 * @param templateName the database to copy the schema of
+	 * @param server the database server
+	 * @throws Exception if the database can't be created
+	 */
+	protected void createSchemaOnlyCopy(String databaseName, String templateName, String server) throws Exception {
+		createSchemaOnlyCopy(databaseName, templateName, server, false);
+	}
+	
+	/**
+	 * Creates a schema-only copy of a database, as createSchemaOnlyCopy(),
+	 * optionally with a journal of the changes made to it; see
+	 * runStructureStatements()
+	 * 
+	 * @param databaseName the database to create
+	 * @param templateName the database to copy the schema of
+	 * @param server the database server
+	 * @param journal whether to keep a journal
+	 * @throws Exception if the database can't be created
+	 */
+	protected void createSchemaOnlyCopy(String databaseName, String templateName, String server, boolean journal) throws Exception {
+		//
+		// If the original changes while we read it, the fingerprint won't
+		// match when we merge, and we won't replay the journal
+		//
+		String fingerprint = journal ? this.getCatalogFingerprint(templateName, server) : null;
+		SchemaDefinition definition = this.getSchemaDefinition(templateName, server);
+		List<String> statements = definition.getCreateStatements();
+		statements.add("CREATE SCHEMA " + ORIGIN_SCHEMA);
+		statements.add("CREATE TABLE " + ORIGIN_TABLE + " (relid oid, attnum integer, name text)");
+		statements.add("INSERT INTO " + ORIGIN_TABLE + " SELECT c.oid, 0, c.relname FROM pg_class c "
+				+ "JOIN pg_namespace n ON n.oid = c.relnamespace "
+				+ "WHERE n.nspname = 'public' AND c.relkind IN ('r', 'S')");
+		statements.add("INSERT INTO " + ORIGIN_TABLE + " SELECT a.attrelid, a.attnum, a.attname FROM pg_attribute a "
+				+ "JOIN pg_class c ON c.oid = a.attrelid "
+				+ "JOIN pg_namespace n ON n.oid = c.relnamespace "
+				+ "WHERE n.nspname = 'public' AND c.relkind = 'r' AND a.attnum > 0 AND NOT a.attisdropped");
+		if (journal) {
+			statements.addAll(StagingJournal.getCreateStatements(fingerprint));
+		}
+		
+		String create = String.format("ROLLBACK TRANSACTION; CREATE DATABASE %s OWNER %s",
+				quote_ident(databaseName),
+				quote_ident(this.getORDSDatabaseUser()));
+		this.runJDBCQuery(create, null, server, null);
+		StagingJournal.setJournaled(server, databaseName, journal);
+		try {
+			this.runSQLStatements(statements, server, databaseName);
+		} catch (Exception e) {
+			StagingJournal.forget(server, databaseName);
+			this.terminateConnections(databaseName, server);
+			this.runJDBCQuery(this.getDropIfExistsStatement(databaseName, server), null, server, null);
+			throw e;
+		}
+	}
+	
+	/**
+	 * @param databaseName the database
+	 * @param server the database server
+	 * @return true if the database was created by createSchemaOnlyCopy()
+	 * @throws Exception if the database can't be read
+	 */
+	protected boolean isSchemaOnlyCopy(String databaseName, String server) throws Exception {
+		String query = "SELECT COUNT(*) FROM pg_namespace WHERE nspname = ?";
+		return this.runCountSql(query, this.createParameterList(ORIGIN_SCHEMA), databaseName, server) > 0;
+	}
+	
+	/**
+	 * Gets the original names of the tables, sequences and columns of a
+	 * database created by createSchemaOnlyCopy()
+	 * 
+	 * @param databaseName the database
+	 * @param server the database server
+	 * @return the original names, keyed by SchemaDefinition identity
+	 * @throws Exception if the names can't be read
+	 */
+	protected Map<String, String> getOriginalNames(String databaseName, String server) throws Exception {
+		final Map<String, String> names = new HashMap<String, String>();
+		this.query("SELECT relid, attnum, name FROM " + ORIGIN_TABLE, null, server, databaseName, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet results) throws SQLException {
+				names.put(SchemaDefinition.getIdentity(results.getLong("relid"), results.getInt("attnum")), results.getString("name"));
 			}
-			columnDescriptions.add(columnDescription);
+		});
+		return names;
+	}
+	
+	/**
+	 * Runs a statement that changes the structure of a database; see
+	 * runStructureStatements()
+	 * 
+	 * @param statement the statement
+	 * @param server the database server
+	 * @param databaseName the database
+	 * @param staging whether this is a staging database
+	 * @throws Exception if the statement fails
+	 */
+	protected void runStructureStatement(String statement, String server, String databaseName, boolean staging) throws Exception {
+		if (staging && this.isJournaled(databaseName, server)) {
+			List<String> statements = new ArrayList<String>();
+			statements.add(statement);
+			this.runSQLStatements(StagingJournal.withEntries(statements), server, databaseName);
+		} else {
+			this.runJDBCQuery(statement, null, server, databaseName);
 		}
-
-		return columnDescriptions;
 	}
-
-	protected String getFieldSize(HashMap<String, String> column) {
-		log.debug("getFieldSize");
-		// Format the field size appropriately for the data type
-		String fieldSize;
-		if (column.get("data_type").compareToIgnoreCase("numeric") == 0) {
-			fieldSize = String.format("%s,%s", column.get("numeric_precision"),
-					column.get("numeric_scale"));
+	
+	/**
+	 * Runs statements that change the structure of a database in one
+	 * transaction. If it is a staging database with a journal, the
+	 * statements are recorded in the journal in the same transaction.
+	 * 
+	 * @param statements the statements
+	 * @param server the database server
+	 * @param databaseName the database
+	 * @param staging whether this is a staging database
+	 * @throws Exception if any of the statements fail
+	 */
+	protected void runStructureStatements(List<String> statements, String server, String databaseName, boolean staging) throws Exception {
+		if (staging && this.isJournaled(databaseName, server)) {
+			this.runSQLStatements(StagingJournal.withEntries(statements), server, databaseName);
 		} else {
-			fieldSize = column.get("character_maximum_length");
+			this.runSQLStatements(statements, server, databaseName);
+		}
+	}
+	
+	/**
+	 * @param databaseName the database
+	 * @param server the database server
+	 * @return true if the database has a journal of its changes
+	 * @throws Exception if the database can't be read
+	 */
+	protected boolean isJournaled(String databaseName, String server) throws Exception {
+		Boolean journaled = StagingJournal.isJournaled(server, databaseName);
+		if (journaled == null) {
+			journaled = this.runCountSql(StagingJournal.EXISTS_QUERY, null, databaseName, server) > 0;
+			StagingJournal.setJournaled(server, databaseName, journaled);
+		}
+		return journaled;
+	}
+	
+	/**
+	 * Gets the journal of a staging database, if the original it was
+	 * created from hasn't changed since; see runStructureStatements()
+	 * 
+	 * @param stagingName the staging database
+	 * @param databaseName the original database
+	 * @param server the database server
+	 * @return the statements run against the staging database, or null if
+	 * it has no journal or the original has changed
+	 * @throws Exception if the databases can't be read
+	 */
+	protected List<String> getJournal(String stagingName, String databaseName, String server) throws Exception {
+		if (!this.isJournaled(stagingName, server)) {
+			return null;
+		}
+		String base = this.queryForObject(StagingJournal.BASE_QUERY, null, server, stagingName, RowMapper.STRING);
+		if (base == null || !base.equals(this.getCatalogFingerprint(databaseName, server))) {
+			log.info("Original database " + databaseName + " has changed since " + stagingName + " was created; not replaying its journal");
+			return null;
+		}
+		return this.queryForList(StagingJournal.ENTRIES_QUERY, null, server, stagingName, RowMapper.STRING);
+	}
+	
+	/**
+	 * Changes the structure of a database to match another, keeping its
+	 * data. All of the changes are made in one transaction.
+	 * 
+	 * @param fromDatabase the database with the structure we want
+	 * @param toDatabase the database to change
+	 * @param server the database server
+	 * @param originalNames the names that the tables, sequences and columns
+	 * of fromDatabase have in toDatabase, keyed by SchemaDefinition identity;
+	 * objects not listed here are matched by name
+	 * @return the statements that were run
+	 * @throws Exception if the changes can't be made, in which case none are
+	 */
+	protected List<String> mergeStructure(String fromDatabase, String toDatabase, String server, 
+			Map<String, String> originalNames) throws Exception {
+		return mergeStructure(fromDatabase, toDatabase, server, originalNames, null);
+	}
+	
+	/**
+	 * Changes the structure of a database to match another, as
+	 * mergeStructure(), first replaying the journal of changes made to the
+	 * other database. After replaying the journal any remaining differences
+	 * are found by name; normally there are none.
+	 * 
+	 * @param fromDatabase the database with the structure we want
+	 * @param toDatabase the database to change
+	 * @param server the database server
+	 * @param originalNames the original names of the objects of fromDatabase;
+	 * not used if there is a journal
+	 * @param journal the statements run against fromDatabase since it was
+	 * created from toDatabase, or null
+	 * @return the statements that were run
+	 * @throws Exception if the changes can't be made, in which case none are
+	 */
+	protected List<String> mergeStructure(String fromDatabase, String toDatabase, String server, 
+			Map<String, String> originalNames, List<String> journal) throws Exception {
+		SchemaDefinition target = this.getSchemaDefinition(fromDatabase, server);
+		StructureTransaction transaction = this.beginTransaction(server, toDatabase);
+		List<String> plan = new ArrayList<String>();
+		try {
+			//
+			// Rather than queue behind a long running query and block
+			// everyone else who then queues behind us, give up
+			//
+			if (MERGE_LOCK_TIMEOUT > 0 && getServerCapabilities(server).isAtLeast(9, 3)) {
+				this.runJDBCQuery("SET LOCAL lock_timeout = " + MERGE_LOCK_TIMEOUT, null, server, toDatabase);
+			}
+			//
+			// The second step is worked out from the database as it is
+			// after the first, which we can read as we're in the same
+			// transaction
+			//
+			if (journal != null) {
+				this.runSQLStatements(journal, server, toDatabase);
+				plan.addAll(journal);
+				originalNames = null;
+			}
+			SchemaDefinition source = this.getSchemaDefinition(toDatabase, server);
+			List<String> statements = SchemaDiff.getRenamesAndDrops(source, target, originalNames);
+			this.runSQLStatements(statements, server, toDatabase);
+			plan.addAll(statements);
+			source = this.getSchemaDefinition(toDatabase, server);
+			statements = SchemaDiff.getChanges(source, target);
+			this.runSQLStatements(statements, server, toDatabase);
+			plan.addAll(statements);
+			transaction.commit();
+		} catch (Exception e) {
+			transaction.rollback();
+			throw e;
+		} finally {
+			transaction.close();
+		}
+		log.info(String.format("Merged structure of %s into %s with %d statements", fromDatabase, toDatabase, plan.size()));
+		return plan;
+	}
+	
+	/**
+	 * Opens a cursor over the public schema of a database that reads one
+	 * table at a time; the caller must close it.
+	 * 
+	 * @param databaseName the database
+	 * @param databaseServer the database server
+	 * @return the cursor
+	 * @throws Exception if there is a problem reading the catalog
+	 */
+	protected CatalogCursor openCatalogCursor(String databaseName, String databaseServer) throws Exception {
+		log.debug("openCatalogCursor");
+		Connection connection = this.getConnection(databaseServer, databaseName);
+		try {
+			return new CatalogCursor(connection, 
+					StructureConfiguration.getInt(CatalogCursor.FETCH_SIZE_PROPERTY, 500));
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Gets a fingerprint of the structure of the public schema of a database.
+	 * 
+	 * This is an md5 of the oid and xmin of every catalog row describing the
+	 * schema's tables, columns, defaults, constraints, indexes and comments;
+	 * any DDL rewrites at least one of these rows, and so changes the
+	 * fingerprint, whereas VACUUM and ANALYZE only update pg_class in place.
+	 * It is a single query, so is much cheaper than getCatalogSnapshot().
+	 * 
+	 * @param databaseName the database
+	 * @param databaseServer the database server
+	 * @return the fingerprint
+	 * @throws Exception if there is a problem reading the catalog
+	 */
+	protected String getCatalogFingerprint(String databaseName, String databaseServer) throws Exception {
+		log.debug("getCatalogFingerprint");
+		String query = "WITH rels AS ("
+				+ "SELECT c.oid, c.xmin FROM pg_class c "
+				+ "JOIN pg_namespace n ON n.oid = c.relnamespace "
+				+ "WHERE n.nspname = 'public') "
+				+ "SELECT md5(coalesce(string_agg(v, ',' ORDER BY v), '')) AS fingerprint FROM ("
+				+ "SELECT 'c' || oid || ':' || xmin FROM rels "
+				+ "UNION ALL SELECT 'a' || a.attrelid || '.' || a.attnum || ':' || a.xmin "
+				+ "FROM pg_attribute a JOIN rels ON rels.oid = a.attrelid WHERE a.attnum > 0 "
+				+ "UNION ALL SELECT 'd' || ad.adrelid || '.' || ad.adnum || ':' || ad.xmin "
+				+ "FROM pg_attrdef ad JOIN rels ON rels.oid = ad.adrelid "
+				+ "UNION ALL SELECT 'k' || k.oid || ':' || k.xmin "
+				+ "FROM pg_constraint k JOIN pg_namespace n ON n.oid = k.connamespace WHERE n.nspname = 'public' "
+				+ "UNION ALL SELECT 'i' || i.indexrelid || ':' || i.xmin "
+				+ "FROM pg_index i JOIN rels ON rels.oid = i.indrelid "
+				+ "UNION ALL SELECT 'm' || ds.objoid || '.' || ds.objsubid || ':' || ds.xmin "
+				+ "FROM pg_description ds JOIN rels ON rels.oid = ds.objoid "
+				+ "WHERE ds.classoid = 'pg_class'::regclass"
+				+ ") AS catalog(v)";
+		return this.queryForObject(query, null, databaseServer, databaseName, RowMapper.STRING);
+	}
+	
+	/**
+	 * @param value the value to hash
+	 * @return the md5 of the value as a hex string
+	 */
+	protected static String md5(String value) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] hash = digest.digest(value.getBytes("UTF-8"));
+			return String.format("%032x", new BigInteger(1, hash));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
 		}
-		return fieldSize;
 	}
 
 	protected User getUserByPrincipal(String principalName) {
@@ -537,58 +792,104 @@ public class StructureServiceImpl extends AbstractStructureService {
 		}
 	}
 
-	protected String getTerminateStatement(String databaseName, String server)
+	/**
+	 * Closes our pooled connections to a database, and terminates any other
+	 * connections to it, which must be done before it can be dropped
+	 * 
+	 * @param databaseName the database
+	 * @param server the database server
+	 * @throws Exception if the connections can't be terminated
+	 */
+	protected void terminateConnections(String databaseName, String server)
 			throws Exception {
-		boolean above9_2 = isPostgresVersionAbove9_2(server);
-		String command;
-		if (above9_2) {
-			log.info("Postgres version is 9.2 or later");
-			command = String
-					.format("select pg_terminate_backend(pid) from pg_stat_activity where datname = '%s' AND pid <> pg_backend_pid()",
-							databaseName);
-		} else {
-			log.info("Postgres version is earlier than 9.2");
-			command = String
-					.format("select pg_terminate_backend(procpid) from pg_stat_activity where datname = '%s' AND procpid <> pg_backend_pid()",
-							databaseName);
+		this.releaseConnections(server, databaseName);
+		String pid = getServerCapabilities(server).getBackendPidColumn();
+		String query = String.format("select pg_terminate_backend(%1$s) from pg_stat_activity where datname = ? AND %1$s <> pg_backend_pid()", pid);
+		this.runJDBCQuery(query, this.createParameterList(databaseName), server, null);
+	}
+	
+	/**
+	 * Locks a database while it is cloned, merged or dropped; the caller
+	 * must release the lock. See DatabaseLock.
+	 * 
+	 * @param dbId the physical database id
+	 * @return the lock
+	 * @throws Exception if the lock can't be acquired within the timeout
+	 */
+	protected DatabaseLock lockDatabase(int dbId) throws Exception {
+		return DatabaseLock.acquire(dbId, this.openConnection(null, null), LOCK_TIMEOUT);
+	}
+	
+	/**
+	 * Locks a database, as lockDatabase(), if the lock is free
+	 * 
+	 * @param dbId the physical database id
+	 * @return the lock
+	 * @throws Exception if the lock is held elsewhere
+	 */
+	protected DatabaseLock tryLockDatabase(int dbId) throws Exception {
+		return DatabaseLock.acquire(dbId, this.openConnection(null, null), -1);
+	}
+	
+	/**
+	 * Gets the statement to drop a database if it exists
+	 * 
+	 * @param databaseName the database
+	 * @param server the database server
+	 * @return the statement; on servers that don't support IF EXISTS this
+	 * will fail if the database doesn't exist
+	 * @throws Exception if the server version can't be determined
+	 */
+	protected String getDropIfExistsStatement(String databaseName, String server) throws Exception {
+		if (getServerCapabilities(server).supportsDropDatabaseIfExists()) {
+			return "rollback transaction; drop database if exists " + quote_ident(databaseName) + ";";
 		}
-		return command;
-
+		return "rollback transaction; drop database " + quote_ident(databaseName) + ";";
 	}
-
-	private String[] getPostgresVersionArray(String server) throws Exception {
-
-		CachedRowSet results = this.runJDBCQuery("SELECT version()", null, server, null);
-		results.next();
-		String version = results.getString(1);
-
-		String[] versionArray = null;
-		String[] tempVersionArray = null;
-		tempVersionArray = version.split(" ");
-		version = tempVersionArray[1];
-		versionArray = version.split("\\.");
-
-		return versionArray;
+	
+	/**
+	 * Gets the statement to create a database as a copy of another
+	 * 
+	 * @param databaseName the new database
+	 * @param templateName the database to copy
+	 * @param server the database server
+	 * @return the statement
+	 * @throws Exception if the server version can't be determined
+	 */
+	protected String getCloneStatement(String databaseName, String templateName, String server) throws Exception {
+		String statement = String.format(
+				"ROLLBACK TRANSACTION; CREATE DATABASE %s WITH TEMPLATE %s OWNER %s",
+				quote_ident(databaseName),
+				quote_ident(templateName),
+				quote_ident(this.getORDSDatabaseUser()));
+		if (CLONE_STRATEGY != null && getServerCapabilities(server).supportsCreateDatabaseStrategy()) {
+			statement += " STRATEGY " + CLONE_STRATEGY;
+		}
+		return statement;
 	}
 
-	public boolean isPostgresVersionAbove9_2(String server) throws Exception {
-		String[] versionArray = getPostgresVersionArray(server);
-		boolean above = false;
-		if (versionArray != null) {
-			try {
-				int majorVersionNumber = Integer.parseInt(versionArray[0]);
-				int minorVersionNumber = Integer.parseInt(versionArray[1]);
-				if (majorVersionNumber >= 9) {
-					if (minorVersionNumber >= 2) {
-						above = true;
-					}
-				}
-			} catch (NumberFormatException e) {
-				log.error("Unable to get Postgres version");
-			}
+	/**
+	 * Gets the version and features of a database server
+	 * 
+	 * @param server the database server, or null for the ORDS server
+	 * @return the server capabilities
+	 * @throws Exception if the server can't be reached
+	 */
+	protected ServerCapabilities getServerCapabilities(String server) throws Exception {
+		DatabaseServer databaseServer = getDatabaseServer(server);
+		ServerCapabilities capabilities = ServerCapabilities.get(databaseServer.getHost(), databaseServer.getPort());
+		if (capabilities == null) {
+			//
+			// The pool records the capabilities when it first connects to
+			// a server
+			//
+			this.getConnection(server, null).close();
+			capabilities = ServerCapabilities.get(databaseServer.getHost(), databaseServer.getPort());
 		}
-
-		return above;
+		if (capabilities == null) {
+			throw new Exception("Unable to get Postgres version");
+		}
+		return capabilities;
 	}
 
 	/**
@@ -605,61 +906,81 @@ public class StructureServiceImpl extends AbstractStructureService {
 		return parameters;
 	}
 	
+	/**
+	 * Runs a list of statements on a single connection in one transaction,
+	 * sending them to the server as a JDBC batch. If any statement fails the
+	 * whole transaction is rolled back, so none of the statements are applied.
+	 * 
+	 * @param statements the statements, which must not return rows
+	 * @param server the database server, or null for the ORDS server
+	 * @param databaseName the database, or null for the master database
+	 * @throws Exception if any of the statements fail
+	 */
 	protected void runSQLStatements(List<String> statements, String server,
 			String databaseName) throws Exception {
-		
-			for (String statement: statements ) {
-				this.runJDBCQuery(statement, null, server, databaseName);
+		if (statements.isEmpty()) {
+			return;
+		}
+		Connection connection = this.getConnection(server, databaseName);
+		Statement statement = null;
+		try {
+			connection.setAutoCommit(false);
+			statement = connection.createStatement();
+			for (String sql : statements) {
+				statement.addBatch(sql);
 			}
-		
+			statement.executeBatch();
+			connection.commit();
+		} catch (SQLException e) {
+			connection.rollback();
+			//
+			// The driver reports the cause of a failed batch as the
+			// next exception in the chain
+			//
+			SQLException cause = e.getNextException() != null ? e.getNextException() : e;
+			log.error("Error with this batch", cause);
+			if (e instanceof BatchUpdateException) {
+				int[] counts = ((BatchUpdateException) e).getUpdateCounts();
+				if (counts != null && counts.length < statements.size()) {
+					log.error("Query:" + statements.get(counts.length));
+				}
+			}
+			throw e;
+		} finally {
+			if (statement != null) {
+				statement.close();
+			}
+			//
+			// Returns the connection to the pool, which restores autocommit
+			//
+			connection.close();
+		}
 	}
 
-	protected CachedRowSet runJDBCQuery(String query, List<Object> parameters,
+	/**
+	 * Runs a statement that doesn't return rows, or whose rows aren't needed
+	 * 
+	 * @param query the statement
+	 * @param parameters the parameters, or null
+	 * @param server the database server
+	 * @param port the port
+	 * @param databaseName the database
+	 * @param userName the user
+	 * @param password the password
+	 * @throws Exception if there is a problem running the statement
+	 */
+	protected void runJDBCQuery(String query, List<Object> parameters,
 			String server, int port, String databaseName, String userName, String password) throws Exception
 	{
 		Connection connection = null;
-		Properties connectionProperties = new Properties();
 		PreparedStatement preparedStatement = null;
 
-		connectionProperties.put("user", userName);
-		connectionProperties.put("password", password);
-
-		String connectionURL = "jdbc:postgresql://" + server + ":" + port + "/" + databaseName;
-		
 		try {
-			connection = DriverManager.getConnection(connectionURL,
-					connectionProperties);
+			connection = borrowConnection(server, port, databaseName, userName, password);
 			preparedStatement = connection.prepareStatement(query);
-			if (parameters != null) {
-				int paramCount = 1;
-				for (Object parameter : parameters) {
-					@SuppressWarnings("rawtypes")
-					Class type = parameter.getClass();
-					if (type.equals(String.class)) {
-						preparedStatement.setString(paramCount,
-								(String) parameter);
-					}
-					if (type.equals(Integer.class)) {
-						preparedStatement.setInt(paramCount,
-								(Integer) parameter);
-					}
-					paramCount++;
-				}
-
-			}
-			if (query.toLowerCase().startsWith("select")) {
-				ResultSet result = preparedStatement.executeQuery();
-				CachedRowSet rowSet = RowSetProvider.newFactory()
-						.createCachedRowSet();
-				rowSet.populate(result);
-				log.debug("prepareAndExecuteStatement:return result");
-				return rowSet;
-			} else {
-				preparedStatement.execute();
-				log.debug("prepareAndExecuteStatement:return null");
-				return null;
-			}
-
+			setParameters(preparedStatement, parameters);
+			preparedStatement.execute();
+			log.debug("prepareAndExecuteStatement:return");
 		} catch (SQLException e) {
 			log.error("Error with this command", e);
 			log.error("Query:" + query);
@@ -669,41 +990,247 @@ public class StructureServiceImpl extends AbstractStructureService {
 				preparedStatement.close();
 			}
 			if (connection != null) {
+				//
+				// Returns the connection to the pool
+				//
 				connection.close();
 			}
 		}
 
 	};
 	
-	protected CachedRowSet runJDBCQuery(
+	protected void runJDBCQuery(
 			String query, 
 			List<Object> parameters,
 			String server, 
 			String databaseName
 			) throws Exception {
 		
-		String userName;
-		String password;
-		int port;
-		DatabaseServer databaseServer;
-		
-		if (server == null){
-			databaseServer = ServerConfigurationService.Factory.getInstance().getOrdsDatabaseServer();
-		} else {
-			databaseServer = ServerConfigurationService.Factory.getInstance().getDatabaseServer(server);
-		}
+		DatabaseServer databaseServer = getDatabaseServer(server);
 		
 		if (databaseName == null || databaseName.isEmpty()){
 			databaseName = databaseServer.getMasterDatabaseName();
 		}
 		
-		server = databaseServer.getHost();
-		userName = databaseServer.getUsername();
-		password = databaseServer.getPassword();
-		port = databaseServer.getPort();
-		
-		return runJDBCQuery(query, parameters, server, port, databaseName, userName, password);
+		runJDBCQuery(
+				query, 
+				parameters, 
+				databaseServer.getHost(), 
+				databaseServer.getPort(), 
+				databaseName, 
+				databaseServer.getUsername(), 
+				databaseServer.getPassword()
+				);
 
 	}
+	
+	/**
+	 * Runs a query, passing each row to the handler as it is read from a
+	 * forward-only result set
+	 * 
+	 * @param query the query
+	 * @param parameters the parameters, or null
+	 * @param server the database server, or null for the ORDS server
+	 * @param databaseName the database, or null for the master database
+	 * @param handler the handler for each row
+	 * @throws Exception if there is a problem running the query
+	 */
+	protected void query(String query, List<Object> parameters, String server, 
+			String databaseName, RowCallbackHandler handler) throws Exception {
+		query(query, parameters, server, databaseName, handler, 0);
+	}
+	
+	/**
+	 * Runs a query, mapping each row to an object
+	 * 
+	 * @param query the query
+	 * @param parameters the parameters, or null
+	 * @param server the database server, or null for the ORDS server
+	 * @param databaseName the database, or null for the master database
+	 * @param mapper the mapper for each row
+	 * @return the mapped rows
+	 * @throws Exception if there is a problem running the query
+	 */
+	protected <T> List<T> queryForList(String query, List<Object> parameters, String server, 
+			String databaseName, RowMapper<T> mapper) throws Exception {
+		return queryForList(query, parameters, server, databaseName, mapper, 0);
+	}
+	
+	/**
+	 * Runs a query, mapping the first row to an object
+	 * 
+	 * @param query the query
+	 * @param parameters the parameters, or null
+	 * @param server the database server, or null for the ORDS server
+	 * @param databaseName the database, or null for the master database
+	 * @param mapper the mapper for the row
+	 * @return the mapped row, or null if there are no rows
+	 * @throws Exception if there is a problem running the query
+	 */
+	protected <T> T queryForObject(String query, List<Object> parameters, String server, 
+			String databaseName, RowMapper<T> mapper) throws Exception {
+		List<T> rows = queryForList(query, parameters, server, databaseName, mapper, 1);
+		return rows.isEmpty() ? null : rows.get(0);
+	}
+	
+	private <T> List<T> queryForList(String query, List<Object> parameters, String server, 
+			String databaseName, final RowMapper<T> mapper, int maxRows) throws Exception {
+		final List<T> rows = new ArrayList<T>();
+		query(query, parameters, server, databaseName, new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet results) throws SQLException {
+				rows.add(mapper.mapRow(results));
+			}
+		}, maxRows);
+		return rows;
+	}
+	
+	private void query(String query, List<Object> parameters, String server, 
+			String databaseName, RowCallbackHandler handler, int maxRows) throws Exception {
+		Connection connection = this.getConnection(server, databaseName);
+		PreparedStatement preparedStatement = null;
+		try {
+			preparedStatement = connection.prepareStatement(query, 
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			preparedStatement.setFetchSize(FETCH_SIZE);
+			preparedStatement.setMaxRows(maxRows);
+			setParameters(preparedStatement, parameters);
+			ResultSet results = preparedStatement.executeQuery();
+			try {
+				while (results.next()) {
+					handler.processRow(results);
+				}
+			} finally {
+				results.close();
+			}
+		} catch (SQLException e) {
+			log.error("Error with this command", e);
+			log.error("Query:" + query);
+			throw e;
+		} finally {
+			if (preparedStatement != null) {
+				preparedStatement.close();
+			}
+			//
+			// Returns the connection to the pool
+			//
+			connection.close();
+		}
+	}
+	
+	private void setParameters(PreparedStatement preparedStatement, List<Object> parameters) throws SQLException {
+		if (parameters != null) {
+			int paramCount = 1;
+			for (Object parameter : parameters) {
+				if (parameter instanceof String) {
+					preparedStatement.setString(paramCount,
+							(String) parameter);
+				} else if (parameter instanceof Integer) {
+					preparedStatement.setInt(paramCount,
+							(Integer) parameter);
+				} else {
+					preparedStatement.setObject(paramCount, parameter);
+				}
+				paramCount++;
+			}
+		}
+	}
+	
+	/**
+	 * Closes any of this node's pooled connections to the given database.
+	 * Other nodes may also have connections open, so use
+	 * terminateConnections() before dropping or renaming a database or
+	 * using it as a template, as PostgreSQL won't do any of those while
+	 * there are open connections.
+	 * 
+	 * @param server the database server
+	 * @param databaseName the database
+	 * @throws Exception if the server configuration cannot be read
+	 */
+	protected void releaseConnections(String server, String databaseName) throws Exception {
+		DatabaseServer databaseServer = getDatabaseServer(server);
+		JdbcConnectionPool.getInstance().evict(databaseServer.getHost(), databaseServer.getPort(), databaseName);
+	}
+	
+	/**
+	 * Borrows a connection from the pool; closing it returns it to the pool
+	 * 
+	 * @param server the database server, or null for the ORDS server
+	 * @param databaseName the database, or null for the master database
+	 * @return the connection
+	 * @throws Exception if a connection can't be obtained
+	 */
+	protected Connection getConnection(String server, String databaseName) throws Exception {
+		DatabaseServer databaseServer = getDatabaseServer(server);
+		if (databaseName == null || databaseName.isEmpty()){
+			databaseName = databaseServer.getMasterDatabaseName();
+		}
+		return borrowConnection(
+				databaseServer.getHost(), 
+				databaseServer.getPort(), 
+				databaseName, 
+				databaseServer.getUsername(), 
+				databaseServer.getPassword());
+	}
+	
+	/**
+	 * Opens a connection of its own, outside the pool, for something that
+	 * may hold it for a long time, such as a lock; closing it closes it
+	 * 
+	 * @param server the database server, or null for the ORDS server
+	 * @param databaseName the database, or null for the master database
+	 * @return the connection
+	 * @throws Exception if a connection can't be made
+	 */
+	protected Connection openConnection(String server, String databaseName) throws Exception {
+		DatabaseServer databaseServer = getDatabaseServer(server);
+		if (databaseName == null || databaseName.isEmpty()){
+			databaseName = databaseServer.getMasterDatabaseName();
+		}
+		return JdbcConnectionPool.open(
+				databaseServer.getHost(), 
+				databaseServer.getPort(), 
+				databaseName, 
+				databaseServer.getUsername(), 
+				databaseServer.getPassword());
+	}
+	
+	/**
+	 * Starts a transaction on the given database that is bound to the
+	 * current thread; until it is closed, all statements run against that
+	 * database by this thread use the same connection and are part of the
+	 * transaction
+	 * 
+	 * @param server the database server
+	 * @param databaseName the database
+	 * @return the transaction
+	 * @throws Exception if the transaction can't be started
+	 */
+	protected StructureTransaction beginTransaction(String server, String databaseName) throws Exception {
+		DatabaseServer databaseServer = getDatabaseServer(server);
+		Connection connection = JdbcConnectionPool.getInstance().getConnection(
+				databaseServer.getHost(), 
+				databaseServer.getPort(), 
+				databaseName, 
+				databaseServer.getUsername(), 
+				databaseServer.getPassword());
+		return StructureTransaction.begin(databaseServer.getHost(), databaseServer.getPort(), databaseName, connection);
+	}
+	
+	private Connection borrowConnection(String host, int port, String databaseName, String userName, String password) throws SQLException {
+		Connection connection = StructureTransaction.getConnection(host, port, databaseName);
+		if (connection != null) {
+			return connection;
+		}
+		return JdbcConnectionPool.getInstance().getConnection(host, port, databaseName, userName, password);
+	}
+	
+	private DatabaseServer getDatabaseServer(String server) throws Exception {
+		if (server == null){
+			return ServerConfigurationService.Factory.getInstance().getOrdsDatabaseServer();
+		} else {
+			return ServerConfigurationService.Factory.getInstance().getDatabaseServer(server);
+		}
+	}
 
 }
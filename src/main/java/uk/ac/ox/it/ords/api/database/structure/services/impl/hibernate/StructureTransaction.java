@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A transaction on a single pooled connection that is bound to the current
+ * thread. While it is open, any statements the structure services run
+ * against the same database use this connection, so a sequence of service
+ * calls is committed or rolled back as a whole.
+ */
+class StructureTransaction {
+
+	private static Logger log = LoggerFactory.getLogger(StructureTransaction.class);
+
+	private static final ThreadLocal<StructureTransaction> CURRENT = new ThreadLocal<StructureTransaction>();
+
+	private final String host;
+	private final int port;
+	private final String databaseName;
+	private final Connection connection;
+	private final Connection shared;
+
+	private StructureTransaction(String host, int port, String databaseName, Connection connection){
+		this.host = host;
+		this.port = port;
+		this.databaseName = databaseName;
+		this.connection = connection;
+		this.shared = (Connection) Proxy.newProxyInstance(
+				StructureTransaction.class.getClassLoader(),
+				new Class<?>[]{Connection.class},
+				new SharedConnectionHandler(connection));
+	}
+
+	/**
+	 * Starts a transaction and binds it to the current thread
+	 *
+	 * @param host the database host
+	 * @param port the port
+	 * @param databaseName the database
+	 * @param connection a connection to the database, which is closed when
+	 * the transaction is closed
+	 * @return the transaction
+	 * @throws SQLException if a transaction is already open on this thread,
+	 * or the transaction can't be started
+	 */
+	static StructureTransaction begin(String host, int port, String databaseName, Connection connection) throws SQLException {
+		if (CURRENT.get() != null){
+			connection.close();
+			throw new SQLException("A transaction is already open on this thread");
+		}
+		connection.setAutoCommit(false);
+		StructureTransaction transaction = new StructureTransaction(host, port, databaseName, connection);
+		CURRENT.set(transaction);
+		return transaction;
+	}
+
+	/**
+	 * @param host the database host
+	 * @param port the port
+	 * @param databaseName the database
+	 * @return the connection of the transaction open on this thread for the
+	 * given database, or null if there isn't one. Closing, committing or
+	 * rolling back this connection has no effect; that is left to the owner
+	 * of the transaction.
+	 */
+	static Connection getConnection(String host, int port, String databaseName){
+		StructureTransaction transaction = CURRENT.get();
+		if (transaction != null
+				&& transaction.port == port
+				&& transaction.host.equals(host)
+				&& transaction.databaseName.equals(databaseName)){
+			return transaction.shared;
+		}
+		return null;
+	}
+
+	void commit() throws SQLException {
+		connection.commit();
+	}
+
+	void rollback(){
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			log.warn("Error rolling back transaction", e);
+		}
+	}
+
+	/**
+	 * Unbinds the transaction from the thread, and returns its connection to
+	 * the pool, which rolls back anything not committed
+	 *
+	 * @throws SQLException if the connection can't be closed
+	 */
+	void close() throws SQLException {
+		CURRENT.remove();
+		connection.close();
+	}
+
+	/**
+	 * Passes calls through to the transaction's connection, apart from those
+	 * that would end the transaction
+	 */
+	private static class SharedConnectionHandler implements InvocationHandler {
+		private final Connection connection;
+
+		SharedConnectionHandler(Connection connection){
+			this.connection = connection;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")
+					|| name.equals("commit")
+					|| name.equals("rollback")
+					|| name.equals("setAutoCommit")){
+				return null;
+			}
+			if (name.equals("equals")){
+				return proxy == args[0];
+			}
+			if (name.equals("hashCode")){
+				return System.identityHashCode(proxy);
+			}
+			try {
+				return method.invoke(connection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
@@ -17,17 +17,19 @@
 package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
 
 
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import javax.sql.rowset.CachedRowSet;
 import javax.ws.rs.NotFoundException;
 
-import org.hibernate.Criteria;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
 import org.hibernate.criterion.Restrictions;
 
+import uk.ac.ox.it.ords.api.database.structure.services.impl.TableListCache;
 import uk.ac.ox.it.ords.api.database.structure.dto.PositionRequest;
 import uk.ac.ox.it.ords.api.database.structure.dto.TablePosition;
 import uk.ac.ox.it.ords.api.database.structure.exceptions.NamingConflictException;
@@ -41,21 +43,48 @@ public class TableStructureServiceImpl extends StructureServiceImpl implements T
 	@Override
 	public TableList getTableMetadata(OrdsPhysicalDatabase database,
 			String tableName, boolean staging) throws Exception {
+		return getTableMetadata(database, tableName, staging, null);
+	}
+
+	@Override
+	public TableList getTableMetadata(OrdsPhysicalDatabase database,
+			String tableName, boolean staging, String tableVersion) throws Exception {
 		String databaseName = database.getDbConsumedName();
 		if ( staging ) {
 			databaseName = this.calculateStagingName(databaseName);
 		}
 		String server = database.getDatabaseServer();
-		if ( !this.checkTableExists(tableName, databaseName,server)) {
+		TableListCache cache = TableListCache.getInstance();
+		long version = cache.getVersion();
+		String fingerprint = tableVersion != null ? tableVersion : this.getCatalogFingerprint(databaseName, server);
+		TableList table = cache.get(database.getPhysicalDatabaseId(), staging, tableName, fingerprint);
+		if ( table != null ) {
+			return table;
+		}
+		CatalogSnapshot snapshot = this.getCatalogSnapshot(databaseName, server, tableName);
+		if ( !snapshot.hasTable(tableName)) {
 			throw new NotFoundException(String.format("No table called %s found in database %s", tableName, databaseName));
 		}
-		TableList table = new TableList();
-		String comment = this.tableComment(databaseName, server, tableName);
-		table.addTable(tableName, comment);
-        addTableMetadata(databaseName, server, tableName, table);
+		table = new TableList();
+		snapshot.addTableMetadata(tableName, table);
+		cache.put(database.getPhysicalDatabaseId(), staging, tableName, table, fingerprint, version);
 		return table;
 	}
 
+	@Override
+	public String getTableVersion(OrdsPhysicalDatabase database,
+			String tableName, boolean staging) throws Exception {
+		String databaseName = database.getDbConsumedName();
+		if ( staging ) {
+			databaseName = this.calculateStagingName(databaseName);
+		}
+		//
+		// The table metadata includes the columns of referenced tables, so
+		// we use the fingerprint of the whole schema
+		//
+		return this.getCatalogFingerprint(databaseName, database.getDatabaseServer());
+	}
+
 	@Override
 	public void createNewTable(OrdsPhysicalDatabase database, String tableName, boolean staging)
 			throws Exception {
@@ -69,7 +98,8 @@ public class TableStructureServiceImpl extends StructureServiceImpl implements T
 		}
 		// aargh prepared statements don't work with create table so we have to format the string ourselves!
 		String statement = "CREATE TABLE \""+tableName+"\"();";
-		this.runJDBCQuery(statement, null, server, databaseName);
+		this.runStructureStatement(statement, server, databaseName, staging);
+		this.invalidateTableList(database, staging);
 
 	}
 
@@ -88,19 +118,19 @@ public class TableStructureServiceImpl extends StructureServiceImpl implements T
 			throw new NamingConflictException("There is already a table called "+tableNewName+" in database "+databaseName);
 		}
 		String query = String.format("ALTER TABLE %s RENAME TO %s;", quote_ident(tableName), quote_ident(tableNewName));
-		this.runJDBCQuery(query, null, server, databaseName);
+		this.runStructureStatement(query, server, databaseName, staging);
+		this.invalidateTableList(database, staging);
 
         query = "SELECT sequence_name FROM information_schema.sequences where sequence_name LIKE ?";
         List<Object> parameters = this.createParameterList(tableName+"%");
-        CachedRowSet result = this.runJDBCQuery(query, parameters, server, databaseName);
+        String sequenceName = this.queryForObject(query, parameters, server, databaseName, RowMapper.STRING);
         
-        if ( result.first() ) {
-        	String sequenceName = result.getString("sequence_name");
+        if ( sequenceName != null ) {
         	String newSequenceName = sequenceName.replace(tableName, tableNewName);
         	query = String.format("ALTER SEQUENCE %s RENAME TO %s",
                     quote_ident(sequenceName),
                     quote_ident(newSequenceName));
-        	this.runJDBCQuery(query, null, server, databaseName);
+        	this.runStructureStatement(query, server, databaseName, staging);
         }
 	}
 
@@ -115,80 +145,73 @@ public class TableStructureServiceImpl extends StructureServiceImpl implements T
 		if ( !this.checkTableExists(tableName, databaseName, server)) {
 			throw new NotFoundException(String.format("No table called %s found in database %s", tableName, databaseName));
 		}
-		this.runJDBCQuery(String.format("DROP TABLE %s", tableName), null, server, databaseName);
+		this.runStructureStatement(String.format("DROP TABLE %s", tableName), server, databaseName, staging);
+		this.invalidateTableList(database, staging);
 	}
 	
 	
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public void setTablePositions(OrdsPhysicalDatabase database,
 			PositionRequest positionRequest) throws Exception {
-        List<String> tableNames = new ArrayList<String>();
-        // Create or update tables from the schema designer
-        for (TablePosition tablePosition : positionRequest.getPositions()) {
-            // If there's no saved position for the table, create one.
-            // otherwise, update the existing one.
-            tableNames.add(tablePosition.getTablename());
-            SchemaDesignerTable table = this.getTablePositionRecord(database.getPhysicalDatabaseId(), tablePosition.getTablename());
-            if (table == null) {
-                table = new SchemaDesignerTable();
-                table.setDatabaseId(database.getPhysicalDatabaseId());
-                table.setTableName(tablePosition.getTablename());
-                table.setX(tablePosition.getX());
-                table.setY(tablePosition.getY());
-                this.saveModelObject(table);
-            } else {
-                table.setX(tablePosition.getX());
-                table.setY(tablePosition.getY());
-                this.updateModelObject(table);
-            }
-        }
-        // Remove any data for tables no longer in the schema
-        List<SchemaDesignerTable> savedTables = this.getTablePositionRecordsForDatabase(database.getPhysicalDatabaseId());
-        for (SchemaDesignerTable savedTable : savedTables) {
-            if (!tableNames.contains(savedTable.getTableName())) {
-                this.removeModelObject(savedTable);
-            }    
-        }
-		
-		
-	}
-	
-	
-	private SchemaDesignerTable getTablePositionRecord ( int dbId, String tableName ) {
+		//
+		// Layouts are saved in a single session: the saved positions are read
+		// once, new and moved tables are sent in JDBC batches, and positions for
+		// tables no longer in the schema are removed with one statement
+		//
+		int databaseId = database.getPhysicalDatabaseId();
 		Session session = this.getOrdsDBSessionFactory().openSession();
 		try {
 			Transaction transaction = session.beginTransaction();
-			Criteria criteria = session.createCriteria(SchemaDesignerTable.class);
-			criteria.add(Restrictions.eq("databaseId", dbId));
-			criteria.add(Restrictions.eq("tableName", tableName));
-			@SuppressWarnings("unchecked")
-			List<SchemaDesignerTable> tables =  (List<SchemaDesignerTable>)criteria.list();
-			transaction.commit();
-			if ( tables.size() == 1) {
-				return tables.get(0);
+			
+			Map<String, SchemaDesignerTable> savedTables = new HashMap<String, SchemaDesignerTable>();
+			List<SchemaDesignerTable> tables = session.createCriteria(SchemaDesignerTable.class)
+					.add(Restrictions.eq("databaseId", databaseId))
+					.list();
+			for (SchemaDesignerTable table : tables) {
+				savedTables.put(table.getTableName(), table);
+			}
+			
+			Set<String> tableNames = new HashSet<String>();
+			int pending = 0;
+			for (TablePosition tablePosition : positionRequest.getPositions()) {
+				// If there's no saved position for the table, create one.
+				// otherwise, update the existing one.
+				tableNames.add(tablePosition.getTablename());
+				SchemaDesignerTable table = savedTables.get(tablePosition.getTablename());
+				if (table == null) {
+					table = new SchemaDesignerTable();
+					table.setDatabaseId(databaseId);
+					table.setTableName(tablePosition.getTablename());
+					table.setX(tablePosition.getX());
+					table.setY(tablePosition.getY());
+					session.save(table);
+					savedTables.put(table.getTableName(), table);
+				} else if (table.getX() != tablePosition.getX() || table.getY() != tablePosition.getY()) {
+					table.setX(tablePosition.getX());
+					table.setY(tablePosition.getY());
+				} else {
+					continue;
+				}
+				if (++pending % HibernateUtils.BATCH_SIZE == 0) {
+					session.flush();
+				}
+			}
+			session.flush();
+			
+			// Remove any data for tables no longer in the schema
+			if (tableNames.isEmpty()) {
+				session.createQuery("delete from SchemaDesignerTable where databaseId = :databaseId")
+					.setInteger("databaseId", databaseId)
+					.executeUpdate();
+			} else if (!tableNames.containsAll(savedTables.keySet())) {
+				session.createQuery("delete from SchemaDesignerTable where databaseId = :databaseId and tableName not in (:tableNames)")
+					.setInteger("databaseId", databaseId)
+					.setParameterList("tableNames", tableNames)
+					.executeUpdate();
 			}
-			return null;
-		} 
-		catch (Exception e) {
-			session.getTransaction().rollback();
-			throw e;
-		} 
-		finally {
-			session.close();
-		}
-	}
-	
-	
-	private List<SchemaDesignerTable>	getTablePositionRecordsForDatabase ( int dbId ) {
-		Session session = this.getOrdsDBSessionFactory().openSession();
-		try {
-			Transaction transaction = session.beginTransaction();
-			Criteria criteria = session.createCriteria(SchemaDesignerTable.class);
-			criteria.add(Restrictions.eq("databaseId", dbId));
-			List<SchemaDesignerTable> tables = (List<SchemaDesignerTable>)criteria.list();
 			transaction.commit();
-			return tables;
 		}
 		catch (Exception e) {
 			session.getTransaction().rollback();
@@ -197,9 +220,10 @@ public class TableStructureServiceImpl extends StructureServiceImpl implements T
 		finally {
 			session.close();
 		}
+		
+		// Positions are shared by the main and staging databases
+		this.invalidateTableList(database, false);
+		this.invalidateTableList(database, true);
 	}
-	
-	
-	
 
 }
@@ -0,0 +1,492 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ox.it.ords.api.database.structure.exceptions.LockTimeoutException;
+import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.StructureConfiguration;
+
+/**
+ * Keeps ready-made copies of recently edited databases, so that creating a
+ * staging database is a rename rather than a full copy of the original.
+ * 
+ * Databases are added to the pool when a staging version of them is
+ * created, and the least recently used are dropped from the pool once there
+ * are more than the maximum count, or the copies use more than the maximum
+ * disk space. Copies are made, and remade when the original changes, in the
+ * background. 
+ * 
+ * Rows may be written to the original by other services at any time, and
+ * nothing reliably tells us that they have been, so the copy's data may be
+ * out of date. The pool is therefore only used when staging databases are
+ * merged by applying their schema changes to the original, which keeps the
+ * original's data; replacing the original with a stale copy would lose rows.
+ * A copy is only used if the original's schema fingerprint hasn't changed
+ * since it was made, as the merge matches tables and columns up by oid.
+ * 
+ * The pool is held in memory. Each node names its copies with its own node
+ * id, and only ever drops its own copies, so several instances of this
+ * service can share a database server; each keeps its own copies. It is
+ * disabled by default.
+ */
+public class WarmStagingPool extends StructureServiceImpl {
+	
+	private static Logger log = LoggerFactory.getLogger(WarmStagingPool.class);
+	
+	public static final String ENABLED_PROPERTY = "ords.database.structure.stagingPool.enabled";
+	public static final String MAX_COUNT_PROPERTY = "ords.database.structure.stagingPool.maxCount";
+	public static final String MAX_BYTES_PROPERTY = "ords.database.structure.stagingPool.maxBytes";
+	public static final String REFRESH_INTERVAL_PROPERTY = "ords.database.structure.stagingPool.refreshInterval";
+	public static final String NODE_PROPERTY = "ords.database.structure.stagingPool.node";
+	
+	private static final String SUFFIX = "_warm";
+	
+	private static WarmStagingPool instance;
+	
+	private final int maxCount;
+	private final long maxBytes;
+	private final String node;
+	private final ScheduledExecutorService executor;
+	
+	/**
+	 * The databases in the pool, least recently used first
+	 */
+	private final LinkedHashMap<Integer, Candidate> candidates = new LinkedHashMap<Integer, Candidate>(16, 0.75f, true);
+	
+	/**
+	 * The servers we've removed copies left over from a previous run from
+	 */
+	private final Set<String> cleanedServers = new HashSet<String>();
+	
+	/**
+	 * @return true if the pool is enabled, and staging databases are merged
+	 * by applying their changes
+	 */
+	public static boolean isEnabled(){
+		if (!StructureConfiguration.getBoolean(ENABLED_PROPERTY, false)){
+			return false;
+		}
+		if (!DatabaseStructureServiceImpl.MERGE_MODE_DIFF.equals(StructureConfiguration.getString(
+				DatabaseStructureServiceImpl.MERGE_MODE_PROPERTY, DatabaseStructureServiceImpl.MERGE_MODE_SWAP))){
+			log.warn("The staging pool is only used when " + DatabaseStructureServiceImpl.MERGE_MODE_PROPERTY 
+					+ " is " + DatabaseStructureServiceImpl.MERGE_MODE_DIFF);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the shared pool, creating it on first use
+	 * @return the pool
+	 */
+	public static synchronized WarmStagingPool getInstance(){
+		if (instance == null){
+			instance = new WarmStagingPool(
+					StructureConfiguration.getInt(MAX_COUNT_PROPERTY, 5),
+					StructureConfiguration.getLong(MAX_BYTES_PROPERTY, 10737418240L),
+					StructureConfiguration.getLong(REFRESH_INTERVAL_PROPERTY, 300000),
+					StructureConfiguration.getString(NODE_PROPERTY, getHostName())
+					);
+		}
+		return instance;
+	}
+	
+	/**
+	 * Stops making and dropping copies; any copies that remain are dropped
+	 * when this node next starts
+	 */
+	public static synchronized void shutdownInstance(){
+		if (instance != null){
+			instance.shutdown();
+			instance = null;
+		}
+	}
+	
+	protected void shutdown(){
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * @param node identifies this node; it must be the same each time the
+	 * node starts, so that it can find the copies it left behind
+	 */
+	protected WarmStagingPool(int maxCount, long maxBytes, long refreshInterval, String node){
+		this.maxCount = maxCount;
+		this.maxBytes = maxBytes;
+		//
+		// Keep names short; PostgreSQL truncates them at 63 characters
+		//
+		this.node = md5(String.valueOf(node)).substring(0, 8);
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ords-structure-staging-pool");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Notes that a staging version of a database is being created, adding it
+	 * to the pool if it isn't already there
+	 * 
+	 * @param database the database
+	 */
+	public void recordUse(OrdsPhysicalDatabase database){
+		List<Candidate> evicted = new ArrayList<Candidate>();
+		synchronized (this) {
+			if (candidates.get(database.getPhysicalDatabaseId()) == null){
+				candidates.put(database.getPhysicalDatabaseId(), new Candidate(database));
+			}
+			Iterator<Candidate> iterator = candidates.values().iterator();
+			while (candidates.size() - evicted.size() > maxCount && iterator.hasNext()){
+				Candidate candidate = iterator.next();
+				if (!candidate.busy){
+					iterator.remove();
+					evicted.add(candidate);
+				}
+			}
+		}
+		dropLater(evicted);
+	}
+	
+	/**
+	 * Renames the ready-made copy of a database to be its staging database,
+	 * if there is a copy and it is up to date
+	 * 
+	 * @param database the database
+	 * @param stagingName the name of the staging database, which must not
+	 * exist
+	 * @return true if the staging database was created from the pool
+	 */
+	public boolean claim(OrdsPhysicalDatabase database, String stagingName){
+		Candidate candidate;
+		synchronized (this) {
+			candidate = candidates.get(database.getPhysicalDatabaseId());
+			if (candidate == null || candidate.busy || candidate.token == null){
+				return false;
+			}
+			candidate.busy = true;
+		}
+		String server = database.getDatabaseServer();
+		String warmName = getWarmName(database);
+		boolean claimed = false;
+		try {
+			if (candidate.token.equals(getToken(database))){
+				this.runJDBCQuery(String.format("ALTER DATABASE %s RENAME TO %s", 
+						quote_ident(warmName), 
+						quote_ident(stagingName)), null, server, null);
+				claimed = true;
+			} else {
+				log.debug("Copy of " + database.getDbConsumedName() + " is out of date");
+				this.runJDBCQuery(this.getDropIfExistsStatement(warmName, server), null, server, null);
+			}
+		} catch (Exception e) {
+			log.warn("Unable to use copy of " + database.getDbConsumedName() + " for staging", e);
+		} finally {
+			synchronized (this) {
+				candidate.token = null;
+				candidate.size = 0;
+				candidate.busy = false;
+			}
+		}
+		return claimed;
+	}
+	
+	/**
+	 * Discards the copy of a database that has been changed, and makes a new
+	 * one in the background
+	 * 
+	 * @param database the database
+	 */
+	public void invalidate(final OrdsPhysicalDatabase database){
+		synchronized (this) {
+			if (!candidates.containsKey(database.getPhysicalDatabaseId())){
+				return;
+			}
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Candidate candidate;
+				synchronized (WarmStagingPool.this) {
+					candidate = candidates.get(database.getPhysicalDatabaseId());
+				}
+				if (candidate != null){
+					warm(candidate);
+					enforceMaxBytes();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Removes a database that has been deleted from the pool
+	 * 
+	 * @param database the database
+	 */
+	public void remove(OrdsPhysicalDatabase database){
+		Candidate candidate;
+		synchronized (this) {
+			candidate = candidates.remove(database.getPhysicalDatabaseId());
+		}
+		if (candidate != null){
+			List<Candidate> removed = new ArrayList<Candidate>();
+			removed.add(candidate);
+			dropLater(removed);
+		}
+	}
+	
+	/**
+	 * Makes a copy of each database in the pool that doesn't have an up to
+	 * date one
+	 */
+	protected void refresh(){
+		List<Candidate> snapshot;
+		synchronized (this) {
+			snapshot = new ArrayList<Candidate>(candidates.values());
+		}
+		for (Candidate candidate : snapshot){
+			try {
+				removeLeftoverCopies(candidate.database.getDatabaseServer());
+				if (candidate.token == null || !candidate.token.equals(getToken(candidate.database))){
+					warm(candidate);
+				}
+			} catch (Exception e) {
+				log.warn("Unable to check copy of " + candidate.database.getDbConsumedName(), e);
+			}
+		}
+		enforceMaxBytes();
+	}
+	
+	/**
+	 * (Re)makes the copy of a database, if nothing else is using it
+	 */
+	private void warm(Candidate candidate){
+		synchronized (this) {
+			if (candidate.busy){
+				return;
+			}
+			candidate.busy = true;
+			candidate.token = null;
+			candidate.size = 0;
+		}
+		OrdsPhysicalDatabase database = candidate.database;
+		String server = database.getDatabaseServer();
+		String warmName = getWarmName(database);
+		String token = null;
+		long size = 0;
+		DatabaseLock lock = null;
+		try {
+			this.runJDBCQuery(this.getDropIfExistsStatement(warmName, server), null, server, null);
+			//
+			// Don't copy a database while it is being merged or dropped; we
+			// can try again next time
+			//
+			lock = this.tryLockDatabase(database.getPhysicalDatabaseId());
+			if (isQuiet(database)){
+				//
+				// Take the token first; anything that changes between now and
+				// the copy being made will make it look out of date, which is
+				// the safe way round
+				//
+				String before = getToken(database);
+				this.releaseConnections(server, database.getDbConsumedName());
+				this.runJDBCQuery(this.getCloneStatement(warmName, database.getDbConsumedName(), server), null, server, null);
+				Long bytes = this.queryForObject("SELECT pg_database_size(?)", this.createParameterList(warmName), server, null, new RowMapper<Long>() {
+					@Override
+					public Long mapRow(java.sql.ResultSet results) throws java.sql.SQLException {
+						return results.getLong(1);
+					}
+				});
+				size = bytes == null ? 0 : bytes;
+				token = before;
+				log.debug("Made copy of " + database.getDbConsumedName() + " for staging");
+			}
+		} catch (LockTimeoutException e) {
+			log.debug("Not copying " + database.getDbConsumedName() + " as it is in use");
+		} catch (Exception e) {
+			log.warn("Unable to make copy of " + database.getDbConsumedName() + " for staging", e);
+		} finally {
+			if (lock != null){
+				lock.release();
+			}
+			synchronized (this) {
+				candidate.token = token;
+				candidate.size = size;
+				candidate.busy = false;
+			}
+		}
+	}
+	
+	/**
+	 * Drops the copies of the least recently used databases until the total
+	 * size of the copies is within the limit
+	 */
+	private void enforceMaxBytes(){
+		List<Candidate> evicted = new ArrayList<Candidate>();
+		synchronized (this) {
+			long total = 0;
+			for (Candidate candidate : candidates.values()){
+				total += candidate.size;
+			}
+			Iterator<Candidate> iterator = candidates.values().iterator();
+			while (total > maxBytes && iterator.hasNext()){
+				Candidate candidate = iterator.next();
+				if (!candidate.busy && candidate.size > 0){
+					total -= candidate.size;
+					iterator.remove();
+					evicted.add(candidate);
+				}
+			}
+		}
+		dropLater(evicted);
+	}
+	
+	private void dropLater(final List<Candidate> dropped){
+		if (dropped.isEmpty()){
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Candidate candidate : dropped){
+					String server = candidate.database.getDatabaseServer();
+					try {
+						runJDBCQuery(getDropIfExistsStatement(getWarmName(candidate.database), server), null, server, null);
+					} catch (Exception e) {
+						log.warn("Unable to drop copy of " + candidate.database.getDbConsumedName(), e);
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Drops copies this node made before it was last restarted
+	 */
+	private void removeLeftoverCopies(String server) throws Exception {
+		synchronized (this) {
+			if (!cleanedServers.add(String.valueOf(server))){
+				return;
+			}
+		}
+		List<String> names = this.queryForList("SELECT datname FROM pg_database WHERE datname LIKE ?", 
+				this.createParameterList("%\\_staging" + (SUFFIX + "_" + node).replace("_", "\\_")), server, null, RowMapper.STRING);
+		Set<String> current = new HashSet<String>();
+		synchronized (this) {
+			for (Candidate candidate : candidates.values()){
+				current.add(getWarmName(candidate.database));
+			}
+		}
+		for (String name : names){
+			if (!current.contains(name)){
+				this.runJDBCQuery(this.getDropIfExistsStatement(name, server), null, server, null);
+			}
+		}
+	}
+	
+	/**
+	 * @return true if nothing else is connected to the database
+	 */
+	protected boolean isQuiet(OrdsPhysicalDatabase database) throws Exception {
+		String server = database.getDatabaseServer();
+		this.releaseConnections(server, database.getDbConsumedName());
+		String pid = this.getServerCapabilities(server).getBackendPidColumn();
+		Integer count = this.queryForObject(
+				String.format("SELECT COUNT(*) FROM pg_stat_activity WHERE datname = ? AND %1$s <> pg_backend_pid()", pid), 
+				this.createParameterList(database.getDbConsumedName()), server, null, RowMapper.INTEGER);
+		return count != null && count == 0;
+	}
+	
+	/**
+	 * Gets a value that changes whenever the schema of a database is changed
+	 */
+	private String getToken(OrdsPhysicalDatabase database) throws Exception {
+		String server = database.getDatabaseServer();
+		String databaseName = database.getDbConsumedName();
+		String fingerprint = this.getCatalogFingerprint(databaseName, server);
+		this.releaseConnections(server, databaseName);
+		return fingerprint;
+	}
+	
+	protected String getWarmName(OrdsPhysicalDatabase database){
+		return this.calculateStagingName(database.getDbConsumedName()) + SUFFIX + "_" + node;
+	}
+	
+	private static String getHostName(){
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (Exception e) {
+			log.warn("Unable to find the host name; set " + NODE_PROPERTY + " to identify this node");
+			return "localhost";
+		}
+	}
+	
+	/**
+	 * Names are quoted here from background threads with no subject; they
+	 * are all derived from database records rather than user input
+	 */
+	@Override
+	protected String quote_ident(String ident) {
+		if (ident == null) return null;
+		return "\"" + ident.replace("\"", "\"\"") + "\"";
+	}
+	
+	private static class Candidate {
+		final OrdsPhysicalDatabase database;
+		
+		/**
+		 * The token of the original when the current copy was made, or null
+		 * if there is no copy
+		 */
+		String token;
+		long size;
+		
+		/**
+		 * True while the copy is being made, renamed or dropped
+		 */
+		boolean busy;
+		
+		Candidate(OrdsPhysicalDatabase database){
+			this.database = database;
+		}
+	}
+}
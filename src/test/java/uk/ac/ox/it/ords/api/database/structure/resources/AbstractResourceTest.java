@@ -40,7 +40,10 @@ import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
 
 import uk.ac.ox.it.ords.api.database.structure.services.DatabaseStructureService;
 import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.HibernateUtils;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.PermissionsBootstrap;
 import uk.ac.ox.it.ords.api.database.structure.model.User;
+import uk.ac.ox.it.ords.api.database.structure.server.PermissionCacheFilter;
+import uk.ac.ox.it.ords.api.database.structure.server.PhysicalDatabaseFilter;
 import uk.ac.ox.it.ords.security.AbstractShiroTest;
 import uk.ac.ox.it.ords.security.model.UserRole;
 
@@ -95,6 +98,13 @@ public class AbstractResourceTest extends AbstractShiroTest {
 		session.createSQLQuery("truncate userrole, permissions, ordsuser, ordsphysicaldatabase").executeUpdate();
 		transaction.commit();
 		
+		//
+		// Put the global permissions back; they are only created once per JVM
+		// otherwise
+		//
+		PermissionsBootstrap.reset();
+		DatabaseStructureService.Factory.getInstance().init();
+		
 		
 		//
 		// Add our test permissions
@@ -247,6 +257,8 @@ public class AbstractResourceTest extends AbstractShiroTest {
 		providers.add(new JacksonJsonProvider());
 		//providers.add(new UnrecognizedPropertyExceptionMapper());
 		//providers.add(new ValidationExceptionMapper());
+		providers.add(new PermissionCacheFilter());
+		providers.add(new PhysicalDatabaseFilter());
 		sf.setProviders(providers);
 		
 		//
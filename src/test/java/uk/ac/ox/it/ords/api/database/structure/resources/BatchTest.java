@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import javax.ws.rs.core.Response;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ox.it.ords.api.database.structure.dto.BatchOperation;
+import uk.ac.ox.it.ords.api.database.structure.dto.BatchRequest;
+import uk.ac.ox.it.ords.api.database.structure.dto.ColumnRequest;
+import uk.ac.ox.it.ords.api.database.structure.dto.DatabaseRequest;
+import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
+import uk.ac.ox.it.ords.api.database.structure.services.TableList;
+
+public class BatchTest extends AbstractDatabaseTestRunner{
+
+	int physicalDatabaseId;
+	
+	@Before
+	public void setupDatabase(){
+		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
+		DatabaseRequest dbr = this.buildDatabaseRequest(null, logicalDatabaseId, "test");
+		Response response = getClient().path("/").post(dbr);
+		assertEquals(201, response.getStatus());
+		
+		OrdsPhysicalDatabase db = (OrdsPhysicalDatabase)response.readEntity(OrdsPhysicalDatabase.class);
+		assertNotNull(db);
+		physicalDatabaseId = db.getPhysicalDatabaseId();
+
+		logout();
+	}
+	
+	@After
+	public void tearDownDatabase(){
+		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");		
+		Response response = getClient().path("/"+physicalDatabaseId+"/").delete();
+		assertEquals(200, response.getStatus());
+		AbstractResourceTest.databaseIds.remove(logicalDatabaseId);
+		logout();
+	}
+	
+	private BatchOperation operation(String action, String type, String tableName, String name){
+		BatchOperation operation = new BatchOperation();
+		operation.setAction(action);
+		operation.setType(type);
+		operation.setTablename(tableName);
+		operation.setName(name);
+		return operation;
+	}
+	
+	private BatchOperation column(String tableName, String name, ColumnRequest column){
+		BatchOperation operation = operation(BatchOperation.CREATE, BatchOperation.COLUMN, tableName, name);
+		operation.setColumn(column);
+		return operation;
+	}
+	
+	@SuppressWarnings("rawtypes")
+	@Test
+	public void createTableWithColumns(){
+		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
+		
+		BatchRequest request = new BatchRequest();
+		request.setOperations(new ArrayList<BatchOperation>());
+		request.getOperations().add(operation(BatchOperation.CREATE, BatchOperation.TABLE, "testtable", null));
+		request.getOperations().add(column("testtable", "id", this.buildColumnRequest("id", "int", null, false, true)));
+		request.getOperations().add(column("testtable", "name", this.buildColumnRequest("name", "varchar", null, true, false)));
+		BatchOperation comment = operation(null, BatchOperation.COMMENT, "testtable", "name");
+		comment.setComment("The name");
+		request.getOperations().add(comment);
+		
+		Response response = getClient().path("/"+physicalDatabaseId+"/batch/false").post(request);
+		assertEquals(200, response.getStatus());
+		
+		response = getClient().path("/"+physicalDatabaseId+"/table/testtable/false").get();
+		assertEquals(200, response.getStatus());
+		TableList tableList = response.readEntity(TableList.class);
+		Map table = (Map)tableList.getTables().get("testtable");
+		Map columns = (Map)table.get("columns");
+		assertEquals(2, columns.size());
+		assertEquals("The name", ((Map)columns.get("name")).get("comment"));
+		
+		logout();
+	}
+	
+	@Test
+	public void invalidOperationAppliesNothing(){
+		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
+		
+		BatchRequest request = new BatchRequest();
+		request.setOperations(new ArrayList<BatchOperation>());
+		request.getOperations().add(operation(BatchOperation.CREATE, BatchOperation.TABLE, "testtable", null));
+		request.getOperations().add(operation(BatchOperation.DELETE, BatchOperation.COLUMN, "testtable", "nocolumn"));
+		
+		Response response = getClient().path("/"+physicalDatabaseId+"/batch/false").post(request);
+		assertEquals(404, response.getStatus());
+		
+		response = getClient().path("/"+physicalDatabaseId+"/table/testtable/false").get();
+		assertEquals(404, response.getStatus());
+		
+		logout();
+	}
+	
+	@Test
+	public void failedOperationRollsBack(){
+		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
+		
+		//
+		// This passes validation, but the column type is rejected by the database
+		//
+		BatchRequest request = new BatchRequest();
+		request.setOperations(new ArrayList<BatchOperation>());
+		request.getOperations().add(operation(BatchOperation.CREATE, BatchOperation.TABLE, "testtable", null));
+		request.getOperations().add(column("testtable", "bad", this.buildColumnRequest("bad", "nosuchtype", null, true, false)));
+		
+		Response response = getClient().path("/"+physicalDatabaseId+"/batch/false").post(request);
+		assertEquals(500, response.getStatus());
+		
+		response = getClient().path("/"+physicalDatabaseId+"/table/testtable/false").get();
+		assertEquals(404, response.getStatus());
+		
+		logout();
+	}
+	
+	@Test
+	public void batchUnauth(){
+		BatchRequest request = new BatchRequest();
+		request.setOperations(new ArrayList<BatchOperation>());
+		request.getOperations().add(operation(BatchOperation.CREATE, BatchOperation.TABLE, "testtable", null));
+		Response response = getClient().path("/"+physicalDatabaseId+"/batch/false").post(request);
+		assertEquals(403, response.getStatus());
+	}
+}
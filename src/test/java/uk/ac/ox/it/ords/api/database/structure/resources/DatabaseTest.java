@@ -20,7 +20,11 @@ import static org.junit.Assert.*;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.Response;
 
 import org.apache.shiro.SecurityUtils;
@@ -76,6 +80,57 @@ public class DatabaseTest extends AbstractDatabaseTestRunner {
 		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
 		Response response = getClient().path("/").get();
 		assertEquals(200, response.getStatus());
+		
+		assertEquals(200, getClient().path("/").query("offset", 0).query("limit", 10).query("sort", "dbConsumedName").query("order", "desc").get().getStatus());
+		assertEquals(400, getClient().path("/").query("sort", "password").get().getStatus());
+		assertEquals(400, getClient().path("/").query("order", "sideways").get().getStatus());
+		assertEquals(400, getClient().path("/").query("limit", -1).get().getStatus());
+		logout();
+	}
+	
+	@Test
+	public void getDatabaseListPaged() {
+		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
+		DatabaseRequest dbr = this.buildDatabaseRequest(null, logicalDatabaseId, "test");
+		OrdsPhysicalDatabase first = getClient().path("/").post(dbr).readEntity(OrdsPhysicalDatabase.class);
+		OrdsPhysicalDatabase second = getClient().path("/").post(dbr).readEntity(OrdsPhysicalDatabase.class);
+		
+		Response response;
+		List<OrdsPhysicalDatabase> all = getClient().path("/").get().readEntity(new GenericType<List<OrdsPhysicalDatabase>>() {});
+		assertTrue(all.size() >= 2);
+		
+		List<OrdsPhysicalDatabase> page = getClient().path("/").query("limit", 1).query("order", "desc").get().readEntity(new GenericType<List<OrdsPhysicalDatabase>>() {});
+		assertEquals(1, page.size());
+		assertEquals(all.get(all.size() - 1).getPhysicalDatabaseId(), page.get(0).getPhysicalDatabaseId());
+		
+		page = getClient().path("/").query("offset", 1).query("limit", 1).get().readEntity(new GenericType<List<OrdsPhysicalDatabase>>() {});
+		assertEquals(1, page.size());
+		assertEquals(all.get(1).getPhysicalDatabaseId(), page.get(0).getPhysicalDatabaseId());
+		
+		//
+		// Follow the cursor in the Link header
+		//
+		response = getClient().path("/").query("limit", 1).get();
+		assertNotNull(response.getLink("next"));
+		page = response.readEntity(new GenericType<List<OrdsPhysicalDatabase>>() {});
+		assertEquals(all.get(0).getPhysicalDatabaseId(), page.get(0).getPhysicalDatabaseId());
+		page = getClient().path("/").query("limit", 1).query("after", page.get(0).getPhysicalDatabaseId()).get().readEntity(new GenericType<List<OrdsPhysicalDatabase>>() {});
+		assertEquals(all.get(1).getPhysicalDatabaseId(), page.get(0).getPhysicalDatabaseId());
+		assertNull(getClient().path("/").get().getLink("next"));
+		assertEquals(400, getClient().path("/").query("after", 1).query("sort", "dbConsumedName").get().getStatus());
+		
+		//
+		// Sparse fields
+		//
+		List<Map<String, Object>> fields = getClient().path("/").query("fields", "dbConsumedName").get().readEntity(new GenericType<List<Map<String, Object>>>() {});
+		assertEquals(all.size(), fields.size());
+		assertEquals(2, fields.get(0).size());
+		assertEquals(all.get(0).getPhysicalDatabaseId(), fields.get(0).get("physicalDatabaseId"));
+		assertEquals(all.get(0).getDbConsumedName(), fields.get(0).get("dbConsumedName"));
+		assertEquals(400, getClient().path("/").query("fields", "password").get().getStatus());
+		
+		assertEquals(200, getClient().path("/"+first.getPhysicalDatabaseId()).delete().getStatus());
+		assertEquals(200, getClient().path("/"+second.getPhysicalDatabaseId()).delete().getStatus());
 		logout();
 	}
 
@@ -150,6 +205,49 @@ public class DatabaseTest extends AbstractDatabaseTestRunner {
 	}
 	
 	
+	@Test
+	public void listPublicDatabasesUnauth() {
+		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
+		DatabaseRequest dbr = this.buildDatabaseRequest(null, logicalDatabaseId, "test");
+		OrdsPhysicalDatabase db = getClient().path("/").post(dbr).readEntity(OrdsPhysicalDatabase.class);
+		logout();
+		
+		//
+		// Not public yet
+		//
+		List<OrdsPhysicalDatabase> databases = getClient().path("/").get().readEntity(new GenericType<List<OrdsPhysicalDatabase>>() {});
+		assertTrue(databases.isEmpty());
+		
+		//
+		// Make it public
+		//
+		Session session = HibernateUtils.getSessionFactory().getCurrentSession();
+		Transaction transaction = session.beginTransaction();
+		Permission permission = new Permission();
+		permission.setRole("anonymous");
+		permission.setPermission("database:view:"+logicalDatabaseId);
+		session.save(permission);
+		transaction.commit();
+		
+		try {
+			databases = getClient().path("/").get().readEntity(new GenericType<List<OrdsPhysicalDatabase>>() {});
+			boolean listed = false;
+			for (OrdsPhysicalDatabase database : databases){
+				listed |= database.getPhysicalDatabaseId() == db.getPhysicalDatabaseId();
+			}
+			assertTrue(listed);
+		} finally {
+			session = HibernateUtils.getSessionFactory().getCurrentSession();
+			transaction = session.beginTransaction();
+			session.delete(permission);
+			transaction.commit();
+			
+			loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
+			assertEquals(200, getClient().path("/"+db.getPhysicalDatabaseId()).delete().getStatus());
+			logout();
+		}
+	}
+	
 	@Test
 	public void stagingTest() {
 		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
@@ -179,6 +277,96 @@ public class DatabaseTest extends AbstractDatabaseTestRunner {
 		logout();
 	}
 	
+	@Test
+	public void conditionalGet() {
+		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
+		DatabaseRequest dbr = this.buildDatabaseRequest(null, logicalDatabaseId, "test");
+		Response response = getClient().path("/").post(dbr);
+		assertEquals(201, response.getStatus());
+		
+		OrdsPhysicalDatabase db = (OrdsPhysicalDatabase)response.readEntity(OrdsPhysicalDatabase.class);
+		int dbID = db.getPhysicalDatabaseId();
+		
+		response = getClient().path("/"+dbID+"/table/dummy/false").post(null);
+		assertEquals(201, response.getStatus());
+		
+		// get the metadata and its tag
+		response = getClient().path("/"+dbID).get();
+		assertEquals(200, response.getStatus());
+		EntityTag tag = response.getEntityTag();
+		assertNotNull(tag);
+		
+		// unchanged, so not modified
+		response = getClient().path("/"+dbID).header("If-None-Match", tag.toString()).get();
+		assertEquals(304, response.getStatus());
+		
+		// the same applies to a table
+		response = getClient().path("/"+dbID+"/table/dummy/false").get();
+		assertEquals(200, response.getStatus());
+		EntityTag tableTag = response.getEntityTag();
+		response = getClient().path("/"+dbID+"/table/dummy/false").header("If-None-Match", tableTag.toString()).get();
+		assertEquals(304, response.getStatus());
+		
+		// changing the structure changes the tag
+		response = getClient().path("/"+dbID+"/table/dummy/column/name/false").post(this.buildColumnRequest("name", "varchar", null, true, false));
+		assertEquals(201, response.getStatus());
+		response = getClient().path("/"+dbID).header("If-None-Match", tag.toString()).get();
+		assertEquals(200, response.getStatus());
+		assertNotEquals(tag, response.getEntityTag());
+		response = getClient().path("/"+dbID+"/table/dummy/false").header("If-None-Match", tableTag.toString()).get();
+		assertEquals(200, response.getStatus());
+		
+		// delete the original
+		response = getClient().path("/"+dbID).delete();
+		assertEquals(200, response.getStatus());
+		
+		logout();
+	}
+	
+	@Test
+	public void streamMetadata() {
+		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
+		DatabaseRequest dbr = this.buildDatabaseRequest(null, logicalDatabaseId, "test");
+		Response response = getClient().path("/").post(dbr);
+		assertEquals(201, response.getStatus());
+		
+		OrdsPhysicalDatabase db = (OrdsPhysicalDatabase)response.readEntity(OrdsPhysicalDatabase.class);
+		int dbID = db.getPhysicalDatabaseId();
+		
+		// two tables, one referencing the other
+		response = getClient().path("/"+dbID+"/table/country/false").post(null);
+		assertEquals(201, response.getStatus());
+		response = getClient().path("/"+dbID+"/table/country/column/id/false").post(this.buildColumnRequest("id", "int", null, false, true));
+		assertEquals(201, response.getStatus());
+		String[] key = {"id"};
+		response = getClient().path("/"+dbID+"/table/country/constraint/pkey_country/false").post(this.buildConstraintRequest("pkey_country", constraint_type.PRIMARY, key, "", ""));
+		assertEquals(201, response.getStatus());
+		response = getClient().path("/"+dbID+"/table/city/false").post(null);
+		assertEquals(201, response.getStatus());
+		response = getClient().path("/"+dbID+"/table/city/column/country/false").post(this.buildColumnRequest("country", "int", null, true, false));
+		assertEquals(201, response.getStatus());
+		String[] columns = {"country"};
+		ConstraintRequest foreignKey = this.buildConstraintRequest("city_country_fkey", constraint_type.FOREIGN, columns, "country", "id");
+		response = getClient().path("/"+dbID+"/table/city/constraint/city_country_fkey/false").post(foreignKey);
+		assertEquals(201, response.getStatus());
+		
+		// the streamed structure is the same as the one built in memory
+		response = getClient().path("/"+dbID).get();
+		assertEquals(200, response.getStatus());
+		TableList tableList = response.readEntity(TableList.class);
+		response = getClient().path("/"+dbID).query("stream", true).get();
+		assertEquals(200, response.getStatus());
+		TableList streamed = response.readEntity(TableList.class);
+		assertEquals(2, streamed.getTables().size());
+		assertEquals(tableList.getTables(), streamed.getTables());
+		
+		// delete the original
+		response = getClient().path("/"+dbID).delete();
+		assertEquals(200, response.getStatus());
+		
+		logout();
+	}
+	
 	@Test
 	public void testTables() {
 		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
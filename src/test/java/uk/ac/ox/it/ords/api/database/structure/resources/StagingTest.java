@@ -20,6 +20,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Map;
+
 import javax.ws.rs.core.Response;
 
 import org.junit.Test;
@@ -74,6 +76,63 @@ public class StagingTest extends AbstractDatabaseTestRunner {
 		
 	}
 	
+	@SuppressWarnings("rawtypes")
+	@Test
+	public void createStagingDatabaseAsync() throws Exception{
+		
+		// Create a database
+		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
+		DatabaseRequest dbr = this.buildDatabaseRequest(null, logicalDatabaseId, "test");
+		Response response = getClient().path("/").post(dbr);
+		assertEquals(201, response.getStatus());
+		
+		OrdsPhysicalDatabase db = (OrdsPhysicalDatabase)response.readEntity(OrdsPhysicalDatabase.class);
+		int physicalDatabaseId = db.getPhysicalDatabaseId();
+		
+		// Start making a staging version
+		response = getClient().path("/"+physicalDatabaseId+"/staging").query("async", true).post(dbr);
+		assertEquals(202, response.getStatus());
+		String jobPath = response.getLocation().getPath();
+		assertTrue(jobPath.contains("/job/"));
+		String jobId = jobPath.substring(jobPath.lastIndexOf('/') + 1);
+		
+		// Poll the job until it's done
+		Map job = null;
+		for (int i = 0; i < 100; i++){
+			response = getClient().path("/job/"+jobId).get();
+			assertEquals(200, response.getStatus());
+			job = response.readEntity(Map.class);
+			if (job.get("status").equals("SUCCEEDED") || job.get("status").equals("FAILED")) break;
+			Thread.sleep(100);
+		}
+		assertEquals("SUCCEEDED", job.get("status"));
+		assertTrue(job.get("location").toString().endsWith("/staging"));
+		
+		// Only visible to those who can view the database
+		logout();
+		assertEquals(403, getClient().path("/job/"+jobId).get().getStatus());
+		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
+
+		// Check it exists
+		response = getClient().path("/"+physicalDatabaseId+"/staging").get();
+		assertEquals(200, response.getStatus());
+
+		// Drop staging and main
+		response = getClient().path("/"+physicalDatabaseId+"/staging").delete();
+		assertEquals(200, response.getStatus());
+		response = getClient().path("/"+physicalDatabaseId+"/").delete();
+		assertEquals(200, response.getStatus());
+		AbstractResourceTest.databaseIds.remove(logicalDatabaseId);
+		logout();
+	}
+	
+	@Test
+	public void getNonexistantJob(){
+		loginUsingSSO("pingu@nowhere.co","pingu@nowhere.co");
+		assertEquals(404, getClient().path("/job/nosuchjob").get().getStatus());
+		logout();
+	}
+	
 	@Test
 	public void createStagingNoexistingVersion(){
 		
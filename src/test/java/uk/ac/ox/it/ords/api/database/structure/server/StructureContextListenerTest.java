@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import uk.ac.ox.it.ords.api.database.structure.services.impl.PhysicalDatabaseCache;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.DatabaseLock;
+
+public class StructureContextListenerTest {
+	
+	@Test
+	public void statisticsArePublished() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName lock = new ObjectName(StructureContextListener.JMX_DOMAIN + ":type=DatabaseLock");
+		ObjectName cache = new ObjectName(StructureContextListener.JMX_DOMAIN + ":type=PhysicalDatabaseCache");
+		StructureContextListener listener = new StructureContextListener();
+		
+		listener.contextInitialized(null);
+		assertEquals(DatabaseLock.getAcquiredCount(), server.getAttribute(lock, "AcquiredCount"));
+		assertEquals(DatabaseLock.getMaxWaitTime(), server.getAttribute(lock, "MaxWaitTime"));
+		assertEquals(PhysicalDatabaseCache.getInstance().getHitCount(), server.getAttribute(cache, "HitCount"));
+		assertEquals(PhysicalDatabaseCache.getInstance().getHitRate(), server.getAttribute(cache, "HitRate"));
+		
+		listener.contextDestroyed(null);
+		assertFalse(server.isRegistered(lock));
+		assertFalse(server.isRegistered(cache));
+	}
+
+}
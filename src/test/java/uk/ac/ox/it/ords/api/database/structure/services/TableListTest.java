@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.ox.it.ords.api.database.structure.services;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class TableListTest {
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private TableList createTableList(){
+		TableList tableList = new TableList();
+		tableList.addTable("city", "Cities");
+		tableList.addColumn("city", "id", 1, "", false, "INTEGER", true, null);
+		tableList.addColumn("city", "country", 2, null, true, "INTEGER", false, "The country");
+		tableList.addIndex("city", "city_pkey", "PRIMARY", Arrays.asList("id"));
+		tableList.addRelation("city", "city_country_fkey", "country", "country", "id",
+				Collections.singletonMap("id", Collections.singletonMap("datatype", "INTEGER")));
+		tableList.setXY("city", 10, 20);
+		tableList.addTable("country", null);
+		return tableList;
+	}
+
+	/**
+	 * The JSON as it was written when the TableList was a HashMap of HashMaps
+	 */
+	private Map<String, Object> createMaps(){
+		Map<String, Object> id = new HashMap<String, Object>();
+		id.put("position", 1);
+		id.put("default", "");
+		id.put("nullable", false);
+		id.put("datatype", "INTEGER");
+		id.put("autoincrement", true);
+		id.put("comment", null);
+		Map<String, Object> country = new HashMap<String, Object>();
+		country.put("position", 2);
+		country.put("default", null);
+		country.put("nullable", true);
+		country.put("datatype", "INTEGER");
+		country.put("autoincrement", false);
+		country.put("comment", "The country");
+		Map<String, Object> columns = new HashMap<String, Object>();
+		columns.put("id", id);
+		columns.put("country", country);
+
+		Map<String, Object> index = new HashMap<String, Object>();
+		index.put("type", "PRIMARY");
+		index.put("columns", Arrays.asList("id"));
+
+		Map<String, Object> relation = new HashMap<String, Object>();
+		relation.put("column", "country");
+		relation.put("referenceTable", "country");
+		relation.put("referenceColumn", "id");
+		relation.put("columns", Collections.singletonMap("id", Collections.singletonMap("datatype", "INTEGER")));
+
+		Map<String, Object> city = new HashMap<String, Object>();
+		city.put("columns", columns);
+		city.put("relations", Collections.singletonMap("city_country_fkey", relation));
+		city.put("indexes", Collections.singletonMap("city_pkey", index));
+		city.put("comment", "Cities");
+		city.put("x", 10);
+		city.put("y", 20);
+
+		Map<String, Object> countryTable = new HashMap<String, Object>();
+		countryTable.put("columns", Collections.emptyMap());
+		countryTable.put("relations", Collections.emptyMap());
+		countryTable.put("indexes", Collections.emptyMap());
+		countryTable.put("comment", null);
+
+		Map<String, Object> tables = new HashMap<String, Object>();
+		tables.put("city", city);
+		tables.put("country", countryTable);
+		return Collections.<String, Object>singletonMap("tables", tables);
+	}
+
+	@Test
+	public void json() throws Exception {
+		assertEquals(mapper.readTree(mapper.writeValueAsString(createMaps())),
+				mapper.readTree(mapper.writeValueAsString(createTableList())));
+	}
+
+	@Test
+	public void readBack() throws Exception {
+		TableList tableList = mapper.readValue(mapper.writeValueAsString(createTableList()), TableList.class);
+		assertEquals(createMaps().get("tables"), tableList.getTables());
+	}
+
+	@Test
+	public void maps() throws Exception {
+		assertEquals(createMaps().get("tables"), createTableList().getTables());
+	}
+}
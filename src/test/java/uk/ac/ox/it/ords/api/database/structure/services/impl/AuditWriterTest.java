@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import uk.ac.ox.it.ords.security.model.Audit;
+import uk.ac.ox.it.ords.security.services.AuditService;
+
+public class AuditWriterTest {
+	
+	private final List<Audit> written = new CopyOnWriteArrayList<Audit>();
+	
+	/**
+	 * An audit service that records what it is given, after waiting for
+	 * the latch
+	 */
+	private AuditService auditService(final CountDownLatch latch){
+		return (AuditService) Proxy.newProxyInstance(
+				AuditService.class.getClassLoader(),
+				new Class<?>[]{AuditService.class},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("createNewAudit")){
+							latch.await();
+							written.add((Audit) args[0]);
+						}
+						return null;
+					}
+				});
+	}
+	
+	private Audit audit(String message){
+		Audit audit = new Audit();
+		audit.setMessage(message);
+		return audit;
+	}
+	
+	@Test
+	public void writtenInBackground() throws Exception {
+		AuditWriter writer = new AuditWriter(auditService(new CountDownLatch(0)), 10, 5, 10, false);
+		for (int i = 0; i < 8; i++){
+			writer.write(audit("audit " + i));
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (writer.getWrittenCount() < 8 && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		assertEquals(8, written.size());
+		assertEquals(0, writer.getQueueSize());
+		writer.shutdown(1000);
+	}
+	
+	@Test
+	public void droppedWhenFull() throws Exception {
+		CountDownLatch latch = new CountDownLatch(1);
+		AuditWriter writer = new AuditWriter(auditService(latch), 2, 1, 10, false);
+		
+		//
+		// The first is taken off the queue and held up writing, two fill the
+		// queue, and the rest are dropped
+		//
+		writer.write(audit("first"));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (writer.getQueueSize() > 0 && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		for (int i = 0; i < 5; i++){
+			writer.write(audit("audit " + i));
+		}
+		assertEquals(2, writer.getQueueSize());
+		assertEquals(3, writer.getDroppedCount());
+		
+		latch.countDown();
+		writer.shutdown(5000);
+		assertEquals(3, written.size());
+	}
+	
+	@Test
+	public void drainedOnShutdown() throws Exception {
+		AuditWriter writer = new AuditWriter(auditService(new CountDownLatch(0)), 100, 10, TimeUnit.HOURS.toMillis(1), false);
+		writer.shutdown(5000);
+		for (int i = 0; i < 20; i++){
+			writer.write(audit("audit " + i));
+		}
+		assertEquals(20, written.size());
+		
+		writer = new AuditWriter(auditService(new CountDownLatch(0)), 100, 10, TimeUnit.HOURS.toMillis(1), true);
+		for (int i = 0; i < 20; i++){
+			writer.write(audit("after " + i));
+		}
+		writer.shutdown(5000);
+		assertEquals(40, written.size());
+		assertEquals(0, writer.getQueueSize());
+	}
+
+	
+	@Test
+	public void nothingLostWhenWrittenDuringShutdown() throws Exception {
+		final AuditWriter writer = new AuditWriter(auditService(new CountDownLatch(0)), 1000, 10, 10, true);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++){
+			final int thread = i;
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < 500; j++){
+						writer.write(audit("audit " + thread + "." + j));
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads){
+			thread.start();
+		}
+		start.countDown();
+		writer.shutdown(5000);
+		for (Thread thread : threads){
+			thread.join(5000);
+		}
+		assertEquals(2000, written.size());
+		assertEquals(0, writer.getQueueSize());
+		assertEquals(0, writer.getDroppedCount());
+	}
+
+}
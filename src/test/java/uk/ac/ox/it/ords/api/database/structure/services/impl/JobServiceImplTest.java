@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
+import uk.ac.ox.it.ords.api.database.structure.services.Job;
+
+public class JobServiceImplTest {
+	
+	private JobServiceImpl service;
+	private CountDownLatch release;
+	
+	private OrdsPhysicalDatabase database(int id){
+		OrdsPhysicalDatabase database = new OrdsPhysicalDatabase();
+		database.setPhysicalDatabaseId(id);
+		return database;
+	}
+	
+	private Callable<String> task(){
+		return new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				release.await(10, TimeUnit.SECONDS);
+				return "done";
+			}
+		};
+	}
+	
+	@Before
+	public void setUp(){
+		service = new JobServiceImpl(2, 20, 60000);
+		release = new CountDownLatch(1);
+	}
+	
+	@After
+	public void tearDown(){
+		release.countDown();
+		service.shutdown();
+	}
+	
+	@Test
+	public void sameKeyShared(){
+		Job first = service.submit(Job.MERGE, database(1), "staging", task());
+		Job second = service.submit(Job.MERGE, database(1), "staging", task());
+		assertSame(first, second);
+	}
+	
+	@Test
+	public void differentKeyNotShared(){
+		Job first = service.submit(Job.MERGE, database(1), "2", task());
+		Job second = service.submit(Job.MERGE, database(1), "3", task());
+		assertNotSame(first, second);
+		assertNotSame(first, service.submit(Job.MERGE, database(1), "staging", task()));
+		assertNotSame(first, service.submit(Job.MERGE, database(4), "2", task()));
+	}
+	
+	@Test
+	public void noKeyNeverShared(){
+		Job first = service.submit(Job.CLONE, database(1), null, task());
+		Job second = service.submit(Job.CLONE, database(1), null, task());
+		assertNotSame(first, second);
+	}
+	
+	@Test
+	public void notSharedOnceFinished() throws Exception {
+		Job first = service.submit(Job.STAGING, database(1), "staging", task());
+		release.countDown();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!first.isFinished() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(first.isFinished());
+		assertNotSame(first, service.submit(Job.STAGING, database(1), "staging", task()));
+	}
+	
+	@Test
+	public void shutdownWaitsForRunningJobs(){
+		Job job = service.submit(Job.STAGING, database(1), "staging", task());
+		release.countDown();
+		service.shutdown();
+		assertEquals(Job.Status.SUCCEEDED, job.getStatus());
+		assertEquals("done", job.getLocation());
+	}
+	
+	@Test
+	public void jobsAreSavedAsTheyChange(){
+		final List<Job.Status> saved = new ArrayList<Job.Status>();
+		final Map<String, Job> elsewhere = new HashMap<String, Job>();
+		JobServiceImpl saving = new JobServiceImpl(2, 20, 60000) {
+			@Override
+			protected void saveJob(Job job) {
+				saved.add(job.getStatus());
+			}
+			@Override
+			protected Job findJob(String id) {
+				return elsewhere.get(id);
+			}
+		};
+		Job job = saving.submit(Job.STAGING, database(1), "staging", task());
+		release.countDown();
+		saving.shutdown();
+		assertEquals(3, saved.size());
+		assertEquals(Job.Status.SUCCEEDED, saved.get(2));
+		
+		Job other = new Job(Job.CLONE, 2, 2);
+		elsewhere.put(other.getId(), other);
+		assertSame(job, saving.getJob(job.getId()));
+		assertSame(other, saving.getJob(other.getId()));
+		assertNull(saving.getJob("unknown"));
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
+
+public class PhysicalDatabaseCacheTest {
+
+	private OrdsPhysicalDatabase database(int id){
+		OrdsPhysicalDatabase database = new OrdsPhysicalDatabase();
+		database.setPhysicalDatabaseId(id);
+		database.setDatabaseServer("localhost");
+		return database;
+	}
+
+	@Test
+	public void hitsAndMisses(){
+		PhysicalDatabaseCache cache = new PhysicalDatabaseCache(10, 60000);
+		assertNull(cache.get(1));
+		cache.put(database(1), cache.getVersion());
+		assertNotNull(cache.get(1));
+		assertNull(cache.get(2));
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(1.0 / 3, cache.getHitRate(), 0.0001);
+	}
+
+	@Test
+	public void copiesAreReturned(){
+		PhysicalDatabaseCache cache = new PhysicalDatabaseCache(10, 60000);
+		OrdsPhysicalDatabase database = database(1);
+		cache.put(database, cache.getVersion());
+		database.setDatabaseServer("changed");
+
+		OrdsPhysicalDatabase cached = cache.get(1);
+		assertNotSame(database, cached);
+		assertEquals("localhost", cached.getDatabaseServer());
+		cached.setDatabaseServer("changed");
+		assertEquals("localhost", cache.get(1).getDatabaseServer());
+	}
+
+	@Test
+	public void invalidate(){
+		PhysicalDatabaseCache cache = new PhysicalDatabaseCache(10, 60000);
+		cache.put(database(1), cache.getVersion());
+		cache.invalidate(1);
+		assertNull(cache.get(1));
+	}
+
+	@Test
+	public void staleReadIsNotCached(){
+		PhysicalDatabaseCache cache = new PhysicalDatabaseCache(10, 60000);
+		long version = cache.getVersion();
+		cache.invalidate(1);
+		cache.put(database(1), version);
+		assertNull(cache.get(1));
+	}
+
+	@Test
+	public void expired() throws Exception {
+		PhysicalDatabaseCache cache = new PhysicalDatabaseCache(10, 0);
+		cache.put(database(1), cache.getVersion());
+		Thread.sleep(5);
+		assertNull(cache.get(1));
+	}
+
+	@Test
+	public void leastRecentlyUsedAreEvicted(){
+		PhysicalDatabaseCache cache = new PhysicalDatabaseCache(2, 60000);
+		cache.put(database(1), cache.getVersion());
+		cache.put(database(2), cache.getVersion());
+		cache.get(1);
+		cache.put(database(3), cache.getVersion());
+		assertNotNull(cache.get(1));
+		assertNull(cache.get(2));
+		assertEquals(1, cache.getEvictionCount());
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Test;
+
+import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
+
+public class RequestDatabasesTest {
+	
+	private OrdsPhysicalDatabase database(int id){
+		OrdsPhysicalDatabase database = new OrdsPhysicalDatabase();
+		database.setPhysicalDatabaseId(id);
+		return database;
+	}
+	
+	@After
+	public void tearDown(){
+		RequestDatabases.end();
+	}
+	
+	@Test
+	public void notRememberedOutsideRequest(){
+		RequestDatabases.put(database(1));
+		assertNull(RequestDatabases.get(1));
+	}
+	
+	@Test
+	public void rememberedDuringRequest(){
+		RequestDatabases.begin();
+		OrdsPhysicalDatabase database = database(1);
+		RequestDatabases.put(database);
+		assertSame(database, RequestDatabases.get(1));
+		assertNull(RequestDatabases.get(2));
+		
+		RequestDatabases.end();
+		assertNull(RequestDatabases.get(1));
+	}
+	
+	@Test
+	public void invalidate(){
+		RequestDatabases.begin();
+		RequestDatabases.put(database(1));
+		RequestDatabases.invalidate(1);
+		assertNull(RequestDatabases.get(1));
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubjectPermissionsTest {
+	
+	private int checks;
+	private String principal;
+	
+	@Before
+	public void setUp(){
+		checks = 0;
+		principal = "pingu";
+		Subject subject = (Subject) Proxy.newProxyInstance(
+				Subject.class.getClassLoader(),
+				new Class<?>[]{Subject.class},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("getPrincipal")){
+							return principal;
+						}
+						if (method.getName().equals("isPermitted") && args[0] instanceof String){
+							checks++;
+							return ((String) args[0]).startsWith("yes");
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+		ThreadContext.bind(subject);
+	}
+	
+	@After
+	public void tearDown(){
+		SubjectPermissions.end();
+		ThreadContext.unbindSubject();
+	}
+	
+	@Test
+	public void notRememberedOutsideRequest(){
+		assertTrue(SubjectPermissions.isPermitted("yes"));
+		assertTrue(SubjectPermissions.isPermitted("yes"));
+		assertEquals(2, checks);
+	}
+	
+	@Test
+	public void rememberedDuringRequest(){
+		SubjectPermissions.begin();
+		assertTrue(SubjectPermissions.isPermitted("yes"));
+		assertFalse(SubjectPermissions.isPermitted("no"));
+		assertTrue(SubjectPermissions.isPermitted("yes"));
+		assertFalse(SubjectPermissions.isPermitted("no"));
+		assertEquals(2, checks);
+		
+		SubjectPermissions.end();
+		assertTrue(SubjectPermissions.isPermitted("yes"));
+		assertEquals(3, checks);
+	}
+	
+	@Test
+	public void forgottenOnClear(){
+		SubjectPermissions.begin();
+		SubjectPermissions.isPermitted("yes");
+		SubjectPermissions.setViewableDatabases(new HashSet<Integer>(Collections.singleton(1)));
+		SubjectPermissions.clear();
+		assertNull(SubjectPermissions.getViewableDatabases());
+		SubjectPermissions.isPermitted("yes");
+		assertEquals(2, checks);
+	}
+	
+	@Test
+	public void forgottenWhenPrincipalChanges(){
+		SubjectPermissions.begin();
+		SubjectPermissions.isPermitted("yes");
+		SubjectPermissions.setViewableDatabases(new HashSet<Integer>(Collections.singleton(1)));
+		principal = "pinga";
+		assertNull(SubjectPermissions.getViewableDatabases());
+		SubjectPermissions.isPermitted("yes");
+		assertEquals(2, checks);
+	}
+	
+	@Test
+	public void viewableDatabasesAreViewPermissions(){
+		SubjectPermissions.begin();
+		SubjectPermissions.setViewableDatabases(new HashSet<Integer>(Collections.singleton(1)));
+		assertEquals(Collections.singleton(1), SubjectPermissions.getViewableDatabases());
+		assertTrue(SubjectPermissions.canView(1));
+		assertEquals(0, checks);
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import uk.ac.ox.it.ords.api.database.structure.services.TableList;
+
+public class TableListCacheTest {
+
+	@Test
+	public void hitsAndMisses(){
+		TableListCache cache = new TableListCache(10, 60000);
+		TableList tableList = new TableList();
+
+		assertNull(cache.get(1, false, null, "a"));
+		cache.put(1, false, null, tableList, "a", cache.getVersion());
+		assertSame(tableList, cache.get(1, false, null, "a"));
+		assertNull(cache.get(1, true, null, "a"));
+		assertNull(cache.get(1, false, "table", "a"));
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(3, cache.getMissCount());
+	}
+
+	@Test
+	public void fingerprintChanged(){
+		TableListCache cache = new TableListCache(10, 60000);
+		TableList tableList = new TableList();
+		cache.put(1, false, null, tableList, "a", cache.getVersion());
+		assertNull(cache.get(1, false, null, "b"));
+		cache.put(1, false, null, tableList, "b", cache.getVersion());
+		assertSame(tableList, cache.get(1, false, null, "b"));
+	}
+
+	@Test
+	public void invalidate(){
+		TableListCache cache = new TableListCache(10, 60000);
+		cache.put(1, false, null, new TableList(), "a", cache.getVersion());
+		cache.put(1, true, "table", new TableList(), "a", cache.getVersion());
+		cache.invalidate(1, true);
+		assertNull(cache.get(1, true, "table", "a"));
+		cache.invalidate(1);
+		assertNull(cache.get(1, false, null, "a"));
+	}
+
+	@Test
+	public void staleVersionIsNotCached(){
+		TableListCache cache = new TableListCache(10, 60000);
+		long version = cache.getVersion();
+		cache.invalidate(1, false);
+		cache.put(1, false, null, new TableList(), "a", version);
+		assertNull(cache.get(1, false, null, "a"));
+
+		// Other databases are unaffected
+		cache.put(2, false, null, new TableList(), "a", version);
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvicted(){
+		TableListCache cache = new TableListCache(2, 60000);
+		TableList first = new TableList();
+		cache.put(1, false, null, first, "a", cache.getVersion());
+		cache.put(2, false, null, new TableList(), "a", cache.getVersion());
+		cache.get(1, false, null, "a");
+		cache.put(3, false, null, new TableList(), "a", cache.getVersion());
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertSame(first, cache.get(1, false, null, "a"));
+		assertNull(cache.get(2, false, null, "a"));
+	}
+
+	@Test
+	public void expired() throws Exception {
+		TableListCache cache = new TableListCache(10, 0);
+		cache.put(1, false, null, new TableList(), "a", cache.getVersion());
+		Thread.sleep(5);
+		assertNull(cache.get(1, false, null, "a"));
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CatalogCursorTest {
+
+	@Test
+	public void compareMatchesCollationC(){
+		assertEquals(0, CatalogCursor.compare("city", "city"));
+		assertTrue(CatalogCursor.compare("City", "city") < 0);
+		assertTrue(CatalogCursor.compare("city", "city_2") < 0);
+		assertTrue(CatalogCursor.compare("z", "é") < 0);
+		// Supplementary characters sort after the rest of the BMP by code point,
+		// even though their UTF-16 surrogates don't
+		assertTrue(CatalogCursor.compare("Ａ", "😀") < 0);
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import uk.ac.ox.it.ords.api.database.structure.services.TableList;
+
+public class CatalogSnapshotTest {
+
+	private CatalogSnapshot.ColumnInfo column(String name, String dataType, int position, String defaultValue){
+		CatalogSnapshot.ColumnInfo column = new CatalogSnapshot.ColumnInfo();
+		column.name = name;
+		column.dataType = dataType;
+		column.position = position;
+		column.defaultValue = defaultValue;
+		column.nullable = true;
+		return column;
+	}
+
+	private CatalogSnapshot createSnapshot(){
+		CatalogSnapshot snapshot = new CatalogSnapshot();
+		snapshot.addTable("city", "Cities");
+		snapshot.addTable("country", null);
+
+		snapshot.addColumn("country", column("id", "integer", 1, "nextval('country_id_seq'::regclass)"));
+		CatalogSnapshot.ColumnInfo name = column("name", "character varying", 2, "NULL::character varying");
+		name.characterMaximumLength = "100";
+		snapshot.addColumn("country", name);
+
+		snapshot.addColumn("city", column("id", "integer", 1, null));
+		snapshot.addColumn("city", column("country", "integer", 2, null));
+
+		CatalogSnapshot.ForeignKeyInfo foreignKey = new CatalogSnapshot.ForeignKeyInfo();
+		foreignKey.constraintName = "city_country_fkey";
+		foreignKey.columnName = "country";
+		foreignKey.foreignTableName = "country";
+		foreignKey.foreignColumnName = "id";
+		snapshot.addForeignKey("city", foreignKey);
+
+		CatalogSnapshot.IndexInfo index = new CatalogSnapshot.IndexInfo();
+		index.name = "city_pkey";
+		index.type = "PRIMARY";
+		index.columns = Arrays.asList("id");
+		snapshot.addIndex("city", index);
+
+		return snapshot;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Test
+	public void columns(){
+		CatalogSnapshot snapshot = createSnapshot();
+		assertEquals(Arrays.asList("city", "country"), snapshot.getTableNames());
+		assertFalse(snapshot.hasTable("town"));
+
+		TableList tableList = snapshot.addTableMetadata("country", new TableList());
+		Map table = (Map) tableList.getTables().get("country");
+		assertNull(table.get("comment"));
+
+		Map columns = (Map) table.get("columns");
+		Map id = (Map) columns.get("id");
+		assertEquals(true, id.get("autoincrement"));
+		assertEquals("", id.get("default"));
+		Map name = (Map) columns.get("name");
+		assertEquals(false, name.get("autoincrement"));
+		assertNull(name.get("default"));
+		assertEquals("VARCHAR(100)", name.get("datatype"));
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Test
+	public void relationsAndIndexes(){
+		CatalogSnapshot snapshot = createSnapshot();
+		TableList tableList = snapshot.addTableMetadata("city", new TableList());
+		Map table = (Map) tableList.getTables().get("city");
+		assertEquals("Cities", table.get("comment"));
+
+		Map relation = (Map) ((Map) table.get("relations")).get("city_country_fkey");
+		assertEquals("country", relation.get("referenceTable"));
+		Map referencedColumns = (Map) relation.get("columns");
+		assertEquals(2, referencedColumns.size());
+		assertTrue(referencedColumns.containsKey("name"));
+
+		Map index = (Map) ((Map) table.get("indexes")).get("city_pkey");
+		assertEquals("PRIMARY", index.get("type"));
+	}
+}
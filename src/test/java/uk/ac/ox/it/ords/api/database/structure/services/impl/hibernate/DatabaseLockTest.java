@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Takes locks in the ORDS database from more threads than the connection
+ * pool allows for a single database
+ */
+public class DatabaseLockTest {
+	
+	private static final int LOCKERS = 12;
+	
+	//
+	// Ids that no real database has
+	//
+	private static final int FIRST_ID = -1000;
+	
+	private StructureServiceImpl service;
+	private ExecutorService executor;
+	
+	@Before
+	public void setUp(){
+		service = new StructureServiceImpl();
+		executor = Executors.newFixedThreadPool(LOCKERS);
+	}
+	
+	@After
+	public void tearDown(){
+		executor.shutdownNow();
+	}
+	
+	@Test
+	public void manyLocksHeldAtOnce() throws Exception {
+		final CyclicBarrier barrier = new CyclicBarrier(LOCKERS);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < LOCKERS; i++){
+			final int databaseId = FIRST_ID - i;
+			results.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					DatabaseLock lock = service.lockDatabase(databaseId);
+					try {
+						//
+						// Everyone holds their lock until all of them have one
+						//
+						barrier.await(20, TimeUnit.SECONDS);
+						return true;
+					} finally {
+						lock.release();
+					}
+				}
+			}));
+		}
+		for (Future<Boolean> result : results){
+			assertTrue(result.get(30, TimeUnit.SECONDS));
+		}
+	}
+	
+	@Test
+	public void manyWaitersForOneLock() throws Exception {
+		final AtomicInteger holders = new AtomicInteger();
+		final AtomicInteger maxHolders = new AtomicInteger();
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < LOCKERS; i++){
+			results.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					DatabaseLock lock = service.lockDatabase(FIRST_ID + 1);
+					try {
+						int count = holders.incrementAndGet();
+						synchronized (maxHolders) {
+							maxHolders.set(Math.max(maxHolders.get(), count));
+						}
+						Thread.sleep(100);
+						holders.decrementAndGet();
+						return true;
+					} finally {
+						lock.release();
+					}
+				}
+			}));
+		}
+		for (Future<Boolean> result : results){
+			assertTrue(result.get(30, TimeUnit.SECONDS));
+		}
+		assertEquals(1, maxHolders.get());
+	}
+}
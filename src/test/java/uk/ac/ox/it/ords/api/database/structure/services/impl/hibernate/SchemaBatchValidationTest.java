@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.NotFoundException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ox.it.ords.api.database.structure.dto.BatchOperation;
+import uk.ac.ox.it.ords.api.database.structure.dto.ColumnRequest;
+import uk.ac.ox.it.ords.api.database.structure.exceptions.BadParameterException;
+import uk.ac.ox.it.ords.api.database.structure.exceptions.NamingConflictException;
+
+public class SchemaBatchValidationTest {
+	
+	private SchemaBatchServiceImpl.Schema schema;
+	private List<BatchOperation> operations;
+	
+	@Before
+	public void setup(){
+		schema = new SchemaBatchServiceImpl.Schema();
+		schema.addTable("country");
+		schema.getColumns("country").add("id");
+		schema.getIndexes("country").add("country_pkey");
+		operations = new ArrayList<BatchOperation>();
+	}
+	
+	private BatchOperation add(String action, String type, String tableName, String name){
+		BatchOperation operation = new BatchOperation();
+		operation.setAction(action);
+		operation.setType(type);
+		operation.setTablename(tableName);
+		operation.setName(name);
+		operations.add(operation);
+		return operation;
+	}
+	
+	@Test
+	public void laterOperationsSeeEarlierOnes() throws Exception {
+		add(BatchOperation.CREATE, BatchOperation.TABLE, "city", null);
+		add(BatchOperation.CREATE, BatchOperation.COLUMN, "city", "name").setColumn(new ColumnRequest());
+		add(BatchOperation.UPDATE, BatchOperation.TABLE, "city", null).setNewname("town");
+		add(BatchOperation.DELETE, BatchOperation.COLUMN, "town", "name");
+		SchemaBatchServiceImpl.validate(schema, operations);
+		
+		assertFalse(schema.hasTable("city"));
+		assertTrue(schema.hasTable("town"));
+		assertFalse(schema.hasColumn("town", "name"));
+	}
+	
+	@Test(expected = NotFoundException.class)
+	public void missingTable() throws Exception {
+		add(BatchOperation.DELETE, BatchOperation.TABLE, "country", null);
+		add(BatchOperation.CREATE, BatchOperation.COLUMN, "country", "name").setColumn(new ColumnRequest());
+		SchemaBatchServiceImpl.validate(schema, operations);
+	}
+	
+	@Test(expected = NamingConflictException.class)
+	public void existingColumn() throws Exception {
+		add(BatchOperation.CREATE, BatchOperation.COLUMN, "country", "id").setColumn(new ColumnRequest());
+		SchemaBatchServiceImpl.validate(schema, operations);
+	}
+	
+	@Test(expected = NotFoundException.class)
+	public void missingIndex() throws Exception {
+		add(BatchOperation.DELETE, BatchOperation.INDEX, "country", "country_pkey");
+		add(BatchOperation.DELETE, BatchOperation.INDEX, "country", "country_pkey");
+		SchemaBatchServiceImpl.validate(schema, operations);
+	}
+	
+	@Test(expected = BadParameterException.class)
+	public void unknownAction() throws Exception {
+		add("replace", BatchOperation.TABLE, "country", null);
+		SchemaBatchServiceImpl.validate(schema, operations);
+	}
+	
+	@Test(expected = BadParameterException.class)
+	public void commentsCanOnlyBeUpdated() throws Exception {
+		add(BatchOperation.DELETE, BatchOperation.COMMENT, "country", null);
+		SchemaBatchServiceImpl.validate(schema, operations);
+	}
+}
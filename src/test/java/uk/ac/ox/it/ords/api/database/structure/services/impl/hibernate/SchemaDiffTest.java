@@ -0,0 +1,279 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.SchemaDefinition.Column;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.SchemaDefinition.Constraint;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.SchemaDefinition.Index;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.SchemaDefinition.Sequence;
+import uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate.SchemaDefinition.Table;
+
+public class SchemaDiffTest {
+	
+	private SchemaDefinition source;
+	private SchemaDefinition target;
+	private Map<String, String> originalNames;
+	
+	@Before
+	public void setup(){
+		source = new SchemaDefinition();
+		target = new SchemaDefinition();
+		originalNames = new HashMap<String, String>();
+	}
+	
+	private Table addTable(SchemaDefinition definition, long oid, String name){
+		Table table = new Table();
+		table.oid = oid;
+		table.name = name;
+		definition.addTable(table);
+		return table;
+	}
+	
+	private Column addColumn(Table table, int number, String name, String type){
+		Column column = new Column();
+		column.number = number;
+		column.name = name;
+		column.type = type;
+		table.columns.add(column);
+		return column;
+	}
+	
+	private void addConstraint(Table table, String name, char type, String definition){
+		addConstraint(table, name, type, definition, null);
+	}
+	
+	private void addConstraint(Table table, String name, char type, String definition, String referencedTable){
+		Constraint constraint = new Constraint();
+		constraint.name = name;
+		constraint.type = type;
+		constraint.definition = definition;
+		constraint.referencedTable = referencedTable;
+		table.constraints.add(constraint);
+	}
+	
+	private void addIndex(Table table, String name, String definition){
+		Index index = new Index();
+		index.name = name;
+		index.definition = definition;
+		table.indexes.add(index);
+	}
+	
+	private void addSequence(SchemaDefinition definition, long oid, String name, long lastValue, boolean called){
+		Sequence sequence = new Sequence();
+		sequence.oid = oid;
+		sequence.name = name;
+		sequence.lastValue = lastValue;
+		sequence.called = called;
+		definition.addSequence(sequence);
+	}
+	
+	@Test
+	public void unchangedSchemaHasNoChanges() throws Exception {
+		addColumn(addTable(source, 1, "country"), 1, "id", "integer");
+		addColumn(addTable(target, 10, "country"), 1, "id", "integer");
+		assertTrue(SchemaDiff.getRenamesAndDrops(source, target, originalNames).isEmpty());
+		assertTrue(SchemaDiff.getChanges(source, target).isEmpty());
+	}
+	
+	@Test
+	public void renamesUseOriginalNames() throws Exception {
+		addColumn(addTable(source, 1, "country"), 1, "name", "text");
+		addColumn(addTable(target, 10, "nation"), 1, "title", "text");
+		originalNames.put(SchemaDefinition.getIdentity(10), "country");
+		originalNames.put(SchemaDefinition.getIdentity(10, 1), "name");
+		
+		List<String> statements = SchemaDiff.getRenamesAndDrops(source, target, originalNames);
+		assertEquals(4, statements.size());
+		assertEquals("ALTER TABLE \"country\" RENAME TO \"ords_merge_0\"", statements.get(0));
+		assertEquals("ALTER TABLE \"ords_merge_0\" RENAME TO \"nation\"", statements.get(1));
+		assertEquals("ALTER TABLE \"nation\" RENAME COLUMN \"name\" TO \"ords_merge_0\"", statements.get(2));
+		assertEquals("ALTER TABLE \"nation\" RENAME COLUMN \"ords_merge_0\" TO \"title\"", statements.get(3));
+	}
+	
+	@Test
+	public void copiesAreMatchedByOid() throws Exception {
+		Table country = addTable(source, 1, "country");
+		addColumn(country, 1, "id", "integer");
+		addColumn(country, 3, "name", "text");
+		Table copy = addTable(target, 1, "nation");
+		addColumn(copy, 1, "id", "integer");
+		addColumn(copy, 3, "title", "text");
+		
+		List<String> statements = SchemaDiff.getRenamesAndDrops(source, target, source.getNames());
+		assertEquals(4, statements.size());
+		assertEquals("ALTER TABLE \"ords_merge_0\" RENAME TO \"nation\"", statements.get(1));
+		assertEquals("ALTER TABLE \"nation\" RENAME COLUMN \"ords_merge_0\" TO \"title\"", statements.get(3));
+	}
+	
+	@Test
+	public void swappedNamesAreNotDropped() throws Exception {
+		addTable(source, 1, "a");
+		addTable(source, 2, "b");
+		addTable(target, 10, "b");
+		addTable(target, 11, "a");
+		originalNames.put(SchemaDefinition.getIdentity(10), "a");
+		originalNames.put(SchemaDefinition.getIdentity(11), "b");
+		
+		List<String> statements = SchemaDiff.getRenamesAndDrops(source, target, originalNames);
+		assertEquals(4, statements.size());
+		for (String statement : statements){
+			assertTrue(statement.contains("RENAME TO"));
+		}
+	}
+	
+	@Test
+	public void unmatchedObjectsAreDropped() throws Exception {
+		Table country = addTable(source, 1, "country");
+		addColumn(country, 1, "id", "integer");
+		addColumn(country, 2, "code", "text");
+		addTable(source, 2, "city");
+		Table remaining = addTable(target, 10, "country");
+		addColumn(remaining, 1, "id", "integer");
+		
+		List<String> statements = SchemaDiff.getRenamesAndDrops(source, target, originalNames);
+		assertEquals(2, statements.size());
+		assertEquals("DROP TABLE \"city\" CASCADE", statements.get(0));
+		assertEquals("ALTER TABLE \"country\" DROP COLUMN \"code\" CASCADE", statements.get(1));
+	}
+	
+	@Test
+	public void columnChanges() throws Exception {
+		Table country = addTable(source, 1, "country");
+		addColumn(country, 1, "id", "integer");
+		addColumn(country, 2, "population", "integer").defaultValue = "0";
+		Table changed = addTable(target, 10, "country");
+		addColumn(changed, 1, "id", "integer").notNull = true;
+		addColumn(changed, 2, "population", "bigint").defaultValue = "0";
+		addColumn(changed, 3, "code", "text").comment = "ISO code";
+		
+		List<String> statements = SchemaDiff.getChanges(source, target);
+		assertEquals(6, statements.size());
+		assertEquals("ALTER TABLE \"country\" ALTER \"id\" SET NOT NULL", statements.get(0));
+		assertEquals("ALTER TABLE \"country\" ALTER \"population\" DROP DEFAULT", statements.get(1));
+		assertEquals("ALTER TABLE \"country\" ALTER \"population\" TYPE bigint USING CAST(\"population\" AS bigint)", statements.get(2));
+		assertEquals("ALTER TABLE \"country\" ALTER \"population\" SET DEFAULT 0", statements.get(3));
+		assertEquals("ALTER TABLE \"country\" ADD COLUMN \"code\" text", statements.get(4));
+		assertEquals("COMMENT ON COLUMN \"country\".\"code\" IS 'ISO code'", statements.get(5));
+	}
+	
+	@Test
+	public void foreignKeysAreDroppedFirstAndAddedLast() throws Exception {
+		Table country = addTable(source, 1, "country");
+		addColumn(country, 1, "id", "integer");
+		addConstraint(country, "country_pkey", 'p', "PRIMARY KEY (id)");
+		Table city = addTable(source, 2, "city");
+		addColumn(city, 1, "country", "integer");
+		addConstraint(city, "city_country_fkey", 'f', "FOREIGN KEY (country) REFERENCES country(id)", "country");
+		
+		Table newCountry = addTable(target, 10, "country");
+		addColumn(newCountry, 1, "id", "integer");
+		addConstraint(newCountry, "country_pkey", 'p', "PRIMARY KEY (id, code)");
+		Table newCity = addTable(target, 11, "city");
+		addColumn(newCity, 1, "country", "integer");
+		addConstraint(newCity, "city_country_fkey", 'f', "FOREIGN KEY (country) REFERENCES country(id, code)", "country");
+		
+		List<String> statements = SchemaDiff.getChanges(source, target);
+		assertEquals(4, statements.size());
+		assertEquals("ALTER TABLE \"city\" DROP CONSTRAINT \"city_country_fkey\"", statements.get(0));
+		assertEquals("ALTER TABLE \"country\" DROP CONSTRAINT \"country_pkey\"", statements.get(1));
+		assertEquals("ALTER TABLE \"country\" ADD CONSTRAINT \"country_pkey\" PRIMARY KEY (id, code)", statements.get(2));
+		assertEquals("ALTER TABLE \"city\" ADD CONSTRAINT \"city_country_fkey\" FOREIGN KEY (country) REFERENCES country(id, code)", statements.get(3));
+	}
+	
+	@Test
+	public void unchangedForeignKeysAreReplacedWhenTheirKeyChanges() throws Exception {
+		Table country = addTable(source, 1, "country");
+		addColumn(country, 1, "code", "text");
+		addConstraint(country, "country_code_key", 'u', "UNIQUE (code)");
+		Table city = addTable(source, 2, "city");
+		addColumn(city, 1, "country", "text");
+		addConstraint(city, "city_country_fkey", 'f', "FOREIGN KEY (country) REFERENCES country(code)", "country");
+		Table river = addTable(source, 3, "river");
+		addColumn(river, 1, "name", "text");
+		addConstraint(river, "river_pkey", 'p', "PRIMARY KEY (name)");
+		
+		//
+		// The unique constraint becomes deferrable; the foreign key that
+		// uses it, and the unrelated primary key, are unchanged
+		//
+		Table newCountry = addTable(target, 10, "country");
+		addColumn(newCountry, 1, "code", "text");
+		addConstraint(newCountry, "country_code_key", 'u', "UNIQUE (code) DEFERRABLE");
+		Table newCity = addTable(target, 11, "city");
+		addColumn(newCity, 1, "country", "text");
+		addConstraint(newCity, "city_country_fkey", 'f', "FOREIGN KEY (country) REFERENCES country(code)", "country");
+		Table newRiver = addTable(target, 12, "river");
+		addColumn(newRiver, 1, "name", "text");
+		addConstraint(newRiver, "river_pkey", 'p', "PRIMARY KEY (name)");
+		
+		List<String> statements = SchemaDiff.getChanges(source, target);
+		assertEquals(4, statements.size());
+		assertEquals("ALTER TABLE \"city\" DROP CONSTRAINT \"city_country_fkey\"", statements.get(0));
+		assertEquals("ALTER TABLE \"country\" DROP CONSTRAINT \"country_code_key\"", statements.get(1));
+		assertEquals("ALTER TABLE \"country\" ADD CONSTRAINT \"country_code_key\" UNIQUE (code) DEFERRABLE", statements.get(2));
+		assertEquals("ALTER TABLE \"city\" ADD CONSTRAINT \"city_country_fkey\" FOREIGN KEY (country) REFERENCES country(code)", statements.get(3));
+	}
+	
+	@Test
+	public void unchangedForeignKeysAreReplacedWhenTheirUniqueIndexChanges() throws Exception {
+		Table country = addTable(source, 1, "country");
+		addColumn(country, 1, "code", "text");
+		addIndex(country, "country_code", "CREATE UNIQUE INDEX country_code ON country USING btree (code)");
+		Table city = addTable(source, 2, "city");
+		addColumn(city, 1, "country", "text");
+		addConstraint(city, "city_country_fkey", 'f', "FOREIGN KEY (country) REFERENCES country(code)", "country");
+		
+		Table newCountry = addTable(target, 10, "country");
+		addColumn(newCountry, 1, "code", "text");
+		addIndex(newCountry, "country_code", "CREATE UNIQUE INDEX country_code ON country USING hash (code)");
+		Table newCity = addTable(target, 11, "city");
+		addColumn(newCity, 1, "country", "text");
+		addConstraint(newCity, "city_country_fkey", 'f', "FOREIGN KEY (country) REFERENCES country(code)", "country");
+		
+		List<String> statements = SchemaDiff.getChanges(source, target);
+		assertEquals(4, statements.size());
+		assertEquals("ALTER TABLE \"city\" DROP CONSTRAINT \"city_country_fkey\"", statements.get(0));
+		assertEquals("DROP INDEX \"country_code\"", statements.get(1));
+		assertEquals("CREATE UNIQUE INDEX country_code ON country USING hash (code)", statements.get(2));
+		assertEquals("ALTER TABLE \"city\" ADD CONSTRAINT \"city_country_fkey\" FOREIGN KEY (country) REFERENCES country(code)", statements.get(3));
+	}
+	
+	@Test
+	public void sequencesAreRestartedRatherThanSet() throws Exception {
+		addSequence(source, 1, "counter", 3, true);
+		addSequence(source, 2, "unchanged", 7, true);
+		addSequence(target, 1, "counter", 5, true);
+		addSequence(target, 2, "unchanged", 7, true);
+		addSequence(target, 3, "tally", 1, false);
+		
+		List<String> statements = SchemaDiff.getChanges(source, target);
+		assertEquals(3, statements.size());
+		assertEquals("CREATE SEQUENCE \"tally\"", statements.get(0));
+		assertEquals("ALTER SEQUENCE \"tally\" RESTART WITH 1", statements.get(1));
+		assertEquals("ALTER SEQUENCE \"counter\" RESTART WITH 6", statements.get(2));
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ox.it.ords.api.database.structure.resources.AbstractResourceTest;
+
+/**
+ * Runs the statements generated for sequences against the database, as a
+ * batch, in the same way staging does
+ */
+public class SequenceCopyTest extends AbstractResourceTest {
+	
+	private static final String ORIGINAL = "test_sequence_original";
+	private static final String COPY = "test_sequence_copy";
+	
+	private StructureServiceImpl service;
+	
+	@Before
+	public void createOriginal() throws Exception {
+		service = new StructureServiceImpl();
+		dropDatabases();
+		service.runJDBCQuery("ROLLBACK TRANSACTION; CREATE DATABASE " + ORIGINAL, null, null, null);
+		service.runJDBCQuery("CREATE SEQUENCE counter", null, null, ORIGINAL);
+		service.runJDBCQuery("CREATE SEQUENCE unused", null, null, ORIGINAL);
+		service.runJDBCQuery("CREATE TABLE item (id serial PRIMARY KEY, name text)", null, null, ORIGINAL);
+		for (int i = 0; i < 3; i++) {
+			service.runJDBCQuery("SELECT nextval('counter')", null, null, ORIGINAL);
+		}
+		service.runJDBCQuery("INSERT INTO item (name) VALUES ('first'), ('second')", null, null, ORIGINAL);
+	}
+	
+	@After
+	public void dropDatabases() throws Exception {
+		for (String database : new String[]{COPY, ORIGINAL}) {
+			service.terminateConnections(database, null);
+			service.runJDBCQuery(service.getDropIfExistsStatement(database, null), null, null, null);
+		}
+	}
+	
+	@Test
+	public void schemaOnlyCopyCarriesOnSequences() throws Exception {
+		service.createSchemaOnlyCopy(COPY, ORIGINAL, null);
+		
+		assertEquals(4, nextValue(COPY, "counter"));
+		assertEquals(1, nextValue(COPY, "unused"));
+		assertEquals(3, nextValue(COPY, "item_id_seq"));
+	}
+	
+	@Test
+	public void mergedSequencesCarryOn() throws Exception {
+		service.createSchemaOnlyCopy(COPY, ORIGINAL, null);
+		service.runJDBCQuery("CREATE SEQUENCE tally", null, null, COPY);
+		service.runJDBCQuery("ALTER TABLE item ADD COLUMN code serial", null, null, COPY);
+		for (int i = 0; i < 2; i++) {
+			service.runJDBCQuery("SELECT nextval('counter'), nextval('tally')", null, null, COPY);
+		}
+		
+		service.runSQLStatements(SchemaDiff.getChanges(service.getSchemaDefinition(ORIGINAL, null), 
+				service.getSchemaDefinition(COPY, null)), null, ORIGINAL);
+		
+		assertEquals(6, nextValue(ORIGINAL, "counter"));
+		assertEquals(3, nextValue(ORIGINAL, "tally"));
+		assertEquals(1, nextValue(ORIGINAL, "unused"));
+	}
+	
+	private int nextValue(String database, String sequence) throws Exception {
+		return service.queryForObject("SELECT nextval(?::regclass)", service.createParameterList(sequence), 
+				null, database, RowMapper.INTEGER);
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ServerCapabilitiesTest {
+
+	@Test
+	public void versionComparison(){
+		assertTrue(new ServerCapabilities(9, 2).isAtLeast(9, 2));
+		assertTrue(new ServerCapabilities(10, 0).isAtLeast(9, 2));
+		assertTrue(new ServerCapabilities(15, 1).isAtLeast(9, 2));
+		assertFalse(new ServerCapabilities(9, 1).isAtLeast(9, 2));
+		assertFalse(new ServerCapabilities(8, 4).isAtLeast(9, 2));
+	}
+	
+	@Test
+	public void backendPid(){
+		assertEquals("procpid", new ServerCapabilities(9, 1).getBackendPidColumn());
+		assertEquals("pid", new ServerCapabilities(9, 6).getBackendPidColumn());
+		assertEquals("pid", new ServerCapabilities(12, 0).getBackendPidColumn());
+	}
+	
+	@Test
+	public void createDatabaseStrategy(){
+		assertFalse(new ServerCapabilities(14, 9).supportsCreateDatabaseStrategy());
+		assertTrue(new ServerCapabilities(15, 0).supportsCreateDatabaseStrategy());
+		assertTrue(new ServerCapabilities(9, 1).supportsDropDatabaseIfExists());
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StagingJournalTest {
+	
+	@Test
+	public void entriesFollowStatements() throws Exception {
+		List<String> statements = new ArrayList<String>();
+		statements.add("ALTER TABLE \"country\" RENAME TO \"nation\"");
+		statements.add("COMMENT ON TABLE \"nation\" IS 'It''s a country'");
+		
+		List<String> journaled = StagingJournal.withEntries(statements);
+		assertEquals(4, journaled.size());
+		assertEquals(statements.get(0), journaled.get(0));
+		assertEquals(statements.get(1), journaled.get(1));
+		assertEquals("INSERT INTO ords_staging.journal (statement) VALUES ('ALTER TABLE \"country\" RENAME TO \"nation\"')", journaled.get(2));
+		assertEquals("INSERT INTO ords_staging.journal (statement) VALUES ('COMMENT ON TABLE \"nation\" IS ''It''''s a country''')", journaled.get(3));
+	}
+	
+	@Test
+	public void journaledDatabasesAreRemembered() throws Exception {
+		assertNull(StagingJournal.isJournaled("localhost", "test_staging"));
+		StagingJournal.setJournaled("localhost", "test_staging", true);
+		assertTrue(StagingJournal.isJournaled("localhost", "test_staging"));
+		StagingJournal.forget("localhost", "test_staging");
+		assertNull(StagingJournal.isJournaled("localhost", "test_staging"));
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 University of Oxford
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ox.it.ords.api.database.structure.services.impl.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ox.it.ords.api.database.structure.model.OrdsPhysicalDatabase;
+
+/**
+ * Checks when a copy is used, with the database calls replaced by a record
+ * of the statements that would have been run
+ */
+public class WarmStagingPoolTest {
+	
+	private TestPool pool;
+	private String node = StructureServiceImpl.md5("node1").substring(0, 8);
+	private OrdsPhysicalDatabase database;
+	
+	@Before
+	public void setUp(){
+		pool = new TestPool("node1");
+		database = new OrdsPhysicalDatabase();
+		database.setPhysicalDatabaseId(1);
+		database.setLogicalDatabaseId(2);
+		database.setEntityType(OrdsPhysicalDatabase.EntityType.MAIN);
+		database.setDatabaseServer("localhost");
+	}
+	
+	@After
+	public void tearDown(){
+		pool.shutdown();
+	}
+	
+	@Test
+	public void claimedWhenSchemaUnchanged() throws Exception {
+		pool.recordUse(database);
+		pool.refresh();
+		assertTrue(pool.statements.contains("CLONE main_1_2_staging_warm_" + node + " FROM main_1_2"));
+		
+		//
+		// Rows written to the original don't matter, as its data is kept
+		// when the staging database is merged
+		//
+		assertTrue(pool.claim(database, "main_1_2_staging"));
+		assertEquals("ALTER DATABASE \"main_1_2_staging_warm_" + node + "\" RENAME TO \"main_1_2_staging\"", last(pool.statements));
+		
+		//
+		// It can only be used once
+		//
+		assertFalse(pool.claim(database, "main_1_2_staging"));
+	}
+	
+	@Test
+	public void notClaimedWhenSchemaChanged() throws Exception {
+		pool.recordUse(database);
+		pool.refresh();
+		pool.fingerprint = "changed";
+		assertFalse(pool.claim(database, "main_1_2_staging"));
+		assertEquals("DROP main_1_2_staging_warm_" + node, last(pool.statements));
+	}
+	
+	@Test
+	public void notClaimedUntilCopied() throws Exception {
+		pool.recordUse(database);
+		assertFalse(pool.claim(database, "main_1_2_staging"));
+		
+		pool.quiet = false;
+		pool.refresh();
+		assertFalse(pool.claim(database, "main_1_2_staging"));
+	}
+	
+	@Test
+	public void onlyOwnLeftoversDropped() throws Exception {
+		TestPool other = new TestPool("node2");
+		try {
+			pool.leftovers.add("main_9_9_staging_warm_" + node);
+			pool.recordUse(database);
+			pool.refresh();
+			assertEquals("%\\_staging\\_warm\\_" + node, pool.pattern);
+			assertTrue(pool.statements.contains("DROP main_9_9_staging_warm_" + node));
+			assertFalse(other.getWarmName(database).equals(pool.getWarmName(database)));
+		} finally {
+			other.shutdown();
+		}
+	}
+	
+	private static String last(List<String> statements){
+		return statements.get(statements.size() - 1);
+	}
+	
+	private static class TestPool extends WarmStagingPool {
+		
+		final List<String> statements = new ArrayList<String>();
+		final List<String> leftovers = new ArrayList<String>();
+		String fingerprint = "original";
+		String pattern;
+		boolean quiet = true;
+		
+		TestPool(String node){
+			super(5, Long.MAX_VALUE, 3600000, node);
+		}
+		
+		@Override
+		protected String getCatalogFingerprint(String databaseName, String databaseServer) {
+			return fingerprint;
+		}
+		
+		@Override
+		protected boolean isQuiet(OrdsPhysicalDatabase database) {
+			return quiet;
+		}
+		
+		@Override
+		protected DatabaseLock tryLockDatabase(int dbId) {
+			return null;
+		}
+		
+		@Override
+		protected void releaseConnections(String server, String databaseName) {
+		}
+		
+		@Override
+		protected String getDropIfExistsStatement(String databaseName, String server) {
+			return "DROP " + databaseName;
+		}
+		
+		@Override
+		protected String getCloneStatement(String databaseName, String templateName, String server) {
+			return "CLONE " + databaseName + " FROM " + templateName;
+		}
+		
+		@Override
+		protected void runJDBCQuery(String query, List<Object> parameters, String server, String databaseName) {
+			statements.add(query);
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected <T> List<T> queryForList(String query, List<Object> parameters, String server, 
+				String databaseName, RowMapper<T> mapper) {
+			pattern = (String) parameters.get(0);
+			return (List<T>) new ArrayList<String>(leftovers);
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected <T> T queryForObject(String query, List<Object> parameters, String server, 
+				String databaseName, RowMapper<T> mapper) {
+			return (T) Long.valueOf(1000);
+		}
+	}
+}